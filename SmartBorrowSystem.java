@@ -1,12 +1,141 @@
 import javax.swing.*;
-import javax.swing.table.DefaultTableModel;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.table.AbstractTableModel;
 import java.awt.*;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.time.temporal.ChronoUnit;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.UUID;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
+import java.util.regex.Matcher;
+import java.util.stream.IntStream;
+import java.util.regex.Pattern;
+import java.util.function.Supplier;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+
+// Password hashing (JDK)
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+// Metrics over JMX (JDK)
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+// Embedded HTTP server (JDK)
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
 
 // Imports for JavaMail
 import javax.mail.*;
@@ -14,13 +143,14 @@ import javax.mail.internet.*;
 import javax.activation.DataHandler;
 import javax.activation.DataSource;
 import javax.activation.FileDataSource;
+import javax.activation.FileTypeMap;
 
 // ==========================================
 // 1. ENUMS & CONSTANTS
 // ==========================================
 enum UserRole { STUDENT, ADMIN }
-enum RequestType { NEW_BORROW, RENEW, EXTEND } 
-enum RequestStatus { PENDING, APPROVED, REJECTED, COMPLETED }
+enum RequestType { NEW_BORROW, RENEW, EXTEND, BOOKING } // persisted by ordinal: append only
+enum RequestStatus { PENDING, APPROVED, REJECTED, COMPLETED, WAITLISTED, EXPIRED, IN_TRANSIT } // persisted by ordinal: append only
 enum CardType { STUDENT_CARD, NATIONAL_ID }
 
 // ==========================================
@@ -32,21 +162,31 @@ abstract class User {
     protected String name;
     protected String email; 
     protected String phone;
-    protected String password;
+    private volatile String passwordHash; // PasswordHasher encoding; the plaintext is never stored
 
     public User(String id, String name, String email, String phone, String password) {
+        this(id, name, email, phone, PasswordHasher.hash(password), true);
+    }
+
+    // Used when restoring: takes an already-encoded hash
+    protected User(String id, String name, String email, String phone, String passwordHash, boolean hashed) {
         this.id = id;
         this.name = name;
         this.email = email;
         this.phone = phone;
-        this.password = password;
+        this.passwordHash = passwordHash;
     }
 
     public String getId() { return id; }
     public String getName() { return name; }
     public String getEmail() { return email; } 
+    public String getPhone() { return phone; }
+    String getPasswordHash() { return passwordHash; }
+    void setPasswordHash(String passwordHash) { this.passwordHash = passwordHash; }
+
+    /** Deliberately slow (PBKDF2); go through AuthService.login, which caches and rate-limits. */
     public boolean login(String inputId, String inputPass) {
-        return this.id.equals(inputId) && this.password.equals(inputPass);
+        return this.id.equals(inputId) && PasswordHasher.verify(inputPass, passwordHash);
     }
 }
 
@@ -59,81 +199,281 @@ class Student extends User {
         this.cardType = cardType;
         this.birthYear = birthYear;
     }
+
+    private Student(String id, String name, String email, String phone, String passwordHash, CardType cardType, int birthYear, boolean hashed) {
+        super(id, name, email, phone, passwordHash, hashed);
+        this.cardType = cardType;
+        this.birthYear = birthYear;
+    }
+
+    // Used when restoring from a snapshot or journal
+    static Student restore(String id, String name, String email, String phone, String passwordHash, CardType cardType, int birthYear) {
+        return new Student(id, name, email, phone, passwordHash, cardType, birthYear, true);
+    }
+
+    public CardType getCardType() { return cardType; }
+    public int getBirthYear() { return birthYear; }
 }
 
 class Admin extends User {
     public Admin(String username, String password) {
         super(username, "Administrator", "admin@sys.com", "-", password);
     }
+
+    private Admin(String username, String passwordHash, boolean hashed) {
+        super(username, "Administrator", "admin@sys.com", "-", passwordHash, hashed);
+    }
+
+    // Used when restoring from a snapshot or journal
+    static Admin restore(String username, String passwordHash) { return new Admin(username, passwordHash, true); }
 }
 
 class Item {
     private String itemId;
     private String name;
     private String category;
-    private int totalQty;
-    private int currentQty;
+    private final String branch; // the campus holding these units; same name in another branch = same model
+    private volatile int totalQty; // only changes when units move between branches, under the branch lock
+    // Units free right now. Held units are already subtracted; see Hold.
+    private final AtomicInteger currentQty;
+    private final AtomicInteger heldQty = new AtomicInteger();
+    private final Set<Hold> holds = ConcurrentHashMap.newKeySet();
+    private volatile Runnable stockListener; // told after every change to currentQty
 
     public Item(String itemId, String name, String category, int totalQty) {
+        this(itemId, name, category, totalQty, DataStore.MAIN_BRANCH);
+    }
+
+    public Item(String itemId, String name, String category, int totalQty, String branch) {
         this.itemId = itemId;
         this.name = name;
         this.category = category;
+        this.branch = branch;
         this.totalQty = totalQty;
-        this.currentQty = totalQty;
+        this.currentQty = new AtomicInteger(totalQty);
+    }
+
+    // Used when restoring from a snapshot
+    public Item(String itemId, String name, String category, int totalQty, int currentQty, String branch) {
+        this(itemId, name, category, totalQty, branch);
+        this.currentQty.set(currentQty);
     }
 
     public String getItemId() { return itemId; }
     public String getName() { return name; }
+    public String getBranch() { return branch; }
     public int getTotalQty() { return totalQty; }
-    public int getCurrentQty() { return currentQty; }
+    public int getCurrentQty() { return currentQty.get(); }
     public String getCategory() { return category; }
+    /** Free units plus units only temporarily held; this is what gets persisted. */
+    public int getQtyIgnoringHolds() { return currentQty.get() + heldQty.get(); }
+
+    /** Takes one unit if any is free. Lock-free; never lets the count go below zero. */
+    public boolean tryReserve() {
+        while (true) {
+            int q = currentQty.get();
+            if (q <= 0) {
+                if (reapExpiredHolds(System.currentTimeMillis()) > 0) continue;
+                return false;
+            }
+            if (currentQty.compareAndSet(q, q - 1)) {
+                stockChanged();
+                return true;
+            }
+        }
+    }
+
+    /** Takes up to n units in one step; returns how many were taken. */
+    public int tryReserve(int n) {
+        while (true) {
+            int q = currentQty.get();
+            if (q <= 0) {
+                if (reapExpiredHolds(System.currentTimeMillis()) > 0) continue;
+                return 0;
+            }
+            int take = Math.min(n, q);
+            if (currentQty.compareAndSet(q, q - take)) {
+                stockChanged();
+                return take;
+            }
+        }
+    }
+
+    /** Gives one unit back. Returns false if that would exceed totalQty. */
+    public boolean release() {
+        while (true) {
+            int q = currentQty.get();
+            if (q >= totalQty) return false;
+            if (currentQty.compareAndSet(q, q + 1)) {
+                stockChanged();
+                return true;
+            }
+        }
+    }
+
+    /** Reserves a unit that is handed back automatically unless confirmed within ttl. */
+    public Hold tryHold(Duration ttl, Object owner) {
+        if (!tryReserve()) return null;
+        Hold h = new Hold(this, owner, System.currentTimeMillis() + ttl.toMillis());
+        heldQty.incrementAndGet();
+        holds.add(h);
+        return h;
+    }
+
+    /** Turns the hold into a normal reservation. False if it already expired or was released. */
+    public boolean confirmHold(Hold h) {
+        if (!h.settle()) return false;
+        holds.remove(h);
+        heldQty.decrementAndGet();
+        return true;
+    }
+
+    public boolean releaseHold(Hold h) {
+        if (!h.settle()) return false;
+        holds.remove(h);
+        heldQty.decrementAndGet();
+        release();
+        return true;
+    }
+
+    /** Units held right now for owners the test accepts. */
+    int heldFor(Predicate<Object> owner) {
+        int n = 0;
+        for (Hold h : holds) if (owner.test(h.owner)) n++;
+        return n;
+    }
+
+    /** Releases every hold past its expiry; returns how many units came back. */
+    public int reapExpiredHolds(long nowMillis) {
+        if (holds.isEmpty()) return 0;
+        int n = 0;
+        for (Hold h : holds) if (h.isExpired(nowMillis) && releaseHold(h)) n++;
+        return n;
+    }
+
+    void restoreQty(int qty) {
+        this.currentQty.set(qty);
+        stockChanged();
+    }
+
+    void restoreStock(int total, int qty) {
+        this.totalQty = total;
+        restoreQty(qty);
+    }
 
-    public void decreaseQty() { if (currentQty > 0) currentQty--; }
-    public void increaseQty() { if (currentQty < totalQty) currentQty++; }
+    /** Takes n free units out of this branch's stock for good; all or nothing. Caller holds the branch lock. */
+    boolean withdraw(int n) {
+        int got = tryReserve(n);
+        if (got < n) {
+            for (int i = 0; i < got; i++) release();
+            return false;
+        }
+        totalQty -= n; // after the units left currentQty, so release() never sees room that isn't there
+        return true;
+    }
+
+    /** Adds n units arriving from another branch. Caller holds the branch lock. */
+    void deposit(int n) {
+        totalQty += n; // before currentQty grows, for the same reason
+        currentQty.addAndGet(n);
+        stockChanged();
+    }
+
+    void setStockListener(Runnable listener) { this.stockListener = listener; }
+
+    private void stockChanged() {
+        Runnable l = stockListener;
+        if (l != null) l.run();
+    }
+
+    /** A unit set aside for someone (owner) until expiresAt. Settled exactly once: confirmed, released or expired. */
+    static final class Hold {
+        final Item item;
+        final Object owner;
+        final long expiresAt;
+        private final AtomicBoolean settled = new AtomicBoolean();
+
+        private Hold(Item item, Object owner, long expiresAt) {
+            this.item = item;
+            this.owner = owner;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired(long nowMillis) { return nowMillis >= expiresAt; }
+        boolean isSettled() { return settled.get(); }
+        private boolean settle() { return settled.compareAndSet(false, true); }
+    }
     
     @Override
-    public String toString() { return name; }
+    public String toString() { return DataStore.MAIN_BRANCH.equals(branch) ? name : name + " @" + branch; }
 }
 
 class BorrowRequest {
+    private long id; // assigned by DataStore.addRequest: 1, 2, 3, ... in journal order; 0 until then
     private Student student;
     private Item item;
     private RequestType type;
-    private RequestStatus status;
+    private volatile RequestStatus status; // written under the branch lock, read from other threads (student views, exports)
     private LocalDate requestDate;
     private int daysRequested; 
+    private LocalDate startDate; // BOOKING only: first day of the window; null otherwise
 
     public BorrowRequest(Student student, Item item, RequestType type, int daysRequested) {
         this.student = student;
         this.item = item;
         this.type = type;
         this.status = RequestStatus.PENDING;
-        this.requestDate = LocalDate.now();
+        this.requestDate = AppClock.today();
+        this.daysRequested = daysRequested;
+    }
+
+    /** A BOOKING of one unit for [startDate, startDate + days). */
+    public BorrowRequest(Student student, Item item, LocalDate startDate, int days) {
+        this(student, item, RequestType.BOOKING, days);
+        this.startDate = startDate;
+    }
+
+    // Used when restoring from a snapshot or journal
+    public BorrowRequest(Student student, Item item, RequestType type, RequestStatus status, LocalDate requestDate, int daysRequested) {
+        this.student = student;
+        this.item = item;
+        this.type = type;
+        this.status = status;
+        this.requestDate = requestDate;
         this.daysRequested = daysRequested;
     }
 
+    public long getId() { return id; }
+    void assignId(long id) { this.id = id; }
     public Student getStudent() { return student; }
     public Item getItem() { return item; }
     public RequestType getType() { return type; }
     public RequestStatus getStatus() { return status; }
     public int getDaysRequested() { return daysRequested; }
     public LocalDate getRequestDate() { return requestDate; }
+    public LocalDate getStartDate() { return startDate; }
+    /** The day a booked unit is due back (exclusive end of the window); null unless this is a BOOKING. */
+    public LocalDate getEndDate() { return startDate == null ? null : startDate.plusDays(daysRequested); }
+    void restoreStartDate(LocalDate startDate) { this.startDate = startDate; }
     public void setStatus(RequestStatus status) { this.status = status; }
 }
 
 class BorrowRecord {
+    private long id; // assigned by DataStore.addRecord, like BorrowRequest's
     private Student student;
     private Item item;
     private LocalDate borrowDate;
-    private LocalDate dueDate;
-    private LocalDate returnDate;
+    // Written under the branch lock; volatile because per-student checks read them from other branches.
+    private volatile LocalDate dueDate;
+    private volatile LocalDate returnDate;
     private boolean isExtended;
+    private LocalDate remindedForDue; // due date the last overdue reminder was sent for
 
     public BorrowRecord(Student student, Item item) {
         this.student = student;
         this.item = item;
-        this.borrowDate = LocalDate.now();
-        this.dueDate = LocalDate.now().plusDays(7); 
+        this.borrowDate = AppClock.today();
+        this.dueDate = AppClock.today().plusDays(7); 
         this.isExtended = false;
     }
 
@@ -145,12 +485,27 @@ class BorrowRecord {
         this.isExtended = false;
     }
 
+    // Used when restoring from a snapshot or journal
+    public BorrowRecord(Student student, Item item, LocalDate borrowDate, LocalDate dueDate, LocalDate returnDate, boolean isExtended) {
+        this.student = student;
+        this.item = item;
+        this.borrowDate = borrowDate;
+        this.dueDate = dueDate;
+        this.returnDate = returnDate;
+        this.isExtended = isExtended;
+    }
+
+    public long getId() { return id; }
+    void assignId(long id) { this.id = id; }
     public Student getStudent() { return student; }
     public Item getItem() { return item; }
     public LocalDate getDueDate() { return dueDate; }
     public LocalDate getReturnDate() { return returnDate; }
     public LocalDate getBorrowDate() { return borrowDate; }
     public boolean isExtended() { return isExtended; }
+    public LocalDate getRemindedForDue() { return remindedForDue; }
+    public void markReminded() { this.remindedForDue = dueDate; }
+    void restoreRemindedForDue(LocalDate due) { this.remindedForDue = due; }
     
     public void extendDueDate(int days) {
         this.dueDate = this.dueDate.plusDays(days);
@@ -162,178 +517,5709 @@ class BorrowRecord {
     }
 }
 
+/**
+ * A request to move free units of an item to another branch. On approval the units leave
+ * the source branch at once and arrive at the destination (created on first use) straight
+ * after; the two steps take one branch lock each, never both.
+ */
+class TransferRequest {
+    private final int id; // position in DataStore.transfers
+    private final Item from;
+    private final String toBranch;
+    private final int qty;
+    private final LocalDate requestDate;
+    private RequestStatus status; // PENDING, then IN_TRANSIT and COMPLETED, or REJECTED
+
+    public TransferRequest(int id, Item from, String toBranch, int qty, RequestStatus status, LocalDate requestDate) {
+        this.id = id;
+        this.from = from;
+        this.toBranch = toBranch;
+        this.qty = qty;
+        this.status = status;
+        this.requestDate = requestDate;
+    }
+
+    public int getId() { return id; }
+    public Item getFrom() { return from; }
+    public String getToBranch() { return toBranch; }
+    public int getQty() { return qty; }
+    public LocalDate getRequestDate() { return requestDate; }
+    public RequestStatus getStatus() { return status; }
+    void setStatus(RequestStatus status) { this.status = status; }
+}
+
 // ==========================================
 // 3. SERVICE LAYER
 // ==========================================
 
+/**
+ * The date every business rule runs on: due dates, fines, booking windows, overdue sweeps. It is
+ * the wall clock unless a test sets another one; `PerfHarness simulate` pins it and steps it a
+ * day at a time, so a semester replays in seconds. Hold and session expiry stay on wall-clock millis.
+ */
+final class AppClock {
+    private static volatile Clock clock = Clock.systemDefaultZone();
+
+    private AppClock() { }
+
+    static LocalDate today() { return LocalDate.now(clock); }
+    static LocalDateTime now() { return LocalDateTime.now(clock); }
+    static Clock get() { return clock; }
+    static void set(Clock c) { clock = c; }
+    static void reset() { clock = Clock.systemDefaultZone(); }
+}
+
+/**
+ * Process-wide counters and latency timers, cheap enough to leave on: recording a latency is
+ * two LongAdder adds, one atomic bucket increment and a max check. Latencies go into an
+ * HDR-style log-linear histogram (16 sub-buckets per power of two, so quantiles are within
+ * ~3%) covering 1 ns to ~18 minutes. Read them with dump() (also GET /api/metrics) or over
+ * JMX as shareu:type=Metrics. -Dshareu.metrics.slowMs=N logs every operation slower than N ms.
+ */
+class Metrics {
+    private static final long SLOW_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("shareu.metrics.slowMs", 0));
+    private static final Map<String, Counter> counters = new ConcurrentSkipListMap<>();
+    private static final Map<String, Timer> timers = new ConcurrentSkipListMap<>();
+    private static boolean jmxRegistered = false;
+
+    static Counter counter(String name) { return counters.computeIfAbsent(name, k -> new Counter()); }
+    static Timer timer(String name) { return timers.computeIfAbsent(name, Timer::new); }
+
+    static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        void increment() { value.increment(); }
+        void add(long n) { value.add(n); }
+        long get() { return value.sum(); }
+    }
+
+    static final class Timer {
+        private static final int SUB_BITS = 4, SUB = 1 << SUB_BITS;
+        private static final int MAX_EXP = 39; // 2^40 ns is about 18 minutes; slower samples share the top bucket
+        private static final int BUCKETS = (MAX_EXP - SUB_BITS + 2) * SUB;
+
+        final String name;
+        private final LongAdder count = new LongAdder(), total = new LongAdder();
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong max = new AtomicLong();
+
+        Timer(String name) { this.name = name; }
+
+        /** Usage: long t0 = System.nanoTime(); ...; timer.stop(t0); */
+        void stop(long startNanos) { record(System.nanoTime() - startNanos); }
+
+        void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            count.increment();
+            total.add(nanos);
+            buckets.incrementAndGet(bucket(nanos));
+            for (long m; nanos > (m = max.get()) && !max.compareAndSet(m, nanos); ) { }
+            if (SLOW_NANOS > 0 && nanos >= SLOW_NANOS)
+                System.err.printf("🐢 %s took %.1f ms on %s%n", name, nanos / 1e6, Thread.currentThread().getName());
+        }
+
+        // Values below SUB get a bucket each; above, the leading one bit picks the power of two
+        // and the next SUB_BITS bits the sub-bucket.
+        static int bucket(long v) {
+            if (v < SUB) return (int) v;
+            int exp = Math.min(63 - Long.numberOfLeadingZeros(v), MAX_EXP);
+            if (exp == MAX_EXP && v >= 1L << (MAX_EXP + 1)) return BUCKETS - 1;
+            int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB - 1);
+            return (exp - SUB_BITS + 1) * SUB + sub;
+        }
+
+        /** Middle of the bucket's value range. */
+        static long valueOf(int bucket) {
+            if (bucket < SUB) return bucket;
+            int exp = bucket / SUB + SUB_BITS - 1, sub = bucket % SUB;
+            long width = 1L << (exp - SUB_BITS);
+            return ((long) (SUB + sub) << (exp - SUB_BITS)) + width / 2;
+        }
+
+        Snapshot snapshot() {
+            long[] counts = new long[BUCKETS];
+            long n = 0;
+            for (int i = 0; i < BUCKETS; i++) n += counts[i] = buckets.get(i);
+            return new Snapshot(counts, n, total.sum(), max.get());
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) buckets.set(i, 0);
+            count.reset();
+            total.reset();
+            max.set(0);
+        }
+    }
+
+    /** A copy of one timer's histogram; quantiles are read from the copy, so they agree with count. */
+    static final class Snapshot {
+        private final long[] counts;
+        final long count, totalNanos, maxNanos;
+
+        Snapshot(long[] counts, long count, long totalNanos, long maxNanos) {
+            this.counts = counts;
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+        }
+
+        double meanMillis() { return count == 0 ? 0 : totalNanos / 1e6 / count; }
+
+        double quantileMillis(double q) {
+            if (count == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(q * count)), seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return Math.min(Timer.valueOf(i), maxNanos) / 1e6;
+            }
+            return maxNanos / 1e6;
+        }
+    }
+
+    static String dump() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-28s %10s %10s %10s %10s %10s %10s %10s%n", "timer (ms)", "count", "mean", "p50", "p90", "p99", "p99.9", "max"));
+        for (Timer t : timers.values()) {
+            Snapshot s = t.snapshot();
+            sb.append(String.format("%-28s %,10d %10.3f %10.3f %10.3f %10.3f %10.3f %10.3f%n", t.name, s.count, s.meanMillis(),
+                    s.quantileMillis(0.5), s.quantileMillis(0.9), s.quantileMillis(0.99), s.quantileMillis(0.999), s.maxNanos / 1e6));
+        }
+        sb.append(String.format("%-28s %10s%n", "counter", "value"));
+        for (Map.Entry<String, Counter> e : counters.entrySet()) sb.append(String.format("%-28s %,10d%n", e.getKey(), e.getValue().get()));
+        return sb.toString();
+    }
+
+    static void reset() {
+        for (Timer t : timers.values()) t.reset();
+        for (Counter c : counters.values()) c.value.reset();
+    }
+
+    /** Publishes shareu:type=Metrics on the platform MBean server (jconsole, VisualVM, JMX exporters). */
+    static synchronized void registerJmx() {
+        if (jmxRegistered) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new JmxView(), new ObjectName("shareu:type=Metrics"));
+            jmxRegistered = true;
+        } catch (JMException e) {
+            System.err.println("❌ Could not register metrics MBean: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Attributes are "<counter>" and "<timer>.<stat>" with stat one of count, meanMs, p50Ms, p90Ms,
+     * p99Ms, p999Ms, maxMs; operations are dump() and reset(). Built on demand, so timers created
+     * after registration appear on the next getMBeanInfo.
+     */
+    private static final class JmxView implements DynamicMBean {
+        private static final String[] STATS = { "count", "meanMs", "p50Ms", "p90Ms", "p99Ms", "p999Ms", "maxMs" };
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Counter c = counters.get(attribute);
+            if (c != null) return c.get();
+            int dot = attribute.lastIndexOf('.');
+            Timer t = dot < 0 ? null : timers.get(attribute.substring(0, dot));
+            if (t == null) throw new AttributeNotFoundException(attribute);
+            Snapshot s = t.snapshot();
+            switch (attribute.substring(dot + 1)) {
+                case "count": return s.count;
+                case "meanMs": return s.meanMillis();
+                case "p50Ms": return s.quantileMillis(0.5);
+                case "p90Ms": return s.quantileMillis(0.9);
+                case "p99Ms": return s.quantileMillis(0.99);
+                case "p999Ms": return s.quantileMillis(0.999);
+                case "maxMs": return s.maxNanos / 1e6;
+                default: throw new AttributeNotFoundException(attribute);
+            }
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String a : attributes) {
+                try {
+                    list.add(new Attribute(a, getAttribute(a)));
+                } catch (AttributeNotFoundException ignored) {
+                    // JMX convention: unknown names are left out of the result
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) { return new AttributeList(); }
+
+        @Override
+        public Object invoke(String action, Object[] params, String[] signature) throws ReflectionException {
+            switch (action) {
+                case "dump": return dump();
+                case "reset": reset(); return null;
+                default: throw new ReflectionException(new NoSuchMethodException(action));
+            }
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attrs = new ArrayList<>();
+            for (String name : counters.keySet())
+                attrs.add(new MBeanAttributeInfo(name, "java.lang.Long", "counter", true, false, false));
+            for (String name : timers.keySet())
+                for (String stat : STATS)
+                    attrs.add(new MBeanAttributeInfo(name + "." + stat, stat.equals("count") ? "java.lang.Long" : "java.lang.Double", "timer " + stat, true, false, false));
+            MBeanOperationInfo[] ops = {
+                new MBeanOperationInfo("dump", "All metrics as a text table", new MBeanParameterInfo[0], "java.lang.String", MBeanOperationInfo.INFO),
+                new MBeanOperationInfo("reset", "Zero every counter and timer", new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION)
+            };
+            return new MBeanInfo(Metrics.class.getName(), "ShareU counters and latency timers",
+                    attrs.toArray(new MBeanAttributeInfo[0]), null, ops, null);
+        }
+    }
+}
+
+/**
+ * Outbound mail goes through a bounded queue drained by a small pool of worker threads.
+ * All messages share one Session and each worker keeps its SMTP connection open across
+ * messages, reconnecting only after an error or when the queue has been idle for a while.
+ */
 class EmailService {
     // !!! แก้ไขข้อมูลตรงนี้ !!!
     private static final String SENDER_EMAIL = "chanutsunatho@gmail.com"; 
     private static final String APP_PASSWORD = "dcjj putl zrkz qmxw"; 
 
+    private static final int QUEUE_CAPACITY = 1000;
+    private static final int WORKERS = 2;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long BACKOFF_MS = 1000;
+    private static final long IDLE_DISCONNECT_MS = 30_000;
+
+    private static final Session SESSION = createSession();
+
+    private static final BlockingQueue<OutboundMail> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    // -Dshareu.mail=memory keeps everything in-process (no SMTP), handy for local runs.
+    private static volatile Supplier<MailTransport> transportFactory =
+            "memory".equals(System.getProperty("shareu.mail")) ? InMemoryMailTransport::shared : SmtpMailTransport::new;
+    private static boolean workersStarted = false;
+
+    private static final Metrics.Counter enqueued = Metrics.counter("mail.queued");
+    private static final Metrics.Counter sent = Metrics.counter("mail.sent");
+    private static final Metrics.Counter failed = Metrics.counter("mail.failed");
+    private static final Metrics.Counter dropped = Metrics.counter("mail.dropped");
+    private static final Metrics.Counter retries = Metrics.counter("mail.retries");
+    private static final Metrics.Timer sendTimer = Metrics.timer("mail.send");         // build + one transport.send
+    private static final Metrics.Timer deliveryTimer = Metrics.timer("mail.delivery"); // queued -> sent, retries included
+
+    static class OutboundMail {
+        final String recipient, subject, body, attachmentPath;
+        final long enqueuedAt = System.nanoTime();
+
+        OutboundMail(String recipient, String subject, String body, String attachmentPath) {
+            this.recipient = recipient;
+            this.subject = subject;
+            this.body = body;
+            this.attachmentPath = attachmentPath;
+        }
+    }
+
     public static void send(String recipientEmail, String subject, String body) {
         sendWithAttachment(recipientEmail, subject, body, null);
     }
 
     public static void sendWithAttachment(String recipientEmail, String subject, String body, String filePath) {
-        new Thread(() -> {
-            System.out.println("⏳ Sending email to " + recipientEmail + "...");
-            
-            Properties props = new Properties();
-            props.put("mail.smtp.auth", "true");
-            props.put("mail.smtp.starttls.enable", "true");
-            props.put("mail.smtp.host", "smtp.gmail.com");
-            props.put("mail.smtp.port", "587");
-            props.put("mail.smtp.ssl.protocols", "TLSv1.2");
-
-            Session session = Session.getInstance(props, new Authenticator() {
-                @Override
-                protected PasswordAuthentication getPasswordAuthentication() {
-                    return new PasswordAuthentication(SENDER_EMAIL, APP_PASSWORD);
-                }
-            });
+        enqueue(new OutboundMail(recipientEmail, subject, body, filePath));
+    }
+
+    /** Never blocks the caller: when the queue is full the message is dropped and counted. */
+    static boolean enqueue(OutboundMail mail) {
+        startWorkers();
+        if (!queue.offer(mail)) {
+            dropped.increment();
+            System.err.println("❌ Mail queue full, dropping email to " + mail.recipient);
+            return false;
+        }
+        enqueued.increment();
+        System.out.println("⏳ Queued email to " + mail.recipient + " (queue depth " + queue.size() + ")");
+        return true;
+    }
 
+    /**
+     * Queues a batch for background callers: waits for queue space instead of dropping.
+     * Returns how many were queued (fewer only if interrupted or the queue stays full).
+     */
+    static int enqueueAll(List<OutboundMail> batch) {
+        startWorkers();
+        int queued = 0;
+        for (OutboundMail mail : batch) {
             try {
-                Message message = new MimeMessage(session);
-                message.setFrom(new InternetAddress(SENDER_EMAIL));
-                message.setRecipients(Message.RecipientType.TO, InternetAddress.parse(recipientEmail));
-                message.setSubject(subject);
-
-                Multipart multipart = new MimeMultipart();
-
-                BodyPart messageBodyPart = new MimeBodyPart();
-                messageBodyPart.setText(body);
-                multipart.addBodyPart(messageBodyPart);
-
-                if (filePath != null && !filePath.isEmpty()) {
-                    File file = new File(filePath);
-                    if (file.exists()) {
-                        BodyPart attachmentBodyPart = new MimeBodyPart();
-                        DataSource source = new FileDataSource(filePath);
-                        attachmentBodyPart.setDataHandler(new DataHandler(source));
-                        attachmentBodyPart.setFileName(file.getName());
-                        multipart.addBodyPart(attachmentBodyPart);
-                        System.out.println("📎 Attaching file: " + file.getName());
-                    } else {
-                        System.err.println("⚠️ Attachment file not found: " + filePath);
+                if (!queue.offer(mail, 10, TimeUnit.SECONDS)) break;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            queued++;
+        }
+        enqueued.add(queued);
+        dropped.add(batch.size() - queued);
+        System.out.println("⏳ Queued " + queued + "/" + batch.size() + " emails (queue depth " + queue.size() + ")");
+        return queued;
+    }
+
+    /** Swaps the transport used by workers for new connections (e.g. an in-memory stand-in). */
+    static void setTransportFactory(Supplier<MailTransport> factory) { transportFactory = factory; }
+
+    static int queueDepth() { return queue.size(); }
+
+    static String stats() {
+        Metrics.Snapshot latency = deliveryTimer.snapshot();
+        return String.format("Mail: queued=%d sent=%d failed=%d dropped=%d retries=%d depth=%d avgLatency=%dms p99Latency=%dms maxLatency=%dms %s",
+                enqueued.get(), sent.get(), failed.get(), dropped.get(), retries.get(), queue.size(), (long) latency.meanMillis(),
+                (long) latency.quantileMillis(0.99), latency.maxNanos / 1_000_000, AttachmentCache.stats());
+    }
+
+    private static synchronized void startWorkers() {
+        if (workersStarted) return;
+        workersStarted = true;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println("📧 " + stats()), "mail-stats"));
+        for (int i = 0; i < WORKERS; i++) {
+            Thread t = new Thread(EmailService::workerLoop, "mail-worker-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    private static void workerLoop() {
+        MailTransport transport = null;
+        while (true) {
+            OutboundMail mail;
+            try {
+                mail = queue.poll(IDLE_DISCONNECT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                closeQuietly(transport);
+                return;
+            }
+            if (mail == null) {
+                // Idle: release the SMTP connection rather than letting the server time it out.
+                closeQuietly(transport);
+                transport = null;
+                continue;
+            }
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    if (transport == null) transport = transportFactory.get();
+                    long t0 = System.nanoTime();
+                    transport.send(buildMessage(mail));
+                    sendTimer.stop(t0);
+                    deliveryTimer.stop(mail.enqueuedAt);
+                    sent.increment();
+                    System.out.println("✅ Email Sent Successfully to: " + mail.recipient);
+                    break;
+                } catch (Exception e) {
+                    closeQuietly(transport);
+                    transport = null;
+                    if (attempt >= MAX_ATTEMPTS) {
+                        failed.increment();
+                        System.err.println("❌ Failed to send email to " + mail.recipient + ": " + e.getMessage());
+                        break;
+                    }
+                    retries.increment();
+                    try {
+                        Thread.sleep(BACKOFF_MS << (attempt - 1));
+                    } catch (InterruptedException ie) {
+                        return;
                     }
                 }
+            }
+        }
+    }
 
-                message.setContent(multipart);
-                Transport.send(message);
-                System.out.println("✅ Email Sent Successfully to: " + recipientEmail);
+    /** The authenticated SMTP session; the credentials themselves stay in this class. */
+    static Session session() { return SESSION; }
 
-            } catch (Exception e) {
-                System.err.println("❌ Failed to send email: " + e.getMessage());
-            }
-        }).start();
+    /** An empty message from the system's sender address. */
+    static MimeMessage newMessage() throws MessagingException {
+        MimeMessage message = new MimeMessage(SESSION);
+        message.setFrom(new InternetAddress(SENDER_EMAIL));
+        return message;
     }
-}
 
-class FineCalculator {
-    private static final int FINE_PER_DAY = 100;
-    public static int calculate(LocalDate dueDate, LocalDate returnDate) {
-        if (returnDate.isAfter(dueDate)) {
-            long daysLate = ChronoUnit.DAYS.between(dueDate, returnDate);
-            return (int) (daysLate * FINE_PER_DAY);
+    static MimeMessage buildMessage(OutboundMail mail) throws MessagingException {
+        MimeMessage message = newMessage();
+        message.setRecipients(Message.RecipientType.TO, InternetAddress.parse(mail.recipient));
+        message.setSubject(mail.subject);
+
+        Multipart multipart = new MimeMultipart();
+
+        BodyPart messageBodyPart = new MimeBodyPart();
+        messageBodyPart.setText(mail.body);
+        multipart.addBodyPart(messageBodyPart);
+
+        if (mail.attachmentPath != null && !mail.attachmentPath.isEmpty()) {
+            MimeBodyPart attachmentBodyPart = AttachmentCache.bodyPart(mail.attachmentPath);
+            if (attachmentBodyPart != null) {
+                multipart.addBodyPart(attachmentBodyPart);
+                System.out.println("📎 Attaching file: " + attachmentBodyPart.getFileName());
+            } else {
+                System.err.println("⚠️ Attachment file not found: " + mail.attachmentPath);
+            }
         }
-        return 0;
+
+        message.setContent(multipart);
+        message.saveChanges();
+        return message;
     }
-}
 
-class DataStore {
-    public static List<User> users = new ArrayList<>();
-    public static List<Item> items = new ArrayList<>();
-    public static List<BorrowRequest> requests = new ArrayList<>();
-    public static List<BorrowRecord> records = new ArrayList<>();
+    private static Session createSession() {
+        Properties props = new Properties();
+        props.put("mail.smtp.auth", "true");
+        props.put("mail.smtp.starttls.enable", "true");
+        props.put("mail.smtp.host", "smtp.gmail.com");
+        props.put("mail.smtp.port", "587");
+        props.put("mail.smtp.ssl.protocols", "TLSv1.2");
 
-    static {
-        users.add(new Admin("admin", "admin")); 
-        items.add(new Item("I01", "Projector Sony", "AV", 5));
-        items.add(new Item("I02", "MacBook Pro M2", "IT", 2));
-        items.add(new Item("I03", "Canon Camera", "AV", 3));
-        items.add(new Item("I04", "Microphone Shure", "Audio", 10));
-        
-        Student s1 = new Student("66001", "Good Student", "usrinusupus@gmail.com", "081", "1234", CardType.STUDENT_CARD, 2002);
-        users.add(s1);
-        Student s2 = new Student("66999", "Late Student", "usrinusupus@gmail.com", "089", "1234", CardType.STUDENT_CARD, 2001);
-        users.add(s2);
-        Item i2 = items.get(1); 
-        i2.decreaseQty(); 
-        records.add(new BorrowRecord(s2, i2, LocalDate.now().minusDays(3))); 
+        return Session.getInstance(props, new Authenticator() {
+            @Override
+            protected PasswordAuthentication getPasswordAuthentication() {
+                return new PasswordAuthentication(SENDER_EMAIL, APP_PASSWORD);
+            }
+        });
+    }
+
+    private static void closeQuietly(MailTransport transport) {
+        if (transport == null) return;
+        try { transport.close(); } catch (Exception ignored) { }
     }
 }
 
-// ==========================================
-// 4. VIEW LAYER (Swing GUI)
-// ==========================================
+/**
+ * Attachments are read and base64-encoded once, then every message gets a body part that
+ * points at the same pre-encoded bytes (javax.mail copies already-encoded content straight
+ * to the wire). The file is re-read only when its mtime or size changes, and that stat
+ * itself is done at most once per CHECK_INTERVAL_MS.
+ */
+class AttachmentCache {
+    private static final long CHECK_INTERVAL_MS = 1000;
 
-public class SmartBorrowSystem extends JFrame {
-    private CardLayout cardLayout = new CardLayout();
-    private JPanel mainPanel = new JPanel(cardLayout);
-    private User currentUser;
-    private JPanel adminPanel;
-    private JPanel studentPanel;
+    private static final Map<Path, Entry> entries = new ConcurrentHashMap<>();
+    private static final AtomicLong loads = new AtomicLong(), hits = new AtomicLong();
 
-    public SmartBorrowSystem() {
-        setTitle("ShareU"); // [UPDATED] Changed Title
-        setSize(1200, 700); // Increased width for more columns
-        setDefaultCloseOperation(EXIT_ON_CLOSE);
-        setLocationRelativeTo(null);
+    private static final class Entry {
+        final long mtime, size;
+        final String fileName, contentType;
+        final byte[] encoded; // base64 with CRLF line breaks, exactly as sent
+        volatile long checkedAt;
 
-        mainPanel.add(createLoginPanel(), "LOGIN");
-        mainPanel.add(createRegisterPanel(), "REGISTER");
-        studentPanel = createStudentPanel();
-        adminPanel = createAdminPanel();
-        mainPanel.add(studentPanel, "STUDENT");
-        mainPanel.add(adminPanel, "ADMIN");
-        add(mainPanel);
-        cardLayout.show(mainPanel, "LOGIN");
+        Entry(long mtime, long size, String fileName, String contentType, byte[] encoded, long checkedAt) {
+            this.mtime = mtime;
+            this.size = size;
+            this.fileName = fileName;
+            this.contentType = contentType;
+            this.encoded = encoded;
+            this.checkedAt = checkedAt;
+        }
     }
 
-    private JPanel createLoginPanel() {
-        JPanel panel = new JPanel(new GridBagLayout());
-        panel.setBackground(new Color(240, 248, 255));
-        GridBagConstraints gbc = new GridBagConstraints();
-        gbc.insets = new Insets(10, 10, 10, 10);
-        JLabel title = new JLabel("ShareU"); // [UPDATED] Changed Title Label
-        title.setFont(new Font("SansSerif", Font.BOLD, 32));
-        JTextField tfUser = new JTextField(20);
-        JPasswordField pfPass = new JPasswordField(20);
-        JButton btnLogin = new JButton("Login");
-        JButton btnReg = new JButton("Register");
+    /** A fresh body part backed by the cached encoding, or null if the file does not exist. */
+    static MimeBodyPart bodyPart(String filePath) throws MessagingException {
+        Entry e = entry(Paths.get(filePath).toAbsolutePath().normalize());
+        if (e == null) return null;
+        // Parts are mutated when added to a message, so each message gets its own headers;
+        // the encoded bytes are shared.
+        InternetHeaders headers = new InternetHeaders();
+        headers.setHeader("Content-Type", new ContentType(e.contentType).toString());
+        headers.setHeader("Content-Transfer-Encoding", "base64");
+        MimeBodyPart part = new MimeBodyPart(headers, e.encoded);
+        part.setFileName(e.fileName);
+        return part;
+    }
 
-        gbc.gridx = 0; gbc.gridy = 0; gbc.gridwidth = 2; panel.add(title, gbc);
-        gbc.gridy = 1; gbc.gridwidth = 1; panel.add(new JLabel("ID / Card ID:"), gbc);
-        gbc.gridx = 1; panel.add(tfUser, gbc);
-        gbc.gridx = 0; gbc.gridy = 2; panel.add(new JLabel("Password:"), gbc);
-        gbc.gridx = 1; panel.add(pfPass, gbc);
-        gbc.gridx = 0; gbc.gridy = 3; gbc.gridwidth = 2; panel.add(btnLogin, gbc);
-        gbc.gridy = 4; panel.add(btnReg, gbc);
+    static void clear() { entries.clear(); }
 
-        btnLogin.addActionListener(e -> {
-            String id = tfUser.getText();
-            String pass = new String(pfPass.getPassword());
-            User foundUser = DataStore.users.stream().filter(u -> u.login(id, pass)).findFirst().orElse(null);
-            if (foundUser != null) {
-                currentUser = foundUser;
-                if (currentUser instanceof Admin) { refreshAdminData(); cardLayout.show(mainPanel, "ADMIN"); } 
-                else { refreshStudentData(); cardLayout.show(mainPanel, "STUDENT"); }
-            } else { JOptionPane.showMessageDialog(this, "Invalid Credentials"); }
-        });
-        btnReg.addActionListener(e -> cardLayout.show(mainPanel, "REGISTER"));
-        return panel;
+    static String stats() { return "attachments: loads=" + loads.get() + " hits=" + hits.get(); }
+
+    private static Entry entry(Path path) throws MessagingException {
+        long now = System.currentTimeMillis();
+        Entry e = entries.get(path);
+        if (e != null && now - e.checkedAt < CHECK_INTERVAL_MS) {
+            hits.incrementAndGet();
+            return e;
+        }
+        File file = path.toFile();
+        long mtime = file.lastModified(), size = file.length();
+        if (mtime == 0L && !file.exists()) {
+            entries.remove(path);
+            return null;
+        }
+        if (e != null && e.mtime == mtime && e.size == size) {
+            e.checkedAt = now;
+            hits.incrementAndGet();
+            return e;
+        }
+        synchronized (AttachmentCache.class) { // one load per change, even in a registration burst
+            e = entries.get(path);
+            if (e != null && e.mtime == mtime && e.size == size) {
+                hits.incrementAndGet();
+                return e;
+            }
+            e = load(file, mtime, size, now);
+            entries.put(path, e);
+            return e;
+        }
     }
 
-    // --- REGISTER PANEL ---
-    private JPanel createRegisterPanel() {
-        JPanel panel = new JPanel(new GridBagLayout());
-        GridBagConstraints gbc = new GridBagConstraints();
-        gbc.insets = new Insets(5, 5, 5, 5);
+    private static Entry load(File file, long mtime, long size, long now) throws MessagingException {
+        try {
+            byte[] raw = Files.readAllBytes(file.toPath());
+            ByteArrayOutputStream buf = new ByteArrayOutputStream(raw.length * 4 / 3 + raw.length / 38 + 16);
+            try (OutputStream enc = MimeUtility.encode(buf, "base64")) {
+                enc.write(raw);
+            }
+            loads.incrementAndGet();
+            String contentType = FileTypeMap.getDefaultFileTypeMap().getContentType(file);
+            return new Entry(mtime, size, file.getName(), contentType, buf.toByteArray(), now);
+        } catch (IOException ex) {
+            throw new MessagingException("Cannot read attachment " + file, ex);
+        }
+    }
+}
 
-        JComboBox<CardType> cbType = new JComboBox<>(CardType.values());
-        JTextField tfId = new JTextField(15);
-        JTextField tfName = new JTextField(15);
+/** One connection's worth of mail delivery. Implementations are used by a single worker thread. */
+interface MailTransport extends AutoCloseable {
+    void send(MimeMessage message) throws MessagingException;
+    @Override void close() throws MessagingException;
+}
+
+/** Real SMTP delivery; connects lazily and keeps the connection for subsequent messages. */
+class SmtpMailTransport implements MailTransport {
+    private Transport transport;
+
+    @Override
+    public void send(MimeMessage message) throws MessagingException {
+        if (transport == null || !transport.isConnected()) {
+            transport = EmailService.session().getTransport("smtp");
+            transport.connect();
+        }
+        transport.sendMessage(message, message.getAllRecipients());
+    }
+
+    @Override
+    public void close() throws MessagingException {
+        if (transport != null) transport.close();
+        transport = null;
+    }
+}
+
+/** Keeps delivered messages in memory instead of talking to a server. */
+class InMemoryMailTransport implements MailTransport {
+    private static final InMemoryMailTransport SHARED = new InMemoryMailTransport();
+    private final List<MimeMessage> delivered = Collections.synchronizedList(new ArrayList<>());
+
+    static InMemoryMailTransport shared() { return SHARED; }
+
+    @Override
+    public void send(MimeMessage message) { delivered.add(message); }
+
+    @Override
+    public void close() { }
+
+    List<MimeMessage> delivered() { return delivered; }
+}
+
+/**
+ * Daily sweep over open loans: every student with overdue items gets one digest email.
+ * A record is only included once per due date (BorrowRecord.remindedForDue), so reruns
+ * on the same day send nothing new, while an extended-then-overdue loan is reminded again.
+ */
+class OverdueReminderJob {
+    private static final LocalTime RUN_AT = LocalTime.of(8, 0);
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "overdue-reminders");
+        t.setDaemon(true);
+        return t;
+    });
+    private static boolean scheduled = false;
+
+    /** Runs every day at RUN_AT. */
+    static synchronized void schedule() {
+        if (scheduled) return;
+        scheduled = true;
+        LocalDateTime now = AppClock.now();
+        LocalDateTime next = now.toLocalDate().atTime(RUN_AT);
+        if (!next.isAfter(now)) next = next.plusDays(1);
+        long delayMs = Duration.between(now, next).toMillis();
+        scheduler.scheduleAtFixedRate(OverdueReminderJob::runQuietly, delayMs, TimeUnit.DAYS.toMillis(1), TimeUnit.MILLISECONDS);
+    }
+
+    /** Runs a sweep on the background thread; the callback receives the number of digests queued. */
+    static void runNow(IntConsumer onDone) {
+        scheduler.execute(() -> {
+            int digests = runQuietly();
+            if (onDone != null) onDone.accept(digests);
+        });
+    }
+
+    private static int runQuietly() {
+        try {
+            return sweep(AppClock.today());
+        } catch (Exception e) {
+            System.err.println("❌ Overdue sweep failed: " + e.getMessage());
+            return 0;
+        }
+    }
+
+    static int sweep(LocalDate today) {
+        Map<Student, List<BorrowRecord>> byStudent = new LinkedHashMap<>();
+        for (BorrowRecord r : DataStore.overdueRecords(today)) {
+            LocalDate due = r.getDueDate();
+            if (due.equals(r.getRemindedForDue())) continue;
+            byStudent.computeIfAbsent(r.getStudent(), k -> new ArrayList<>()).add(r);
+        }
+        if (byStudent.isEmpty()) return 0;
+
+        List<EmailService.OutboundMail> digests = new ArrayList<>(byStudent.size());
+        for (Map.Entry<Student, List<BorrowRecord>> e : byStudent.entrySet())
+            digests.add(digest(e.getKey(), e.getValue(), today));
+        int queued = EmailService.enqueueAll(digests);
+
+        // Only records whose digest actually made it onto the queue count as reminded.
+        List<BorrowRecord> reminded = new ArrayList<>();
+        int i = 0;
+        for (List<BorrowRecord> recs : byStudent.values()) {
+            if (i++ >= queued) break;
+            reminded.addAll(recs);
+        }
+        for (BorrowRecord r : reminded) DataStore.markReminded(r);
+        System.out.println("📬 Overdue sweep: " + queued + " digests for " + reminded.size() + " overdue loans");
+        return queued;
+    }
+
+    private static EmailService.OutboundMail digest(Student s, List<BorrowRecord> recs, LocalDate today) {
+        StringBuilder body = new StringBuilder("Hello ").append(s.getName())
+                .append(",\n\nThe following items are OVERDUE. Please return them as soon as possible.\n\n");
+        int total = 0;
+        for (BorrowRecord r : recs) {
+            int fine = FinePolicy.current().fine(r, today);
+            total += fine;
+            body.append("- ").append(r.getItem().getName())
+                .append(" (due ").append(r.getDueDate())
+                .append(", ").append(ChronoUnit.DAYS.between(r.getDueDate(), today)).append(" days late)")
+                .append(": ").append(fine).append(" THB\n");
+        }
+        body.append("\nCurrent total fine: ").append(total).append(" THB");
+        String subject = "Overdue Reminder: " + recs.size() + (recs.size() == 1 ? " item" : " items");
+        return new EmailService.OutboundMail(s.getEmail(), subject, body.toString(), null);
+    }
+}
+
+/**
+ * Hands freed units to the waitlist. When a unit comes back and someone is waiting, it is
+ * held for the longest-waiting request (which moves to PENDING so an admin can hand it over)
+ * and the student is emailed. An offer nobody collects within OFFER_TTL expires and the unit
+ * moves on to the next in line. All state changes run under the item's branch lock, like the
+ * rest of BorrowService, so concurrent returns and approvals see a consistent queue.
+ * Bookings come first: a booking whose window has started gets a freed unit held for it, and
+ * waiters are only offered units the booking calendar leaves free for a whole loan.
+ * Offers and booking holds are not persisted: after a restart an offered request is an
+ * ordinary pending one, and a started booking gets its unit again the next time one is free.
+ */
+class WaitlistService {
+    static final Duration OFFER_TTL = Duration.parse(System.getProperty("shareu.offer.ttl", "PT24H"));
+    private static final DateTimeFormatter UNTIL = DateTimeFormatter.ofPattern("dd/MM HH:mm");
+
+    private static final class Offer {
+        final Item.Hold hold;
+        ScheduledFuture<?> expiry;
+        Offer(Item.Hold hold) { this.hold = hold; }
+    }
+
+    private static final Map<BorrowRequest, Offer> offers = new ConcurrentHashMap<>();
+    private static final Map<BorrowRequest, Item.Hold> bookingHolds = new ConcurrentHashMap<>();
+    private static final ScheduledThreadPoolExecutor expiries = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread t = new Thread(r, "waitlist-offers");
+        t.setDaemon(true);
+        return t;
+    });
+    static { expiries.setRemoveOnCancelPolicy(true); } // collected offers shouldn't linger until their TTL
+
+    /** The hold backing an open offer for req, or null. */
+    static Item.Hold offerFor(BorrowRequest req) {
+        Offer o = offers.get(req);
+        return o == null ? null : o.hold;
+    }
+
+    /** Removes and returns the offer's hold, e.g. when the request is approved or rejected. */
+    static Item.Hold takeOffer(BorrowRequest req) {
+        Offer o = offers.remove(req);
+        if (o == null) return null;
+        o.expiry.cancel(false);
+        return o.hold;
+    }
+
+    /** The unit held for a booking whose window has started, or null. */
+    static Item.Hold bookingHoldFor(BorrowRequest booking) {
+        Item.Hold h = bookingHolds.get(booking);
+        return h == null || h.isSettled() ? null : h;
+    }
+
+    /** Removes and returns the unit held for a booking whose window has started, e.g. when it is collected or cancelled. */
+    static Item.Hold takeBookingHold(BorrowRequest booking) {
+        return bookingHolds.remove(booking);
+    }
+
+    /**
+     * Holds free units for bookings whose window has started, then offers the rest to waiters
+     * until one or the other runs out, or until a further loan from today would need a unit
+     * someone has booked. Caller holds the item's branch lock.
+     */
+    static int offerFreeUnits(Item item) {
+        LocalDate today = AppClock.today();
+        holdForBookings(item, today);
+        int spare = item.getTotalQty() - DataStore.unitsBookedIfTracked(item, today, today.plusDays(BorrowService.LOAN_DAYS))
+                - item.heldFor(owner -> !bookingHolds.containsKey(owner)); // the calendar already counts the bookings' units
+        int offered = 0;
+        BorrowRequest next;
+        while (offered < spare && (next = DataStore.nextWaiting(item)) != null) {
+            Item.Hold h = DataStore.holdUnit(item, OFFER_TTL, next);
+            if (h == null) break;
+            offer(next, h);
+            offered++;
+        }
+        return offered;
+    }
+
+    // Gives back the units of bookings whose window ended uncollected, then holds one for each started booking while any is free.
+    private static void holdForBookings(Item item, LocalDate today) {
+        List<BorrowRequest> started = DataStore.startedBookings(item, today);
+        if (started.isEmpty()) return;
+        for (BorrowRequest b : started) {
+            if (today.isBefore(b.getEndDate())) continue;
+            Item.Hold h = bookingHolds.remove(b);
+            if (h != null) DataStore.releaseHold(h);
+        }
+        for (BorrowRequest b : started) {
+            if (!today.isBefore(b.getEndDate())) continue;
+            Item.Hold h = bookingHolds.get(b);
+            if (h != null && !h.isSettled()) continue;
+            h = DataStore.holdUnit(item, Duration.between(AppClock.now(), b.getEndDate().atStartOfDay()), b);
+            if (h == null) return;
+            bookingHolds.put(b, h);
+        }
+    }
+
+    /** Startup: hands out units that were free while requests were waiting (offers don't survive restarts). */
+    static void offerAllFreeUnits() {
+        for (Item item : DataStore.itemsWithWaiters()) {
+            synchronized (DataStore.lockFor(item)) { offerFreeUnits(item); }
+        }
+    }
+
+    private static void offer(BorrowRequest req, Item.Hold h) {
+        Offer o = new Offer(h);
+        long delay = Math.max(0, h.expiresAt - System.currentTimeMillis());
+        o.expiry = expiries.schedule(() -> expire(req, o), delay, TimeUnit.MILLISECONDS); // runs only once we release the lock
+        offers.put(req, o);
+        DataStore.setStatus(req, RequestStatus.PENDING);
+        String until = LocalDateTime.ofInstant(Instant.ofEpochMilli(h.expiresAt), ZoneId.systemDefault()).format(UNTIL);
+        EmailService.send(req.getStudent().getEmail(), "Ready for pickup: " + req.getItem().getName(),
+                "A unit of '" + req.getItem().getName() + "' is reserved for you until " + until + ". Please collect it before then.");
+    }
+
+    private static void expire(BorrowRequest req, Offer o) {
+        synchronized (DataStore.lockFor(req.getItem())) {
+            if (!offers.remove(req, o)) return; // approved or rejected meanwhile
+            if (req.getStatus() == RequestStatus.PENDING) DataStore.setStatus(req, RequestStatus.EXPIRED);
+            DataStore.releaseHold(o.hold);
+            offerFreeUnits(req.getItem());
+        }
+        EmailService.send(req.getStudent().getEmail(), "Reservation expired", "Your reservation for '" + req.getItem().getName() + "' has expired.");
+    }
+}
+
+/**
+ * How late returns are charged. Each item category may have its own rule (THB per day late, free
+ * grace days, a cap per loan); other categories use the default rule. Days the library is closed
+ * (the holiday calendar) are never charged. Holidays are turned into a cumulative table once, so a
+ * fine is a few array reads however long the loan ran. With no file the policy is the original
+ * one: 100 THB for every day after the due date.
+ *
+ * Loaded at startup from the properties file named by -Dshareu.fines, e.g.
+ *   rate=100
+ *   graceDays=0
+ *   cap=0                      (0 = no cap)
+ *   category.IT.rate=300       (category rules inherit what they leave out from the default)
+ *   category.IT.cap=5000
+ *   holidays=2026-12-25,2027-01-01
+ * Immutable; install() swaps in a new one.
+ */
+final class FinePolicy {
+    static final int DEFAULT_RATE = 100;
+    private static final int PARALLEL_THRESHOLD = 8192; // below this a plain loop beats forking
+    private static final Set<String> RULE_KEYS = new HashSet<>(Arrays.asList("rate", "graceDays", "cap")); // before current: load() reads it
+
+    /** One category's terms. */
+    static final class Rule {
+        final int ratePerDay, graceDays, cap;
+
+        Rule(int ratePerDay, int graceDays, int cap) {
+            if (ratePerDay < 0 || graceDays < 0 || cap < 0) throw new IllegalArgumentException("fine rule values must not be negative");
+            this.ratePerDay = ratePerDay;
+            this.graceDays = graceDays;
+            this.cap = cap;
+        }
+
+        int fine(long chargeableDays) {
+            if (chargeableDays <= graceDays) return 0;
+            long fine = (chargeableDays - graceDays) * ratePerDay; // days fit in 32 bits, so no long overflow
+            return (int) Math.min(cap > 0 ? Math.min(fine, cap) : fine, Integer.MAX_VALUE);
+        }
+
+        @Override public String toString() {
+            return ratePerDay + " THB/day" + (graceDays > 0 ? ", " + graceDays + " grace day(s)" : "") + (cap > 0 ? ", cap " + cap + " THB" : "");
+        }
+    }
+
+    private static volatile FinePolicy current = load(System.getProperty("shareu.fines"));
+
+    private final Rule defaultRule;
+    private final Map<String, Rule> byCategory;
+    private final long firstHoliday;    // epoch day of the earliest holiday
+    private final int[] holidaysBefore; // [i]: holidays in [firstHoliday, firstHoliday + i); last entry is the total
+
+    FinePolicy(Rule defaultRule, Map<String, Rule> byCategory, Collection<LocalDate> holidays) {
+        this.defaultRule = defaultRule;
+        this.byCategory = new HashMap<>(byCategory);
+        TreeSet<Long> days = new TreeSet<>();
+        for (LocalDate d : holidays) days.add(d.toEpochDay());
+        firstHoliday = days.isEmpty() ? 0 : days.first();
+        holidaysBefore = new int[days.isEmpty() ? 1 : (int) (days.last() - firstHoliday) + 2];
+        for (int i = 1; i < holidaysBefore.length; i++)
+            holidaysBefore[i] = holidaysBefore[i - 1] + (days.contains(firstHoliday + i - 1) ? 1 : 0);
+    }
+
+    static FinePolicy defaults() { return new FinePolicy(new Rule(DEFAULT_RATE, 0, 0), Collections.emptyMap(), Collections.emptyList()); }
+
+    static FinePolicy current() { return current; }
+
+    static void install(FinePolicy policy) { current = policy; }
+
+    Rule ruleFor(Item item) {
+        Rule r = item == null || byCategory.isEmpty() ? null : byCategory.get(item.getCategory());
+        return r == null ? defaultRule : r;
+    }
+
+    /** Open days in (due, asOf]: the days a loan returned on asOf is charged for, before grace. */
+    long chargeableDays(LocalDate due, LocalDate asOf) {
+        long d = due.toEpochDay(), a = asOf.toEpochDay();
+        return a <= d ? 0 : (a - d) - (holidaysBefore(a + 1) - holidaysBefore(d + 1));
+    }
+
+    private int holidaysBefore(long day) {
+        long i = day - firstHoliday;
+        return i <= 0 ? 0 : holidaysBefore[(int) Math.min(i, holidaysBefore.length - 1)];
+    }
+
+    int fine(Item item, LocalDate due, LocalDate asOf) { return ruleFor(item).fine(chargeableDays(due, asOf)); }
+
+    /** What r owes: as of its return date once returned, else as of today. */
+    int fine(BorrowRecord r, LocalDate today) {
+        LocalDate returned = r.getReturnDate();
+        return fine(r.getItem(), r.getDueDate(), returned == null ? today : returned);
+    }
+
+    /** Fines for many loans in one pass, forked over the common pool for large lists (which must be random access) on multi-core hosts. */
+    int[] fines(List<BorrowRecord> records, LocalDate today) {
+        int[] out = new int[records.size()];
+        if (forked(out.length)) Arrays.parallelSetAll(out, i -> fine(records.get(i), today));
+        else for (int i = 0; i < out.length; i++) out[i] = fine(records.get(i), today);
+        return out;
+    }
+
+    long total(List<BorrowRecord> records, LocalDate today) {
+        if (forked(records.size())) return IntStream.range(0, records.size()).parallel().mapToLong(i -> fine(records.get(i), today)).sum();
+        long sum = 0;
+        for (BorrowRecord r : records) sum += fine(r, today);
+        return sum;
+    }
+
+    /** Open loans that all fall due on one day share the day count; only their rules can differ. */
+    long totalDueOn(LocalDate due, Collection<BorrowRecord> loans, LocalDate today) {
+        long days = chargeableDays(due, today);
+        if (byCategory.isEmpty()) return (long) defaultRule.fine(days) * loans.size();
+        long sum = 0;
+        for (BorrowRecord r : loans) sum += ruleFor(r.getItem()).fine(days);
+        return sum;
+    }
+
+    private static boolean forked(int n) { return n >= PARALLEL_THRESHOLD && ForkJoinPool.getCommonPoolParallelism() > 1; }
+
+    @Override public String toString() {
+        return "default " + defaultRule + (byCategory.isEmpty() ? "" : ", by category " + byCategory)
+                + ", " + (holidaysBefore[holidaysBefore.length - 1]) + " holiday(s)";
+    }
+
+    /**
+     * The policy in the given properties file, or the default policy if no file is given. A file
+     * that does not parse (an unknown key, a bad number or date) throws IllegalArgumentException
+     * naming the key: a typo must not quietly put everyone on the default rate.
+     */
+    static FinePolicy load(String file) {
+        if (file == null) return defaults();
+        Properties p = new Properties();
+        try (Reader in = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+            p.load(in);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not read fine policy " + file + ": " + e.getMessage(), e);
+        }
+        Rule base = rule(file, p, "", new Rule(DEFAULT_RATE, 0, 0));
+        Map<String, Rule> byCategory = new HashMap<>();
+        for (String key : p.stringPropertyNames()) {
+            if (key.equals("holidays") || RULE_KEYS.contains(key)) continue;
+            int dot = key.lastIndexOf('.');
+            if (!key.startsWith("category.") || dot <= "category.".length() || !RULE_KEYS.contains(key.substring(dot + 1)))
+                throw new IllegalArgumentException("Fine policy " + file + ": unknown key '" + key + "' (expected rate, graceDays, cap, holidays or category.<name>.rate/graceDays/cap)");
+            String category = key.substring("category.".length(), dot);
+            if (!byCategory.containsKey(category)) byCategory.put(category, rule(file, p, "category." + category + ".", base));
+        }
+        List<LocalDate> holidays = new ArrayList<>();
+        for (String d : p.getProperty("holidays", "").split(",")) {
+            if (d.trim().isEmpty()) continue;
+            try {
+                holidays.add(LocalDate.parse(d.trim()));
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException("Fine policy " + file + ": holidays: '" + d.trim() + "' is not a yyyy-MM-dd date");
+            }
+        }
+        FinePolicy policy = new FinePolicy(base, byCategory, holidays);
+        System.out.println("💰 Fine policy from " + file + ": " + policy);
+        return policy;
+    }
+
+    private static Rule rule(String file, Properties p, String prefix, Rule inherit) {
+        return new Rule(number(file, p, prefix + "rate", inherit.ratePerDay),
+                        number(file, p, prefix + "graceDays", inherit.graceDays),
+                        number(file, p, prefix + "cap", inherit.cap));
+    }
+
+    private static int number(String file, Properties p, String key, int inherit) {
+        String v = p.getProperty(key);
+        if (v == null) return inherit;
+        try {
+            int n = Integer.parseInt(v.trim());
+            if (n >= 0) return n;
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("Fine policy " + file + ": " + key + " = '" + v.trim() + "' is not a whole number of at least 0");
+    }
+}
+
+/**
+ * In-process bus for changes to DataStore, so open views and background consumers react to
+ * deltas instead of re-reading everything after each action. DataStore publishes after a write,
+ * still holding the branch lock, so one branch's events arrive in write order; with nobody
+ * subscribed, publishing is one volatile read. Each subscriber has a mailbox that coalesces:
+ * events collect there and are handed over as one Batch, at most once per the subscriber's
+ * delay, on its executor. A burst of a thousand approvals is therefore a handful of table
+ * updates on the EDT, not a thousand reloads. A subscriber more than MAX_PENDING events behind
+ * gets an overflowed batch with no events instead, meaning "reload everything".
+ */
+final class EventBus {
+    enum Type { REQUEST_CREATED, REQUEST_STATUS, RECORD_CREATED, RECORD_EXTENDED, RECORD_RETURNED, STOCK_CHANGED }
+
+    static final int MAX_PENDING = 10_000;
+    static final long FRAME_MILLIS = 16;
+
+    private static final Metrics.Counter PUBLISHED = Metrics.counter("events.published");
+    private static final Metrics.Counter BATCHES = Metrics.counter("events.batches");
+    private static final Metrics.Counter OVERFLOWS = Metrics.counter("events.overflows");
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "event-bus");
+        t.setDaemon(true);
+        return t;
+    });
+    private static volatile Subscription[] subscriptions = new Subscription[0];
+
+    /** One change: the request or record it is about (the other is null) and its item. Read their fields for the current state. */
+    static final class Event {
+        final Type type;
+        final Item item;
+        final BorrowRequest request;
+        final BorrowRecord record;
+
+        private Event(Type type, Item item, BorrowRequest request, BorrowRecord record) {
+            this.type = type;
+            this.item = item;
+            this.request = request;
+            this.record = record;
+        }
+
+        /** Whose request or loan changed; null for stock changes. */
+        Student student() { return request != null ? request.getStudent() : record != null ? record.getStudent() : null; }
+    }
+
+    /** What collected in a mailbox since the last delivery, oldest first. */
+    static final class Batch {
+        final List<Event> events;
+        final boolean overflowed;
+
+        private Batch(List<Event> events, boolean overflowed) {
+            this.events = events;
+            this.overflowed = overflowed;
+        }
+
+        boolean has(Type type) {
+            for (Event e : events) if (e.type == type) return true;
+            return false;
+        }
+    }
+
+    /** Batches of the given types, delivered on executor no more often than every delayMillis. */
+    static Subscription subscribe(Set<Type> types, long delayMillis, Executor executor, Consumer<Batch> consumer) {
+        Subscription s = new Subscription(EnumSet.copyOf(types), delayMillis, executor, consumer);
+        synchronized (EventBus.class) {
+            Subscription[] next = Arrays.copyOf(subscriptions, subscriptions.length + 1);
+            next[next.length - 1] = s;
+            subscriptions = next;
+        }
+        return s;
+    }
+
+    /** For background consumers: batches run on the bus thread, so keep them short. */
+    static Subscription subscribe(Set<Type> types, long delayMillis, Consumer<Batch> consumer) {
+        return subscribe(types, delayMillis, Runnable::run, consumer);
+    }
+
+    /** For Swing views: batches run on the EDT, at most one per frame. */
+    static Subscription subscribeOnEdt(Set<Type> types, Consumer<Batch> consumer) {
+        return subscribe(types, FRAME_MILLIS, SwingUtilities::invokeLater, consumer);
+    }
+
+    static void publish(Type type, Item item, BorrowRequest request, BorrowRecord record) {
+        Subscription[] subs = subscriptions;
+        if (subs.length == 0) return;
+        PUBLISHED.increment();
+        Event e = new Event(type, item, request, record);
+        for (Subscription s : subs) if (s.types.contains(type)) s.offer(e);
+    }
+
+    static final class Subscription {
+        private final Set<Type> types;
+        private final long delayMillis;
+        private final Executor executor;
+        private final Consumer<Batch> consumer;
+        // Guarded by this.
+        private List<Event> pending = new ArrayList<>();
+        private boolean overflowed, scheduled;
+        private volatile boolean closed;
+
+        private Subscription(Set<Type> types, long delayMillis, Executor executor, Consumer<Batch> consumer) {
+            this.types = types;
+            this.delayMillis = delayMillis;
+            this.executor = executor;
+            this.consumer = consumer;
+        }
+
+        private void offer(Event e) {
+            synchronized (this) {
+                if (!overflowed) {
+                    if (pending.size() < MAX_PENDING) {
+                        pending.add(e);
+                    } else {
+                        overflowed = true;
+                        pending = new ArrayList<>();
+                        OVERFLOWS.increment();
+                    }
+                }
+                if (scheduled) return;
+                scheduled = true;
+            }
+            timer.schedule(() -> executor.execute(this::deliver), delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        private void deliver() {
+            Batch b;
+            synchronized (this) {
+                b = new Batch(pending, overflowed);
+                pending = new ArrayList<>();
+                overflowed = scheduled = false;
+            }
+            if (closed) return;
+            BATCHES.increment();
+            try {
+                consumer.accept(b);
+            } catch (RuntimeException ex) {
+                System.err.println("❌ Event subscriber failed: " + ex);
+            }
+        }
+
+        void close() {
+            closed = true;
+            synchronized (EventBus.class) {
+                List<Subscription> rest = new ArrayList<>(Arrays.asList(subscriptions));
+                rest.remove(this);
+                subscriptions = rest.toArray(new Subscription[0]);
+            }
+        }
+    }
+}
+
+/**
+ * In-memory store. Items, and the loans and requests on them, are partitioned by branch
+ * (campus): each Branch holds the indexes over its own items and is its own lock, so work at
+ * one branch never waits for another. What stays shared is kept small:
+ *   - the append-only history lists and the journal, under LOG, so a snapshot (written from
+ *     inside a journal append) sees lists and fields that match its sequence number. Returned
+ *     loans live only in RecordHistory's columns; open ones are also indexed by branch;
+ *   - each student's open-loan and request lists, each guarded by itself;
+ *   - the usage counters (guarded by themselves) and the catalog (its own lock).
+ * Lock order: branch -> student list / usage / catalog / event mailboxes / LOG -> Persistence. Never hold two
+ * branches at once; work spanning branches visits them one after the other.
+ */
+class DataStore {
+    static final String MAIN_BRANCH = "MAIN";
+
+    private static final List<User> userList = new ArrayList<>();
+    private static final List<Item> itemList = new ArrayList<>();
+    private static final List<BorrowRequest> requestList = new ArrayList<>();
+    private static final RecordHistory recordHistory = new RecordHistory();
+    private static final List<TransferRequest> transferList = new ArrayList<>();
+
+    public static final List<User> users = Collections.unmodifiableList(userList);
+    public static final List<Item> items = Collections.unmodifiableList(itemList);
+    public static final List<BorrowRequest> requests = Collections.unmodifiableList(requestList);
+    /** Every loan by position: open ones as they are, returned ones rebuilt from recordHistory's columns per get(). */
+    public static final List<BorrowRecord> records = new AbstractList<BorrowRecord>() {
+        @Override public BorrowRecord get(int index) { synchronized (LOG) { return recordHistory.get(index); } }
+        @Override public int size() { synchronized (LOG) { return recordHistory.size(); } }
+    };
+    public static final List<TransferRequest> transfers = Collections.unmodifiableList(transferList);
+
+    // Guards the lists above and every journal write.
+    private static final Object LOG = new Object();
+    // Requests and open loans by id (findRecord falls back to the history for returned ones). An id is the entity's position in its list plus one, so it
+    // survives a restart (the journal replays in order) and the journal keeps writing positions.
+    private static final Map<Long, BorrowRequest> requestsById = new ConcurrentHashMap<>();
+    private static final Map<Long, BorrowRecord> recordsById = new ConcurrentHashMap<>();
+
+    // Lock-free lookups.
+    private static final Map<String, User> usersById = new ConcurrentHashMap<>();
+    private static final Map<String, Item> itemsById = new ConcurrentHashMap<>();
+    private static final Map<String, List<Item>> unitsByName = new ConcurrentHashMap<>(); // one item per branch stocking the model
+    private static final Map<String, Branch> branches = new ConcurrentSkipListMap<>();
+
+    private static final Map<User, List<BorrowRecord>> openByStudent = new ConcurrentHashMap<>(); // each list guarded by itself
+    private static final Map<User, List<BorrowRequest>> requestsByStudent = new ConcurrentHashMap<>();
+    private static final CatalogIndex catalog = new CatalogIndex();
+    private static final UsageAnalytics usage = new UsageAnalytics();
+    private static final AtomicLong version = new AtomicLong();
+
+    /**
+     * One campus: its items and the hash indexes over their open loans, pending requests and
+     * waitlists, so the hot paths never scan the full history. Guarded by itself. The indexes
+     * are only kept consistent if mutations go through addX / setStatus / markReturn below.
+     */
+    static final class Branch {
+        final String code;
+        private final List<Item> items = new ArrayList<>();
+        private final Map<Key, BorrowRecord> activeByStudentItem = new HashMap<>();
+        private final Set<BorrowRecord> activeRecords = new LinkedHashSet<>();
+        private final OverdueIndex overdue = new OverdueIndex();
+        private final Map<Key, List<BorrowRequest>> pendingByStudentItem = new HashMap<>();
+        private final Set<BorrowRequest> pendingRequests = new LinkedHashSet<>();
+        // Per-item waitlist in arrival order, keyed by request position (stable across restarts).
+        private final Map<Item, TreeMap<Integer, BorrowRequest>> waitlists = new HashMap<>();
+        private final Map<Key, BorrowRequest> waitingByStudentItem = new HashMap<>();
+        // Approved bookings not yet collected, and per-item day calendars. A calendar is made the first
+        // time an item is booked or asked about (seeded with its open loans) and kept current from then on.
+        private final Set<BorrowRequest> bookings = new LinkedHashSet<>();
+        private final Map<Item, Set<BorrowRequest>> bookingsByItem = new HashMap<>();
+        private final Map<Item, BookingCalendar> calendars = new HashMap<>();
+
+        private Branch(String code) { this.code = code; }
+    }
+
+    /** One branch's stock of a model, as returned by availability(). */
+    static final class Availability {
+        final Item item;
+        final int free, total, waiting;
+
+        Availability(Item item, int free, int total, int waiting) {
+            this.item = item;
+            this.free = free;
+            this.total = total;
+            this.waiting = waiting;
+        }
+    }
+
+    static {
+        if (!Persistence.open()) seed();
+    }
+
+    private static void seed() {
+        addUser(new Admin("admin", "admin")); 
+        addItem(new Item("I01", "Projector Sony", "AV", 5));
+        addItem(new Item("I02", "MacBook Pro M2", "IT", 2));
+        addItem(new Item("I03", "Canon Camera", "AV", 3));
+        addItem(new Item("I04", "Microphone Shure", "Audio", 10));
+        addItem(new Item("E01", "Projector Sony", "AV", 2, "EAST"));
+        addItem(new Item("E03", "Canon Camera", "AV", 1, "EAST"));
+        
+        Student s1 = new Student("66001", "Good Student", "usrinusupus@gmail.com", "081", "1234", CardType.STUDENT_CARD, 2002);
+        addUser(s1);
+        Student s2 = new Student("66999", "Late Student", "usrinusupus@gmail.com", "089", "1234", CardType.STUDENT_CARD, 2001);
+        addUser(s2);
+        Item i2 = items.get(1); 
+        reserveUnit(i2); 
+        addRecord(new BorrowRecord(s2, i2, AppClock.today().minusDays(3))); 
+    }
+
+    private static Branch branch(String code) { return branches.computeIfAbsent(code, Branch::new); }
+    private static Branch branchOf(Item i) { return branch(i.getBranch()); }
+
+    /** The lock guarding the item's branch: hold it across a check and the writes that depend on it. */
+    static Object lockFor(Item i) { return branchOf(i); }
+    static Object lockFor(String branchCode) { return branch(branchCode); }
+
+    // --- Writes ---
+
+    /** Returns false if the id is already taken. */
+    public static boolean addUser(User u) {
+        if (usersById.putIfAbsent(u.getId(), u) != null) return false;
+        version.incrementAndGet();
+        synchronized (LOG) {
+            userList.add(u);
+            Persistence.userRegistered(u);
+        }
+        return true;
+    }
+
+    public static void addItem(Item i) {
+        itemsById.put(i.getItemId(), i);
+        index(i);
+    }
+
+    /** Returns false if the item id is already taken. */
+    public static boolean addItemIfAbsent(Item i) {
+        if (itemsById.putIfAbsent(i.getItemId(), i) != null) return false;
+        index(i);
+        return true;
+    }
+
+    private static void index(Item i) {
+        Branch b = branchOf(i);
+        synchronized (b) {
+            version.incrementAndGet();
+            b.items.add(i);
+            unitsByName.computeIfAbsent(i.getName(), k -> new CopyOnWriteArrayList<>()).add(i);
+            synchronized (LOG) {
+                itemList.add(i);
+                Persistence.itemAdded(i);
+            }
+        }
+        catalog.add(i);
+    }
+
+    public static void addRequest(BorrowRequest r) {
+        Branch b = branchOf(r.getItem());
+        synchronized (b) {
+            version.incrementAndGet();
+            int pos;
+            synchronized (LOG) {
+                pos = requestList.size();
+                r.assignId(pos + 1);
+                requestList.add(r);
+                Persistence.requestCreated(r);
+            }
+            requestsById.put(r.getId(), r);
+            append(requestsByStudent, r.getStudent(), r);
+            synchronized (usage) { usage.requestAdded(r); }
+            if (r.getStatus() == RequestStatus.PENDING) indexPending(b, r);
+            else if (r.getStatus() == RequestStatus.WAITLISTED) indexWaiting(b, r, pos);
+            else if (isBooked(r, r.getStatus())) indexBooking(b, r);
+            EventBus.publish(EventBus.Type.REQUEST_CREATED, r.getItem(), r, null);
+        }
+    }
+
+    public static void addRecord(BorrowRecord r) {
+        Branch b = branchOf(r.getItem());
+        synchronized (b) {
+            version.incrementAndGet();
+            synchronized (LOG) {
+                r.assignId(recordHistory.size() + 1L);
+                recordHistory.append(r);
+                Persistence.recordCreated(r);
+            }
+            if (r.getReturnDate() == null) {
+                recordsById.put(r.getId(), r);
+                append(openByStudent, r.getStudent(), r);
+            }
+            synchronized (usage) {
+                usage.loanStarted(r);
+                if (r.getReturnDate() != null) usage.loanReturned(r);
+            }
+            if (r.getReturnDate() == null) {
+                b.activeRecords.add(r);
+                b.overdue.add(r);
+                b.activeByStudentItem.put(new Key(r.getStudent(), r.getItem()), r);
+                BookingCalendar c = b.calendars.get(r.getItem());
+                if (c != null) c.add(r.getBorrowDate(), r.getDueDate(), 1);
+            }
+            EventBus.publish(EventBus.Type.RECORD_CREATED, r.getItem(), null, r);
+        }
+    }
+
+    public static void setStatus(BorrowRequest r, RequestStatus status) {
+        Branch b = branchOf(r.getItem());
+        synchronized (b) {
+            version.incrementAndGet();
+            boolean wasPending = r.getStatus() == RequestStatus.PENDING;
+            boolean wasWaiting = r.getStatus() == RequestStatus.WAITLISTED;
+            boolean wasBooked = isBooked(r, r.getStatus());
+            int pos = position(r.getId());
+            synchronized (LOG) {
+                r.setStatus(status);
+                Persistence.requestStatusChanged(pos, status);
+            }
+            if (wasPending && status != RequestStatus.PENDING) unindexPending(b, r);
+            else if (!wasPending && status == RequestStatus.PENDING) indexPending(b, r);
+            if (wasWaiting && status != RequestStatus.WAITLISTED) unindexWaiting(b, r, pos);
+            else if (!wasWaiting && status == RequestStatus.WAITLISTED) indexWaiting(b, r, pos);
+            if (wasBooked && !isBooked(r, status)) unindexBooking(b, r);
+            else if (!wasBooked && isBooked(r, status)) indexBooking(b, r);
+            EventBus.publish(EventBus.Type.REQUEST_STATUS, r.getItem(), r, null);
+        }
+    }
+
+    public static void markReturn(BorrowRecord r, LocalDate date) {
+        Branch b = branchOf(r.getItem());
+        synchronized (b) {
+            version.incrementAndGet();
+            int pos = position(r.getId());
+            synchronized (LOG) {
+                r.markReturn(date);
+                recordHistory.close(pos, r);
+                Persistence.recordReturned(pos, date);
+            }
+            recordsById.remove(r.getId());
+            List<BorrowRecord> mine = openByStudent.get(r.getStudent());
+            if (mine != null) synchronized (mine) { mine.remove(r); }
+            synchronized (usage) { usage.loanReturned(r); }
+            if (b.activeRecords.remove(r)) {
+                b.overdue.remove(r, r.getDueDate());
+                b.activeByStudentItem.remove(new Key(r.getStudent(), r.getItem()), r);
+                BookingCalendar c = b.calendars.get(r.getItem());
+                if (c != null) c.add(r.getBorrowDate(), r.getDueDate(), -1);
+            }
+            EventBus.publish(EventBus.Type.RECORD_RETURNED, r.getItem(), null, r);
+        }
+    }
+
+    public static void extendDueDate(BorrowRecord r, int days) {
+        Branch b = branchOf(r.getItem());
+        synchronized (b) {
+            version.incrementAndGet();
+            LocalDate oldDue = r.getDueDate();
+            synchronized (LOG) {
+                r.extendDueDate(days);
+                Persistence.recordExtended(position(r.getId()), r.getDueDate());
+            }
+            if (b.activeRecords.contains(r)) {
+                b.overdue.move(r, oldDue);
+                BookingCalendar c = b.calendars.get(r.getItem());
+                if (c != null) {
+                    if (r.getDueDate().isAfter(oldDue)) c.add(oldDue, r.getDueDate(), 1);
+                    else c.add(r.getDueDate(), oldDue, -1);
+                }
+            }
+            synchronized (usage) { usage.extended(r); }
+            EventBus.publish(EventBus.Type.RECORD_EXTENDED, r.getItem(), null, r);
+        }
+    }
+
+    public static void setPasswordHash(User u, String passwordHash) {
+        version.incrementAndGet();
+        synchronized (LOG) {
+            u.setPasswordHash(passwordHash);
+            Persistence.passwordChanged(u);
+        }
+    }
+
+    public static void markReminded(BorrowRecord r) {
+        version.incrementAndGet();
+        synchronized (LOG) {
+            r.markReminded();
+            Persistence.reminderSent(position(r.getId()), r.getDueDate());
+        }
+    }
+
+    /** Records a transfer request under the next id; the caller has checked item and quantity. */
+    public static TransferRequest addTransfer(Item from, String toBranch, int qty, RequestStatus status, LocalDate requestDate) {
+        version.incrementAndGet();
+        synchronized (LOG) {
+            TransferRequest t = new TransferRequest(transferList.size(), from, toBranch, qty, status, requestDate);
+            transferList.add(t);
+            Persistence.transferCreated(t);
+            return t;
+        }
+    }
+
+    public static void setTransferStatus(TransferRequest t, RequestStatus status) {
+        version.incrementAndGet();
+        synchronized (LOG) {
+            t.setStatus(status);
+            Persistence.transferStatusChanged(t.getId(), status);
+        }
+    }
+
+    // Stock changes are lock-free on Item; these wrappers only add journaling.
+
+    /** Takes one unit; false when the item is out of stock. */
+    public static boolean reserveUnit(Item i) {
+        if (!i.tryReserve()) return false;
+        qtyChanged(i);
+        return true;
+    }
+
+    /** Takes up to n units with a single journal entry; returns how many were taken. */
+    public static int reserveUnits(Item i, int n) {
+        int got = i.tryReserve(n);
+        if (got == 0) return 0;
+        qtyChanged(i);
+        return got;
+    }
+
+    public static boolean releaseUnit(Item i) {
+        if (!i.release()) return false;
+        qtyChanged(i);
+        return true;
+    }
+
+    /** Sets a unit aside for owner; the persisted quantity still counts it (holds are not persisted). */
+    public static Item.Hold holdUnit(Item i, Duration ttl, Object owner) {
+        Item.Hold h = i.tryHold(ttl, owner);
+        if (h != null) {
+            version.incrementAndGet();
+            EventBus.publish(EventBus.Type.STOCK_CHANGED, i, null, null);
+        }
+        return h;
+    }
+
+    public static boolean releaseHold(Item.Hold h) {
+        if (!h.item.releaseHold(h)) return false;
+        version.incrementAndGet();
+        EventBus.publish(EventBus.Type.STOCK_CHANGED, h.item, null, null);
+        return true;
+    }
+
+    /** Converts a hold into a reservation; only then does the persisted quantity change. */
+    public static boolean confirmHold(Item.Hold h) {
+        if (!h.item.confirmHold(h)) return false;
+        qtyChanged(h.item);
+        return true;
+    }
+
+    /**
+     * Takes a transfer's units out of its item's free stock for good (all or nothing) and marks it
+     * IN_TRANSIT. Both go into one journal event, so after a crash the units are either still at
+     * the source or on their way; Persistence.open() lands the ones on their way.
+     */
+    public static boolean shipTransfer(TransferRequest t) {
+        Item i = t.getFrom();
+        synchronized (branchOf(i)) {
+            if (!i.withdraw(t.getQty())) return false;
+            transferMoved(t, RequestStatus.IN_TRANSIT, i);
+            return true;
+        }
+    }
+
+    /**
+     * Lands an IN_TRANSIT transfer: the destination branch's item of the same name (created empty
+     * on first use) gains the units and the transfer is COMPLETED, again in one journal event.
+     * Returns the destination item.
+     */
+    public static Item deliverTransfer(TransferRequest t) {
+        Item from = t.getFrom();
+        synchronized (branch(t.getToBranch())) {
+            Item to = findItemByName(t.getToBranch(), from.getName());
+            if (to == null) {
+                to = new Item(from.getItemId() + "@" + t.getToBranch(), from.getName(), from.getCategory(), 0, t.getToBranch());
+                addItem(to); // an empty item is harmless if we crash before the units land
+            }
+            to.deposit(t.getQty());
+            transferMoved(t, RequestStatus.COMPLETED, to);
+            return to;
+        }
+    }
+
+    private static void transferMoved(TransferRequest t, RequestStatus status, Item i) {
+        version.incrementAndGet();
+        synchronized (LOG) {
+            t.setStatus(status);
+            Persistence.transferMoved(t, i);
+        }
+        EventBus.publish(EventBus.Type.STOCK_CHANGED, i, null, null);
+    }
+
+    private static void qtyChanged(Item i) {
+        version.incrementAndGet();
+        synchronized (LOG) { Persistence.qtyChanged(i); }
+        EventBus.publish(EventBus.Type.STOCK_CHANGED, i, null, null);
+    }
+
+    // --- Lookups ---
+
+    public static User findUser(String id) { return usersById.get(id); }
+    public static Item findItem(String itemId) { return itemsById.get(itemId); }
+
+    /** The branch's item with that name, or null. */
+    public static Item findItemByName(String branch, String name) {
+        for (Item i : unitsByName.getOrDefault(name, Collections.emptyList())) if (i.getBranch().equals(branch)) return i;
+        return null;
+    }
+
+    /**
+     * Where a model can be had right now: every branch stocking an item of that name, most free
+     * units first. Visits the branches one at a time, so it never stalls a whole campus.
+     */
+    public static List<Availability> availability(String name) {
+        List<Availability> out = new ArrayList<>();
+        for (Item i : unitsByName.getOrDefault(name, Collections.emptyList())) {
+            Branch b = branchOf(i);
+            synchronized (b) {
+                TreeMap<Integer, BorrowRequest> q = b.waitlists.get(i);
+                out.add(new Availability(i, i.getCurrentQty(), i.getTotalQty(), q == null ? 0 : q.size()));
+            }
+        }
+        out.sort((a, c) -> a.free != c.free ? Integer.compare(c.free, a.free) : a.item.getBranch().compareTo(c.item.getBranch()));
+        return out;
+    }
+
+    /**
+     * Most units of the item out on any one day of [from, to), from today on: open loans up to
+     * their due date plus approved bookings, and loans already past their due date on every day
+     * until they come back. Builds the item's calendar on first use.
+     */
+    public static int unitsBooked(Item item, LocalDate from, LocalDate to) {
+        Branch b = branchOf(item);
+        synchronized (b) { return calendar(b, item).peak(from, to) + b.overdue.count(item, AppClock.today()); }
+    }
+
+    /** Like unitsBooked, but 0 for an item that was never booked or asked about, without building its calendar. */
+    public static int unitsBookedIfTracked(Item item, LocalDate from, LocalDate to) {
+        Branch b = branchOf(item);
+        synchronized (b) {
+            BookingCalendar c = b.calendars.get(item);
+            return c == null ? 0 : c.peak(from, to) + b.overdue.count(item, AppClock.today());
+        }
+    }
+
+    /** First day on or after from that starts days days with a unit free on each, or null if no unit is in. */
+    public static LocalDate nextFreeWindow(Item item, LocalDate from, int days) {
+        Branch b = branchOf(item);
+        synchronized (b) { return calendar(b, item).nextFree(from, days, item.getTotalQty() - b.overdue.count(item, AppClock.today())); }
+    }
+
+    /** True if the student has an open loan, at any branch, that was due before today. */
+    public static boolean hasOverdueLoan(User student, LocalDate today) {
+        List<BorrowRecord> list = openByStudent.get(student);
+        if (list == null) return false;
+        synchronized (list) {
+            for (BorrowRecord r : list)
+                if (r.getReturnDate() == null && r.getDueDate().isBefore(today)) return true;
+        }
+        return false;
+    }
+
+    public static BorrowRequest findWaitingRequest(User student, Item item) {
+        Branch b = branchOf(item);
+        synchronized (b) { return b.waitingByStudentItem.get(new Key(student, item)); }
+    }
+
+    /** Longest-waiting request for the item, or null. */
+    public static BorrowRequest nextWaiting(Item item) {
+        Branch b = branchOf(item);
+        synchronized (b) {
+            TreeMap<Integer, BorrowRequest> q = b.waitlists.get(item);
+            return q == null || q.isEmpty() ? null : q.firstEntry().getValue();
+        }
+    }
+
+    public static int waitlistSize(Item item) {
+        Branch b = branchOf(item);
+        synchronized (b) {
+            TreeMap<Integer, BorrowRequest> q = b.waitlists.get(item);
+            return q == null ? 0 : q.size();
+        }
+    }
+
+    /** Items that currently have someone waiting, across all branches. */
+    public static List<Item> itemsWithWaiters() {
+        List<Item> out = new ArrayList<>();
+        for (Branch b : branches.values()) {
+            synchronized (b) {
+                for (Map.Entry<Item, TreeMap<Integer, BorrowRequest>> e : b.waitlists.entrySet()) if (!e.getValue().isEmpty()) out.add(e.getKey());
+            }
+        }
+        return out;
+    }
+
+    public static BorrowRecord findActiveRecord(User student, Item item) {
+        Branch b = branchOf(item);
+        synchronized (b) { return b.activeByStudentItem.get(new Key(student, item)); }
+    }
+
+    public static BorrowRequest findRequest(long id) { return requestsById.get(id); }
+    public static BorrowRecord findRecord(long id) {
+        BorrowRecord r = recordsById.get(id);
+        if (r != null || id < 1) return r;
+        synchronized (LOG) { return id <= recordHistory.size() ? recordHistory.get(position(id)) : null; }
+    }
+
+    private static int position(long id) { return (int) (id - 1); }
+
+    public static BorrowRequest findPendingRequest(User student, Item item) {
+        Branch b = branchOf(item);
+        synchronized (b) {
+            List<BorrowRequest> list = b.pendingByStudentItem.get(new Key(student, item));
+            return list == null || list.isEmpty() ? null : list.get(0);
+        }
+    }
+
+    // The collection accessors below return copies so callers may iterate off the EDT.
+    // Across branches they are grouped by branch, in branch code order.
+
+    public static List<BorrowRequest> pendingRequests() {
+        List<BorrowRequest> out = new ArrayList<>();
+        for (Branch b : branches.values()) synchronized (b) { out.addAll(b.pendingRequests); }
+        return out;
+    }
+
+    public static List<BorrowRequest> pendingRequests(String branch) {
+        Branch b = branch(branch);
+        synchronized (b) { return new ArrayList<>(b.pendingRequests); }
+    }
+
+    /** The item's approved bookings not yet collected whose window starts today or earlier, in approval order. */
+    public static List<BorrowRequest> startedBookings(Item item, LocalDate today) {
+        Branch b = branchOf(item);
+        synchronized (b) {
+            Set<BorrowRequest> mine = b.bookingsByItem.get(item);
+            if (mine == null) return Collections.emptyList();
+            List<BorrowRequest> out = new ArrayList<>();
+            for (BorrowRequest r : mine) if (!r.getStartDate().isAfter(today)) out.add(r);
+            return out;
+        }
+    }
+
+    /** Approved bookings not yet collected, by branch, each branch in approval order. */
+    public static List<BorrowRequest> bookings() {
+        List<BorrowRequest> out = new ArrayList<>();
+        for (Branch b : branches.values()) synchronized (b) { out.addAll(b.bookings); }
+        return out;
+    }
+
+    public static List<BorrowRecord> activeRecords() {
+        List<BorrowRecord> out = new ArrayList<>();
+        for (Branch b : branches.values()) synchronized (b) { out.addAll(b.activeRecords); }
+        return out;
+    }
+
+    public static List<Item> itemsSnapshot() {
+        synchronized (LOG) { return new ArrayList<>(itemList); }
+    }
+
+    public static List<Item> itemsSnapshot(String branch) {
+        Branch b = branch(branch);
+        synchronized (b) { return new ArrayList<>(b.items); }
+    }
+
+    /** Branch codes, sorted. */
+    public static List<String> branches() { return new ArrayList<>(branches.keySet()); }
+
+    public static List<TransferRequest> pendingTransfers() {
+        List<TransferRequest> out = new ArrayList<>();
+        synchronized (LOG) {
+            for (TransferRequest t : transferList) if (t.getStatus() == RequestStatus.PENDING) out.add(t);
+        }
+        return out;
+    }
+
+    /**
+     * Copies up to into.length rows of one of the public lists, starting at from; returns how many.
+     * The lists only ever grow, so exporters can page through them holding the lock one page at a time.
+     */
+    public static int copyRange(List<?> list, int from, Object[] into) {
+        synchronized (LOG) {
+            int n = Math.max(0, Math.min(into.length, list.size() - from));
+            for (int i = 0; i < n; i++) into[i] = list.get(from + i);
+            return n;
+        }
+    }
+
+    public static List<BorrowRecord> recordsOf(User student) {
+        synchronized (LOG) { return recordHistory.ofStudent(student); }
+    }
+    public static List<BorrowRequest> requestsOf(User student) { return copy(requestsByStudent.get(student)); }
+
+    /** Drops all in-memory state without journaling it. For the headless harness only. */
+    static void reset() {
+        synchronized (LOG) {
+            userList.clear(); itemList.clear(); requestList.clear(); recordHistory.clear(); transferList.clear();
+        }
+        requestsById.clear(); recordsById.clear();
+        usersById.clear(); itemsById.clear(); unitsByName.clear(); branches.clear();
+        openByStudent.clear(); requestsByStudent.clear();
+        catalog.clear();
+        synchronized (usage) { usage.clear(); }
+        version.incrementAndGet();
+    }
+
+    /**
+     * Catalog search: every word of the query must prefix-match a word of the item's name or
+     * category. Uses the catalog's own lock, so it never waits on DataStore writers.
+     */
+    public static CatalogIndex.Result searchItems(String query, String category, boolean availableOnly, int limit) {
+        return catalog.search(query, category, availableOnly, limit);
+    }
+
+    /** Open loans due before today, oldest first; walks only the overdue prefix of each branch's due-date index. */
+    public static List<BorrowRecord> overdueRecords(LocalDate today) {
+        TreeMap<LocalDate, List<BorrowRecord>> byDue = new TreeMap<>();
+        for (Branch b : branches.values()) {
+            synchronized (b) {
+                for (BorrowRecord r : b.overdue.overdue(today)) byDue.computeIfAbsent(r.getDueDate(), d -> new ArrayList<>()).add(r);
+            }
+        }
+        List<BorrowRecord> out = new ArrayList<>();
+        for (List<BorrowRecord> l : byDue.values()) out.addAll(l);
+        return out;
+    }
+
+    public static OverdueIndex.Summary overdueSummary(LocalDate today) {
+        int loans = 0;
+        long fines = 0;
+        for (Branch b : branches.values()) {
+            synchronized (b) {
+                OverdueIndex.Summary s = b.overdue.summary(today);
+                loans += s.loans;
+                fines += s.fines;
+            }
+        }
+        return new OverdueIndex.Summary(loans, fines);
+    }
+
+    /** Usage report over [from, to]; from == null means since the first loan. Built from running counters. */
+    public static UsageAnalytics.Report usageReport(LocalDate from, LocalDate to) {
+        List<Item> catalog = itemsSnapshot();
+        synchronized (usage) {
+            if (from == null) from = usage.firstDay() == null || usage.firstDay().isAfter(to) ? to : usage.firstDay();
+            return usage.report(from, to, catalog);
+        }
+    }
+
+    /** Bumped on every mutation; lets background loaders notice they raced with a write. */
+    public static long version() { return version.get(); }
+
+    private static <T> void append(Map<User, List<T>> byStudent, User student, T row) {
+        List<T> list = byStudent.computeIfAbsent(student, k -> new ArrayList<>());
+        synchronized (list) { list.add(row); }
+    }
+
+    private static <T> List<T> copy(List<T> list) {
+        if (list == null) return new ArrayList<>();
+        synchronized (list) { return new ArrayList<>(list); }
+    }
+
+    private static void indexPending(Branch b, BorrowRequest r) {
+        b.pendingRequests.add(r);
+        b.pendingByStudentItem.computeIfAbsent(new Key(r.getStudent(), r.getItem()), k -> new ArrayList<>()).add(r);
+    }
+
+    private static void unindexPending(Branch b, BorrowRequest r) {
+        b.pendingRequests.remove(r);
+        Key k = new Key(r.getStudent(), r.getItem());
+        List<BorrowRequest> list = b.pendingByStudentItem.get(k);
+        if (list != null) {
+            list.remove(r);
+            if (list.isEmpty()) b.pendingByStudentItem.remove(k);
+        }
+    }
+
+    private static boolean isBooked(BorrowRequest r, RequestStatus status) {
+        return r.getType() == RequestType.BOOKING && status == RequestStatus.APPROVED;
+    }
+
+    private static BookingCalendar calendar(Branch b, Item item) {
+        BookingCalendar c = b.calendars.get(item);
+        if (c == null) {
+            c = new BookingCalendar(AppClock.today());
+            for (BorrowRecord r : b.activeRecords) if (r.getItem() == item) c.add(r.getBorrowDate(), r.getDueDate(), 1);
+            b.calendars.put(item, c);
+        }
+        return c;
+    }
+
+    private static void indexBooking(Branch b, BorrowRequest r) {
+        b.bookings.add(r);
+        b.bookingsByItem.computeIfAbsent(r.getItem(), k -> new LinkedHashSet<>()).add(r);
+        calendar(b, r.getItem()).add(r.getStartDate(), r.getEndDate(), 1);
+    }
+
+    private static void unindexBooking(Branch b, BorrowRequest r) {
+        b.bookings.remove(r);
+        Set<BorrowRequest> mine = b.bookingsByItem.get(r.getItem());
+        if (mine != null && mine.remove(r) && mine.isEmpty()) b.bookingsByItem.remove(r.getItem());
+        calendar(b, r.getItem()).add(r.getStartDate(), r.getEndDate(), -1);
+    }
+
+    private static void indexWaiting(Branch b, BorrowRequest r, int pos) {
+        b.waitlists.computeIfAbsent(r.getItem(), k -> new TreeMap<>()).put(pos, r);
+        b.waitingByStudentItem.put(new Key(r.getStudent(), r.getItem()), r);
+    }
+
+    private static void unindexWaiting(Branch b, BorrowRequest r, int pos) {
+        TreeMap<Integer, BorrowRequest> q = b.waitlists.get(r.getItem());
+        if (q != null) {
+            q.remove(pos);
+            if (q.isEmpty()) b.waitlists.remove(r.getItem());
+        }
+        b.waitingByStudentItem.remove(new Key(r.getStudent(), r.getItem()), r);
+    }
+
+    // (student, item) composite key; User and Item use identity equality.
+    private static final class Key {
+        private final User student;
+        private final Item item;
+        Key(User student, Item item) { this.student = student; this.item = item; }
+        @Override public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).student == student && ((Key) o).item == item;
+        }
+        @Override public int hashCode() { return 31 * System.identityHashCode(student) + System.identityHashCode(item); }
+    }
+}
+
+/**
+ * Every BorrowRecord by position, stored as columns: epoch days in int[] pages, the student and
+ * item as indexes into dictionaries, isExtended as one bit. Only open loans are kept as objects
+ * (the hot set); a returned loan costs about 24 bytes instead of a BorrowRecord plus three
+ * LocalDates, and get() rebuilds it on demand from shared LocalDates. Rebuilt records are fresh objects with the same
+ * id, so compare returned records by id, not identity. A returned loan's last reminder date is
+ * not kept.
+ * Not thread-safe: DataStore guards it with LOG.
+ */
+class RecordHistory {
+    private static final int PAGE_BITS = 14, PAGE = 1 << PAGE_BITS, MASK = PAGE - 1;
+    private static final int OPEN = Integer.MIN_VALUE; // returnDay of a loan still out
+    private static final int FIRST_CACHED_DAY = (int) LocalDate.of(1900, 1, 1).toEpochDay();
+    private static final LocalDate[] DATES = new LocalDate[1 << 16]; // 1900..2079, filled on use; LocalDate is immutable
+
+    /** One PAGE of rows; prevOfStudent chains each student's rows, newest first. */
+    private static final class Page {
+        final int[] student = new int[PAGE], item = new int[PAGE], prevOfStudent = new int[PAGE];
+        final int[] borrowDay = new int[PAGE], dueDay = new int[PAGE], returnDay = new int[PAGE];
+        final long[] extended = new long[PAGE / 64];
+    }
+
+    private final List<Page> pages = new ArrayList<>();
+    private final List<Student> students = new ArrayList<>();
+    private final Map<Student, Integer> studentCode = new IdentityHashMap<>();
+    private final List<Item> items = new ArrayList<>();
+    private final Map<Item, Integer> itemCode = new IdentityHashMap<>();
+    private int[] lastOfStudent = emptyHeads(); // newest row by student code, -1 for none
+    private final Map<Integer, BorrowRecord> open = new HashMap<>();
+    private int size;
+
+    int size() { return size; }
+
+    /** Stores r at the next position and returns it; an open loan also joins the hot set. */
+    int append(BorrowRecord r) {
+        int pos = size++;
+        if ((pos & MASK) == 0) pages.add(new Page());
+        Page p = pages.get(pos >>> PAGE_BITS);
+        int i = pos & MASK;
+        int s = code(studentCode, students, r.getStudent());
+        if (s == lastOfStudent.length) {
+            lastOfStudent = Arrays.copyOf(lastOfStudent, s * 2);
+            Arrays.fill(lastOfStudent, s, s * 2, -1);
+        }
+        p.student[i] = s;
+        p.item[i] = code(itemCode, items, r.getItem());
+        p.prevOfStudent[i] = lastOfStudent[s];
+        lastOfStudent[s] = pos;
+        p.borrowDay[i] = (int) r.getBorrowDate().toEpochDay();
+        if (r.getReturnDate() == null) {
+            p.returnDay[i] = OPEN;
+            open.put(pos, r);
+        } else {
+            close(p, i, r);
+        }
+        return pos;
+    }
+
+    /** Moves a returned loan out of the hot set into the columns. */
+    void close(int pos, BorrowRecord r) {
+        if (open.remove(pos) == null) return;
+        close(pages.get(pos >>> PAGE_BITS), pos & MASK, r);
+    }
+
+    private static void close(Page p, int i, BorrowRecord r) {
+        p.dueDay[i] = (int) r.getDueDate().toEpochDay();
+        p.returnDay[i] = (int) r.getReturnDate().toEpochDay();
+        if (r.isExtended()) p.extended[i >>> 6] |= 1L << i;
+    }
+
+    /** The open loan itself, or a returned one rebuilt from the columns. */
+    BorrowRecord get(int pos) {
+        if (pos < 0 || pos >= size) throw new IndexOutOfBoundsException("record " + pos + " of " + size);
+        BorrowRecord r = open.get(pos);
+        if (r != null) return r;
+        Page p = pages.get(pos >>> PAGE_BITS);
+        int i = pos & MASK;
+        r = new BorrowRecord(students.get(p.student[i]), items.get(p.item[i]), date(p.borrowDay[i]),
+                date(p.dueDay[i]), date(p.returnDay[i]), (p.extended[i >>> 6] & 1L << i) != 0);
+        r.assignId(pos + 1L);
+        return r;
+    }
+
+    /** The student's records in position order; walks only that student's rows. */
+    List<BorrowRecord> ofStudent(User student) {
+        Integer s = studentCode.get(student);
+        List<BorrowRecord> out = new ArrayList<>();
+        if (s == null) return out;
+        for (int pos = lastOfStudent[s]; pos >= 0; pos = pages.get(pos >>> PAGE_BITS).prevOfStudent[pos & MASK]) out.add(get(pos));
+        Collections.reverse(out);
+        return out;
+    }
+
+    /** Heap held by the columns and dictionaries, not counting the open loans' own objects. */
+    long columnBytes() {
+        return (long) pages.size() * (6L * 4 * PAGE + PAGE / 8) + 4L * lastOfStudent.length + 40L * (students.size() + items.size());
+    }
+
+    int openCount() { return open.size(); }
+
+    void clear() {
+        pages.clear(); students.clear(); studentCode.clear(); items.clear(); itemCode.clear(); open.clear();
+        lastOfStudent = emptyHeads();
+        size = 0;
+    }
+
+    private static LocalDate date(int epochDay) {
+        int i = epochDay - FIRST_CACHED_DAY;
+        if (i < 0 || i >= DATES.length) return LocalDate.ofEpochDay(epochDay);
+        LocalDate d = DATES[i];
+        if (d == null) DATES[i] = d = LocalDate.ofEpochDay(epochDay);
+        return d;
+    }
+
+    private static int[] emptyHeads() {
+        int[] heads = new int[64];
+        Arrays.fill(heads, -1);
+        return heads;
+    }
+
+    private static <T> int code(Map<T, Integer> codes, List<T> dict, T value) {
+        Integer c = codes.get(value);
+        if (c == null) {
+            c = dict.size();
+            dict.add(value);
+            codes.put(value, c);
+        }
+        return c;
+    }
+}
+
+/**
+ * Open loans bucketed by due date. "Overdue as of today" is the head of the map, so
+ * queries walk only overdue due dates, never the whole open set. The summary prices each
+ * due date once (per category rule) and is cached until the day or the policy changes.
+ * Not thread-safe by itself: DataStore guards it.
+ */
+class OverdueIndex {
+    static class Summary {
+        final int loans;
+        final long fines;
+        Summary(int loans, long fines) { this.loans = loans; this.fines = fines; }
+    }
+
+    private final TreeMap<LocalDate, Set<BorrowRecord>> byDue = new TreeMap<>();
+    private Summary cachedSummary;
+    private LocalDate summaryDay;
+    private FinePolicy summaryPolicy;
+
+    void add(BorrowRecord r) {
+        byDue.computeIfAbsent(r.getDueDate(), d -> Collections.newSetFromMap(new IdentityHashMap<>())).add(r);
+        cachedSummary = null;
+    }
+
+    void remove(BorrowRecord r, LocalDate due) {
+        Set<BorrowRecord> bucket = byDue.get(due);
+        if (bucket != null && bucket.remove(r) && bucket.isEmpty()) byDue.remove(due);
+        cachedSummary = null;
+    }
+
+    void move(BorrowRecord r, LocalDate oldDue) {
+        remove(r, oldDue);
+        add(r);
+    }
+
+    void clear() {
+        byDue.clear();
+        cachedSummary = null;
+    }
+
+    /** Loans of the item due before today and still out. */
+    int count(Item item, LocalDate today) {
+        int n = 0;
+        for (Set<BorrowRecord> bucket : byDue.headMap(today, false).values())
+            for (BorrowRecord r : bucket) if (r.getItem() == item) n++;
+        return n;
+    }
+
+    List<BorrowRecord> overdue(LocalDate today) {
+        List<BorrowRecord> out = new ArrayList<>();
+        for (Set<BorrowRecord> bucket : byDue.headMap(today, false).values()) out.addAll(bucket);
+        return out;
+    }
+
+    Summary summary(LocalDate today) {
+        FinePolicy policy = FinePolicy.current();
+        if (cachedSummary != null && today.equals(summaryDay) && policy == summaryPolicy) return cachedSummary;
+        int loans = 0;
+        long fines = 0;
+        for (Map.Entry<LocalDate, Set<BorrowRecord>> e : byDue.headMap(today, false).entrySet()) {
+            loans += e.getValue().size();
+            fines += policy.totalDueOn(e.getKey(), e.getValue(), today);
+        }
+        summaryDay = today;
+        summaryPolicy = policy;
+        return cachedSummary = new Summary(loans, fines);
+    }
+}
+
+/**
+ * How many units of one item are spoken for on each day: open loans and approved bookings, each
+ * an interval [from, to) of days (a loan counts up to its due date, when the unit is due back;
+ * DataStore adds the loans that are late, which hold their unit until it actually is back). A
+ * segment tree with lazy range add over days since origin answers "most units out on any day of
+ * a window" and "first day from d on with every unit out" in O(log days), so checking a booking
+ * or finding the next free window never walks the bookings themselves. It grows to the right as
+ * later days get booked, dropping the days before today when it does. Not thread-safe: DataStore
+ * guards it with the branch lock.
+ */
+class BookingCalendar {
+    private static final int MIN_DAYS = 64;
+
+    private long origin; // epoch day of leaf 0
+    private int days;    // leaves, a power of two; days past the last leaf have nothing out
+    private int[] add;   // units on every day under the node, not counted by its descendants
+    private int[] max;   // most units on one day under the node, counting its add but not its ancestors'
+    private int[] min;
+
+    BookingCalendar(LocalDate today) {
+        origin = today.toEpochDay();
+        allocate(MIN_DAYS);
+    }
+
+    /** Adds units (negative to take them off) on every day of [from, to); days before the calendar starts are ignored. */
+    void add(LocalDate from, LocalDate to, int units) {
+        long hi = to.toEpochDay();
+        if (hi <= Math.max(from.toEpochDay(), origin) || units == 0) return;
+        if (hi - origin > days) grow(hi);
+        long lo = Math.max(from.toEpochDay(), origin); // growing may have moved origin
+        if (lo < hi) update(1, 0, days, (int) (lo - origin), (int) (hi - origin), units);
+    }
+
+    /** Most units out on any one day of [from, to). */
+    int peak(LocalDate from, LocalDate to) {
+        long lo = Math.max(from.toEpochDay(), origin), hi = Math.min(to.toEpochDay(), origin + days);
+        return lo >= hi ? 0 : peak(1, 0, days, (int) (lo - origin), (int) (hi - origin));
+    }
+
+    /** Earliest start on or after from whose length days all have fewer than capacity units out; null if capacity is 0. */
+    LocalDate nextFree(LocalDate from, int length, int capacity) {
+        if (capacity <= 0) return null;
+        long start = Math.max(from.toEpochDay(), origin);
+        while (true) {
+            long full = firstDay(start, capacity, true);
+            if (full < 0 || full >= start + length) return LocalDate.ofEpochDay(start);
+            long free = firstDay(full, capacity, false);
+            start = free < 0 ? origin + days : free; // past the last leaf nothing is out
+        }
+    }
+
+    // First day from on with at least (full) or fewer than (!full) units out, or -1 within the tree.
+    private long firstDay(long from, int units, boolean full) {
+        if (from - origin >= days) return -1;
+        int i = first(1, 0, days, (int) (from - origin), units, full, 0);
+        return i < 0 ? -1 : origin + i;
+    }
+
+    private int first(int node, int lo, int hi, int from, int units, boolean full, int above) {
+        if (hi <= from || (full ? above + max[node] < units : above + min[node] >= units)) return -1;
+        if (hi - lo == 1) return lo;
+        int mid = (lo + hi) >>> 1, a = above + add[node];
+        int i = first(2 * node, lo, mid, from, units, full, a);
+        return i >= 0 ? i : first(2 * node + 1, mid, hi, from, units, full, a);
+    }
+
+    private void update(int node, int lo, int hi, int from, int to, int units) {
+        if (to <= lo || hi <= from) return;
+        if (from <= lo && hi <= to) {
+            add[node] += units;
+            max[node] += units;
+            min[node] += units;
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        update(2 * node, lo, mid, from, to, units);
+        update(2 * node + 1, mid, hi, from, to, units);
+        max[node] = add[node] + Math.max(max[2 * node], max[2 * node + 1]);
+        min[node] = add[node] + Math.min(min[2 * node], min[2 * node + 1]);
+    }
+
+    private int peak(int node, int lo, int hi, int from, int to) {
+        if (from <= lo && hi <= to) return max[node];
+        int mid = (lo + hi) >>> 1;
+        if (to <= mid) return add[node] + peak(2 * node, lo, mid, from, to);
+        if (from >= mid) return add[node] + peak(2 * node + 1, mid, hi, from, to);
+        return add[node] + Math.max(peak(2 * node, lo, mid, from, to), peak(2 * node + 1, mid, hi, from, to));
+    }
+
+    // Rebuilds the tree from today (never earlier than before) to at least day hi - 1.
+    private void grow(long hi) {
+        int[] perDay = new int[days];
+        for (int i = 0; i < days; i++)
+            for (int node = days + i; node >= 1; node >>= 1) perDay[i] += add[node];
+        long oldOrigin = origin;
+        origin = Math.max(origin, Math.min(AppClock.today().toEpochDay(), hi - 1));
+        int n = days;
+        while (hi - origin > n) n <<= 1;
+        allocate(n);
+        for (int i = 0; i < perDay.length; i++) {
+            long day = oldOrigin + i - origin;
+            if (day >= 0) add[n + (int) day] = max[n + (int) day] = min[n + (int) day] = perDay[i];
+        }
+        for (int node = n - 1; node >= 1; node--) {
+            max[node] = Math.max(max[2 * node], max[2 * node + 1]);
+            min[node] = Math.min(min[2 * node], min[2 * node + 1]);
+        }
+    }
+
+    private void allocate(int n) {
+        days = n;
+        add = new int[2 * n];
+        max = new int[2 * n];
+        min = new int[2 * n];
+    }
+}
+
+
+/**
+ * Usage counters kept up to date by DataStore as loans start, end and get extended, so
+ * reports never rescan the history. Per day: loans started, returns, days late and fines
+ * (on the return day), loan days, and the change in open loans. The open-loan changes are
+ * also kept per item and per category, which makes concurrent use over any window a single
+ * prefix sum over that window's days. Per item and per category totals are all-time.
+ * A loan counts as in use from its borrow date through its return date, inclusive.
+ * Not thread-safe by itself: DataStore guards it.
+ */
+class UsageAnalytics {
+    static final double OVER_SUBSCRIBED = 0.9;  // average share of units out over the window
+    static final double UNDER_SUBSCRIBED = 0.1;
+
+    /** Long counters indexed by epoch day, in an array that grows in either direction. */
+    static final class DaySeries {
+        private long base;               // epoch day of data[0]
+        private long[] data = new long[0];
+        private long firstDay = Long.MAX_VALUE;
+
+        void add(long day, long delta) {
+            firstDay = Math.min(firstDay, day);
+            if (data.length == 0) {
+                base = day;
+                data = new long[16];
+            } else if (day < base) {
+                int shift = (int) Math.max(base - day, data.length);
+                long[] grown = new long[data.length + shift];
+                System.arraycopy(data, 0, grown, shift, data.length);
+                data = grown;
+                base -= shift;
+            } else if (day - base >= data.length) {
+                data = Arrays.copyOf(data, (int) Math.max(day - base + 1, data.length * 2L));
+            }
+            data[(int) (day - base)] += delta;
+        }
+
+        long get(long day) {
+            long i = day - base;
+            return i < 0 || i >= data.length ? 0 : data[(int) i];
+        }
+
+        /** Sum of every day before the given one. */
+        long sumBefore(long day) {
+            long sum = 0;
+            for (int i = 0, end = (int) Math.min(data.length, Math.max(0, day - base)); i < end; i++) sum += data[i];
+            return sum;
+        }
+
+        boolean isEmpty() { return data.length == 0; }
+
+        /** Earliest day ever added to. */
+        long firstDay() { return firstDay; }
+
+        void clear() {
+            data = new long[0];
+            firstDay = Long.MAX_VALUE;
+        }
+    }
+
+    /** Running totals for one item or category. */
+    static final class Totals {
+        long loans, returns, lateReturns, daysLate, fines, loanDays, extensions, requests, waitlisted;
+        int open;
+        final DaySeries openDelta = new DaySeries();
+        final DaySeries started = new DaySeries();
+    }
+
+    /** One row of a report: all-time totals plus loans, peak and utilisation inside the window. */
+    static final class Usage {
+        final String name, category;
+        final int capacity;
+        final long loans, returns, lateReturns, daysLate, fines, extensions, requests, waitlisted;
+        final double avgLoanDays;
+        final int open;
+        final long windowLoans, peak;
+        final double utilisation;
+
+        Usage(String name, String category, int capacity, Totals t, long windowLoans, long peak, double utilisation) {
+            this.name = name;
+            this.category = category;
+            this.capacity = capacity;
+            this.loans = t.loans;
+            this.returns = t.returns;
+            this.lateReturns = t.lateReturns;
+            this.daysLate = t.daysLate;
+            this.fines = t.fines;
+            this.extensions = t.extensions;
+            this.requests = t.requests;
+            this.waitlisted = t.waitlisted;
+            this.avgLoanDays = t.returns == 0 ? 0 : (double) t.loanDays / t.returns;
+            this.open = t.open;
+            this.windowLoans = windowLoans;
+            this.peak = peak;
+            this.utilisation = utilisation;
+        }
+
+        /** OVER when units ran out or sat mostly lent out, UNDER when mostly idle. */
+        String verdict() {
+            if (capacity > 0 && (peak >= capacity || utilisation >= OVER_SUBSCRIBED)) return "OVER";
+            if (utilisation < UNDER_SUBSCRIBED) return "UNDER";
+            return "OK";
+        }
+    }
+
+    /** Day-by-day series for [from, to] plus per-item and per-category rows. */
+    static final class Report {
+        final LocalDate from, to;
+        final long[] started, returned, daysLate, fines, loanDays, open; // one slot per day
+        final List<Usage> items, categories;
+        final int capacity; // units across the catalog
+
+        Report(LocalDate from, LocalDate to, int days, List<Usage> items, List<Usage> categories, int capacity) {
+            this.from = from;
+            this.to = to;
+            started = new long[days];
+            returned = new long[days];
+            daysLate = new long[days];
+            fines = new long[days];
+            loanDays = new long[days];
+            open = new long[days];
+            this.items = items;
+            this.categories = categories;
+            this.capacity = capacity;
+        }
+
+        static long sum(long[] a) {
+            long s = 0;
+            for (long v : a) s += v;
+            return s;
+        }
+
+        static long max(long[] a) {
+            long m = 0;
+            for (long v : a) m = Math.max(m, v);
+            return m;
+        }
+    }
+
+    private final DaySeries started = new DaySeries(), returned = new DaySeries(), daysLate = new DaySeries();
+    private final DaySeries fines = new DaySeries(), loanDays = new DaySeries(), openDelta = new DaySeries();
+    private final Map<Item, Totals> byItem = new IdentityHashMap<>();
+    private final Map<String, Totals> byCategory = new HashMap<>();
+
+    void loanStarted(BorrowRecord r) {
+        long day = r.getBorrowDate().toEpochDay();
+        started.add(day, 1);
+        openDelta.add(day, 1);
+        for (Totals t : totals(r.getItem())) {
+            t.loans++;
+            t.open++;
+            t.started.add(day, 1);
+            t.openDelta.add(day, 1);
+        }
+    }
+
+    void loanReturned(BorrowRecord r) {
+        LocalDate ret = r.getReturnDate();
+        long day = ret.toEpochDay();
+        long length = day - r.getBorrowDate().toEpochDay();
+        long late = Math.max(0, day - r.getDueDate().toEpochDay());
+        int fine = FinePolicy.current().fine(r, ret);
+        returned.add(day, 1);
+        daysLate.add(day, late);
+        fines.add(day, fine);
+        loanDays.add(day, length);
+        openDelta.add(day + 1, -1); // still in use on the return day
+        for (Totals t : totals(r.getItem())) {
+            t.returns++;
+            t.open--;
+            t.loanDays += length;
+            t.daysLate += late;
+            if (late > 0) t.lateReturns++;
+            t.fines += fine;
+            t.openDelta.add(day + 1, -1);
+        }
+    }
+
+    void extended(BorrowRecord r) {
+        for (Totals t : totals(r.getItem())) t.extensions++;
+    }
+
+    void requestAdded(BorrowRequest r) {
+        if (r.getType() != RequestType.NEW_BORROW) return;
+        for (Totals t : totals(r.getItem())) {
+            t.requests++;
+            if (r.getStatus() == RequestStatus.WAITLISTED) t.waitlisted++;
+        }
+    }
+
+    /** First day with any loan, for "all history" reports; null when there is none. */
+    LocalDate firstDay() {
+        return started.isEmpty() ? null : LocalDate.ofEpochDay(started.firstDay());
+    }
+
+    void clear() {
+        for (DaySeries s : Arrays.asList(started, returned, daysLate, fines, loanDays, openDelta)) s.clear();
+        byItem.clear();
+        byCategory.clear();
+    }
+
+    /**
+     * Builds the report for [from, to]. Costs one pass over the window per item and category
+     * with history (plus the days before it for the running open count), independent of how
+     * many loans that history holds.
+     */
+    Report report(LocalDate from, LocalDate to, List<Item> catalog) {
+        long first = from.toEpochDay(), last = to.toEpochDay();
+        int days = (int) (last - first + 1);
+
+        List<Usage> items = new ArrayList<>(catalog.size());
+        Map<String, Integer> capacityByCategory = new TreeMap<>();
+        int capacity = 0;
+        for (Item i : catalog) {
+            capacity += i.getTotalQty();
+            capacityByCategory.merge(i.getCategory(), i.getTotalQty(), Integer::sum);
+            items.add(usage(i.toString(), i.getCategory(), i.getTotalQty(), byItem.get(i), first, days));
+        }
+        List<Usage> categories = new ArrayList<>(capacityByCategory.size());
+        for (Map.Entry<String, Integer> e : capacityByCategory.entrySet())
+            categories.add(usage(e.getKey(), e.getKey(), e.getValue(), byCategory.get(e.getKey()), first, days));
+
+        Report r = new Report(from, to, days, items, categories, capacity);
+        long open = openDelta.sumBefore(first);
+        for (int d = 0; d < days; d++) {
+            long day = first + d;
+            r.started[d] = started.get(day);
+            r.returned[d] = returned.get(day);
+            r.daysLate[d] = daysLate.get(day);
+            r.fines[d] = fines.get(day);
+            r.loanDays[d] = loanDays.get(day);
+            r.open[d] = open += openDelta.get(day);
+        }
+        return r;
+    }
+
+    // Walks the window's open counts once: loans started, peak concurrent loans, unit-days in use.
+    private static Usage usage(String name, String category, int capacity, Totals t, long first, int days) {
+        if (t == null) t = new Totals();
+        long loans = 0, peak = 0, unitDays = 0;
+        if (!t.openDelta.isEmpty()) {
+            long open = t.openDelta.sumBefore(first);
+            for (int d = 0; d < days; d++) {
+                long day = first + d;
+                open += t.openDelta.get(day);
+                loans += t.started.get(day);
+                peak = Math.max(peak, open);
+                unitDays += open;
+            }
+        }
+        double utilisation = capacity == 0 ? 0 : (double) unitDays / ((long) capacity * days);
+        return new Usage(name, category, capacity, t, loans, peak, utilisation);
+    }
+
+    private Totals[] totals(Item i) {
+        return new Totals[] {
+            byItem.computeIfAbsent(i, k -> new Totals()),
+            byCategory.computeIfAbsent(i.getCategory(), k -> new Totals())
+        };
+    }
+}
+
+/**
+ * Inverted index over item name and category words for typeahead search. Words live in a
+ * sorted map, so a prefix is a sub-map; each word points at the ordinals of the items using
+ * it. A query is driven by its most selective word and the other words are checked against
+ * the candidate's own (few) words. Facet counts per category are kept live: items listen
+ * for stock changes and flip their category's "available" counter when they hit or leave 0.
+ */
+class CatalogIndex {
+    /** Matching items (first `limit`, catalog order), how many matched, and category facets. */
+    static class Result {
+        final List<Item> items;
+        final int total;
+        final Map<String, Facet> facets; // by category, sorted
+        Result(List<Item> items, int total, Map<String, Facet> facets) { this.items = items; this.total = total; this.facets = facets; }
+    }
+
+    static class Facet {
+        final int items, available;
+        Facet(int items, int available) { this.items = items; this.available = available; }
+        @Override public String toString() { return available + "/" + items; }
+    }
+
+    private static final class Entry {
+        final Item item;
+        final String[] words;
+        final CategoryStats category;
+        final AtomicBoolean available = new AtomicBoolean();
+        Entry(Item item, String[] words, CategoryStats category) { this.item = item; this.words = words; this.category = category; }
+
+        /** Loops because concurrent stock changes may observe the quantity out of order. */
+        void refreshAvailability() {
+            boolean now;
+            while ((now = item.getCurrentQty() > 0) != available.get()) {
+                if (available.compareAndSet(!now, now)) category.available.addAndGet(now ? 1 : -1);
+            }
+        }
+    }
+
+    private static final class CategoryStats {
+        final int ord;
+        final Postings members = new Postings();
+        final AtomicInteger available = new AtomicInteger();
+        CategoryStats(int ord) { this.ord = ord; }
+    }
+
+    /** Growable ascending int list; items get ordinals in insertion order so appends stay sorted. */
+    private static final class Postings {
+        int[] ords = new int[4];
+        int size;
+        void add(int ord) {
+            if (size == ords.length) ords = Arrays.copyOf(ords, size * 2);
+            ords[size++] = ord;
+        }
+    }
+
+    private Entry[] entries = new Entry[16];
+    private int[] categoryOf = new int[16]; // parallel to entries; keeps the facet loop off the heap
+    private int size;
+    private final TreeMap<String, Postings> words = new TreeMap<>();
+    private final TreeMap<String, CategoryStats> categories = new TreeMap<>();
+    private long[] seen = new long[1]; // scratch bitset for multi-word prefixes; guarded by this
+
+    synchronized void add(Item item) {
+        int ord = size;
+        if (ord == entries.length) {
+            entries = Arrays.copyOf(entries, ord * 2);
+            categoryOf = Arrays.copyOf(categoryOf, ord * 2);
+        }
+        CategoryStats cat = categories.computeIfAbsent(item.getCategory(), c -> new CategoryStats(categories.size()));
+        cat.members.add(ord);
+        String[] ws = tokenize(item.getName() + " " + item.getCategory()).toArray(new String[0]);
+        for (String w : ws) words.computeIfAbsent(w, k -> new Postings()).add(ord);
+        Entry e = new Entry(item, ws, cat);
+        entries[ord] = e;
+        categoryOf[ord] = cat.ord;
+        size++;
+        item.setStockListener(e::refreshAvailability);
+        e.refreshAvailability();
+    }
+
+    synchronized void clear() {
+        for (int i = 0; i < size; i++) entries[i].item.setStockListener(null);
+        Arrays.fill(entries, 0, size, null);
+        size = 0;
+        words.clear();
+        categories.clear();
+    }
+
+    /**
+     * @param category      only items in this category, or null for all; facets ignore it
+     * @param availableOnly only items with a free unit right now
+     */
+    synchronized Result search(String query, String category, boolean availableOnly, int limit) {
+        List<String> terms = tokenize(query == null ? "" : query);
+        List<Item> hits = new ArrayList<>(Math.min(limit, 64));
+        if (terms.isEmpty()) return browse(category, availableOnly, limit, hits);
+
+        // Drive from the term whose matching words have the fewest postings. Other terms that
+        // expand to a single word are merged against its postings; the rest are checked
+        // against the candidate's own words.
+        List<SortedMap<String, Postings>> expanded = new ArrayList<>();
+        SortedMap<String, Postings> driver = null;
+        long driverCost = Long.MAX_VALUE;
+        int driverIndex = -1;
+        for (String t : terms) {
+            SortedMap<String, Postings> m = words.subMap(t, t + Character.MAX_VALUE);
+            long cost = 0;
+            for (Postings p : m.values()) cost += p.size;
+            expanded.add(m);
+            if (cost < driverCost) {
+                driver = m;
+                driverCost = cost;
+                driverIndex = expanded.size() - 1;
+            }
+        }
+        List<Postings> merge = new ArrayList<>();
+        List<String> check = new ArrayList<>();
+        for (int i = 0; i < terms.size(); i++) {
+            if (i == driverIndex) continue;
+            if (expanded.get(i).size() == 1) merge.add(expanded.get(i).values().iterator().next());
+            else check.add(terms.get(i));
+        }
+        int[] cursor = new int[merge.size()];
+
+        CategoryStats only = category == null ? null : categories.get(category);
+        int onlyOrd = only == null ? -1 : only.ord;
+        boolean filtered = category != null;
+        int[] matched = new int[categories.size()], free = new int[categories.size()];
+        int total = 0;
+        Postings single = driver.size() == 1 ? driver.values().iterator().next() : null;
+        int n = single != null ? single.size : markUnion(driver.values());
+        for (int k = 0, word = 0; k < n; k++) {
+            int ord;
+            if (single != null) {
+                ord = single.ords[k];
+            } else { // next set bit of the union
+                while (seen[word] == 0) word++;
+                ord = (word << 6) + Long.numberOfTrailingZeros(seen[word]);
+                seen[word] &= seen[word] - 1;
+            }
+            if (!inAll(merge, cursor, ord)) continue;
+            Entry e = entries[ord];
+            if (!check.isEmpty() && !matchesAll(e.words, check)) continue;
+            int c = categoryOf[ord];
+            boolean avail = e.available.get();
+            matched[c]++;
+            if (avail) free[c]++;
+            if ((!filtered || c == onlyOrd) && (avail || !availableOnly)) {
+                if (total++ < limit) hits.add(e.item);
+            }
+        }
+        Map<String, Facet> facets = new LinkedHashMap<>();
+        for (Map.Entry<String, CategoryStats> c : categories.entrySet()) {
+            int ord = c.getValue().ord;
+            if (matched[ord] > 0) facets.put(c.getKey(), new Facet(matched[ord], free[ord]));
+        }
+        return new Result(hits, total, facets);
+    }
+
+    /** Empty query: facets come straight from the live counters. */
+    private Result browse(String category, boolean availableOnly, int limit, List<Item> hits) {
+        Map<String, Facet> facets = new LinkedHashMap<>();
+        for (Map.Entry<String, CategoryStats> c : categories.entrySet())
+            facets.put(c.getKey(), new Facet(c.getValue().members.size, c.getValue().available.get()));
+        int total = 0;
+        for (Map.Entry<String, CategoryStats> c : categories.entrySet()) {
+            if (category != null && !category.equals(c.getKey())) continue;
+            total += availableOnly ? c.getValue().available.get() : c.getValue().members.size;
+        }
+        Postings scope = category == null ? null : categories.containsKey(category) ? categories.get(category).members : new Postings();
+        int n = scope == null ? size : scope.size;
+        for (int i = 0; i < n && hits.size() < limit; i++) {
+            Entry e = entries[scope == null ? i : scope.ords[i]];
+            if (!availableOnly || e.available.get()) hits.add(e.item);
+        }
+        return new Result(hits, total, facets);
+    }
+
+    /** Sets a bit per item in any of the postings (items can use several matching words); returns the count. */
+    private int markUnion(Collection<Postings> lists) {
+        int wordsNeeded = (size >>> 6) + 1;
+        if (seen.length < wordsNeeded) seen = new long[Math.max(wordsNeeded, seen.length * 2)];
+        int n = 0;
+        for (Postings p : lists) {
+            for (int i = 0; i < p.size; i++) {
+                int ord = p.ords[i];
+                long bit = 1L << ord, before = seen[ord >>> 6];
+                if ((before & bit) == 0) {
+                    seen[ord >>> 6] = before | bit;
+                    n++;
+                }
+            }
+        }
+        return n; // the search loop clears each bit as it visits it
+    }
+
+    /** Candidates arrive in ascending order, so each postings list is walked at most once. */
+    private static boolean inAll(List<Postings> lists, int[] cursor, int ord) {
+        for (int i = 0; i < cursor.length; i++) {
+            Postings p = lists.get(i);
+            int c = cursor[i];
+            while (c < p.size && p.ords[c] < ord) c++;
+            cursor[i] = c;
+            if (c == p.size || p.ords[c] != ord) return false;
+        }
+        return true;
+    }
+
+    private static boolean matchesAll(String[] itemWords, List<String> terms) {
+        outer:
+        for (String t : terms) {
+            for (String w : itemWords) if (w.startsWith(t)) continue outer;
+            return false;
+        }
+        return true;
+    }
+
+    /** Lower-cased runs of letters/digits, de-duplicated. */
+    static List<String> tokenize(String text) {
+        List<String> out = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean word = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (word && start < 0) start = i;
+            else if (!word && start >= 0) {
+                String w = text.substring(start, i).toLowerCase(Locale.ROOT);
+                if (!out.contains(w)) out.add(w);
+                start = -1;
+            }
+        }
+        return out;
+    }
+}
+
+/**
+ * Snapshot + journal persistence for DataStore.
+ * On startup the latest snapshot is loaded and the journal tail replayed on top of it.
+ * Every DataStore mutation is then appended to the journal; once the tail grows past
+ * SNAPSHOT_EVERY events a fresh snapshot is written and the journal truncated.
+ * Disable with -Dshareu.persist=false, relocate with -Dshareu.data=dir.
+ */
+class Persistence {
+    private static final int SNAPSHOT_MAGIC = 0x53485255; // "SHRU"
+    private static final int SNAPSHOT_VERSION = 4; // v2: records carry remindedForDue; v3: items carry their branch, transfers follow records; v4: requests carry a booking start
+    private static final int SNAPSHOT_EVERY = Integer.getInteger("shareu.snapshot.every", 100_000); // journal events between snapshots
+
+    static final byte USER_REGISTERED = 1;
+    static final byte ITEM_ADDED = 2;
+    static final byte REQUEST_CREATED = 3;
+    static final byte REQUEST_STATUS = 4;
+    static final byte RECORD_CREATED = 5;
+    static final byte RECORD_EXTENDED = 6;
+    static final byte RECORD_RETURNED = 7;
+    static final byte QTY_CHANGED = 8;
+    static final byte REMINDER_SENT = 9;
+    static final byte PASSWORD_CHANGED = 10;
+    static final byte ITEM_ADDED_IN_BRANCH = 11; // ITEM_ADDED plus the branch; what is written now
+    static final byte TRANSFER_CREATED = 12;
+    static final byte TRANSFER_STATUS = 13;
+    static final byte STOCK_CHANGED = 14;        // total and free units, after a transfer; older journals only
+    static final byte BOOKING_CREATED = 15;      // REQUEST_CREATED plus the start date
+    static final byte TRANSFER_MOVED = 16;       // a transfer's new status and the stock of the item it left or reached
+
+    private static final boolean ENABLED = !"false".equals(System.getProperty("shareu.persist"));
+    private static final Path DIR = Paths.get(System.getProperty("shareu.data", "shareu-data"));
+    private static final Path SNAPSHOT = DIR.resolve("snapshot.bin");
+    private static final Path JOURNAL = DIR.resolve("journal.log");
+
+    private static Journal journal;
+    private static boolean recording = false;
+    private static long seq = 0;
+    private static long eventsSinceSnapshot = 0;
+    private static boolean snapshotting = false; // one image at a time is being written
+    private static final ExecutorService snapshotter = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "snapshot-writer");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final ByteArrayOutputStream buf = new ByteArrayOutputStream(256);
+    private static final DataOutputStream out = new DataOutputStream(buf);
+
+    /**
+     * Loads snapshot + journal tail into DataStore. Returns false if there was nothing to load.
+     * Data that is there but cannot be read throws UncheckedIOException, which stops startup:
+     * running on with half the state and no journal would lose every write that follows.
+     */
+    static synchronized boolean open() {
+        if (!ENABLED) return false;
+        try {
+            Files.createDirectories(DIR);
+            long t0 = System.nanoTime();
+            long snapshotSeq = 0;
+            if (Files.exists(SNAPSHOT)) snapshotSeq = readSnapshot();
+            long t1 = System.nanoTime();
+            Journal.ReplayResult tail = Journal.replay(JOURNAL, snapshotSeq, Persistence::apply);
+            long t2 = System.nanoTime();
+            seq = Math.max(snapshotSeq, tail.lastSeq);
+            eventsSinceSnapshot = tail.applied;
+            System.out.println("💾 Loaded " + DataStore.users.size() + " users, " + DataStore.requests.size() + " requests, "
+                    + DataStore.records.size() + " records — snapshot " + (t1 - t0) / 1_000_000 + " ms, journal tail "
+                    + tail.applied + " events in " + (t2 - t1) / 1_000_000 + " ms");
+            journal = new Journal(JOURNAL, tail.validBytes);
+            recording = true;
+            for (TransferRequest t : DataStore.transfers) // shipped before a crash but never landed; nothing else runs yet
+                if (t.getStatus() == RequestStatus.IN_TRANSIT) DataStore.deliverTransfer(t);
+            if (eventsSinceSnapshot >= SNAPSHOT_EVERY) {
+                long at = seq, covered = journal.length();
+                writeSnapshot(encodeSnapshot(), at, covered); // nothing else runs yet, so no need for the background
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(Persistence::close, "persistence-shutdown"));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not load " + DIR.toAbsolutePath() + ": " + e.getMessage()
+                    + ". Repair or move it, or start with -Dshareu.persist=false.", e);
+        }
+        return !DataStore.users.isEmpty();
+    }
+
+    static void close() {
+        synchronized (Persistence.class) { recording = false; } // no new events, so no new snapshot either
+        snapshotter.shutdown();
+        try {
+            snapshotter.awaitTermination(30, TimeUnit.SECONDS); // let an image in flight finish
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closeJournal();
+    }
+
+    private static synchronized void closeJournal() {
+        if (journal == null) return;
+        try {
+            journal.close();
+            System.out.println("💾 " + journal.stats());
+        } catch (IOException e) {
+            System.err.println("❌ Failed to close journal: " + e.getMessage());
+        }
+        journal = null;
+        recording = false;
+    }
+
+    // --- Event hooks (no-ops while replaying or when disabled) ---
+
+    static synchronized void userRegistered(User u) {
+        if (!recording) return;
+        try { writeUser(begin(), u); } catch (IOException e) { throw new UncheckedIOException(e); }
+        commit(USER_REGISTERED);
+    }
+
+    static synchronized void itemAdded(Item i) {
+        if (!recording) return;
+        try { writeItem(begin(), i); } catch (IOException e) { throw new UncheckedIOException(e); }
+        commit(ITEM_ADDED_IN_BRANCH);
+    }
+
+    static synchronized void requestCreated(BorrowRequest r) {
+        if (!recording) return;
+        try {
+            DataOutputStream o = begin();
+            writeRequest(o, r);
+            if (r.getStartDate() != null) writeStartDate(o, r);
+        } catch (IOException e) { throw new UncheckedIOException(e); }
+        commit(r.getStartDate() != null ? BOOKING_CREATED : REQUEST_CREATED);
+    }
+
+    static synchronized void requestStatusChanged(int requestPos, RequestStatus status) {
+        if (!recording) return;
+        try {
+            DataOutputStream o = begin();
+            o.writeInt(requestPos);
+            o.writeByte(status.ordinal());
+        } catch (IOException e) { throw new UncheckedIOException(e); }
+        commit(REQUEST_STATUS);
+    }
+
+    static synchronized void recordCreated(BorrowRecord r) {
+        if (!recording) return;
+        try { writeRecord(begin(), r); } catch (IOException e) { throw new UncheckedIOException(e); }
+        commit(RECORD_CREATED);
+    }
+
+    static synchronized void recordExtended(int recordPos, LocalDate newDueDate) {
+        if (!recording) return;
+        try {
+            DataOutputStream o = begin();
+            o.writeInt(recordPos);
+            o.writeLong(newDueDate.toEpochDay());
+        } catch (IOException e) { throw new UncheckedIOException(e); }
+        commit(RECORD_EXTENDED);
+    }
+
+    static synchronized void recordReturned(int recordPos, LocalDate returnDate) {
+        if (!recording) return;
+        try {
+            DataOutputStream o = begin();
+            o.writeInt(recordPos);
+            o.writeLong(returnDate.toEpochDay());
+        } catch (IOException e) { throw new UncheckedIOException(e); }
+        commit(RECORD_RETURNED);
+    }
+
+    static synchronized void qtyChanged(Item i) {
+        if (!recording) return;
+        try {
+            DataOutputStream o = begin();
+            o.writeUTF(i.getItemId());
+            o.writeInt(i.getQtyIgnoringHolds());
+        } catch (IOException e) { throw new UncheckedIOException(e); }
+        commit(QTY_CHANGED);
+    }
+
+    static synchronized void transferMoved(TransferRequest t, Item i) {
+        if (!recording) return;
+        try {
+            DataOutputStream o = begin();
+            o.writeInt(t.getId());
+            o.writeByte(t.getStatus().ordinal());
+            o.writeUTF(i.getItemId());
+            o.writeInt(i.getTotalQty());
+            o.writeInt(i.getQtyIgnoringHolds());
+        } catch (IOException e) { throw new UncheckedIOException(e); }
+        commit(TRANSFER_MOVED);
+    }
+
+    static synchronized void transferCreated(TransferRequest t) {
+        if (!recording) return;
+        try { writeTransfer(begin(), t); } catch (IOException e) { throw new UncheckedIOException(e); }
+        commit(TRANSFER_CREATED);
+    }
+
+    static synchronized void transferStatusChanged(int transferId, RequestStatus status) {
+        if (!recording) return;
+        try {
+            DataOutputStream o = begin();
+            o.writeInt(transferId);
+            o.writeByte(status.ordinal());
+        } catch (IOException e) { throw new UncheckedIOException(e); }
+        commit(TRANSFER_STATUS);
+    }
+
+    static synchronized void passwordChanged(User u) {
+        if (!recording) return;
+        try {
+            DataOutputStream o = begin();
+            o.writeUTF(u.getId());
+            o.writeUTF(u.getPasswordHash());
+        } catch (IOException e) { throw new UncheckedIOException(e); }
+        commit(PASSWORD_CHANGED);
+    }
+
+    static synchronized void reminderSent(int recordPos, LocalDate dueDate) {
+        if (!recording) return;
+        try {
+            DataOutputStream o = begin();
+            o.writeInt(recordPos);
+            o.writeLong(dueDate.toEpochDay());
+        } catch (IOException e) { throw new UncheckedIOException(e); }
+        commit(REMINDER_SENT);
+    }
+
+    private static DataOutputStream begin() {
+        buf.reset();
+        return out;
+    }
+
+    private static void commit(byte type) {
+        journal.append(type, ++seq, buf.toByteArray());
+        if (++eventsSinceSnapshot >= SNAPSHOT_EVERY && !snapshotting) snapshotInBackground();
+    }
+
+    // --- Replay ---
+
+    private static void apply(byte type, DataInputStream in) throws IOException {
+        switch (type) {
+            case USER_REGISTERED: DataStore.addUser(readUser(in)); break;
+            case ITEM_ADDED: DataStore.addItem(readItem(in, 2)); break;
+            case ITEM_ADDED_IN_BRANCH: DataStore.addItem(readItem(in, 3)); break;
+            case REQUEST_CREATED: DataStore.addRequest(readRequest(in)); break;
+            case BOOKING_CREATED: DataStore.addRequest(readStartDate(in, readRequest(in))); break;
+            case REQUEST_STATUS: {
+                BorrowRequest r = DataStore.requests.get(in.readInt());
+                DataStore.setStatus(r, RequestStatus.values()[in.readByte()]);
+                break;
+            }
+            case RECORD_CREATED: DataStore.addRecord(readRecord(in, SNAPSHOT_VERSION)); break;
+            case RECORD_EXTENDED: {
+                BorrowRecord r = DataStore.records.get(in.readInt());
+                LocalDate newDue = LocalDate.ofEpochDay(in.readLong());
+                DataStore.extendDueDate(r, (int) ChronoUnit.DAYS.between(r.getDueDate(), newDue));
+                break;
+            }
+            case RECORD_RETURNED: {
+                BorrowRecord r = DataStore.records.get(in.readInt());
+                DataStore.markReturn(r, LocalDate.ofEpochDay(in.readLong()));
+                break;
+            }
+            case QTY_CHANGED: DataStore.findItem(in.readUTF()).restoreQty(in.readInt()); break;
+            case STOCK_CHANGED: DataStore.findItem(in.readUTF()).restoreStock(in.readInt(), in.readInt()); break;
+            case TRANSFER_CREATED: readTransfer(in); break;
+            case TRANSFER_STATUS: {
+                TransferRequest t = DataStore.transfers.get(in.readInt());
+                DataStore.setTransferStatus(t, RequestStatus.values()[in.readByte()]);
+                break;
+            }
+            case TRANSFER_MOVED: {
+                TransferRequest t = DataStore.transfers.get(in.readInt());
+                RequestStatus status = RequestStatus.values()[in.readByte()];
+                DataStore.findItem(in.readUTF()).restoreStock(in.readInt(), in.readInt());
+                DataStore.setTransferStatus(t, status);
+                break;
+            }
+            case PASSWORD_CHANGED: DataStore.findUser(in.readUTF()).setPasswordHash(in.readUTF()); break;
+            case REMINDER_SENT: {
+                BorrowRecord r = DataStore.records.get(in.readInt());
+                r.restoreRemindedForDue(LocalDate.ofEpochDay(in.readLong()));
+                break;
+            }
+            default: throw new IOException("Unknown journal event type " + type);
+        }
+    }
+
+    // --- Snapshot ---
+
+    /**
+     * Takes the state as of seq while the caller's journal append still holds LOG, so lists and
+     * fields match the sequence number, then leaves the file work to the snapshot-writer thread.
+     * Only the in-memory encoding runs under the lock; writers no longer wait for the disk.
+     */
+    private static void snapshotInBackground() {
+        long at = seq, covered = journal.length();
+        byte[] image;
+        try {
+            image = encodeSnapshot();
+        } catch (IOException e) { // in-memory: can't happen
+            throw new UncheckedIOException(e);
+        }
+        snapshotting = true;
+        eventsSinceSnapshot = 0;
+        snapshotter.execute(() -> {
+            try {
+                writeSnapshot(image, at, covered);
+            } finally {
+                synchronized (Persistence.class) { snapshotting = false; }
+            }
+        });
+    }
+
+    private static byte[] encodeSnapshot() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 16);
+        DataOutputStream o = new DataOutputStream(bytes);
+        o.writeInt(SNAPSHOT_MAGIC);
+        o.writeInt(SNAPSHOT_VERSION);
+        o.writeLong(seq);
+        o.writeInt(DataStore.users.size());
+        for (User u : DataStore.users) writeUser(o, u);
+        o.writeInt(DataStore.items.size());
+        for (Item i : DataStore.items) writeItem(o, i);
+        o.writeInt(DataStore.requests.size());
+        for (BorrowRequest r : DataStore.requests) {
+            writeRequest(o, r);
+            writeStartDate(o, r);
+        }
+        o.writeInt(DataStore.records.size());
+        for (BorrowRecord r : DataStore.records) writeRecord(o, r);
+        o.writeInt(DataStore.transfers.size());
+        for (TransferRequest t : DataStore.transfers) writeTransfer(o, t);
+        o.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Writes the image to a temp file, swaps it in atomically, then drops the journal frames it
+     * covers (the first `covered` bytes). If anything fails the journal is left whole.
+     */
+    private static void writeSnapshot(byte[] image, long at, long covered) {
+        long t0 = System.nanoTime();
+        Path tmp = DIR.resolve("snapshot.tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (ByteBuffer b = ByteBuffer.wrap(image); b.hasRemaining(); ) ch.write(b);
+            ch.force(true);
+        } catch (IOException e) {
+            System.err.println("❌ Snapshot failed, keeping journal: " + e.getMessage());
+            return;
+        }
+        try {
+            Files.move(tmp, SNAPSHOT, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            // Events up to `at` are now in the snapshot; replay skips them even if dropping them is lost.
+            Journal j;
+            synchronized (Persistence.class) { j = journal; }
+            if (j != null) j.dropPrefix(covered);
+            System.out.println("💾 Snapshot written at seq " + at + " (" + image.length / 1024 + " KB) in " + (System.nanoTime() - t0) / 1_000_000 + " ms");
+        } catch (IOException e) {
+            System.err.println("❌ Snapshot swap failed: " + e.getMessage());
+        }
+    }
+
+    private static long readSnapshot() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(SNAPSHOT), 1 << 16))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) throw new IOException("Not a ShareU snapshot: " + SNAPSHOT);
+            int version = in.readInt();
+            if (version < 1 || version > SNAPSHOT_VERSION) throw new IOException("Unsupported snapshot version " + version);
+            long snapshotSeq = in.readLong();
+            for (int n = in.readInt(); n > 0; n--) DataStore.addUser(readUser(in));
+            for (int n = in.readInt(); n > 0; n--) DataStore.addItem(readItem(in, version));
+            for (int n = in.readInt(); n > 0; n--) DataStore.addRequest(version >= 4 ? readStartDate(in, readRequest(in)) : readRequest(in));
+            for (int n = in.readInt(); n > 0; n--) DataStore.addRecord(readRecord(in, version));
+            if (version >= 3) for (int n = in.readInt(); n > 0; n--) readTransfer(in);
+            return snapshotSeq;
+        }
+    }
+
+    // --- Encoding shared by snapshot and journal ---
+
+    private static void writeUser(DataOutput o, User u) throws IOException {
+        boolean student = u instanceof Student;
+        o.writeBoolean(student);
+        o.writeUTF(u.getId());
+        o.writeUTF(u.getPasswordHash());
+        if (student) {
+            Student s = (Student) u;
+            o.writeUTF(s.getName());
+            o.writeUTF(s.getEmail());
+            o.writeUTF(s.getPhone());
+            o.writeByte(s.getCardType().ordinal());
+            o.writeInt(s.getBirthYear());
+        }
+    }
+
+    private static User readUser(DataInput in) throws IOException {
+        boolean student = in.readBoolean();
+        String id = in.readUTF();
+        String secret = in.readUTF();
+        // Data written before passwords were hashed holds plaintext; hash it on the way in.
+        String hash = PasswordHasher.isEncoded(secret) ? secret : PasswordHasher.hash(secret);
+        if (!student) return Admin.restore(id, hash);
+        return Student.restore(id, in.readUTF(), in.readUTF(), in.readUTF(), hash, CardType.values()[in.readByte()], in.readInt());
+    }
+
+    private static void writeItem(DataOutput o, Item i) throws IOException {
+        o.writeUTF(i.getItemId());
+        o.writeUTF(i.getName());
+        o.writeUTF(i.getCategory());
+        o.writeInt(i.getTotalQty());
+        o.writeInt(i.getQtyIgnoringHolds());
+        o.writeUTF(i.getBranch());
+    }
+
+    private static Item readItem(DataInput in, int version) throws IOException {
+        String id = in.readUTF(), name = in.readUTF(), category = in.readUTF();
+        int total = in.readInt(), qty = in.readInt();
+        return new Item(id, name, category, total, qty, version >= 3 ? in.readUTF() : DataStore.MAIN_BRANCH);
+    }
+
+    private static void writeTransfer(DataOutput o, TransferRequest t) throws IOException {
+        o.writeUTF(t.getFrom().getItemId());
+        o.writeUTF(t.getToBranch());
+        o.writeInt(t.getQty());
+        o.writeByte(t.getStatus().ordinal());
+        o.writeLong(t.getRequestDate().toEpochDay());
+    }
+
+    /** Adds it to DataStore under the next id, which is the id it had when written. */
+    private static void readTransfer(DataInput in) throws IOException {
+        Item from = DataStore.findItem(in.readUTF());
+        String to = in.readUTF();
+        int qty = in.readInt();
+        RequestStatus status = RequestStatus.values()[in.readByte()];
+        DataStore.addTransfer(from, to, qty, status, LocalDate.ofEpochDay(in.readLong()));
+    }
+
+    private static void writeRequest(DataOutput o, BorrowRequest r) throws IOException {
+        o.writeUTF(r.getStudent().getId());
+        o.writeUTF(r.getItem().getItemId());
+        o.writeByte(r.getType().ordinal());
+        o.writeByte(r.getStatus().ordinal());
+        o.writeLong(r.getRequestDate().toEpochDay());
+        o.writeInt(r.getDaysRequested());
+    }
+
+    private static BorrowRequest readRequest(DataInput in) throws IOException {
+        Student s = (Student) DataStore.findUser(in.readUTF());
+        Item i = DataStore.findItem(in.readUTF());
+        return new BorrowRequest(s, i, RequestType.values()[in.readByte()], RequestStatus.values()[in.readByte()],
+                LocalDate.ofEpochDay(in.readLong()), in.readInt());
+    }
+
+    private static void writeStartDate(DataOutput o, BorrowRequest r) throws IOException {
+        o.writeLong(r.getStartDate() == null ? Long.MIN_VALUE : r.getStartDate().toEpochDay());
+    }
+
+    private static BorrowRequest readStartDate(DataInput in, BorrowRequest r) throws IOException {
+        long start = in.readLong();
+        if (start != Long.MIN_VALUE) r.restoreStartDate(LocalDate.ofEpochDay(start));
+        return r;
+    }
+
+    private static void writeRecord(DataOutput o, BorrowRecord r) throws IOException {
+        o.writeUTF(r.getStudent().getId());
+        o.writeUTF(r.getItem().getItemId());
+        o.writeLong(r.getBorrowDate().toEpochDay());
+        o.writeLong(r.getDueDate().toEpochDay());
+        o.writeLong(r.getReturnDate() == null ? Long.MIN_VALUE : r.getReturnDate().toEpochDay());
+        o.writeBoolean(r.isExtended());
+        o.writeLong(r.getRemindedForDue() == null ? Long.MIN_VALUE : r.getRemindedForDue().toEpochDay());
+    }
+
+    private static BorrowRecord readRecord(DataInput in, int version) throws IOException {
+        Student s = (Student) DataStore.findUser(in.readUTF());
+        Item i = DataStore.findItem(in.readUTF());
+        LocalDate borrow = LocalDate.ofEpochDay(in.readLong());
+        LocalDate due = LocalDate.ofEpochDay(in.readLong());
+        long ret = in.readLong();
+        BorrowRecord r = new BorrowRecord(s, i, borrow, due, ret == Long.MIN_VALUE ? null : LocalDate.ofEpochDay(ret), in.readBoolean());
+        if (version >= 2) {
+            long reminded = in.readLong();
+            if (reminded != Long.MIN_VALUE) r.restoreRemindedForDue(LocalDate.ofEpochDay(reminded));
+        }
+        return r;
+    }
+}
+
+/**
+ * Append-only event log with group commit: append() only copies the frame into a buffer,
+ * a background thread writes and fsyncs whatever has accumulated every FLUSH_INTERVAL_MS.
+ * The monitor guards the buffers only; file work runs under a separate io lock, so appends
+ * never wait for the disk. A batch that fails to reach the disk is cut off the file and put
+ * back in front of newer frames to be retried; if even that fails the journal stops taking
+ * events rather than leave a gap.
+ * Frame layout: [int length][byte type][long seq][payload][int crc32].
+ */
+class Journal implements Closeable {
+    private static final long FLUSH_INTERVAL_MS = 10;
+    private static final int FLUSH_THRESHOLD = 1 << 20;
+    private static final long RETRY_MS = 1000; // after a failed flush
+
+    interface EventHandler { void apply(byte type, DataInputStream payload) throws IOException; }
+
+    static class ReplayResult {
+        long lastSeq;
+        long applied;
+        long validBytes;
+    }
+
+    private final Path path;
+    private final Object io = new Object(); // taken before the monitor, never inside it
+    private FileChannel channel; // under io
+    private long written;        // bytes on disk, all whole frames; under io
+    private long length;         // bytes appended, written or still pending
+    private volatile IOException failure; // set once a failed batch could not be put back; no more appends
+    private final Thread flusher;
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream(1 << 16);
+    private ByteArrayOutputStream spare = new ByteArrayOutputStream(1 << 16);
+    private final CRC32 crc = new CRC32();
+    private volatile boolean closed = false;
+    private final long openedAt = System.nanoTime();
+    private long events, bytes, syncs;
+
+    Journal(Path path, long validBytes) throws IOException {
+        this.path = path;
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE); // read: dropPrefix copies the tail
+        channel.truncate(validBytes); // drop a torn tail from a crash
+        channel.position(validBytes);
+        written = length = validBytes;
+        flusher = new Thread(this::flushLoop, "journal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    synchronized void append(byte type, long seq, byte[] payload) {
+        if (failure != null) throw new UncheckedIOException("The journal can no longer be written; restart to reload it", failure);
+        int len = 1 + 8 + payload.length;
+        ByteBuffer frame = ByteBuffer.allocate(4 + len + 4);
+        frame.putInt(len).put(type).putLong(seq).put(payload);
+        crc.reset();
+        crc.update(frame.array(), 4, len);
+        frame.putInt((int) crc.getValue());
+        pending.write(frame.array(), 0, frame.capacity());
+        length += frame.capacity();
+        events++;
+        if (pending.size() >= FLUSH_THRESHOLD) notifyAll();
+    }
+
+    /** Where the next frame will start: a snapshot taken now covers everything before it. */
+    synchronized long length() { return length; }
+
+    /**
+     * Discards the first `offset` bytes, which a snapshot now covers, keeping every frame appended
+     * since. The tail is copied to a new file that replaces the journal atomically, so a crash
+     * leaves either the old or the new file, and replay skips covered frames by seq either way.
+     */
+    void dropPrefix(long offset) throws IOException {
+        synchronized (io) {
+            flush(); // everything appended before offset was taken is on disk after this
+            if (offset > written) throw new IOException("journal is " + written + " bytes, cannot drop " + offset);
+            Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            try (FileChannel copy = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                for (long pos = offset; pos < written; ) pos += channel.transferTo(pos, written - pos, copy);
+                copy.force(true);
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            channel.close();
+            channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            written -= offset;
+            channel.position(written);
+            synchronized (this) { length -= offset; }
+        }
+    }
+
+    private void flushLoop() {
+        while (!closed) {
+            try {
+                synchronized (this) {
+                    if (pending.size() < FLUSH_THRESHOLD) wait(FLUSH_INTERVAL_MS);
+                }
+                flush();
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                System.err.println("❌ Journal flush failed: " + e.getMessage() + (failure != null ? "; no further events are accepted" : "; retrying"));
+                if (failure != null) return;
+                try {
+                    Thread.sleep(RETRY_MS);
+                } catch (InterruptedException stop) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // Swaps the buffers under the monitor, then writes and forces the batch holding only io.
+    private void flush() throws IOException {
+        synchronized (io) {
+            ByteArrayOutputStream batch;
+            synchronized (this) {
+                if (failure != null) throw failure;
+                if (pending.size() == 0 || !channel.isOpen()) return;
+                batch = pending;
+                pending = spare; // empty: a batch is only swapped out again once it was written or put back
+                spare = batch;
+            }
+            try {
+                for (ByteBuffer b = ByteBuffer.wrap(batch.toByteArray()); b.hasRemaining(); ) channel.write(b);
+                channel.force(false);
+            } catch (IOException e) {
+                putBack(batch, e);
+                throw e;
+            }
+            written += batch.size();
+            synchronized (this) {
+                bytes += batch.size();
+                syncs++;
+            }
+            batch.reset();
+        }
+    }
+
+    // Cuts a partly written batch off the file and queues it ahead of the frames appended since, so order and length stay right.
+    private void putBack(ByteArrayOutputStream batch, IOException cause) {
+        try {
+            channel.truncate(written);
+            channel.position(written);
+        } catch (IOException e) {
+            cause.addSuppressed(e);
+            synchronized (this) { failure = cause; }
+            return;
+        }
+        synchronized (this) {
+            try {
+                pending.writeTo(batch);
+            } catch (IOException e) { // in-memory: can't happen
+                throw new UncheckedIOException(e);
+            }
+            ByteArrayOutputStream newer = pending;
+            pending = batch;
+            spare = newer;
+            spare.reset();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        synchronized (this) { notifyAll(); } // no interrupt: it would close the channel under a write in progress
+        try {
+            flusher.join(RETRY_MS + FLUSH_INTERVAL_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (io) {
+            flush();
+            channel.close();
+        }
+    }
+
+    synchronized String stats() {
+        double secs = Math.max((System.nanoTime() - openedAt) / 1e9, 1e-9);
+        return String.format("Journal: %d events, %d bytes, %d fsyncs (%.1f events/fsync), %.0f events/s over %.1f s",
+                events, bytes, syncs, syncs == 0 ? 0.0 : (double) events / syncs, events / secs, secs);
+    }
+
+    /**
+     * Applies every intact frame with seq > afterSeq; stops at the first torn or corrupt frame.
+     * A frame the handler cannot apply throws: the log is intact there, so stopping would drop it.
+     */
+    static ReplayResult replay(Path path, long afterSeq, EventHandler handler) throws IOException {
+        ReplayResult result = new ReplayResult();
+        result.lastSeq = afterSeq;
+        if (!Files.exists(path)) return result;
+        long size = Files.size(path);
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            while (true) {
+                int len;
+                byte[] body;
+                try {
+                    len = in.readInt();
+                    // A length running past the end of the file is a torn or garbled header: don't allocate it.
+                    if (len < 9 || len > size - result.validBytes - 8) break;
+                    body = new byte[len];
+                    in.readFully(body);
+                    int expected = in.readInt();
+                    crc.reset();
+                    crc.update(body, 0, len);
+                    if ((int) crc.getValue() != expected) break;
+                } catch (EOFException e) {
+                    break;
+                }
+                ByteBuffer head = ByteBuffer.wrap(body);
+                byte type = head.get();
+                long seq = head.getLong();
+                if (seq > afterSeq) {
+                    handler.apply(type, new DataInputStream(new ByteArrayInputStream(body, 9, len - 9)));
+                    result.applied++;
+                    result.lastSeq = seq;
+                }
+                result.validBytes += 4 + len + 4;
+            }
+        }
+        return result;
+    }
+}
+
+/**
+ * Streams whole tables as CSV or a JSON array straight into a channel. Rows are copied out of
+ * DataStore a page at a time (the lists are append-only), formatted into one small reusable
+ * buffer and encoded as they go, so memory stays flat however long the history is.
+ * Record rows carry the fine: charged for returned loans, accrued so far for open ones.
+ */
+class DataExporter {
+    enum Format { CSV, JSON }
+
+    enum Table {
+        USERS("id", "role", "name", "email", "phone", "cardType", "birthYear"),
+        ITEMS("itemId", "name", "category", "totalQty", "available", "branch"),
+        REQUESTS("id", "studentId", "itemId", "type", "status", "requestDate", "days", "startDate"),
+        RECORDS("id", "studentId", "studentName", "itemId", "itemName", "borrowDate", "dueDate", "returnDate", "status", "extended", "daysLate", "fine");
+
+        final String[] columns;
+        Table(String... columns) { this.columns = columns; }
+
+        List<?> rows() {
+            switch (this) {
+                case USERS: return DataStore.users;
+                case ITEMS: return DataStore.items;
+                case REQUESTS: return DataStore.requests;
+                default: return DataStore.records;
+            }
+        }
+    }
+
+    private static final int PAGE = 4096;            // rows copied per DataStore lock hold
+    private static final int FLUSH_CHARS = 1 << 15;  // text buffered before it is encoded and written
+
+    static class Stats {
+        final Table table;
+        final long rows, bytes, nanos;
+
+        Stats(Table table, long rows, long bytes, long nanos) {
+            this.table = table;
+            this.rows = rows;
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+
+        double rowsPerSec() { return nanos == 0 ? 0 : rows * 1e9 / nanos; }
+
+        @Override public String toString() {
+            return String.format("%s: %,d rows, %,d bytes in %d ms (%,.0f rows/s)", table, rows, bytes, nanos / 1_000_000, rowsPerSec());
+        }
+    }
+
+    static Stats export(Table table, Format format, Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            return export(table, format, ch);
+        }
+    }
+
+    /** Writes the table to out and leaves it open. A concurrent export sees rows appended while it runs. */
+    static Stats export(Table table, Format format, WritableByteChannel out) throws IOException {
+        long t0 = System.nanoTime();
+        Sink sink = new Sink(out, format, table.columns);
+        List<?> source = table.rows();
+        Object[] page = new Object[PAGE];
+        LocalDate today = AppClock.today();
+        long rows = 0;
+        for (int n; (n = DataStore.copyRange(source, (int) rows, page)) > 0; rows += n) {
+            for (int i = 0; i < n; i++) {
+                writeRow(table, page[i], today, sink);
+                page[i] = null;
+            }
+        }
+        sink.close();
+        return new Stats(table, rows, sink.bytes, System.nanoTime() - t0);
+    }
+
+    private static void writeRow(Table table, Object row, LocalDate today, Sink sink) throws IOException {
+        switch (table) {
+            case USERS: {
+                User u = (User) row;
+                Student s = u instanceof Student ? (Student) u : null;
+                sink.str(u.getId()).str(u instanceof Admin ? "ADMIN" : "STUDENT").str(u.getName()).str(u.getEmail()).str(u.getPhone())
+                    .str(s == null ? null : s.getCardType().name());
+                if (s == null) sink.str(null); else sink.num(s.getBirthYear());
+                break;
+            }
+            case ITEMS: {
+                Item i = (Item) row;
+                sink.str(i.getItemId()).str(i.getName()).str(i.getCategory()).num(i.getTotalQty()).num(i.getCurrentQty()).str(i.getBranch());
+                break;
+            }
+            case REQUESTS: {
+                BorrowRequest r = (BorrowRequest) row;
+                sink.num(r.getId()).str(r.getStudent().getId()).str(r.getItem().getItemId()).str(r.getType().name()).str(r.getStatus().name())
+                    .date(r.getRequestDate()).num(r.getDaysRequested()).date(r.getStartDate());
+                break;
+            }
+            case RECORDS: {
+                BorrowRecord r = (BorrowRecord) row;
+                LocalDate returned = r.getReturnDate();
+                LocalDate asOf = returned == null ? today : returned;
+                long daysLate = Math.max(0, asOf.toEpochDay() - r.getDueDate().toEpochDay());
+                int fine = FinePolicy.current().fine(r, today);
+                sink.num(r.getId()).str(r.getStudent().getId()).str(r.getStudent().getName()).str(r.getItem().getItemId()).str(r.getItem().getName())
+                    .date(r.getBorrowDate()).date(r.getDueDate()).date(returned)
+                    .str(returned == null ? "OPEN" : "RETURNED").bool(r.isExtended()).num(daysLate).num(fine);
+                break;
+            }
+        }
+        sink.endRow();
+    }
+
+    /** Formats cells into a reused StringBuilder and encodes it to UTF-8 through a reused ByteBuffer. */
+    private static final class Sink {
+        private final WritableByteChannel out;
+        private final boolean csv;
+        private final String[] keys; // JSON: "name": prefixes, built once
+        private final StringBuilder sb = new StringBuilder(FLUSH_CHARS + 1024);
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private final ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+        private int col;
+        private long rows, bytes;
+
+        Sink(WritableByteChannel out, Format format, String[] columns) {
+            this.out = out;
+            this.csv = format == Format.CSV;
+            keys = new String[columns.length];
+            for (int i = 0; i < columns.length; i++) keys[i] = Json.quote(columns[i]) + ":";
+            if (csv) sb.append(String.join(",", columns)).append('\n');
+            else sb.append('[');
+        }
+
+        Sink str(String v) {
+            cell();
+            if (csv) {
+                if (v != null) csvQuote(v);
+            } else if (v == null) {
+                sb.append("null");
+            } else {
+                Json.quote(sb, v);
+            }
+            return this;
+        }
+
+        Sink num(long v) { cell(); sb.append(v); return this; }
+
+        /** ISO yyyy-MM-dd like LocalDate.toString, without a String per cell; null stays empty/null. */
+        Sink date(LocalDate d) {
+            if (d == null || d.getYear() < 0 || d.getYear() > 9999) return str(d == null ? null : d.toString());
+            cell();
+            if (!csv) sb.append('"');
+            int y = d.getYear(), m = d.getMonthValue(), day = d.getDayOfMonth();
+            sb.append((char) ('0' + y / 1000)).append((char) ('0' + y / 100 % 10)).append((char) ('0' + y / 10 % 10)).append((char) ('0' + y % 10))
+              .append('-').append((char) ('0' + m / 10)).append((char) ('0' + m % 10))
+              .append('-').append((char) ('0' + day / 10)).append((char) ('0' + day % 10));
+            if (!csv) sb.append('"');
+            return this;
+        }
+        Sink bool(boolean v) { cell(); sb.append(v); return this; }
+
+        private void cell() {
+            if (csv) {
+                if (col > 0) sb.append(',');
+            } else {
+                if (col == 0) sb.append(rows == 0 ? "\n{" : ",\n{");
+                else sb.append(',');
+                sb.append(keys[col]);
+            }
+            col++;
+        }
+
+        void endRow() throws IOException {
+            sb.append(csv ? "\n" : "}");
+            col = 0;
+            rows++;
+            if (sb.length() >= FLUSH_CHARS) flush(false);
+        }
+
+        void close() throws IOException {
+            if (!csv) sb.append(rows == 0 ? "]\n" : "\n]\n");
+            flush(true);
+        }
+
+        // RFC 4180: quote only when needed, doubling embedded quotes.
+        private void csvQuote(String v) {
+            boolean quote = false;
+            for (int i = 0; i < v.length() && !quote; i++) {
+                char c = v.charAt(i);
+                quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+            }
+            if (!quote) {
+                sb.append(v);
+                return;
+            }
+            sb.append('"');
+            for (int i = 0; i < v.length(); i++) {
+                char c = v.charAt(i);
+                if (c == '"') sb.append('"');
+                sb.append(c);
+            }
+            sb.append('"');
+        }
+
+        // Rows are flushed whole, so no surrogate pair is ever split across two calls.
+        private void flush(boolean end) throws IOException {
+            CharBuffer in = CharBuffer.wrap(sb);
+            CoderResult cr;
+            do {
+                cr = encoder.encode(in, buf, end);
+                drain();
+            } while (cr.isOverflow());
+            if (end) {
+                while (encoder.flush(buf).isOverflow()) drain();
+                drain();
+            }
+            sb.setLength(0);
+        }
+
+        private void drain() throws IOException {
+            buf.flip();
+            while (buf.hasRemaining()) bytes += out.write(buf);
+            buf.clear();
+        }
+    }
+}
+
+/**
+ * Bulk loads items and students from CSV, one row at a time: nothing is buffered beyond the
+ * current record, so a file of millions of rows imports in constant memory. Columns are matched
+ * by header name (the same names DataExporter writes) and unknown columns are ignored, so an
+ * exported ITEMS file imports as-is. Bad or duplicate rows are skipped and reported by line.
+ *
+ *   items:    itemId, name, category, totalQty, and optionally branch (default MAIN)
+ *   students: id, name, email, phone, cardType, birthYear, and password or passwordHash
+ *
+ * A plain password costs one full PBKDF2 hash per row; bulk seeds should carry passwordHash.
+ */
+class CsvImporter {
+    private static final int MAX_ERRORS = 20;
+
+    static class Result {
+        long rows, imported, skipped, nanos;
+        final List<String> errors = new ArrayList<>(); // the first MAX_ERRORS problems, by line
+
+        double rowsPerSec() { return nanos == 0 ? 0 : rows * 1e9 / nanos; }
+
+        @Override public String toString() {
+            return String.format("%,d rows: %,d imported, %,d skipped in %d ms (%,.0f rows/s)", rows, imported, skipped, nanos / 1_000_000, rowsPerSec());
+        }
+    }
+
+    /** Validates and stores one record; returns why it was skipped, or null. */
+    private interface RowLoader { String load(Row row); }
+
+    static Result importItems(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) { return importItems(in); }
+    }
+
+    static Result importStudents(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) { return importStudents(in); }
+    }
+
+    static Result importItems(InputStream in) throws IOException {
+        return run(in, new String[] { "itemId", "name", "category", "totalQty" }, row -> {
+            String id = row.get("itemId"), name = row.get("name");
+            if (id.isEmpty() || name.isEmpty()) return "itemId and name are required";
+            int qty;
+            try { qty = Integer.parseInt(row.get("totalQty").trim()); } catch (NumberFormatException e) { return "totalQty is not a number"; }
+            if (qty < 0) return "totalQty is negative";
+            String branch = row.get("branch").isEmpty() ? DataStore.MAIN_BRANCH : row.get("branch");
+            if (DataStore.findItemByName(branch, name) != null) return branch + " already stocks " + name;
+            return DataStore.addItemIfAbsent(new Item(id, name, row.get("category"), qty, branch)) ? null : "itemId " + id + " already exists";
+        });
+    }
+
+    static Result importStudents(InputStream in) throws IOException {
+        return run(in, new String[] { "id", "name", "email" }, row -> {
+            String id = row.get("id"), name = row.get("name");
+            if (id.isEmpty() || name.isEmpty()) return "id and name are required";
+            String role = row.get("role");
+            if (!role.isEmpty() && !role.equals("STUDENT")) return "role " + role + " cannot be imported";
+            CardType card;
+            int birthYear;
+            try {
+                card = row.get("cardType").isEmpty() ? CardType.STUDENT_CARD : CardType.valueOf(row.get("cardType"));
+                birthYear = row.get("birthYear").isEmpty() ? 0 : Integer.parseInt(row.get("birthYear").trim());
+            } catch (IllegalArgumentException e) { // includes NumberFormatException
+                return "bad cardType or birthYear";
+            }
+            String hash = row.get("passwordHash");
+            if (hash.isEmpty()) {
+                String password = row.get("password");
+                if (password.isEmpty()) return "password or passwordHash is required";
+                hash = PasswordHasher.hash(password);
+            } else if (!PasswordHasher.isEncoded(hash)) {
+                return "passwordHash is not a PBKDF2 hash";
+            }
+            Student s = Student.restore(id, name, row.get("email"), row.get("phone"), hash, card, birthYear);
+            return DataStore.addUser(s) ? null : "id " + id + " is already registered";
+        });
+    }
+
+    private static Result run(InputStream in, String[] required, RowLoader loader) throws IOException {
+        long t0 = System.nanoTime();
+        Result result = new Result();
+        CsvReader csv = new CsvReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        List<String> fields = new ArrayList<>();
+        if (!csv.next(fields)) throw new IllegalArgumentException("The file is empty.");
+        Map<String, Integer> header = new HashMap<>();
+        for (int i = 0; i < fields.size(); i++) header.putIfAbsent(fields.get(i).trim(), i);
+        for (String col : required) if (!header.containsKey(col)) throw new IllegalArgumentException("Missing column: " + col);
+        Row row = new Row(header, fields);
+        while (true) {
+            long line = csv.line();
+            if (!csv.next(fields)) break;
+            if (fields.size() == 1 && fields.get(0).isEmpty()) continue; // blank line
+            result.rows++;
+            String why = loader.load(row);
+            if (why == null) {
+                result.imported++;
+            } else {
+                result.skipped++;
+                if (result.errors.size() < MAX_ERRORS) result.errors.add("line " + line + ": " + why);
+            }
+        }
+        result.nanos = System.nanoTime() - t0;
+        return result;
+    }
+
+    /** The current record, addressed by column name; missing cells read as "". */
+    private static final class Row {
+        private final Map<String, Integer> header;
+        private final List<String> fields;
+
+        Row(Map<String, Integer> header, List<String> fields) {
+            this.header = header;
+            this.fields = fields;
+        }
+
+        String get(String column) {
+            Integer i = header.get(column);
+            return i == null || i >= fields.size() ? "" : fields.get(i);
+        }
+    }
+
+    /** RFC 4180 reader over its own char buffer: quoted fields may hold commas, quotes and newlines. */
+    static final class CsvReader {
+        private final Reader in;
+        private final char[] buf = new char[1 << 16];
+        private final StringBuilder field = new StringBuilder();
+        private int pos, len;
+        private long line = 1;
+        private boolean started;
+
+        CsvReader(Reader in) { this.in = in; }
+
+        /** Line the next record starts on. */
+        long line() { return line; }
+
+        /** Reads the next record into fields (cleared first); false at end of input. */
+        boolean next(List<String> fields) throws IOException {
+            fields.clear();
+            int c = read();
+            if (!started) {
+                started = true;
+                if (c == '\uFEFF') c = read(); // byte-order mark written by spreadsheet exports
+            }
+            if (c < 0) return false;
+            while (true) {
+                field.setLength(0);
+                if (c == '"') {
+                    while (true) {
+                        c = read();
+                        if (c < 0) throw new IllegalArgumentException("Unterminated quoted field before line " + line);
+                        if (c == '"' && (c = read()) != '"') break;
+                        if (c == '\n') line++;
+                        field.append((char) c);
+                    }
+                }
+                while (c >= 0 && c != ',' && c != '\n' && c != '\r') { // unquoted field, or stray text after a closing quote
+                    field.append((char) c);
+                    c = read();
+                }
+                fields.add(field.toString());
+                if (c == ',') {
+                    c = read();
+                    continue;
+                }
+                if (c == '\r' && peek() == '\n') read();
+                if (c >= 0) line++;
+                return true;
+            }
+        }
+
+        private int read() throws IOException {
+            if (pos == len && !fill()) return -1;
+            return buf[pos++];
+        }
+
+        private int peek() throws IOException {
+            if (pos == len && !fill()) return -1;
+            return buf[pos];
+        }
+
+        private boolean fill() throws IOException {
+            len = in.read(buf, 0, buf.length);
+            pos = 0;
+            if (len > 0) return true;
+            len = 0;
+            return false;
+        }
+    }
+}
+
+/**
+ * Salted PBKDF2-HMAC-SHA256 password hashes, encoded as "pbkdf2$<iterations>$<salt>$<hash>".
+ * The iteration count travels with each hash, so raising -Dshareu.pbkdf2.iterations only
+ * affects new hashes; older ones are upgraded on the next successful login (needsRehash).
+ */
+class PasswordHasher {
+    static final int ITERATIONS = Integer.getInteger("shareu.pbkdf2.iterations", 210_000);
+    private static final String PREFIX = "pbkdf2$";
+    private static final int SALT_BYTES = 16, HASH_BITS = 256;
+    private static final SecureRandom random = new SecureRandom();
+
+    static String hash(String password) { return hash(password, ITERATIONS); }
+
+    static String hash(String password, int iterations) {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        Base64.Encoder b64 = Base64.getEncoder().withoutPadding();
+        return PREFIX + iterations + "$" + b64.encodeToString(salt) + "$" + b64.encodeToString(derive(password, salt, iterations));
+    }
+
+    static boolean verify(String password, String encoded) {
+        if (password == null || !isEncoded(encoded)) return false;
+        String[] parts = encoded.split("\\$");
+        if (parts.length != 4) return false;
+        Base64.Decoder b64 = Base64.getDecoder();
+        byte[] expected = b64.decode(parts[3]);
+        byte[] actual = derive(password, b64.decode(parts[2]), Integer.parseInt(parts[1]));
+        return MessageDigest.isEqual(expected, actual);
+    }
+
+    static boolean isEncoded(String s) { return s != null && s.startsWith(PREFIX); }
+
+    static boolean needsRehash(String encoded) {
+        String[] parts = encoded.split("\\$");
+        return parts.length != 4 || Integer.parseInt(parts[1]) < ITERATIONS;
+    }
+
+    private static byte[] derive(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("PBKDF2 unavailable", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
+
+/** Raised when an id has failed to log in too often; callers should back off. */
+class RateLimitedException extends BorrowException {
+    private static final long serialVersionUID = 1L;
+    public RateLimitedException(String message) { super(message); }
+}
+
+/**
+ * Login front door. PBKDF2 makes each check deliberately expensive, so:
+ *  - failures are rate-limited per id before any hashing happens,
+ *  - a successful check is remembered for a while as a keyed HMAC of the credentials,
+ *    so repeat logins with the same password skip PBKDF2,
+ *  - sessions hand out bearer tokens kept in a bounded LRU cache.
+ */
+class AuthService {
+    private static final int MAX_FAILURES = 5;
+    private static final long FAILURE_WINDOW_MS = 60_000, LOCKOUT_MS = 30_000;
+    private static final int SESSION_CAPACITY = 10_000;
+    private static final long SESSION_TTL_MS = TimeUnit.HOURS.toMillis(8);
+    private static final int CREDENTIAL_CAPACITY = 10_000;
+    private static final long CREDENTIAL_TTL_MS = TimeUnit.MINUTES.toMillis(10);
+
+    // Equalises timing for unknown ids so they can't be told apart from wrong passwords.
+    private static final String DUMMY_HASH = PasswordHasher.hash(UUID.randomUUID().toString());
+    private static final byte[] cacheKey = new byte[32];
+    private static final SecureRandom random = new SecureRandom();
+    static { random.nextBytes(cacheKey); }
+    private static final ThreadLocal<Mac> hmac = ThreadLocal.withInitial(() -> {
+        try {
+            Mac m = Mac.getInstance("HmacSHA256");
+            m.init(new SecretKeySpec(cacheKey, "HmacSHA256"));
+            return m;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private static final Map<String, Session> sessions = lruMap(SESSION_CAPACITY);
+    private static final Map<String, VerifiedCredential> verified = lruMap(CREDENTIAL_CAPACITY);
+    private static final Map<String, Attempts> attempts = new ConcurrentHashMap<>();
+
+    static final AtomicLong hashChecks = new AtomicLong(), cacheHits = new AtomicLong(), rateLimited = new AtomicLong();
+
+    private static class Session {
+        final User user;
+        final long expiresAt;
+        Session(User user, long expiresAt) { this.user = user; this.expiresAt = expiresAt; }
+    }
+
+    private static class VerifiedCredential {
+        final byte[] mac;
+        final String againstHash; // stale once the user's hash changes
+        final long expiresAt;
+        VerifiedCredential(byte[] mac, String againstHash, long expiresAt) { this.mac = mac; this.againstHash = againstHash; this.expiresAt = expiresAt; }
+    }
+
+    private static class Attempts {
+        long windowStart, lockedUntil;
+        int failures;
+    }
+
+    /** Returns the user, or null for bad credentials. Throws RateLimitedException while locked out. */
+    static User login(String id, String password) {
+        if (id == null || password == null) return null;
+        long now = System.currentTimeMillis();
+        checkNotLocked(id, now);
+
+        User u = DataStore.findUser(id);
+        String hash = u == null ? DUMMY_HASH : u.getPasswordHash();
+        byte[] mac = credentialMac(id, password);
+        VerifiedCredential known;
+        synchronized (verified) { known = verified.get(id); }
+        if (u != null && known != null && known.expiresAt > now && known.againstHash.equals(hash) && MessageDigest.isEqual(known.mac, mac)) {
+            cacheHits.incrementAndGet();
+            return u;
+        }
+
+        hashChecks.incrementAndGet();
+        boolean ok = u != null && u.login(id, password);
+        if (u == null) PasswordHasher.verify(password, DUMMY_HASH);
+        if (!ok) {
+            recordFailure(id, now);
+            return null;
+        }
+        attempts.remove(id);
+        if (PasswordHasher.needsRehash(hash)) {
+            hash = PasswordHasher.hash(password);
+            DataStore.setPasswordHash(u, hash);
+        }
+        synchronized (verified) { verified.put(id, new VerifiedCredential(mac, hash, now + CREDENTIAL_TTL_MS)); }
+        return u;
+    }
+
+    static String startSession(User u) {
+        byte[] raw = new byte[18];
+        random.nextBytes(raw);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(raw);
+        synchronized (sessions) { sessions.put(token, new Session(u, System.currentTimeMillis() + SESSION_TTL_MS)); }
+        return token;
+    }
+
+    /** The user behind a token, or null if unknown, evicted or expired. */
+    static User resume(String token) {
+        if (token == null) return null;
+        Session s;
+        synchronized (sessions) { s = sessions.get(token); }
+        if (s == null) return null;
+        if (s.expiresAt <= System.currentTimeMillis()) {
+            endSession(token);
+            return null;
+        }
+        return s.user;
+    }
+
+    static void endSession(String token) {
+        synchronized (sessions) { sessions.remove(token); }
+    }
+
+    /** Forgets cached credentials (not sessions); used by benchmarks to force cold logins. */
+    static void clearCredentialCache() {
+        synchronized (verified) { verified.clear(); }
+    }
+
+    static String stats() {
+        return "Auth: pbkdf2 checks=" + hashChecks.get() + " cache hits=" + cacheHits.get() + " rate-limited=" + rateLimited.get();
+    }
+
+    private static void checkNotLocked(String id, long now) {
+        Attempts a = attempts.get(id);
+        if (a == null) return;
+        synchronized (a) {
+            if (a.lockedUntil > now) {
+                rateLimited.incrementAndGet();
+                throw new RateLimitedException("Too many failed logins. Try again in " + ((a.lockedUntil - now) / 1000 + 1) + " s.");
+            }
+        }
+    }
+
+    private static void recordFailure(String id, long now) {
+        if (attempts.size() > 100_000) attempts.values().removeIf(a -> a.lockedUntil < now && a.windowStart + FAILURE_WINDOW_MS < now);
+        Attempts a = attempts.computeIfAbsent(id, k -> new Attempts());
+        synchronized (a) {
+            if (now - a.windowStart > FAILURE_WINDOW_MS) {
+                a.windowStart = now;
+                a.failures = 0;
+            }
+            if (++a.failures >= MAX_FAILURES) {
+                a.lockedUntil = now + LOCKOUT_MS;
+                a.failures = 0;
+            }
+        }
+    }
+
+    private static byte[] credentialMac(String id, String password) {
+        Mac m = hmac.get();
+        m.update(id.getBytes(StandardCharsets.UTF_8));
+        m.update((byte) 0);
+        return m.doFinal(password.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static <V> Map<String, V> lruMap(int capacity) {
+        return new LinkedHashMap<String, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) { return size() > capacity; }
+        };
+    }
+}
+
+/** A business rule refused the operation; the message is meant for the end user. */
+class BorrowException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+    public BorrowException(String message) { super(message); }
+}
+
+/**
+ * All borrow/return business rules, free of any UI. The Swing frame and the HTTP API
+ * are both just callers. Check-then-act sequences run under the DataStore lock so
+ * concurrent clients cannot both pass the same check.
+ */
+class BorrowService {
+    static final String WELCOME_ATTACHMENT = "borrow_term_req.pdf";
+    static final int RENEW_DAYS = 7;
+    static final int LOAN_DAYS = 7;              // what a NEW_BORROW loan runs for; see BorrowRecord
+    static final int MAX_BOOKING_DAYS = 14;
+    static final int MAX_EXTEND_DAYS = 30;
+    static final int BOOKING_HORIZON_DAYS = 180; // how far ahead a booking may start
+
+    private static final Metrics.Timer LOGIN = Metrics.timer("auth.login");
+    private static final Metrics.Timer REQUEST = Metrics.timer("borrow.request");
+    private static final Metrics.Timer APPROVE = Metrics.timer("borrow.approve");
+    private static final Metrics.Timer REJECT = Metrics.timer("borrow.reject");
+    private static final Metrics.Timer BATCH = Metrics.timer("borrow.batch");
+    private static final Metrics.Timer AUTO_APPROVE = Metrics.timer("borrow.autoApprove");
+    private static final Metrics.Timer RETURN = Metrics.timer("borrow.return");
+    private static final Metrics.Timer TRANSFER = Metrics.timer("borrow.transfer");
+    private static final Metrics.Timer COLLECT = Metrics.timer("borrow.collect");
+
+    /** Null for bad credentials; throws RateLimitedException after repeated failures. */
+    public static User login(String id, String password) {
+        long t0 = System.nanoTime();
+        try {
+            return AuthService.login(id, password);
+        } finally {
+            LOGIN.stop(t0);
+        }
+    }
+
+    public static Student register(String id, String name, String email, String phone, String password, CardType type, int birthYear) {
+        if (id == null || id.isEmpty() || name == null || name.isEmpty() || password == null || password.isEmpty())
+            throw new BorrowException("Please fill all fields.");
+        Student s = new Student(id, name, email, phone, password, type, birthYear);
+        if (!DataStore.addUser(s)) throw new BorrowException("This ID is already registered.");
+
+        // [EMAIL WITH ATTACHMENT]
+        EmailService.sendWithAttachment(email, 
+            "Welcome to ShareU", 
+            "Registration successful!\n\nAttached is the User Manual / Rules for borrowing items.",
+            WELCOME_ATTACHMENT
+        );
+        return s;
+    }
+
+    public static BorrowRequest requestBorrow(Student student, Item item) {
+        long t0 = System.nanoTime();
+        try {
+            synchronized (DataStore.lockFor(item)) {
+                if (DataStore.findActiveRecord(student, item) != null) throw new BorrowException("You are already borrowing this item!");
+                if (DataStore.findPendingRequest(student, item) != null) throw new BorrowException("You have a pending request for this item!");
+                if (DataStore.findWaitingRequest(student, item) != null) throw new BorrowException("You are already on the waitlist for this item!");
+                BorrowRequest req = new BorrowRequest(student, item, RequestType.NEW_BORROW, 7);
+                // Out of stock, or others are already queued: join the waitlist instead of failing.
+                if (item.getCurrentQty() <= 0 || DataStore.nextWaiting(item) != null) {
+                    req.setStatus(RequestStatus.WAITLISTED);
+                    DataStore.addRequest(req);
+                    WaitlistService.offerFreeUnits(item);
+                } else {
+                    DataStore.addRequest(req);
+                }
+                return req;
+            }
+        } finally {
+            REQUEST.stop(t0);
+        }
+    }
+
+    /**
+     * Asks for one unit for [start, start + days), e.g. a camera from next Friday to Monday. Fails
+     * at once, naming the next free window, when every unit is already out on one of those days;
+     * otherwise it waits for an admin like any request and is checked again on approval.
+     */
+    public static BorrowRequest requestBooking(Student student, Item item, LocalDate start, int days) {
+        LocalDate today = AppClock.today();
+        if (start == null || !start.isAfter(today)) throw new BorrowException("Bookings start tomorrow at the earliest; use Borrow Item for today.");
+        if (start.isAfter(today.plusDays(BOOKING_HORIZON_DAYS))) throw new BorrowException("Bookings open " + BOOKING_HORIZON_DAYS + " days ahead.");
+        if (days < 1 || days > MAX_BOOKING_DAYS) throw new BorrowException("Book between 1 and " + MAX_BOOKING_DAYS + " days.");
+        long t0 = System.nanoTime();
+        try {
+            synchronized (DataStore.lockFor(item)) {
+                String why = bookedOut(item, start, start.plusDays(days), true);
+                if (why != null) throw new BorrowException(why);
+                BorrowRequest req = new BorrowRequest(student, item, start, days);
+                DataStore.addRequest(req);
+                return req;
+            }
+        } finally {
+            REQUEST.stop(t0);
+        }
+    }
+
+    public static BorrowRequest requestRenew(Student student, Item item) {
+        return requestOnActiveLoan(student, item, RequestType.RENEW, RENEW_DAYS);
+    }
+
+    public static BorrowRequest requestExtend(Student student, Item item, int days) {
+        if (days <= 0 || days > MAX_EXTEND_DAYS) throw new BorrowException("Extend by 1 to " + MAX_EXTEND_DAYS + " days.");
+        return requestOnActiveLoan(student, item, RequestType.EXTEND, days);
+    }
+
+    private static BorrowRequest requestOnActiveLoan(Student student, Item item, RequestType type, int days) {
+        long t0 = System.nanoTime();
+        try {
+            synchronized (DataStore.lockFor(item)) {
+                if (DataStore.findActiveRecord(student, item) == null) throw new BorrowException("Can only request on currently BORROWED items.");
+                BorrowRequest req = new BorrowRequest(student, item, type, days);
+                DataStore.addRequest(req);
+                return req;
+            }
+        } finally {
+            REQUEST.stop(t0);
+        }
+    }
+
+    /**
+     * Approves a pending request. NEW_BORROW creates a record (failing cleanly when stock is
+     * exhausted); RENEW/EXTEND push the due date of the active loan; BOOKING sets a unit aside for
+     * its window. Any of them fails if it would need a unit on a day that is already fully booked.
+     * Returns the affected record, which is null for a BOOKING, or a RENEW/EXTEND whose loan has
+     * already been returned.
+     */
+    public static BorrowRecord approve(BorrowRequest req) {
+        long t0 = System.nanoTime();
+        try {
+            BorrowRecord rec;
+            synchronized (DataStore.lockFor(req.getItem())) {
+                requirePending(req);
+                String conflict = bookingConflict(req, AppClock.today());
+                if (conflict != null) {
+                    releaseHeld(req); // a waitlist offer's unit must not stay set aside for a loan that can't start
+                    throw new BorrowException(conflict);
+                }
+                boolean reserved = false;
+                if (req.getType() == RequestType.NEW_BORROW) {
+                    // An offer from the waitlist already has a unit set aside; fall back to stock if it lapsed.
+                    Item.Hold offer = WaitlistService.offerFor(req);
+                    reserved = offer != null && DataStore.confirmHold(offer);
+                    if (!reserved && !DataStore.reserveUnit(req.getItem())) throw new BorrowException("Out of Stock!");
+                }
+                rec = applyApproval(req);
+            }
+            EmailService.enqueue(approvalMail(req));
+            return rec;
+        } finally {
+            APPROVE.stop(t0);
+        }
+    }
+
+    /** Rejects a pending or waitlisted request, or cancels an approved booking that was not collected yet. */
+    public static void reject(BorrowRequest req) {
+        long t0 = System.nanoTime();
+        try {
+            synchronized (DataStore.lockFor(req.getItem())) {
+                if (req.getStatus() != RequestStatus.WAITLISTED && !isUncollectedBooking(req)) requirePending(req);
+                applyRejection(req);
+            }
+            EmailService.enqueue(rejectionMail(req));
+        } finally {
+            REJECT.stop(t0);
+        }
+    }
+
+    /** What a batch did: approved/rejected requests, the records they touched, and why the rest were left alone. */
+    static class BatchResult {
+        final List<BorrowRequest> done = new ArrayList<>();
+        final List<BorrowRecord> records = new ArrayList<>();
+        final Map<BorrowRequest, String> skipped = new LinkedHashMap<>();
+    }
+
+    /**
+     * Approves many requests holding each branch's lock once. Stock for NEW_BORROW requests is
+     * taken per item in one step (one journal entry per item), earlier requests first; requests
+     * that cannot be served are skipped with a reason and stay pending. Notifications are queued
+     * as one batch afterwards, so this may block on a full mail queue: call it off the EDT.
+     */
+    public static BatchResult approveAll(Collection<BorrowRequest> requests) {
+        long t0 = System.nanoTime();
+        try {
+            BatchResult result = new BatchResult();
+            List<EmailService.OutboundMail> mails = new ArrayList<>();
+            for (List<BorrowRequest> batch : byBranch(requests).values()) {
+                synchronized (DataStore.lockFor(batch.get(0).getItem())) {
+                    approveBranch(batch, result, mails);
+                }
+            }
+            if (!mails.isEmpty()) EmailService.enqueueAll(mails);
+            return result;
+        } finally {
+            BATCH.stop(t0);
+        }
+    }
+
+    /** The caller's requests split by branch, each in the caller's order, duplicates dropped. */
+    private static Map<String, List<BorrowRequest>> byBranch(Collection<BorrowRequest> requests) {
+        Set<BorrowRequest> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        Map<String, List<BorrowRequest>> out = new LinkedHashMap<>();
+        for (BorrowRequest r : requests)
+            if (seen.add(r)) out.computeIfAbsent(r.getItem().getBranch(), k -> new ArrayList<>()).add(r);
+        return out;
+    }
+
+    // One branch's share of approveAll; caller holds that branch's lock.
+    private static void approveBranch(List<BorrowRequest> batch, BatchResult result, List<EmailService.OutboundMail> mails) {
+        Map<Item, Integer> units = new IdentityHashMap<>();
+        for (BorrowRequest r : batch) {
+            if (r.getStatus() != RequestStatus.PENDING) continue;
+            if (r.getType() == RequestType.NEW_BORROW && WaitlistService.offerFor(r) == null) units.merge(r.getItem(), 1, Integer::sum);
+        }
+        for (Map.Entry<Item, Integer> e : units.entrySet()) e.setValue(DataStore.reserveUnits(e.getKey(), e.getValue()));
+
+        LocalDate today = AppClock.today();
+        for (BorrowRequest r : batch) {
+            if (r.getStatus() != RequestStatus.PENDING) {
+                result.skipped.put(r, "Request is already " + r.getStatus() + ".");
+                continue;
+            }
+            String conflict = bookingConflict(r, today);
+            if (conflict != null) {
+                result.skipped.put(r, conflict); // a unit counted for it above goes back below
+                releaseHeld(r);
+                continue;
+            }
+            if (r.getType() == RequestType.NEW_BORROW) {
+                Item.Hold offer = WaitlistService.offerFor(r);
+                boolean reserved = offer != null && DataStore.confirmHold(offer);
+                if (!reserved) {
+                    Integer left = units.get(r.getItem());
+                    if (left != null && left > 0) {
+                        units.put(r.getItem(), left - 1);
+                        reserved = true;
+                    } else {
+                        reserved = DataStore.reserveUnit(r.getItem()); // a lapsed offer wasn't counted above
+                    }
+                }
+                if (!reserved) {
+                    result.skipped.put(r, "Out of Stock!");
+                    continue;
+                }
+            }
+            BorrowRecord rec = applyApproval(r);
+            result.done.add(r);
+            if (rec != null) result.records.add(rec);
+            mails.add(approvalMail(r));
+        }
+        for (Map.Entry<Item, Integer> e : units.entrySet()) { // only if the batch changed under us
+            if (e.getValue() == 0) continue;
+            for (int i = 0; i < e.getValue(); i++) DataStore.releaseUnit(e.getKey());
+            WaitlistService.offerFreeUnits(e.getKey());
+        }
+    }
+
+    /** Rejects many requests, each branch under one lock hold; notifications are queued as one batch (call off the EDT). */
+    public static BatchResult rejectAll(Collection<BorrowRequest> requests) {
+        long t0 = System.nanoTime();
+        try {
+            BatchResult result = new BatchResult();
+            List<EmailService.OutboundMail> mails = new ArrayList<>();
+            for (List<BorrowRequest> batch : byBranch(requests).values()) {
+                synchronized (DataStore.lockFor(batch.get(0).getItem())) {
+                    for (BorrowRequest r : batch) {
+                        if (r.getStatus() != RequestStatus.PENDING && r.getStatus() != RequestStatus.WAITLISTED) {
+                            result.skipped.put(r, "Request is already " + r.getStatus() + ".");
+                            continue;
+                        }
+                        applyRejection(r);
+                        result.done.add(r);
+                        mails.add(rejectionMail(r));
+                    }
+                }
+            }
+            if (!mails.isEmpty()) EmailService.enqueueAll(mails);
+            return result;
+        } finally {
+            BATCH.stop(t0);
+        }
+    }
+
+    /**
+     * Approves every pending request that passes all rules, oldest first, one batch per branch.
+     * Requests failing a rule stay pending and are reported in skipped. Like approveAll, the
+     * notifications are queued after the branch locks are released (call it off the EDT).
+     */
+    public static BatchResult autoApprove(List<ApprovalRule> rules, LocalDate today) {
+        long t0 = System.nanoTime();
+        try {
+            BatchResult result = new BatchResult();
+            List<EmailService.OutboundMail> mails = new ArrayList<>();
+            for (String branch : DataStore.branches()) {
+                synchronized (DataStore.lockFor(branch)) { // checks and approvals are one critical section
+                    List<BorrowRequest> eligible = new ArrayList<>();
+                    for (BorrowRequest r : DataStore.pendingRequests(branch)) {
+                        String why = null;
+                        for (ApprovalRule rule : rules) if ((why = rule.violation(r, today)) != null) break;
+                        if (why == null) eligible.add(r);
+                        else result.skipped.put(r, why);
+                    }
+                    if (!eligible.isEmpty()) approveBranch(eligible, result, mails);
+                }
+            }
+            if (!mails.isEmpty()) EmailService.enqueueAll(mails);
+            return result;
+        } finally {
+            AUTO_APPROVE.stop(t0);
+        }
+    }
+
+    private static BorrowRecord applyApproval(BorrowRequest req) {
+        BorrowRecord rec;
+        if (req.getType() == RequestType.NEW_BORROW) {
+            WaitlistService.takeOffer(req);
+            DataStore.setStatus(req, RequestStatus.APPROVED);
+            rec = new BorrowRecord(req.getStudent(), req.getItem());
+            DataStore.addRecord(rec);
+        } else if (req.getType() == RequestType.BOOKING) {
+            DataStore.setStatus(req, RequestStatus.APPROVED); // the calendar now counts its window
+            rec = null;
+        } else {
+            DataStore.setStatus(req, RequestStatus.APPROVED);
+            rec = DataStore.findActiveRecord(req.getStudent(), req.getItem());
+            if (rec != null) DataStore.extendDueDate(rec, req.getType() == RequestType.RENEW ? RENEW_DAYS : req.getDaysRequested());
+        }
+        return rec;
+    }
+
+    private static void applyRejection(BorrowRequest req) {
+        DataStore.setStatus(req, RequestStatus.REJECTED);
+        releaseHeld(req);
+    }
+
+    // Gives back a unit set aside for the request (a waitlist offer, or a started booking's) and passes it on.
+    private static void releaseHeld(BorrowRequest req) {
+        Item.Hold held = req.getType() == RequestType.BOOKING ? WaitlistService.takeBookingHold(req) : WaitlistService.takeOffer(req);
+        if (held != null && DataStore.releaseHold(held)) WaitlistService.offerFreeUnits(req.getItem());
+    }
+
+    /**
+     * Why approving the request would need a unit on a day when every unit is already out or
+     * booked, or null. Items nobody has booked are not checked (stock covers today), so the
+     * common path never builds a calendar.
+     */
+    private static String bookingConflict(BorrowRequest req, LocalDate today) {
+        Item item = req.getItem();
+        switch (req.getType()) {
+            case BOOKING:
+                return bookedOut(item, req.getStartDate(), req.getEndDate(), true);
+            case NEW_BORROW:
+                return bookedOut(item, today, today.plusDays(LOAN_DAYS), false);
+            default: {
+                BorrowRecord rec = DataStore.findActiveRecord(req.getStudent(), item);
+                if (rec == null) return null;
+                // The loan already holds its unit up to the old due date; only the added days can clash.
+                LocalDate from = rec.getDueDate().isAfter(today) ? rec.getDueDate() : today;
+                LocalDate to = rec.getDueDate().plusDays(req.getType() == RequestType.RENEW ? RENEW_DAYS : req.getDaysRequested());
+                int others = DataStore.unitsBookedIfTracked(item, from, to) - (rec.getDueDate().isBefore(today) ? 1 : 0); // a late loan counts itself
+                if (!to.isAfter(from) || others < item.getTotalQty()) return null;
+                return item.getName() + " is booked by someone else on a day before " + to + "; it has to be back by " + rec.getDueDate() + ".";
+            }
+        }
+    }
+
+    // Null if a unit is free on every day of [from, to); track builds the item's calendar if it has none.
+    private static String bookedOut(Item item, LocalDate from, LocalDate to, boolean track) {
+        int out = track ? DataStore.unitsBooked(item, from, to) : DataStore.unitsBookedIfTracked(item, from, to);
+        if (out < item.getTotalQty()) return null;
+        int days = (int) ChronoUnit.DAYS.between(from, to);
+        LocalDate next = DataStore.nextFreeWindow(item, from, days);
+        return "Every unit of " + item.getName() + " is taken on some day from " + from + " to " + to.minusDays(1) + "."
+                + (next == null ? "" : " The next free " + days + "-day window starts " + next + ".");
+    }
+
+    private static boolean isUncollectedBooking(BorrowRequest req) {
+        return req.getType() == RequestType.BOOKING && req.getStatus() == RequestStatus.APPROVED;
+    }
+
+    /**
+     * Hands a booked unit over on a day of its window: the booking completes and becomes a loan
+     * from today, due at the window's end. Takes the unit held for it once its window started,
+     * or any free one.
+     */
+    public static BorrowRecord collectBooking(BorrowRequest req, LocalDate today) {
+        long t0 = System.nanoTime();
+        try {
+            synchronized (DataStore.lockFor(req.getItem())) {
+                if (!isUncollectedBooking(req)) throw new BorrowException("Only approved bookings can be collected.");
+                if (today.isBefore(req.getStartDate())) throw new BorrowException("This booking starts on " + req.getStartDate() + ".");
+                if (!today.isBefore(req.getEndDate())) throw new BorrowException("This booking ended on " + req.getEndDate() + ".");
+                if (DataStore.findActiveRecord(req.getStudent(), req.getItem()) != null) throw new BorrowException("The student is already borrowing this item!");
+                Item.Hold held = WaitlistService.takeBookingHold(req);
+                boolean reserved = held != null && DataStore.confirmHold(held);
+                if (!reserved && !DataStore.reserveUnit(req.getItem())) throw new BorrowException("No unit of " + req.getItem().getName() + " is back yet.");
+                DataStore.setStatus(req, RequestStatus.COMPLETED);
+                BorrowRecord rec = new BorrowRecord(req.getStudent(), req.getItem(), today, req.getEndDate(), null, false);
+                DataStore.addRecord(rec);
+                return rec;
+            }
+        } finally {
+            COLLECT.stop(t0);
+        }
+    }
+
+    private static EmailService.OutboundMail approvalMail(BorrowRequest req) {
+        if (req.getType() == RequestType.BOOKING)
+            return new EmailService.OutboundMail(req.getStudent().getEmail(), "Booking Confirmed",
+                    "Your booking for " + req.getItem().getName() + " from " + req.getStartDate() + " to " + req.getEndDate() + " is confirmed.", null);
+        if (req.getType() == RequestType.NEW_BORROW)
+            return new EmailService.OutboundMail(req.getStudent().getEmail(), "Borrow Approved", "Your request for " + req.getItem().getName() + " is approved.", null);
+        return new EmailService.OutboundMail(req.getStudent().getEmail(), "Request Approved", "Your request is approved.", null);
+    }
+
+    private static EmailService.OutboundMail rejectionMail(BorrowRequest req) {
+        return new EmailService.OutboundMail(req.getStudent().getEmail(), "Request Rejected", "Your request was rejected.", null);
+    }
+
+    /** Fine the record would incur if returned on the given day. */
+    public static int currentFine(BorrowRecord rec, LocalDate asOf) {
+        return FinePolicy.current().fine(rec.getItem(), rec.getDueDate(), asOf);
+    }
+
+    /** Marks the loan returned, puts the unit back in stock and returns the fine charged. */
+    public static int processReturn(BorrowRecord rec, LocalDate returnDate) {
+        long t0 = System.nanoTime();
+        try {
+            int fine;
+            synchronized (DataStore.lockFor(rec.getItem())) {
+                if (rec.getReturnDate() != null) throw new BorrowException("Item was already returned.");
+                fine = currentFine(rec, returnDate);
+                DataStore.markReturn(rec, returnDate);
+                DataStore.releaseUnit(rec.getItem());
+                WaitlistService.offerFreeUnits(rec.getItem()); // the unit goes straight to the next waiter, if any
+            }
+            EmailService.send(rec.getStudent().getEmail(), "Item Returned", "Fine: " + fine + " THB.");
+            return fine;
+        } finally {
+            RETURN.stop(t0);
+        }
+    }
+
+    /**
+     * Asks for qty units of the item to move to another branch; nothing moves until an admin
+     * approves. Only units in at the branch right now can be asked for, not ones out on loan.
+     */
+    public static TransferRequest requestTransfer(Item from, String toBranch, int qty) {
+        if (toBranch == null || toBranch.trim().isEmpty()) throw new BorrowException("Choose a destination branch.");
+        if (toBranch.equals(from.getBranch())) throw new BorrowException(from.getName() + " is already at " + toBranch + ".");
+        if (qty <= 0) throw new BorrowException("Transfer at least 1 unit.");
+        synchronized (DataStore.lockFor(from)) {
+            if (qty > from.getCurrentQty())
+                throw new BorrowException("Only " + from.getCurrentQty() + " unit(s) of " + from.getName() + " are free at " + from.getBranch() + ".");
+            return DataStore.addTransfer(from, toBranch, qty, RequestStatus.PENDING, AppClock.today());
+        }
+    }
+
+    /**
+     * Moves the units: they leave the source branch's free stock (all or nothing), then arrive at
+     * the destination, whose item is created on first use and whose waitlist is served at once.
+     * Units the source still needs for its bookings (or for late loans) don't leave. Each step
+     * holds one branch lock only and is one journal event; in between the transfer is IN_TRANSIT,
+     * which a restart completes. Returns the destination item.
+     */
+    public static Item approveTransfer(TransferRequest t) {
+        long t0 = System.nanoTime();
+        try {
+            Item from = t.getFrom();
+            String newId = from.getItemId() + "@" + t.getToBranch();
+            synchronized (DataStore.lockFor(from)) {
+                if (t.getStatus() != RequestStatus.PENDING) throw new BorrowException("Transfer is already " + t.getStatus() + ".");
+                if (DataStore.findItemByName(t.getToBranch(), from.getName()) == null && DataStore.findItem(newId) != null)
+                    throw new BorrowException("Item id " + newId + " is taken by another item.");
+                int booked = DataStore.unitsBookedIfTracked(from, AppClock.today(), LocalDate.MAX);
+                if (booked > from.getTotalQty() - t.getQty())
+                    throw new BorrowException(from.getBranch() + " needs " + booked + " of its " + from.getTotalQty() + " unit(s) of " + from.getName() + " for loans and bookings.");
+                if (!DataStore.shipTransfer(t))
+                    throw new BorrowException("Only " + from.getCurrentQty() + " unit(s) of " + from.getName() + " are free at " + from.getBranch() + ".");
+            }
+            synchronized (DataStore.lockFor(t.getToBranch())) {
+                Item to = DataStore.deliverTransfer(t);
+                WaitlistService.offerFreeUnits(to);
+                return to;
+            }
+        } finally {
+            TRANSFER.stop(t0);
+        }
+    }
+
+    public static void rejectTransfer(TransferRequest t) {
+        synchronized (DataStore.lockFor(t.getFrom())) {
+            if (t.getStatus() != RequestStatus.PENDING) throw new BorrowException("Transfer is already " + t.getStatus() + ".");
+            DataStore.setTransferStatus(t, RequestStatus.REJECTED);
+        }
+    }
+
+    public static void sendReminder(BorrowRecord rec) {
+        long daysLeft = ChronoUnit.DAYS.between(AppClock.today(), rec.getDueDate());
+        String subject = "Reminder: Return " + rec.getItem().getName();
+        String body = "Hello " + rec.getStudent().getName() + ",\n\nYou have " + daysLeft + " days left to return '" + rec.getItem().getName() + "'.\nBorrow Date: " + rec.getBorrowDate();
+        if (daysLeft < 0) body = "WARNING: Your item '" + rec.getItem().getName() + "' is OVERDUE.";
+        EmailService.send(rec.getStudent().getEmail(), subject, body);
+    }
+
+    private static void requirePending(BorrowRequest req) {
+        if (req.getStatus() != RequestStatus.PENDING) throw new BorrowException("Request is already " + req.getStatus() + ".");
+    }
+}
+
+/** An auto-approval condition; violation() explains why a request should wait for a human, or is null. */
+interface ApprovalRule {
+    String violation(BorrowRequest req, LocalDate today);
+
+    /** NEW_BORROW only when a unit is free (or already held for this request). */
+    static ApprovalRule inStock() {
+        return (r, today) -> r.getType() != RequestType.NEW_BORROW || r.getItem().getCurrentQty() > 0
+                || WaitlistService.offerFor(r) != null ? null : "Out of stock";
+    }
+
+    static ApprovalRule noOverdueLoans() {
+        return (r, today) -> DataStore.hasOverdueLoan(r.getStudent(), today) ? "Student has overdue loans" : null;
+    }
+
+    /** EXTEND requests up to maxDays; RENEW and NEW_BORROW are unaffected. */
+    static ApprovalRule extensionAtMost(int maxDays) {
+        return (r, today) -> r.getType() == RequestType.EXTEND && r.getDaysRequested() > maxDays
+                ? "Extension over " + maxDays + " day(s)" : null;
+    }
+
+    static List<ApprovalRule> defaults(int maxExtensionDays) {
+        return Arrays.asList(inStock(), noOverdueLoans(), extensionAtMost(maxExtensionDays));
+    }
+}
+
+/**
+ * Embedded HTTP/JSON front end over BorrowService, so many students can use the system at once.
+ * Start with -Dshareu.http.port=8080 next to the GUI, or "java SmartBorrowSystem --headless [port]".
+ *
+ *   POST /api/login              {"id","password"}            -> {"token","role"}
+ *   GET  /api/items              ?branch=
+ *   GET  /api/items/search       ?q=&category=&available=true&limit=50 -> {"total","items","facets"}
+ *   GET  /api/items/availability ?name=Canon Camera -> [{"branch","itemId","available","total","waiting"}], most free first
+ *   GET  /api/branches           -> [{"code","items","units","available"}]
+ *   GET  /api/me                 (student) own requests and records
+ *   GET  /api/items/free-window  ?itemId=&from=2025-01-31&days=3 -> {"itemId","days","start"}, the first start from then on with a unit free every day
+ *   POST /api/requests           (student) {"itemId","type":"NEW_BORROW|RENEW|EXTEND|BOOKING","days","startDate"}
+ *   GET  /api/requests/pending   (admin)
+ *   POST /api/requests/approve   (admin) {"id"} (or {"studentId","itemId"})
+ *   POST /api/requests/reject    (admin) {"id"} (or {"studentId","itemId"})
+ *   POST /api/requests/auto-approve (admin) {"maxExtensionDays"} -> {"approved","skipped"}
+ *   GET  /api/records/active     (admin)
+ *   POST /api/records/return     (admin) {"id"} (or {"studentId","itemId"}) -> {"fine"}
+ *   GET  /api/bookings           (admin) approved bookings not yet collected; cancel one with /api/requests/reject
+ *   POST /api/bookings/collect   (admin) {"id"} -> the new loan
+ *   GET  /api/export/{users|items|requests|records} (admin) ?format=csv|json, streamed
+ *   POST /api/import/{items|students} (admin) CSV body -> {"rows","imported","skipped","errors"}
+ *   GET  /api/metrics            (admin) latency percentiles and counters as a text table
+ *   GET  /api/transfers/pending  (admin)
+ *   POST /api/transfers          (admin) {"itemId","toBranch","qty"}
+ *   POST /api/transfers/approve  (admin) {"id"} -> the destination item
+ *   POST /api/transfers/reject   (admin) {"id"}
+ *
+ * Authenticated calls send "Authorization: Bearer <token>".
+ */
+class HttpApiServer {
+    private static final int THREADS = 32;
+    private static final Metrics.Timer REQUESTS = Metrics.timer("http.request");
+    private static final Metrics.Counter CLIENT_ERRORS = Metrics.counter("http.4xx");
+    private static final Metrics.Counter SERVER_ERRORS = Metrics.counter("http.5xx");
+
+    static {
+        // Without TCP_NODELAY every small JSON response waits on Nagle + delayed ACK (~40 ms).
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    HttpApiServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 256);
+        executor = Executors.newFixedThreadPool(THREADS, r -> {
+            Thread t = new Thread(r, "http-api");
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(executor);
+        server.createContext("/api/", this::handle);
+    }
+
+    static HttpApiServer start(int port) throws IOException {
+        HttpApiServer api = new HttpApiServer(port);
+        api.server.start();
+        Metrics.registerJmx();
+        System.out.println("🌐 HTTP API listening on port " + api.port());
+        return api;
+    }
+
+    int port() { return server.getAddress().getPort(); }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange ex) throws IOException {
+        long t0 = System.nanoTime();
+        try {
+            respond(ex);
+        } finally {
+            REQUESTS.stop(t0);
+        }
+    }
+
+    private void respond(HttpExchange ex) throws IOException {
+        int status = 200;
+        String body;
+        try {
+            body = route(ex.getRequestMethod(), ex.getRequestURI().getPath(), ex);
+        } catch (RateLimitedException e) {
+            status = 429;
+            body = Json.error(e.getMessage());
+        } catch (BorrowException e) {
+            status = 409;
+            body = Json.error(e.getMessage());
+        } catch (HttpError e) {
+            status = e.status;
+            body = Json.error(e.getMessage());
+        } catch (IllegalArgumentException e) {
+            status = 400;
+            body = Json.error(e.getMessage());
+        } catch (RuntimeException e) {
+            status = 500;
+            body = Json.error("Internal error");
+            System.err.println("❌ HTTP " + ex.getRequestURI() + ": " + e);
+        }
+        if (body == null) return; // the route streamed its own response
+        if (status >= 500) SERVER_ERRORS.increment();
+        else if (status >= 400) CLIENT_ERRORS.increment();
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        ex.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = ex.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private String route(String method, String path, HttpExchange ex) throws IOException {
+        switch (method + " " + path) {
+            case "POST /api/login": {
+                Map<String, String> in = Json.parseObject(readBody(ex));
+                User u = BorrowService.login(in.get("id"), in.get("password"));
+                if (u == null) throw new HttpError(401, "Invalid Credentials");
+                String token = AuthService.startSession(u);
+                return "{\"token\":" + Json.quote(token) + ",\"role\":" + Json.quote(u instanceof Admin ? "ADMIN" : "STUDENT") + "}";
+            }
+            case "GET /api/items": {
+                String branch = queryParams(ex).get("branch");
+                StringBuilder sb = new StringBuilder("[");
+                for (Item i : branch == null ? DataStore.itemsSnapshot() : DataStore.itemsSnapshot(branch)) {
+                    if (sb.length() > 1) sb.append(',');
+                    Json.item(sb, i);
+                }
+                return sb.append(']').toString();
+            }
+            case "GET /api/items/search": {
+                Map<String, String> q = queryParams(ex);
+                int limit = q.containsKey("limit") ? Integer.parseInt(q.get("limit")) : 50;
+                if (limit < 0 || limit > 1000) throw new IllegalArgumentException("limit must be 0..1000");
+                CatalogIndex.Result r = DataStore.searchItems(q.get("q"), q.get("category"), "true".equals(q.get("available")), limit);
+                StringBuilder sb = new StringBuilder("{\"total\":").append(r.total).append(",\"items\":[");
+                for (int i = 0; i < r.items.size(); i++) {
+                    if (i > 0) sb.append(',');
+                    Json.item(sb, r.items.get(i));
+                }
+                sb.append("],\"facets\":[");
+                boolean first = true;
+                for (Map.Entry<String, CatalogIndex.Facet> f : r.facets.entrySet()) {
+                    if (!first) sb.append(',');
+                    first = false;
+                    sb.append("{\"category\":").append(Json.quote(f.getKey()))
+                      .append(",\"items\":").append(f.getValue().items)
+                      .append(",\"available\":").append(f.getValue().available).append('}');
+                }
+                return sb.append("]}").toString();
+            }
+            case "GET /api/items/availability": {
+                String name = queryParams(ex).get("name");
+                if (name == null) throw new IllegalArgumentException("name is required");
+                StringBuilder sb = new StringBuilder("[");
+                for (DataStore.Availability a : DataStore.availability(name)) {
+                    if (sb.length() > 1) sb.append(',');
+                    sb.append("{\"branch\":").append(Json.quote(a.item.getBranch()))
+                      .append(",\"itemId\":").append(Json.quote(a.item.getItemId()))
+                      .append(",\"available\":").append(a.free)
+                      .append(",\"total\":").append(a.total)
+                      .append(",\"waiting\":").append(a.waiting).append('}');
+                }
+                return sb.append(']').toString();
+            }
+            case "GET /api/items/free-window": {
+                Map<String, String> q = queryParams(ex);
+                Item item = item(q.get("itemId"));
+                int days = intParam(q, "days", 1);
+                if (days < 1 || days > BorrowService.MAX_BOOKING_DAYS) throw new IllegalArgumentException("days must be 1.." + BorrowService.MAX_BOOKING_DAYS);
+                LocalDate start = DataStore.nextFreeWindow(item, q.containsKey("from") ? dateParam(q, "from") : AppClock.today(), days);
+                return "{\"itemId\":" + Json.quote(item.getItemId()) + ",\"days\":" + days + ",\"start\":" + (start == null ? "null" : Json.quote(start.toString())) + "}";
+            }
+            case "GET /api/branches": {
+                StringBuilder sb = new StringBuilder("[");
+                for (String code : DataStore.branches()) {
+                    List<Item> stock = DataStore.itemsSnapshot(code);
+                    int units = 0, free = 0;
+                    for (Item i : stock) {
+                        units += i.getTotalQty();
+                        free += i.getCurrentQty();
+                    }
+                    if (sb.length() > 1) sb.append(',');
+                    sb.append("{\"code\":").append(Json.quote(code)).append(",\"items\":").append(stock.size())
+                      .append(",\"units\":").append(units).append(",\"available\":").append(free).append('}');
+                }
+                return sb.append(']').toString();
+            }
+            case "GET /api/me": {
+                Student s = student(ex);
+                StringBuilder sb = new StringBuilder("{\"requests\":[");
+                boolean first = true;
+                for (BorrowRequest r : DataStore.requestsOf(s)) {
+                    if (!first) sb.append(',');
+                    first = false;
+                    Json.request(sb, r);
+                }
+                sb.append("],\"records\":[");
+                first = true;
+                LocalDate today = AppClock.today();
+                for (BorrowRecord r : DataStore.recordsOf(s)) {
+                    if (!first) sb.append(',');
+                    first = false;
+                    Json.record(sb, r, today);
+                }
+                return sb.append("]}").toString();
+            }
+            case "POST /api/requests": {
+                Student s = student(ex);
+                Map<String, String> in = Json.parseObject(readBody(ex));
+                Item item = item(in.get("itemId"));
+                String type = in.getOrDefault("type", "NEW_BORROW");
+                BorrowRequest req;
+                switch (type) {
+                    case "NEW_BORROW": req = BorrowService.requestBorrow(s, item); break;
+                    case "RENEW": req = BorrowService.requestRenew(s, item); break;
+                    case "EXTEND": req = BorrowService.requestExtend(s, item, intParam(in, "days", 1)); break;
+                    case "BOOKING": req = BorrowService.requestBooking(s, item, dateParam(in, "startDate"), intParam(in, "days", 1)); break;
+                    default: throw new HttpError(400, "Unknown request type " + type);
+                }
+                return Json.request(new StringBuilder(), req).toString();
+            }
+            case "GET /api/requests/pending": {
+                admin(ex);
+                StringBuilder sb = new StringBuilder("[");
+                for (BorrowRequest r : DataStore.pendingRequests()) {
+                    if (sb.length() > 1) sb.append(',');
+                    Json.request(sb, r);
+                }
+                return sb.append(']').toString();
+            }
+            case "POST /api/requests/approve": {
+                admin(ex);
+                BorrowRecord rec = BorrowService.approve(pendingRequest(Json.parseObject(readBody(ex))));
+                return rec == null ? "{}" : Json.record(new StringBuilder(), rec, AppClock.today()).toString();
+            }
+            case "POST /api/requests/reject": {
+                admin(ex);
+                BorrowService.reject(pendingRequest(Json.parseObject(readBody(ex))));
+                return "{}";
+            }
+            case "POST /api/requests/auto-approve": {
+                admin(ex);
+                String max = Json.parseObject(readBody(ex)).get("maxExtensionDays");
+                BorrowService.BatchResult r = BorrowService.autoApprove(ApprovalRule.defaults(max == null ? 3 : Integer.parseInt(max)), AppClock.today());
+                return "{\"approved\":" + r.done.size() + ",\"skipped\":" + r.skipped.size() + "}";
+            }
+            case "GET /api/records/active": {
+                admin(ex);
+                StringBuilder sb = new StringBuilder("[");
+                LocalDate today = AppClock.today();
+                for (BorrowRecord r : DataStore.activeRecords()) {
+                    if (sb.length() > 1) sb.append(',');
+                    Json.record(sb, r, today);
+                }
+                return sb.append(']').toString();
+            }
+            case "POST /api/records/return": {
+                admin(ex);
+                BorrowRecord rec = activeRecord(Json.parseObject(readBody(ex)));
+                return "{\"fine\":" + BorrowService.processReturn(rec, AppClock.today()) + "}";
+            }
+            case "GET /api/bookings": {
+                admin(ex);
+                StringBuilder sb = new StringBuilder("[");
+                for (BorrowRequest r : DataStore.bookings()) {
+                    if (sb.length() > 1) sb.append(',');
+                    Json.request(sb, r);
+                }
+                return sb.append(']').toString();
+            }
+            case "POST /api/bookings/collect": {
+                admin(ex);
+                BorrowRequest r = DataStore.findRequest(longParam(Json.parseObject(readBody(ex)), "id"));
+                if (r == null) throw new HttpError(404, "No such booking");
+                return Json.record(new StringBuilder(), BorrowService.collectBooking(r, AppClock.today()), AppClock.today()).toString();
+            }
+            case "GET /api/export/users":
+            case "GET /api/export/items":
+            case "GET /api/export/requests":
+            case "GET /api/export/records": {
+                admin(ex);
+                DataExporter.Table table = DataExporter.Table.valueOf(path.substring("/api/export/".length()).toUpperCase(Locale.ROOT));
+                String format = queryParams(ex).getOrDefault("format", "csv");
+                if (!format.equals("csv") && !format.equals("json")) throw new HttpError(400, "format must be csv or json");
+                ex.getResponseHeaders().set("Content-Type", format.equals("csv") ? "text/csv; charset=utf-8" : "application/json; charset=utf-8");
+                ex.getResponseHeaders().set("Content-Disposition", "attachment; filename=" + table.name().toLowerCase(Locale.ROOT) + "." + format);
+                ex.sendResponseHeaders(200, 0); // chunked: the size is not known up front
+                try (OutputStream out = ex.getResponseBody()) {
+                    DataExporter.export(table, format.equals("csv") ? DataExporter.Format.CSV : DataExporter.Format.JSON, Channels.newChannel(out));
+                }
+                return null;
+            }
+            case "GET /api/metrics": {
+                admin(ex);
+                byte[] text = Metrics.dump().getBytes(StandardCharsets.UTF_8);
+                ex.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                ex.sendResponseHeaders(200, text.length);
+                try (OutputStream out = ex.getResponseBody()) { out.write(text); }
+                return null;
+            }
+            case "GET /api/transfers/pending": {
+                admin(ex);
+                StringBuilder sb = new StringBuilder("[");
+                for (TransferRequest t : DataStore.pendingTransfers()) {
+                    if (sb.length() > 1) sb.append(',');
+                    Json.transfer(sb, t);
+                }
+                return sb.append(']').toString();
+            }
+            case "POST /api/transfers": {
+                admin(ex);
+                Map<String, String> in = Json.parseObject(readBody(ex));
+                TransferRequest t = BorrowService.requestTransfer(item(in.get("itemId")), in.get("toBranch"), intParam(in, "qty", 1));
+                return Json.transfer(new StringBuilder(), t).toString();
+            }
+            case "POST /api/transfers/approve": {
+                admin(ex);
+                Item to = BorrowService.approveTransfer(transfer(Json.parseObject(readBody(ex))));
+                return Json.item(new StringBuilder(), to).toString();
+            }
+            case "POST /api/transfers/reject": {
+                admin(ex);
+                BorrowService.rejectTransfer(transfer(Json.parseObject(readBody(ex))));
+                return "{}";
+            }
+            case "POST /api/import/items":
+            case "POST /api/import/students": {
+                admin(ex);
+                CsvImporter.Result r;
+                try (InputStream in = ex.getRequestBody()) {
+                    r = path.endsWith("/items") ? CsvImporter.importItems(in) : CsvImporter.importStudents(in);
+                }
+                StringBuilder sb = new StringBuilder("{\"rows\":").append(r.rows).append(",\"imported\":").append(r.imported)
+                        .append(",\"skipped\":").append(r.skipped).append(",\"errors\":[");
+                for (int i = 0; i < r.errors.size(); i++) Json.quote(i == 0 ? sb : sb.append(','), r.errors.get(i));
+                return sb.append("]}").toString();
+            }
+            default:
+                throw new HttpError(404, "No such endpoint: " + method + " " + path);
+        }
+    }
+
+    private User session(HttpExchange ex) {
+        String auth = ex.getRequestHeaders().getFirst("Authorization");
+        User u = auth != null && auth.startsWith("Bearer ") ? AuthService.resume(auth.substring(7)) : null;
+        if (u == null) throw new HttpError(401, "Login required");
+        return u;
+    }
+
+    private Student student(HttpExchange ex) {
+        User u = session(ex);
+        if (!(u instanceof Student)) throw new HttpError(403, "Students only");
+        return (Student) u;
+    }
+
+    private void admin(HttpExchange ex) {
+        if (!(session(ex) instanceof Admin)) throw new HttpError(403, "Admins only");
+    }
+
+    private static Item item(String itemId) {
+        Item i = itemId == null ? null : DataStore.findItem(itemId);
+        if (i == null) throw new HttpError(404, "Unknown item " + itemId);
+        return i;
+    }
+
+    /** By {"id"}, or by {"studentId", "itemId"} as before ids were exposed. */
+    private static BorrowRequest pendingRequest(Map<String, String> in) {
+        BorrowRequest r;
+        if (in.containsKey("id")) {
+            r = DataStore.findRequest(longParam(in, "id")); // the service answers 409 if it is no longer pending
+        } else {
+            User s = DataStore.findUser(in.get("studentId"));
+            r = s == null ? null : DataStore.findPendingRequest(s, item(in.get("itemId")));
+        }
+        if (r == null) throw new HttpError(404, "No such pending request");
+        return r;
+    }
+
+    private static BorrowRecord activeRecord(Map<String, String> in) {
+        BorrowRecord r;
+        if (in.containsKey("id")) {
+            r = DataStore.findRecord(longParam(in, "id"));
+        } else {
+            User s = DataStore.findUser(in.get("studentId"));
+            r = s == null ? null : DataStore.findActiveRecord(s, item(in.get("itemId")));
+        }
+        if (r == null) throw new HttpError(404, "No such active loan");
+        return r;
+    }
+
+    private static TransferRequest transfer(Map<String, String> in) {
+        int id = intParam(in, "id", -1);
+        List<TransferRequest> all = DataStore.transfers;
+        if (id < 0 || id >= all.size()) throw new HttpError(404, "Unknown transfer " + in.get("id"));
+        return all.get(id);
+    }
+
+    private static long longParam(Map<String, String> in, String key) {
+        try {
+            return Long.parseLong(in.get(key));
+        } catch (NumberFormatException e) {
+            throw new HttpError(400, key + " must be a number");
+        }
+    }
+
+    private static LocalDate dateParam(Map<String, String> in, String key) {
+        try {
+            return LocalDate.parse(in.get(key));
+        } catch (DateTimeParseException | NullPointerException e) {
+            throw new HttpError(400, key + " must be a date like 2025-01-31");
+        }
+    }
+
+    private static int intParam(Map<String, String> in, String key, int def) {
+        String v = in.get(key);
+        try {
+            return v == null ? def : Integer.parseInt(v);
+        } catch (NumberFormatException e) {
+            throw new HttpError(400, key + " must be a number");
+        }
+    }
+
+    private static Map<String, String> queryParams(HttpExchange ex) {
+        Map<String, String> out = new HashMap<>();
+        String raw = ex.getRequestURI().getRawQuery();
+        if (raw == null) return out;
+        for (String pair : raw.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            out.put(urlDecode(key), urlDecode(value));
+        }
+        return out;
+    }
+
+    // URLDecoder.decode(String, Charset) is Java 10+; the name-based overload keeps us on Java 8.
+    private static String urlDecode(String s) {
+        try {
+            return URLDecoder.decode(s, "UTF-8");
+        } catch (UnsupportedEncodingException e) { // every JVM has UTF-8
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String readBody(HttpExchange ex) throws IOException {
+        try (InputStream in = ex.getRequestBody()) {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            byte[] chunk = new byte[4096];
+            for (int n; (n = in.read(chunk)) > 0; ) buf.write(chunk, 0, n);
+            return new String(buf.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static class HttpError extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        final int status;
+        HttpError(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+}
+
+/** Just enough JSON for the HTTP API: flat objects in, hand-built documents out. */
+class Json {
+    static String quote(String s) {
+        if (s == null) return "null";
+        return quote(new StringBuilder(s.length() + 2), s).toString();
+    }
+
+    static StringBuilder quote(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+                    else sb.append(c);
+            }
+        }
+        return sb.append('"');
+    }
+
+    static String error(String message) { return "{\"error\":" + quote(message) + "}"; }
+
+    static StringBuilder item(StringBuilder sb, Item i) {
+        return sb.append("{\"id\":").append(quote(i.getItemId()))
+                 .append(",\"name\":").append(quote(i.getName()))
+                 .append(",\"category\":").append(quote(i.getCategory()))
+                 .append(",\"branch\":").append(quote(i.getBranch()))
+                 .append(",\"available\":").append(i.getCurrentQty())
+                 .append(",\"total\":").append(i.getTotalQty()).append('}');
+    }
+
+    static StringBuilder transfer(StringBuilder sb, TransferRequest t) {
+        return sb.append("{\"id\":").append(t.getId())
+                 .append(",\"itemId\":").append(quote(t.getFrom().getItemId()))
+                 .append(",\"name\":").append(quote(t.getFrom().getName()))
+                 .append(",\"fromBranch\":").append(quote(t.getFrom().getBranch()))
+                 .append(",\"toBranch\":").append(quote(t.getToBranch()))
+                 .append(",\"qty\":").append(t.getQty())
+                 .append(",\"status\":").append(quote(t.getStatus().name()))
+                 .append(",\"requestDate\":").append(quote(t.getRequestDate().toString())).append('}');
+    }
+
+    static StringBuilder request(StringBuilder sb, BorrowRequest r) {
+        return sb.append("{\"id\":").append(r.getId())
+                 .append(",\"studentId\":").append(quote(r.getStudent().getId()))
+                 .append(",\"itemId\":").append(quote(r.getItem().getItemId()))
+                 .append(",\"type\":").append(quote(r.getType().name()))
+                 .append(",\"status\":").append(quote(r.getStatus().name()))
+                 .append(",\"requestDate\":").append(quote(r.getRequestDate().toString()))
+                 .append(",\"days\":").append(r.getDaysRequested())
+                 .append(",\"startDate\":").append(r.getStartDate() == null ? "null" : quote(r.getStartDate().toString())).append('}');
+    }
+
+    static StringBuilder record(StringBuilder sb, BorrowRecord r, LocalDate today) {
+        sb.append("{\"id\":").append(r.getId())
+          .append(",\"studentId\":").append(quote(r.getStudent().getId()))
+          .append(",\"itemId\":").append(quote(r.getItem().getItemId()))
+          .append(",\"borrowDate\":").append(quote(r.getBorrowDate().toString()))
+          .append(",\"dueDate\":").append(quote(r.getDueDate().toString()))
+          .append(",\"returnDate\":").append(r.getReturnDate() == null ? "null" : quote(r.getReturnDate().toString()));
+        if (r.getReturnDate() == null) sb.append(",\"fine\":").append(BorrowService.currentFine(r, today));
+        return sb.append('}');
+    }
+
+    /** Parses {"key": "string" | number | true | false | null, ...}; values come back as strings. */
+    static Map<String, String> parseObject(String s) {
+        Map<String, String> out = new HashMap<>();
+        int[] pos = {skipWs(s, 0)};
+        expect(s, pos, '{');
+        if (peek(s, pos) == '}') return out;
+        while (true) {
+            String key = readString(s, pos);
+            expect(s, pos, ':');
+            pos[0] = skipWs(s, pos[0]);
+            String value;
+            if (pos[0] < s.length() && s.charAt(pos[0]) == '"') {
+                value = readString(s, pos);
+            } else {
+                int start = pos[0];
+                while (pos[0] < s.length() && ",} \t\r\n".indexOf(s.charAt(pos[0])) < 0) pos[0]++;
+                value = s.substring(start, pos[0]);
+                if (value.equals("null")) value = null;
+            }
+            out.put(key, value);
+            char c = peek(s, pos);
+            pos[0]++;
+            if (c == '}') return out;
+            if (c != ',') throw new IllegalArgumentException("Malformed JSON");
+        }
+    }
+
+    private static String readString(String s, int[] pos) {
+        expect(s, pos, '"');
+        StringBuilder sb = new StringBuilder();
+        while (pos[0] < s.length()) {
+            char c = s.charAt(pos[0]++);
+            if (c == '"') return sb.toString();
+            if (c == '\\' && pos[0] < s.length()) {
+                char e = s.charAt(pos[0]++);
+                switch (e) {
+                    case 'n': sb.append('\n'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'u':
+                        if (pos[0] + 4 > s.length()) throw new IllegalArgumentException("Malformed JSON");
+                        sb.append((char) Integer.parseInt(s.substring(pos[0], pos[0] + 4), 16));
+                        pos[0] += 4;
+                        break;
+                    default: sb.append(e);
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+        throw new IllegalArgumentException("Malformed JSON");
+    }
+
+    private static char peek(String s, int[] pos) {
+        pos[0] = skipWs(s, pos[0]);
+        if (pos[0] >= s.length()) throw new IllegalArgumentException("Malformed JSON");
+        return s.charAt(pos[0]);
+    }
+
+    private static void expect(String s, int[] pos, char c) {
+        if (peek(s, pos) != c) throw new IllegalArgumentException("Malformed JSON");
+        pos[0]++;
+    }
+
+    private static int skipWs(String s, int i) {
+        while (i < s.length() && Character.isWhitespace(s.charAt(i))) i++;
+        return i;
+    }
+}
+
+// ==========================================
+// 4. VIEW LAYER (Swing GUI)
+// ==========================================
+
+/**
+ * Table model backed directly by domain objects. Cells are rendered on demand, so only
+ * visible rows cost anything; reload() fetches on a background thread and single-row
+ * changes are pushed with add/remove/update instead of rebuilding the table.
+ */
+abstract class ListTableModel<T> extends AbstractTableModel {
+    private static final long serialVersionUID = 1L;
+    private static final Metrics.Timer LOAD = Metrics.timer("ui.tableLoad");
+    static final int DELTA_LIMIT = 200;
+
+    private final String[] columns;
+    protected List<T> rows = new ArrayList<>();
+    private SwingWorker<List<T>, Void> loader;
+
+    ListTableModel(String... columns) { this.columns = columns; }
+
+    protected abstract Object valueOf(T row, int column);
+
+    @Override public int getRowCount() { return rows.size(); }
+    @Override public int getColumnCount() { return columns.length; }
+    @Override public String getColumnName(int column) { return columns[column]; }
+    @Override public Object getValueAt(int row, int column) { return valueOf(rows.get(row), column); }
+
+    T getRow(int row) { return rows.get(row); }
+
+    /** Runs fetch off the EDT and swaps the result in; refetches once if DataStore changed meanwhile. */
+    void reload(Supplier<List<T>> fetch) { reload(fetch, true); }
+
+    private void reload(Supplier<List<T>> fetch, boolean retryIfStale) {
+        if (loader != null) loader.cancel(false);
+        loader = new SwingWorker<List<T>, Void>() {
+            private long version;
+
+            @Override
+            protected List<T> doInBackground() {
+                version = DataStore.version();
+                long t0 = System.nanoTime();
+                try {
+                    return fetch.get();
+                } finally {
+                    LOAD.stop(t0);
+                }
+            }
+
+            @Override
+            protected void done() {
+                if (isCancelled()) return;
+                try {
+                    rows = get();
+                    beforeDataChanged();
+                    fireTableDataChanged();
+                    if (retryIfStale && DataStore.version() != version) reload(fetch, false);
+                } catch (InterruptedException | ExecutionException e) {
+                    System.err.println("❌ Failed to load table data: " + e.getMessage());
+                }
+            }
+        };
+        loader.execute();
+    }
+
+    /** Hook for subclasses that cache per-load state (e.g. today's date). Runs on the EDT. */
+    protected void beforeDataChanged() { }
+
+    void add(T row) { insert(rows.size(), row); }
+
+    void insert(int index, T row) {
+        rows.add(index, row);
+        fireTableRowsInserted(index, index);
+    }
+
+    void remove(T row) {
+        int i = indexOf(row);
+        if (i < 0) return;
+        rows.remove(i);
+        fireTableRowsDeleted(i, i);
+    }
+
+    void update(T row) {
+        int i = indexOf(row);
+        if (i >= 0) fireTableRowsUpdated(i, i);
+    }
+
+    /**
+     * Brings the rows in line after the given entities changed: each is appended if it belongs
+     * and is missing, dropped if it no longer belongs, repainted otherwise. Past DELTA_LIMIT
+     * changes, one reload is cheaper than that many row lookups.
+     */
+    void applyChanges(Collection<T> changed, Predicate<T> belongs, Supplier<List<T>> fetch) {
+        if (changed.isEmpty()) return;
+        if (changed.size() > DELTA_LIMIT) {
+            reload(fetch);
+            return;
+        }
+        for (T row : changed) {
+            int i = indexOf(row);
+            if (!belongs.test(row)) {
+                if (i >= 0) {
+                    rows.remove(i);
+                    fireTableRowsDeleted(i, i);
+                }
+            } else if (i < 0) {
+                add(row);
+            } else {
+                fireTableRowsUpdated(i, i);
+            }
+        }
+    }
+
+    void clear() {
+        if (loader != null) loader.cancel(false);
+        rows = new ArrayList<>();
+        fireTableDataChanged();
+    }
+
+    private int indexOf(T row) {
+        for (int i = 0; i < rows.size(); i++) if (rows.get(i) == row) return i;
+        return -1;
+    }
+}
+
+class ItemTableModel extends ListTableModel<Item> {
+    private static final long serialVersionUID = 1L;
+    static final int SEARCH_LIMIT = 500;
+
+    private volatile CatalogIndex.Result fetched;
+    private Consumer<CatalogIndex.Result> onResult = r -> { };
+
+    ItemTableModel() { super("ID", "Name", "Category", "Stock (Avail/Total)", "Branch"); }
+
+    /** Called on the EDT with each search result, e.g. to show totals and facets. */
+    void onResult(Consumer<CatalogIndex.Result> listener) { this.onResult = listener; }
+
+    void search(String query, String category, boolean availableOnly) {
+        reload(() -> {
+            CatalogIndex.Result r = DataStore.searchItems(query, category, availableOnly, SEARCH_LIMIT);
+            fetched = r;
+            return r.items;
+        });
+    }
+
+    @Override
+    protected void beforeDataChanged() {
+        if (fetched != null) onResult.accept(fetched);
+    }
+
+    @Override
+    protected Object valueOf(Item i, int column) {
+        switch (column) {
+            case 0: return i.getItemId();
+            case 1: return i.getName();
+            case 2: return i.getCategory();
+            case 3: return i.getCurrentQty() + " / " + i.getTotalQty();
+            default: return i.getBranch();
+        }
+    }
+}
+
+/** A student's requests (first) followed by their borrow records. */
+class StudentStatusTableModel extends ListTableModel<Object> {
+    private static final long serialVersionUID = 1L;
+    StudentStatusTableModel() { super("Item", "Status", "Type", "Borrow Date", "Due/Return Date", "Branch"); }
+
+    static List<Object> fetch(User student) {
+        List<Object> rows = new ArrayList<>();
+        for (BorrowRequest req : DataStore.requestsOf(student))
+            if (req.getStatus() != RequestStatus.COMPLETED) rows.add(req);
+        rows.addAll(DataStore.recordsOf(student));
+        return rows;
+    }
+
+    void addRequest(BorrowRequest req) {
+        int i = 0;
+        while (i < rows.size() && rows.get(i) instanceof BorrowRequest) i++;
+        insert(i, req);
+    }
+
+    @Override
+    protected Object valueOf(Object row, int column) {
+        if (row instanceof BorrowRequest) {
+            BorrowRequest req = (BorrowRequest) row;
+            switch (column) {
+                case 0: return req.getItem().getName();
+                case 1:
+                    if (WaitlistService.offerFor(req) != null) return "REQ: READY FOR PICKUP";
+                    return req.getType() == RequestType.BOOKING && req.getStatus() == RequestStatus.APPROVED ? "BOOKED" : "REQ: " + req.getStatus();
+                case 2: return req.getType();
+                case 3: return req.getStartDate() != null ? req.getStartDate() : req.getRequestDate();
+                case 4: return req.getEndDate() != null ? req.getEndDate() : "-";
+                default: return req.getItem().getBranch();
+            }
+        }
+        BorrowRecord rec = (BorrowRecord) row;
+        switch (column) {
+            case 0: return rec.getItem().getName();
+            case 1: return rec.getReturnDate() == null ? "BORROWED" : "RETURNED";
+            case 2: return rec.getReturnDate() == null ? "Active" : "History";
+            case 3: return rec.getBorrowDate();
+            case 4: return rec.getReturnDate() == null ? rec.getDueDate() : rec.getReturnDate(); // Show DueDate or Actual Return Date
+            default: return rec.getItem().getBranch();
+        }
+    }
+}
+
+/** Rows are bound to request ids (column 0); actions resolve them with DataStore.findRequest. */
+class PendingRequestTableModel extends ListTableModel<BorrowRequest> {
+    private static final long serialVersionUID = 1L;
+    PendingRequestTableModel() { super("#", "Student ID", "Name", "Item", "Type", "Details", "Status", "Branch"); }
+
+    long idAt(int row) { return getRow(row).getId(); }
+
+    void apply(EventBus.Batch batch) {
+        Set<BorrowRequest> changed = new LinkedHashSet<>();
+        for (EventBus.Event e : batch.events) if (e.request != null) changed.add(e.request);
+        applyChanges(changed, r -> r.getStatus() == RequestStatus.PENDING, DataStore::pendingRequests);
+    }
+
+    @Override
+    protected Object valueOf(BorrowRequest r, int column) {
+        switch (column) {
+            case 0: return r.getId();
+            case 1: return r.getStudent().getId();
+            case 2: return r.getStudent().getName();
+            case 3: return r.getItem().getName();
+            case 4: return r.getType();
+            case 5:
+                if (r.getType() == RequestType.BOOKING) return r.getStartDate() + " to " + r.getEndDate();
+                return WaitlistService.offerFor(r) != null ? "Unit held (from waitlist)" : "-";
+            case 6: return r.getStatus();
+            default: return r.getItem().getBranch();
+        }
+    }
+}
+
+/**
+ * Open loans, bound to record ids (column 0) like PendingRequestTableModel; status and fine are
+ * computed only when a row is actually rendered.
+ */
+class ActiveRecordTableModel extends ListTableModel<BorrowRecord> {
+    private static final long serialVersionUID = 1L;
+    private LocalDate today = AppClock.today();
+
+    ActiveRecordTableModel() { super("#", "Student", "Item", "Borrow Date", "Due Date", "Status", "Current Fine", "Branch"); }
+
+    long idAt(int row) { return getRow(row).getId(); }
+
+    void apply(EventBus.Batch batch) {
+        Set<BorrowRecord> changed = new LinkedHashSet<>();
+        for (EventBus.Event e : batch.events) if (e.record != null) changed.add(e.record);
+        applyChanges(changed, r -> r.getReturnDate() == null, DataStore::activeRecords);
+    }
+
+    @Override
+    protected void beforeDataChanged() { today = AppClock.today(); }
+
+    @Override
+    protected Object valueOf(BorrowRecord r, int column) {
+        switch (column) {
+            case 0: return r.getId();
+            case 1: return r.getStudent().getName();
+            case 2: return r.getItem().getName();
+            case 3: return r.getBorrowDate();
+            case 4: return r.getDueDate();
+            case 5: return today.isAfter(r.getDueDate()) ? "OVERDUE" : "BORROWED";
+            case 6: return FinePolicy.current().fine(r, today) + " THB";
+            default: return r.getItem().getBranch();
+        }
+    }
+}
+
+/** Approved bookings waiting to be collected, bound to request ids like PendingRequestTableModel. */
+class BookingTableModel extends ListTableModel<BorrowRequest> {
+    private static final long serialVersionUID = 1L;
+    BookingTableModel() { super("#", "Student ID", "Name", "Item", "From", "Due Back", "Branch"); }
+
+    long idAt(int row) { return getRow(row).getId(); }
+
+    void apply(EventBus.Batch batch) {
+        Set<BorrowRequest> changed = new LinkedHashSet<>();
+        for (EventBus.Event e : batch.events) if (e.request != null && e.request.getType() == RequestType.BOOKING) changed.add(e.request);
+        applyChanges(changed, r -> r.getStatus() == RequestStatus.APPROVED, DataStore::bookings);
+    }
+
+    @Override
+    protected Object valueOf(BorrowRequest r, int column) {
+        switch (column) {
+            case 0: return r.getId();
+            case 1: return r.getStudent().getId();
+            case 2: return r.getStudent().getName();
+            case 3: return r.getItem().getName();
+            case 4: return r.getStartDate();
+            case 5: return r.getEndDate();
+            default: return r.getItem().getBranch();
+        }
+    }
+}
+
+class TransferTableModel extends ListTableModel<TransferRequest> {
+    private static final long serialVersionUID = 1L;
+    TransferTableModel() { super("#", "Item", "From", "To", "Units", "Requested", "Status"); }
+
+    @Override
+    protected Object valueOf(TransferRequest t, int column) {
+        switch (column) {
+            case 0: return t.getId();
+            case 1: return t.getFrom().getName();
+            case 2: return t.getFrom().getBranch();
+            case 3: return t.getToBranch();
+            case 4: return t.getQty();
+            case 5: return t.getRequestDate();
+            default: return t.getStatus();
+        }
+    }
+}
+
+/** Items or categories from a usage report, busiest first. */
+class UsageTableModel extends ListTableModel<UsageAnalytics.Usage> {
+    private static final long serialVersionUID = 1L;
+    private volatile UsageAnalytics.Report fetched;
+    private Consumer<UsageAnalytics.Report> onResult = r -> { };
+
+    UsageTableModel() {
+        super("Name", "Category", "Units", "Loans", "Peak Out", "Utilisation", "Verdict",
+              "All-time Loans", "Avg Days", "Late Returns", "Days Late", "Fines (THB)", "Extensions", "Waitlisted");
+    }
+
+    void onResult(Consumer<UsageAnalytics.Report> listener) { this.onResult = listener; }
+
+    void show(LocalDate from, LocalDate to, boolean byCategory) {
+        reload(() -> {
+            UsageAnalytics.Report r = DataStore.usageReport(from, to);
+            fetched = r;
+            List<UsageAnalytics.Usage> rows = new ArrayList<>(byCategory ? r.categories : r.items);
+            rows.sort((a, b) -> Double.compare(b.utilisation, a.utilisation));
+            return rows;
+        });
+    }
+
+    @Override
+    protected void beforeDataChanged() {
+        if (fetched != null) onResult.accept(fetched);
+    }
+
+    @Override
+    protected Object valueOf(UsageAnalytics.Usage u, int column) {
+        switch (column) {
+            case 0: return u.name;
+            case 1: return u.category;
+            case 2: return u.capacity;
+            case 3: return u.windowLoans;
+            case 4: return u.peak;
+            case 5: return String.format("%.1f%%", u.utilisation * 100);
+            case 6: return u.verdict();
+            case 7: return u.loans;
+            case 8: return String.format("%.1f", u.avgLoanDays);
+            case 9: return u.lateReturns;
+            case 10: return u.daysLate;
+            case 11: return u.fines;
+            case 12: return u.extensions;
+            default: return u.waitlisted;
+        }
+    }
+}
+
+/** Loans started per bucket of days (bars) and loans out at the end of each bucket (line). */
+class UsageChart extends JComponent {
+    private static final long serialVersionUID = 1L;
+    private UsageAnalytics.Report report;
+
+    UsageChart() { setPreferredSize(new Dimension(600, 160)); }
+
+    void setReport(UsageAnalytics.Report report) {
+        this.report = report;
+        repaint();
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        super.paintComponent(g);
+        if (report == null || report.started.length == 0) return;
+        Graphics2D g2 = (Graphics2D) g;
+        int w = getWidth() - 10, h = getHeight() - 20;
+        int days = report.started.length;
+        int per = Math.max(1, (days + w - 1) / w); // days per bucket so buckets fit the width
+        int buckets = (days + per - 1) / per;
+        long[] loans = new long[buckets], out = new long[buckets];
+        for (int d = 0; d < days; d++) {
+            loans[d / per] += report.started[d];
+            out[d / per] = report.open[d];
+        }
+        long maxLoans = Math.max(1, UsageAnalytics.Report.max(loans)), maxOut = Math.max(1, UsageAnalytics.Report.max(out));
+        double bw = (double) w / buckets;
+        g2.setColor(new Color(100, 149, 237));
+        for (int b = 0; b < buckets; b++) {
+            int bh = (int) (loans[b] * h / maxLoans);
+            g2.fillRect(5 + (int) (b * bw), 5 + h - bh, Math.max(1, (int) bw - 1), bh);
+        }
+        g2.setColor(new Color(255, 140, 0));
+        for (int b = 1; b < buckets; b++)
+            g2.drawLine(5 + (int) ((b - 0.5) * bw), 5 + h - (int) (out[b - 1] * h / maxOut), 5 + (int) ((b + 0.5) * bw), 5 + h - (int) (out[b] * h / maxOut));
+        g2.setColor(Color.DARK_GRAY);
+        g2.drawString(report.from + "  (bars: loans started, max " + maxLoans + " per " + per + " day(s); line: loans out, max " + maxOut + ")", 5, h + 18);
+        String end = report.to.toString();
+        g2.drawString(end, w + 5 - g2.getFontMetrics().stringWidth(end), h + 18);
+    }
+}
+
+public class SmartBorrowSystem extends JFrame {
+    // EDT time only: dialogs are shown after the clock stops, table fetches are timed by ListTableModel.
+    private static final Metrics.Timer ADMIN_ACTION = Metrics.timer("ui.adminAction");
+    private static final Metrics.Timer REFRESH_ADMIN = Metrics.timer("ui.refreshAdmin");
+    private static final Metrics.Timer REFRESH_STUDENT = Metrics.timer("ui.refreshStudent");
+    private static final Metrics.Timer PUSH = Metrics.timer("ui.pushUpdate");
+    private static final Set<EventBus.Type> LOAN_EVENTS = EnumSet.of(EventBus.Type.REQUEST_CREATED, EventBus.Type.RECORD_CREATED,
+            EventBus.Type.RECORD_EXTENDED, EventBus.Type.RECORD_RETURNED);
+    private CardLayout cardLayout = new CardLayout();
+    private JPanel mainPanel = new JPanel(cardLayout);
+    private User currentUser;
+    private JPanel adminPanel;
+    private JPanel studentPanel;
+
+    public SmartBorrowSystem() {
+        setTitle("ShareU"); // [UPDATED] Changed Title
+        setSize(1200, 700); // Increased width for more columns
+        setDefaultCloseOperation(EXIT_ON_CLOSE);
+        setLocationRelativeTo(null);
+
+        mainPanel.add(createLoginPanel(), "LOGIN");
+        mainPanel.add(createRegisterPanel(), "REGISTER");
+        studentPanel = createStudentPanel();
+        adminPanel = createAdminPanel();
+        mainPanel.add(studentPanel, "STUDENT");
+        mainPanel.add(adminPanel, "ADMIN");
+        add(mainPanel);
+        cardLayout.show(mainPanel, "LOGIN");
+        OverdueReminderJob.schedule();
+        // Changes made anywhere (this window, the HTTP API, background jobs) show up without a refresh.
+        EventBus.subscribeOnEdt(EnumSet.allOf(EventBus.Type.class), this::onDataChanged);
+        EventBus.subscribe(LOAN_EVENTS, 1000, SwingUtilities::invokeLater, b -> { if (adminPanel.isShowing()) adUsageRefresh.run(); });
+    }
+
+    // One frame's worth of changes: patch the rows they touch instead of reloading the tables.
+    private void onDataChanged(EventBus.Batch batch) {
+        long t0 = System.nanoTime();
+        if (adminPanel.isShowing()) {
+            if (batch.overflowed) {
+                refreshAdminData();
+            } else {
+                adReqModel.apply(batch);
+                adRecModel.apply(batch);
+                adBookingModel.apply(batch);
+                if (batch.has(EventBus.Type.RECORD_CREATED) || batch.has(EventBus.Type.RECORD_EXTENDED) || batch.has(EventBus.Type.RECORD_RETURNED))
+                    refreshOverdueSummary();
+            }
+        } else if (studentPanel.isShowing() && currentUser != null) {
+            User student = currentUser;
+            boolean mine = batch.overflowed, stock = batch.overflowed;
+            for (EventBus.Event e : batch.events) {
+                mine |= e.student() == student;
+                stock |= e.type == EventBus.Type.STOCK_CHANGED;
+            }
+            if (mine) stStatusModel.reload(() -> StudentStatusTableModel.fetch(student));
+            if (stock && stItemModel.getRowCount() > 0) stItemModel.fireTableRowsUpdated(0, stItemModel.getRowCount() - 1); // cells read live stock
+        }
+        PUSH.stop(t0);
+    }
+
+    private JPanel createLoginPanel() {
+        JPanel panel = new JPanel(new GridBagLayout());
+        panel.setBackground(new Color(240, 248, 255));
+        GridBagConstraints gbc = new GridBagConstraints();
+        gbc.insets = new Insets(10, 10, 10, 10);
+        JLabel title = new JLabel("ShareU"); // [UPDATED] Changed Title Label
+        title.setFont(new Font("SansSerif", Font.BOLD, 32));
+        JTextField tfUser = new JTextField(20);
+        JPasswordField pfPass = new JPasswordField(20);
+        JButton btnLogin = new JButton("Login");
+        JButton btnReg = new JButton("Register");
+
+        gbc.gridx = 0; gbc.gridy = 0; gbc.gridwidth = 2; panel.add(title, gbc);
+        gbc.gridy = 1; gbc.gridwidth = 1; panel.add(new JLabel("ID / Card ID:"), gbc);
+        gbc.gridx = 1; panel.add(tfUser, gbc);
+        gbc.gridx = 0; gbc.gridy = 2; panel.add(new JLabel("Password:"), gbc);
+        gbc.gridx = 1; panel.add(pfPass, gbc);
+        gbc.gridx = 0; gbc.gridy = 3; gbc.gridwidth = 2; panel.add(btnLogin, gbc);
+        gbc.gridy = 4; panel.add(btnReg, gbc);
+
+        // PBKDF2 takes a noticeable fraction of a second: hash off the EDT.
+        btnLogin.addActionListener(e -> {
+            String id = tfUser.getText();
+            String pass = new String(pfPass.getPassword());
+            btnLogin.setEnabled(false);
+            new SwingWorker<User, Void>() {
+                @Override protected User doInBackground() { return BorrowService.login(id, pass); }
+
+                @Override
+                protected void done() {
+                    btnLogin.setEnabled(true);
+                    User foundUser;
+                    try {
+                        foundUser = get();
+                    } catch (InterruptedException | ExecutionException ex) {
+                        Throwable cause = ex.getCause() instanceof RateLimitedException ? ex.getCause() : ex;
+                        JOptionPane.showMessageDialog(SmartBorrowSystem.this, cause.getMessage());
+                        return;
+                    }
+                    if (foundUser != null) {
+                        currentUser = foundUser;
+                        if (currentUser instanceof Admin) { refreshAdminData(); cardLayout.show(mainPanel, "ADMIN"); } 
+                        else { refreshStudentData(); cardLayout.show(mainPanel, "STUDENT"); }
+                    } else { JOptionPane.showMessageDialog(SmartBorrowSystem.this, "Invalid Credentials"); }
+                }
+            }.execute();
+        });
+        btnReg.addActionListener(e -> cardLayout.show(mainPanel, "REGISTER"));
+        return panel;
+    }
+
+    // --- REGISTER PANEL ---
+    private JPanel createRegisterPanel() {
+        JPanel panel = new JPanel(new GridBagLayout());
+        GridBagConstraints gbc = new GridBagConstraints();
+        gbc.insets = new Insets(5, 5, 5, 5);
+
+        JComboBox<CardType> cbType = new JComboBox<>(CardType.values());
+        JTextField tfId = new JTextField(15);
+        JTextField tfName = new JTextField(15);
         JTextField tfEmail = new JTextField(15);
         JTextField tfPhone = new JTextField(15);
         JTextField tfBirthYear = new JTextField(15);
@@ -341,280 +6227,2640 @@ public class SmartBorrowSystem extends JFrame {
         JButton btnSave = new JButton("Confirm Registration");
         JButton btnBack = new JButton("Back");
 
-        int y = 0;
-        gbc.gridx = 0; gbc.gridy = y++; gbc.gridwidth = 2; panel.add(new JLabel("Register New ShareU Member"), gbc);
-        gbc.gridwidth = 1; gbc.gridy = y; panel.add(new JLabel("Card Type:"), gbc); gbc.gridx = 1; panel.add(cbType, gbc);
-        gbc.gridx = 0; gbc.gridy = ++y; panel.add(new JLabel("ID Number:"), gbc); gbc.gridx = 1; panel.add(tfId, gbc);
-        gbc.gridx = 0; gbc.gridy = ++y; panel.add(new JLabel("Full Name:"), gbc); gbc.gridx = 1; panel.add(tfName, gbc);
-        gbc.gridx = 0; gbc.gridy = ++y; panel.add(new JLabel("Birth Year (AD):"), gbc); gbc.gridx = 1; panel.add(tfBirthYear, gbc);
-        gbc.gridx = 0; gbc.gridy = ++y; panel.add(new JLabel("Email:"), gbc); gbc.gridx = 1; panel.add(tfEmail, gbc);
-        gbc.gridx = 0; gbc.gridy = ++y; panel.add(new JLabel("Phone:"), gbc); gbc.gridx = 1; panel.add(tfPhone, gbc);
-        gbc.gridx = 0; gbc.gridy = ++y; panel.add(new JLabel("Password:"), gbc); gbc.gridx = 1; panel.add(pfPass, gbc);
-        gbc.gridx = 0; gbc.gridy = ++y; gbc.gridwidth = 2; panel.add(btnSave, gbc);
-        gbc.gridy = ++y; panel.add(btnBack, gbc);
+        int y = 0;
+        gbc.gridx = 0; gbc.gridy = y++; gbc.gridwidth = 2; panel.add(new JLabel("Register New ShareU Member"), gbc);
+        gbc.gridwidth = 1; gbc.gridy = y; panel.add(new JLabel("Card Type:"), gbc); gbc.gridx = 1; panel.add(cbType, gbc);
+        gbc.gridx = 0; gbc.gridy = ++y; panel.add(new JLabel("ID Number:"), gbc); gbc.gridx = 1; panel.add(tfId, gbc);
+        gbc.gridx = 0; gbc.gridy = ++y; panel.add(new JLabel("Full Name:"), gbc); gbc.gridx = 1; panel.add(tfName, gbc);
+        gbc.gridx = 0; gbc.gridy = ++y; panel.add(new JLabel("Birth Year (AD):"), gbc); gbc.gridx = 1; panel.add(tfBirthYear, gbc);
+        gbc.gridx = 0; gbc.gridy = ++y; panel.add(new JLabel("Email:"), gbc); gbc.gridx = 1; panel.add(tfEmail, gbc);
+        gbc.gridx = 0; gbc.gridy = ++y; panel.add(new JLabel("Phone:"), gbc); gbc.gridx = 1; panel.add(tfPhone, gbc);
+        gbc.gridx = 0; gbc.gridy = ++y; panel.add(new JLabel("Password:"), gbc); gbc.gridx = 1; panel.add(pfPass, gbc);
+        gbc.gridx = 0; gbc.gridy = ++y; gbc.gridwidth = 2; panel.add(btnSave, gbc);
+        gbc.gridy = ++y; panel.add(btnBack, gbc);
+
+        btnSave.addActionListener(e -> {
+            CardType type = (CardType) cbType.getSelectedItem();
+            String id = tfId.getText();
+            String name = tfName.getText();
+            String email = tfEmail.getText();
+            String phone = tfPhone.getText();
+            String pass = new String(pfPass.getPassword());
+            int bYear;
+            try {
+                bYear = Integer.parseInt(tfBirthYear.getText());
+            } catch (NumberFormatException ex) {
+                JOptionPane.showMessageDialog(this, "Error: Check inputs.");
+                return;
+            }
+            btnSave.setEnabled(false);
+            new SwingWorker<Student, Void>() { // hashes the password, like login
+                @Override protected Student doInBackground() { return BorrowService.register(id, name, email, phone, pass, type, bYear); }
+
+                @Override
+                protected void done() {
+                    btnSave.setEnabled(true);
+                    try {
+                        get();
+                        JOptionPane.showMessageDialog(SmartBorrowSystem.this, "Registration Successful! Confirmation email sent.");
+                        cardLayout.show(mainPanel, "LOGIN");
+                    } catch (ExecutionException ex) {
+                        JOptionPane.showMessageDialog(SmartBorrowSystem.this, ex.getCause() instanceof BorrowException ? ex.getCause().getMessage() : "Error: Check inputs.");
+                    } catch (InterruptedException ex) {
+                        JOptionPane.showMessageDialog(SmartBorrowSystem.this, "Error: Check inputs.");
+                    }
+                }
+            }.execute();
+        });
+        btnBack.addActionListener(e -> cardLayout.show(mainPanel, "LOGIN"));
+        return panel;
+    }
+
+    private static final String ALL_CATEGORIES = "All categories";
+    private ItemTableModel stItemModel;
+    private JTextField stSearchField;
+    private JComboBox<String> stCategoryBox;
+    private JCheckBox stAvailableOnly;
+    private boolean updatingCategories;
+    private StudentStatusTableModel stStatusModel;
+    private JPanel createStudentPanel() {
+        JTabbedPane tabs = new JTabbedPane();
+        JPanel browsePanel = new JPanel(new BorderLayout());
+        stItemModel = new ItemTableModel();
+        JTable itemTable = new JTable(stItemModel);
+        JButton btnBorrow = new JButton("Borrow Item");
+
+        stSearchField = new JTextField(20);
+        stCategoryBox = new JComboBox<>(new String[] { ALL_CATEGORIES });
+        stAvailableOnly = new JCheckBox("Available only");
+        JLabel facetLabel = new JLabel(" ");
+        stSearchField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override public void insertUpdate(DocumentEvent e) { searchItems(); }
+            @Override public void removeUpdate(DocumentEvent e) { searchItems(); }
+            @Override public void changedUpdate(DocumentEvent e) { searchItems(); }
+        });
+        stCategoryBox.addActionListener(e -> { if (!updatingCategories) searchItems(); });
+        stAvailableOnly.addActionListener(e -> searchItems());
+        stItemModel.onResult(r -> {
+            StringBuilder sb = new StringBuilder("Found " + r.total + (r.total > r.items.size() ? " (showing " + r.items.size() + ")" : "") + "   ");
+            for (Map.Entry<String, CatalogIndex.Facet> f : r.facets.entrySet())
+                sb.append(" | ").append(f.getKey()).append(": ").append(f.getValue().available).append('/').append(f.getValue().items).append(" free");
+            facetLabel.setText(sb.toString());
+        });
+        JPanel searchBar = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        searchBar.add(new JLabel("Search:"));
+        searchBar.add(stSearchField);
+        searchBar.add(stCategoryBox);
+        searchBar.add(stAvailableOnly);
+        JPanel north = new JPanel(new BorderLayout());
+        north.add(searchBar, BorderLayout.NORTH);
+        north.add(facetLabel, BorderLayout.SOUTH);
+        browsePanel.add(north, BorderLayout.NORTH);
+
+        btnBorrow.addActionListener(e -> {
+            int row = itemTable.getSelectedRow();
+            if (row != -1) {
+                Item item = stItemModel.getRow(row);
+                try {
+                    BorrowRequest req = BorrowService.requestBorrow((Student) currentUser, item);
+                    stStatusModel.addRequest(req);
+                    if (req.getStatus() == RequestStatus.WAITLISTED)
+                        JOptionPane.showMessageDialog(this, "Out of stock. You are #" + DataStore.waitlistSize(item) + " on the waitlist; we'll email you when a unit is ready.");
+                    else
+                        JOptionPane.showMessageDialog(this, "Borrow Request Sent!");
+                } catch (BorrowException ex) { JOptionPane.showMessageDialog(this, ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE); }
+            }
+        });
+        JButton btnWhere = new JButton("Where is it free?");
+        btnWhere.addActionListener(e -> {
+            int row = itemTable.getSelectedRow();
+            if (row == -1) return;
+            String name = stItemModel.getRow(row).getName();
+            StringBuilder sb = new StringBuilder(name + "\n\n");
+            for (DataStore.Availability a : DataStore.availability(name))
+                sb.append(a.item.getBranch()).append(": ").append(a.free).append('/').append(a.total).append(" free")
+                  .append(a.waiting > 0 ? ", " + a.waiting + " waiting" : "").append('\n');
+            JOptionPane.showMessageDialog(this, sb.toString(), "Availability by branch", JOptionPane.INFORMATION_MESSAGE);
+        });
+        JButton btnBook = new JButton("Book for Later...");
+        btnBook.addActionListener(e -> {
+            int row = itemTable.getSelectedRow();
+            if (row == -1) return;
+            Item item = stItemModel.getRow(row);
+            JTextField start = new JTextField(AppClock.today().plusDays(1).toString(), 10);
+            JTextField days = new JTextField("3", 4);
+            JPanel form = new JPanel(new GridLayout(0, 2, 4, 4));
+            form.add(new JLabel("First day (yyyy-mm-dd):")); form.add(start);
+            form.add(new JLabel("Days (1-" + BorrowService.MAX_BOOKING_DAYS + "):")); form.add(days);
+            if (JOptionPane.showConfirmDialog(this, form, "Book " + item, JOptionPane.OK_CANCEL_OPTION) != JOptionPane.OK_OPTION) return;
+            try {
+                BorrowRequest req = BorrowService.requestBooking((Student) currentUser, item, LocalDate.parse(start.getText().trim()), Integer.parseInt(days.getText().trim()));
+                stStatusModel.addRequest(req);
+                JOptionPane.showMessageDialog(this, "Booking Request Sent for " + req.getStartDate() + " to " + req.getEndDate() + "!");
+            } catch (DateTimeParseException | NumberFormatException ex) { JOptionPane.showMessageDialog(this, "Please enter a date like 2025-01-31 and a number of days."); }
+            catch (BorrowException ex) { JOptionPane.showMessageDialog(this, ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE); }
+        });
+        JPanel browseBtnPanel = new JPanel();
+        browseBtnPanel.add(btnBorrow); browseBtnPanel.add(btnBook); browseBtnPanel.add(btnWhere);
+        browsePanel.add(new JScrollPane(itemTable), BorderLayout.CENTER);
+        browsePanel.add(browseBtnPanel, BorderLayout.SOUTH);
+        
+        JPanel statusPanel = new JPanel(new BorderLayout());
+        // [UPDATED] Added Date Columns for Student
+        stStatusModel = new StudentStatusTableModel();
+        JTable statusTable = new JTable(stStatusModel);
+        JButton btnAction = new JButton("Request Extension / Renew");
+        btnAction.addActionListener(e -> {
+            int row = statusTable.getSelectedRow();
+            if (row != -1) {
+                String status = stStatusModel.getValueAt(row, 1).toString();
+                if (status.startsWith("BORROWED")) {
+                    BorrowRecord rec = (BorrowRecord) stStatusModel.getRow(row); // BORROWED rows are records
+                    String[] options = {"Renew (Start New Cycle)", "Extend Due Date (Delay Return)"};
+                    int choice = JOptionPane.showOptionDialog(this, "Choose request type:", "Request Option", JOptionPane.DEFAULT_OPTION, JOptionPane.QUESTION_MESSAGE, null, options, options[0]);
+                    try {
+                        if (choice == 0) {
+                            stStatusModel.addRequest(BorrowService.requestRenew((Student) currentUser, rec.getItem()));
+                            JOptionPane.showMessageDialog(this, "Renew Request Sent!");
+                        } else if (choice == 1) {
+                            String[] dayOptions = {"1 Day", "3 Days"};
+                            int dayChoice = JOptionPane.showOptionDialog(this, "Select extension duration:", "Extend Due Date", JOptionPane.DEFAULT_OPTION, JOptionPane.QUESTION_MESSAGE, null, dayOptions, dayOptions[0]);
+                            int daysToAdd = (dayChoice == 0) ? 1 : 3; 
+                            stStatusModel.addRequest(BorrowService.requestExtend((Student) currentUser, rec.getItem(), daysToAdd));
+                            JOptionPane.showMessageDialog(this, "Extension Request Sent (" + daysToAdd + " days)!");
+                        }
+                    } catch (BorrowException ex) { JOptionPane.showMessageDialog(this, ex.getMessage()); }
+                } else { JOptionPane.showMessageDialog(this, "Can only request on currently BORROWED items."); }
+            } else { JOptionPane.showMessageDialog(this, "Please select an item."); }
+        });
+        statusPanel.add(new JScrollPane(statusTable), BorderLayout.CENTER);
+        statusPanel.add(btnAction, BorderLayout.SOUTH);
+        tabs.addTab("Borrow Items", browsePanel);
+        tabs.addTab("My Status", statusPanel);
+        tabs.addChangeListener(e -> refreshStudentData());
+        JPanel container = new JPanel(new BorderLayout());
+        JButton logout = new JButton("Logout");
+        logout.addActionListener(e -> cardLayout.show(mainPanel, "LOGIN"));
+        container.add(logout, BorderLayout.NORTH);
+        container.add(tabs, BorderLayout.CENTER);
+        return container;
+    }
+
+    private PendingRequestTableModel adReqModel;
+    private ActiveRecordTableModel adRecModel;
+    private TransferTableModel adTransferModel;
+    private BookingTableModel adBookingModel;
+    private JLabel adOverdueLabel;
+    private JPanel createAdminPanel() {
+        JTabbedPane tabs = new JTabbedPane();
+        JPanel approvePanel = new JPanel(new BorderLayout());
+        adReqModel = new PendingRequestTableModel();
+        JTable reqTable = new JTable(adReqModel);
+        JPanel btnPanel = new JPanel();
+        JButton btnApprove = new JButton("Approve");
+        JButton btnReject = new JButton("Reject");
+        JButton btnAuto = new JButton("Auto-Approve...");
+        btnApprove.setBackground(new Color(144, 238, 144));
+        btnReject.setBackground(new Color(255, 99, 71));
+        reqTable.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
+        btnApprove.addActionListener(e -> handleAdminAction(reqTable, true));
+        btnReject.addActionListener(e -> handleAdminAction(reqTable, false));
+        btnAuto.addActionListener(e -> {
+            String days = JOptionPane.showInputDialog(this,
+                    "Approve every pending request that has stock, whose student has no overdue loans,\nand (for extensions) asks for at most this many days:", "3");
+            if (days == null) return;
+            int maxDays;
+            try { maxDays = Integer.parseInt(days.trim()); } catch (NumberFormatException ex) { JOptionPane.showMessageDialog(this, "Please enter a number of days."); return; }
+            runBatch(() -> BorrowService.autoApprove(ApprovalRule.defaults(maxDays), AppClock.today()), "Auto-approved");
+        });
+        btnPanel.add(btnApprove); btnPanel.add(btnReject); btnPanel.add(btnAuto);
+        approvePanel.add(new JScrollPane(reqTable), BorderLayout.CENTER);
+        approvePanel.add(btnPanel, BorderLayout.SOUTH);
+        
+        JPanel returnPanel = new JPanel(new BorderLayout());
+        // [UPDATED] Added Borrow Date Column for Admin
+        adRecModel = new ActiveRecordTableModel();
+        JTable recTable = new JTable(adRecModel);
+        JPanel returnBtnPanel = new JPanel();
+        JButton btnReturn = new JButton("Process Return");
+        JButton btnRemind = new JButton("Send Reminder Email 📧");
+        btnRemind.setBackground(new Color(255, 255, 224));
+        JButton btnRemindAll = new JButton("Remind All Overdue 📬");
+        btnRemindAll.setBackground(new Color(255, 255, 224));
+        btnRemindAll.addActionListener(e -> {
+            btnRemindAll.setEnabled(false);
+            OverdueReminderJob.runNow(n -> SwingUtilities.invokeLater(() -> {
+                btnRemindAll.setEnabled(true);
+                JOptionPane.showMessageDialog(this, n == 0 ? "No new overdue reminders to send." : n + " reminder digest(s) queued.");
+            }));
+        });
+        btnRemind.addActionListener(e -> {
+            int row = recTable.getSelectedRow();
+            if (row != -1) {
+                BorrowRecord rec = DataStore.findRecord(adRecModel.idAt(recTable.convertRowIndexToModel(row)));
+                if (rec != null) {
+                    BorrowService.sendReminder(rec);
+                    JOptionPane.showMessageDialog(this, "Reminder email sent.");
+                }
+            }
+        });
+        btnReturn.addActionListener(e -> {
+            int row = recTable.getSelectedRow();
+            if (row != -1) {
+                BorrowRecord rec = DataStore.findRecord(adRecModel.idAt(recTable.convertRowIndexToModel(row)));
+                if (rec != null) {
+                    LocalDate returnDate = AppClock.today();
+                    int fine = BorrowService.currentFine(rec, returnDate);
+                    if (fine > 0) {
+                        int confirm = JOptionPane.showConfirmDialog(this, "⚠️ ITEM OVERDUE! Fine: " + fine + " THB. Confirm?", "Warning", JOptionPane.YES_NO_OPTION);
+                        if (confirm != JOptionPane.YES_OPTION) return;
+                    }
+                    try {
+                        BorrowService.processReturn(rec, returnDate);
+                        adRecModel.remove(rec);
+                        JOptionPane.showMessageDialog(this, "Item Returned.");
+                    } catch (BorrowException ex) { JOptionPane.showMessageDialog(this, ex.getMessage()); }
+                    refreshOverdueSummary();
+                }
+            }
+        });
+        returnBtnPanel.add(btnReturn); returnBtnPanel.add(btnRemind); returnBtnPanel.add(btnRemindAll);
+        adOverdueLabel = new JLabel(" ");
+        returnPanel.add(adOverdueLabel, BorderLayout.NORTH);
+        returnPanel.add(new JScrollPane(recTable), BorderLayout.CENTER);
+        returnPanel.add(returnBtnPanel, BorderLayout.SOUTH);
+        tabs.addChangeListener(e -> refreshAdminData());
+        tabs.addTab("Pending Requests", approvePanel);
+        tabs.addTab("Active Returns", returnPanel);
+        tabs.addTab("Bookings", createBookingPanel());
+        tabs.addTab("Transfers", createTransferPanel());
+        tabs.addTab("Analytics", createAnalyticsPanel());
+        tabs.addTab("Data", createDataPanel());
+        JPanel container = new JPanel(new BorderLayout());
+        JButton logout = new JButton("Logout");
+        logout.addActionListener(e -> cardLayout.show(mainPanel, "LOGIN"));
+        container.add(logout, BorderLayout.NORTH);
+        container.add(tabs, BorderLayout.CENTER);
+        return container;
+    }
+
+    private UsageTableModel adUsageModel;
+    private Runnable adUsageRefresh = () -> { };
+
+    // Utilisation dashboard; reports come from running counters, so years of history render at once.
+    private JPanel createAnalyticsPanel() {
+        String[] windows = { "Last 30 days", "Last 90 days", "Last 365 days", "All history" };
+        int[] windowDays = { 30, 90, 365, 0 };
+        JComboBox<String> window = new JComboBox<>(windows);
+        window.setSelectedIndex(1);
+        JComboBox<String> view = new JComboBox<>(new String[] { "By item", "By category" });
+        JLabel summary = new JLabel(" ");
+        UsageChart chart = new UsageChart();
+        adUsageModel = new UsageTableModel();
+        JTable table = new JTable(adUsageModel);
+        adUsageModel.onResult(r -> {
+            long returns = UsageAnalytics.Report.sum(r.returned);
+            long peak = UsageAnalytics.Report.max(r.open);
+            summary.setText(String.format(" %s to %s: %,d loans, %,d returns, avg %.1f days, %,d days late, fines %,d THB, peak %,d of %,d units out",
+                    r.from, r.to, UsageAnalytics.Report.sum(r.started), returns,
+                    returns == 0 ? 0.0 : (double) UsageAnalytics.Report.sum(r.loanDays) / returns,
+                    UsageAnalytics.Report.sum(r.daysLate), UsageAnalytics.Report.sum(r.fines), peak, r.capacity));
+            chart.setReport(r);
+        });
+        adUsageRefresh = () -> {
+            LocalDate today = AppClock.today();
+            int days = windowDays[window.getSelectedIndex()];
+            adUsageModel.show(days == 0 ? null : today.minusDays(days - 1), today, view.getSelectedIndex() == 1);
+        };
+        window.addActionListener(e -> adUsageRefresh.run());
+        view.addActionListener(e -> adUsageRefresh.run());
+        JPanel controls = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        controls.add(new JLabel("Window:")); controls.add(window);
+        controls.add(view);
+        JPanel top = new JPanel(new BorderLayout());
+        top.add(controls, BorderLayout.NORTH);
+        top.add(summary, BorderLayout.CENTER);
+        top.add(chart, BorderLayout.SOUTH);
+        JPanel panel = new JPanel(new BorderLayout());
+        panel.add(top, BorderLayout.NORTH);
+        panel.add(new JScrollPane(table), BorderLayout.CENTER);
+        return panel;
+    }
+
+    // Approved bookings waiting to be collected: hand the unit over on a day of the window, or cancel.
+    private JPanel createBookingPanel() {
+        JPanel panel = new JPanel(new BorderLayout());
+        adBookingModel = new BookingTableModel();
+        JTable table = new JTable(adBookingModel);
+        JButton btnCollect = new JButton("Hand Over");
+        JButton btnCancel = new JButton("Cancel Booking");
+        btnCollect.setBackground(new Color(144, 238, 144));
+        btnCancel.setBackground(new Color(255, 99, 71));
+        btnCollect.addActionListener(e -> {
+            int row = table.getSelectedRow();
+            if (row == -1) return;
+            BorrowRequest req = DataStore.findRequest(adBookingModel.idAt(table.convertRowIndexToModel(row)));
+            try {
+                BorrowRecord rec = BorrowService.collectBooking(req, AppClock.today());
+                JOptionPane.showMessageDialog(this, rec.getItem().getName() + " handed over, due back " + rec.getDueDate() + ".");
+            } catch (BorrowException ex) { JOptionPane.showMessageDialog(this, ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE); }
+            refreshAdminData();
+        });
+        btnCancel.addActionListener(e -> {
+            int row = table.getSelectedRow();
+            if (row == -1) return;
+            BorrowRequest req = DataStore.findRequest(adBookingModel.idAt(table.convertRowIndexToModel(row)));
+            try {
+                BorrowService.reject(req);
+            } catch (BorrowException ex) { JOptionPane.showMessageDialog(this, ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE); }
+            refreshAdminData();
+        });
+        JPanel btnPanel = new JPanel();
+        btnPanel.add(btnCollect); btnPanel.add(btnCancel);
+        panel.add(new JScrollPane(table), BorderLayout.CENTER);
+        panel.add(btnPanel, BorderLayout.SOUTH);
+        return panel;
+    }
+
+    // Moving units between branches: request, then approve or reject.
+    private JPanel createTransferPanel() {
+        JPanel panel = new JPanel(new BorderLayout());
+        adTransferModel = new TransferTableModel();
+        JTable table = new JTable(adTransferModel);
+        JButton btnNew = new JButton("New Transfer...");
+        JButton btnApprove = new JButton("Approve");
+        JButton btnReject = new JButton("Reject");
+        btnApprove.setBackground(new Color(144, 238, 144));
+        btnReject.setBackground(new Color(255, 99, 71));
+        btnNew.addActionListener(e -> {
+            JComboBox<Item> item = new JComboBox<>(DataStore.itemsSnapshot().toArray(new Item[0]));
+            JComboBox<String> to = new JComboBox<>(DataStore.branches().toArray(new String[0]));
+            to.setEditable(true);
+            JTextField qty = new JTextField("1", 5);
+            JPanel form = new JPanel(new GridLayout(0, 2, 4, 4));
+            form.add(new JLabel("Item:")); form.add(item);
+            form.add(new JLabel("To branch:")); form.add(to);
+            form.add(new JLabel("Units:")); form.add(qty);
+            if (JOptionPane.showConfirmDialog(this, form, "New Transfer", JOptionPane.OK_CANCEL_OPTION) != JOptionPane.OK_OPTION) return;
+            try {
+                int n = Integer.parseInt(qty.getText().trim());
+                Object dest = to.getSelectedItem();
+                BorrowService.requestTransfer((Item) item.getSelectedItem(), dest == null ? "" : dest.toString().trim().toUpperCase(), n);
+            } catch (NumberFormatException ex) { JOptionPane.showMessageDialog(this, "Please enter a number of units."); return; }
+            catch (BorrowException ex) { JOptionPane.showMessageDialog(this, ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE); return; }
+            refreshAdminData();
+        });
+        btnApprove.addActionListener(e -> handleTransfer(table, true));
+        btnReject.addActionListener(e -> handleTransfer(table, false));
+        JPanel btnPanel = new JPanel();
+        btnPanel.add(btnNew); btnPanel.add(btnApprove); btnPanel.add(btnReject);
+        panel.add(new JScrollPane(table), BorderLayout.CENTER);
+        panel.add(btnPanel, BorderLayout.SOUTH);
+        return panel;
+    }
+
+    private void handleTransfer(JTable table, boolean approve) {
+        int row = table.getSelectedRow();
+        if (row == -1) return;
+        TransferRequest t = adTransferModel.getRow(table.convertRowIndexToModel(row));
+        try {
+            if (approve) {
+                Item to = BorrowService.approveTransfer(t);
+                JOptionPane.showMessageDialog(this, t.getQty() + " unit(s) moved; " + to.getBranch() + " now has " + to.getTotalQty() + ".");
+            } else {
+                BorrowService.rejectTransfer(t);
+            }
+        } catch (BorrowException ex) { JOptionPane.showMessageDialog(this, ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE); }
+        refreshAdminData();
+    }
+
+    // Whole-table export for audit/finance and CSV bulk import; files stream, so size doesn't matter.
+    private JPanel createDataPanel() {
+        JComboBox<DataExporter.Table> table = new JComboBox<>(DataExporter.Table.values());
+        JComboBox<DataExporter.Format> format = new JComboBox<>(DataExporter.Format.values());
+        JButton btnExport = new JButton("Export...");
+        JButton btnImportItems = new JButton("Import Items CSV...");
+        JButton btnImportStudents = new JButton("Import Students CSV...");
+        JTextArea log = new JTextArea(12, 60);
+        log.setEditable(false);
+        btnExport.addActionListener(e -> {
+            DataExporter.Table t = (DataExporter.Table) table.getSelectedItem();
+            DataExporter.Format f = (DataExporter.Format) format.getSelectedItem();
+            JFileChooser chooser = new JFileChooser();
+            chooser.setSelectedFile(new File(t.name().toLowerCase(Locale.ROOT) + "." + f.name().toLowerCase(Locale.ROOT)));
+            if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) return;
+            Path file = chooser.getSelectedFile().toPath();
+            runDataJob(log, () -> "Exported " + DataExporter.export(t, f, file) + " -> " + file);
+        });
+        btnImportItems.addActionListener(e -> importCsv(log, true));
+        btnImportStudents.addActionListener(e -> importCsv(log, false));
+        JPanel controls = new JPanel();
+        controls.add(new JLabel("Table:")); controls.add(table);
+        controls.add(new JLabel("Format:")); controls.add(format);
+        controls.add(btnExport); controls.add(btnImportItems); controls.add(btnImportStudents);
+        JPanel panel = new JPanel(new BorderLayout());
+        panel.add(controls, BorderLayout.NORTH);
+        panel.add(new JScrollPane(log), BorderLayout.CENTER);
+        return panel;
+    }
+
+    private void importCsv(JTextArea log, boolean items) {
+        JFileChooser chooser = new JFileChooser();
+        if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        Path file = chooser.getSelectedFile().toPath();
+        runDataJob(log, () -> {
+            CsvImporter.Result r = items ? CsvImporter.importItems(file) : CsvImporter.importStudents(file);
+            StringBuilder msg = new StringBuilder("Imported " + (items ? "items" : "students") + " from " + file + ": " + r);
+            for (String err : r.errors) msg.append("\n  ").append(err);
+            if (r.skipped > r.errors.size()) msg.append("\n  ...");
+            return msg.toString();
+        });
+    }
+
+    private void runDataJob(JTextArea log, Callable<String> job) {
+        log.append("Working...\n");
+        new SwingWorker<String, Void>() {
+            @Override protected String doInBackground() throws Exception { return job.call(); }
+
+            @Override
+            protected void done() {
+                try {
+                    log.append(get() + "\n");
+                } catch (InterruptedException | ExecutionException e) {
+                    log.append("Failed: " + (e.getCause() != null ? e.getCause().getMessage() : e.getMessage()) + "\n");
+                }
+                refreshAdminData();
+            }
+        }.execute();
+    }
+
+    private void handleAdminAction(JTable table, boolean isApprove) {
+        int[] rows = table.getSelectedRows();
+        if (rows.length > 1) {
+            // Several rows: one batch, one lock, one bulk mail hand-off (off the EDT).
+            List<BorrowRequest> selected = new ArrayList<>();
+            for (int r : rows) selected.add(DataStore.findRequest(adReqModel.idAt(table.convertRowIndexToModel(r))));
+            if (isApprove) runBatch(() -> BorrowService.approveAll(selected), "Approved");
+            else runBatch(() -> BorrowService.rejectAll(selected), "Rejected");
+            return;
+        }
+        int row = table.getSelectedRow();
+        if (row != -1) {
+            BorrowRequest req = DataStore.findRequest(adReqModel.idAt(table.convertRowIndexToModel(row)));
+            if (req != null) {
+                long t0 = System.nanoTime();
+                try {
+                    if (isApprove) {
+                        BorrowRecord rec = BorrowService.approve(req);
+                        if (req.getType() == RequestType.NEW_BORROW) adRecModel.add(rec);
+                        else if (rec != null) adRecModel.update(rec);
+                        refreshOverdueSummary();
+                    } else {
+                        BorrowService.reject(req);
+                    }
+                    adReqModel.remove(req);
+                    ADMIN_ACTION.stop(t0);
+                    JOptionPane.showMessageDialog(this, isApprove ? "Approved." : "Rejected.");
+                } catch (BorrowException ex) {
+                    ADMIN_ACTION.stop(t0);
+                    JOptionPane.showMessageDialog(this, ex.getMessage());
+                }
+            }
+        }
+    }
+
+    private void runBatch(Supplier<BorrowService.BatchResult> batch, String verb) {
+        new SwingWorker<BorrowService.BatchResult, Void>() {
+            @Override protected BorrowService.BatchResult doInBackground() { return batch.get(); }
+
+            @Override
+            protected void done() {
+                try {
+                    BorrowService.BatchResult r = get();
+                    StringBuilder msg = new StringBuilder(verb + " " + r.done.size() + " request(s).");
+                    if (!r.skipped.isEmpty()) {
+                        msg.append("\nLeft pending: ").append(r.skipped.size());
+                        Map<String, Integer> reasons = new TreeMap<>();
+                        for (String why : r.skipped.values()) reasons.merge(why, 1, Integer::sum);
+                        for (Map.Entry<String, Integer> e : reasons.entrySet()) msg.append("\n  ").append(e.getKey()).append(": ").append(e.getValue());
+                    }
+                    JOptionPane.showMessageDialog(SmartBorrowSystem.this, msg.toString());
+                } catch (InterruptedException | ExecutionException e) {
+                    JOptionPane.showMessageDialog(SmartBorrowSystem.this, "Batch failed: " + e.getMessage());
+                }
+                refreshAdminData();
+            }
+        }.execute();
+    }
+
+    private void refreshStudentData() {
+        if (stItemModel == null || currentUser == null) return;
+        long t0 = System.nanoTime();
+        User student = currentUser;
+        refreshCategories();
+        searchItems();
+        stStatusModel.reload(() -> StudentStatusTableModel.fetch(student));
+        REFRESH_STUDENT.stop(t0);
+    }
+
+    private void searchItems() {
+        Object cat = stCategoryBox.getSelectedItem();
+        stItemModel.search(stSearchField.getText(), ALL_CATEGORIES.equals(cat) ? null : (String) cat, stAvailableOnly.isSelected());
+    }
+
+    /** Keeps the category filter in step with the catalog (cheap: facets of the empty query). */
+    private void refreshCategories() {
+        Set<String> cats = DataStore.searchItems("", null, false, 0).facets.keySet();
+        if (stCategoryBox.getItemCount() == cats.size() + 1) return;
+        Object selected = stCategoryBox.getSelectedItem();
+        updatingCategories = true;
+        stCategoryBox.removeAllItems();
+        stCategoryBox.addItem(ALL_CATEGORIES);
+        for (String c : cats) stCategoryBox.addItem(c);
+        stCategoryBox.setSelectedItem(selected);
+        updatingCategories = false;
+    }
+
+    private void refreshAdminData() {
+        if (adReqModel == null) return;
+        long t0 = System.nanoTime();
+        adReqModel.reload(DataStore::pendingRequests);
+        adRecModel.reload(DataStore::activeRecords);
+        adTransferModel.reload(DataStore::pendingTransfers);
+        adBookingModel.reload(DataStore::bookings);
+        refreshOverdueSummary();
+        adUsageRefresh.run();
+        REFRESH_ADMIN.stop(t0);
+    }
+
+    private void refreshOverdueSummary() {
+        OverdueIndex.Summary sum = DataStore.overdueSummary(AppClock.today());
+        adOverdueLabel.setText(" Overdue: " + sum.loans + " loan(s), outstanding fines " + sum.fines + " THB");
+    }
+
+    public static void main(String[] args) throws IOException {
+        try {
+            FinePolicy.current(); // a bad -Dshareu.fines file stops startup instead of charging the default rate
+            WaitlistService.offerAllFreeUnits(); // first DataStore use: loads shareu-data/, or stops startup if it can't
+        } catch (ExceptionInInitializerError e) {
+            System.err.println("❌ " + e.getCause().getMessage());
+            System.exit(1);
+        }
+        Metrics.registerJmx();
+        if (args.length > 0 && args[0].equals("--headless")) {
+            HttpApiServer.start(args.length > 1 ? Integer.parseInt(args[1]) : 8080);
+            return;
+        }
+        String port = System.getProperty("shareu.http.port");
+        if (port != null) HttpApiServer.start(Integer.parseInt(port));
+        SwingUtilities.invokeLater(() -> new SmartBorrowSystem().setVisible(true));
+    }
+}
+// ==========================================
+// 5. PERFORMANCE HARNESS (headless)
+// ==========================================
+
+/**
+ * Stress checks and micro-benchmarks that run without the GUI:
+ *   java -cp .:javax.mail-1.6.2.jar:activation-1.1.1.jar PerfHarness <command> [args]
+ * Persistence is off unless -Dshareu.persist=true is given, so runs never touch shareu-data/.
+ */
+class PerfHarness {
+    public static void main(String[] args) throws Exception {
+        if (System.getProperty("shareu.persist") == null) System.setProperty("shareu.persist", "false");
+        String cmd = args.length > 0 ? args[0] : "";
+        // Load tests measure the API, not PBKDF2; `login` keeps the production cost.
+        if (!cmd.equals("login") && System.getProperty("shareu.pbkdf2.iterations") == null)
+            System.setProperty("shareu.pbkdf2.iterations", "1000");
+        if (cmd.equals("waitlist") && System.getProperty("shareu.offer.ttl") == null)
+            System.setProperty("shareu.offer.ttl", "PT0.3S"); // so the expiry phase finishes quickly
+        switch (cmd) {
+            case "inventory": inventory(intArg(args, 1, 16), intArg(args, 2, 3)); break;
+            case "http": httpLoad(intArg(args, 1, 200), intArg(args, 2, 10)); break;
+            case "bench": bench(args.length > 1 ? args[1] : "1000,100000,1000000"); break;
+            case "login": loginLoad(intArg(args, 1, 4), intArg(args, 2, 32)); break;
+            case "attachments": attachments(intArg(args, 1, 2000)); break;
+            case "catalog": catalog(intArg(args, 1, 100_000)); break;
+            case "waitlist": waitlist(intArg(args, 1, 100_000), intArg(args, 2, 8)); break;
+            case "batch": batch(intArg(args, 1, 500), intArg(args, 2, 15)); break;
+            case "export": exchange(intArg(args, 1, 1_000_000)); break;
+            case "analytics": analytics(intArg(args, 1, 1_000_000)); break;
+            case "metrics": metrics(intArg(args, 1, 4), intArg(args, 2, 2000)); break;
+            case "branches": branches(intArg(args, 1, 8), intArg(args, 2, 2)); break;
+            case "history": history(intArg(args, 1, 1_000_000)); break;
+            case "fines": fines(intArg(args, 1, 1_000_000)); break;
+            case "bookings": bookings(intArg(args, 1, 20_000)); break;
+            case "events": events(intArg(args, 1, 20_000), intArg(args, 2, 4)); break;
+            case "simulate": simulate(intArg(args, 1, 2000), intArg(args, 2, 112), intArg(args, 3, 1), intArg(args, 4, 2)); break;
+            default:
+                System.out.println("Commands:");
+                System.out.println("  inventory [threads=16] [seconds=3]   CAS stock contention + oversell check");
+                System.out.println("  http [clients=200] [seconds=10]      HTTP API load test (req/s, p50/p99)");
+                System.out.println("  bench [sizes=1000,100000,1000000]    core workflow micro-benchmarks per dataset size (records)");
+                System.out.println("  login [threads=4] [users=32]         PBKDF2 login burst, cached logins, token resume, brute-force limit");
+                System.out.println("  attachments [messages=2000]          welcome-mail build+serialize, cached vs per-message file read");
+                System.out.println("  catalog [items=100000]               catalog search/facet latency, checked against a full scan");
+                System.out.println("  waitlist [waiters=100000] [threads=8] FIFO allocation cost vs queue depth, concurrent returns, offer expiry");
+                System.out.println("  batch [pending=500] [rounds=15]      batch/auto approval vs the row-by-row admin path");
+                System.out.println("  export [records=1000000]             CSV/JSON export of every table and CSV bulk import, rows/s");
+                System.out.println("  analytics [records=1000000]          usage report build time vs a history scan, checked against it");
+                System.out.println("  metrics [threads=4] [loans=2000]     timer overhead per op, quantile accuracy, sample dump after a workload");
+                System.out.println("  branches [threads=8] [seconds=2]     borrow throughput and lock contention vs branch count, transfer conservation");
+                System.out.println("  history [records=1000000]            heap per loan record, objects vs columnar history, and paging cost");
+                System.out.println("  fines [loans=1000000]                fine policy vs the old calculator, holiday/grace/cap checks, batch pricing");
+                System.out.println("  bookings [attempts=20000]            future bookings vs a day-by-day count, extension/borrow conflicts, query cost");
+                System.out.println("  events [loans=20000] [threads=4]     event bus publish cost, UI batches per burst, views vs a fresh fetch, overflow");
+                System.out.println("  simulate [students=2000] [days=112] [seed=1] [runs=2]  seeded semester on a simulated clock: calls/s, p99s, queues, heap; replayable");
+        }
+        System.exit(0);
+    }
+
+    private static int intArg(String[] args, int i, int def) {
+        return args.length > i ? Integer.parseInt(args[i]) : def;
+    }
+
+    private static void check(boolean ok, String what) {
+        System.out.println((ok ? "  ✅ " : "  ❌ ") + what);
+        if (!ok) System.exit(1);
+    }
+
+    // --- Item reservation under contention ---
+
+    static void inventory(int threads, int seconds) throws Exception {
+        System.out.println("Inventory stress: " + threads + " threads");
+
+        // 1. Many threads racing for the last units must never oversell.
+        int stock = 10_000;
+        Item item = new Item("X", "Stress Item", "TEST", stock);
+        AtomicInteger won = new AtomicInteger();
+        runThreads(threads, () -> {
+            for (int i = 0; i < stock; i++) if (item.tryReserve()) won.incrementAndGet();
+        });
+        check(won.get() == stock && item.getCurrentQty() == 0,
+                "oversell: " + won.get() + " reservations for " + stock + " units, qty left " + item.getCurrentQty());
+
+        // 2. Reserve/release churn on a small stock: throughput, and the count must come back whole.
+        Item hot = new Item("H", "Hot Item", "TEST", threads / 2 + 1);
+        AtomicLong ops = new AtomicLong();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        long t0 = System.nanoTime();
+        runThreads(threads, () -> {
+            long n = 0;
+            while (System.nanoTime() < deadline) {
+                if (hot.tryReserve()) { hot.release(); n += 2; } else n++;
+            }
+            ops.addAndGet(n);
+        });
+        double secs = (System.nanoTime() - t0) / 1e9;
+        check(hot.getCurrentQty() == hot.getTotalQty(), "churn: qty back to " + hot.getCurrentQty() + "/" + hot.getTotalQty());
+        System.out.printf("  %,.0f reserve/release ops/s across %d threads%n", ops.get() / secs, threads);
+
+        // 3. Holds that are never confirmed must all come back once they expire.
+        Item held = new Item("D", "Held Item", "TEST", 1000);
+        AtomicInteger holds = new AtomicInteger(), confirmed = new AtomicInteger();
+        runThreads(threads, () -> {
+            for (int i = 0; i < 200; i++) {
+                Item.Hold h = held.tryHold(Duration.ofMillis(50), Thread.currentThread());
+                if (h == null) continue;
+                holds.incrementAndGet();
+                if (i % 4 == 0 && held.confirmHold(h)) confirmed.incrementAndGet();
+            }
+        });
+        Thread.sleep(100);
+        held.reapExpiredHolds(System.currentTimeMillis());
+        check(held.getCurrentQty() == held.getTotalQty() - confirmed.get(),
+                "holds: " + holds.get() + " taken, " + confirmed.get() + " confirmed, qty " + held.getCurrentQty() + "/" + held.getTotalQty());
+    }
+
+    // --- Core workflow micro-benchmarks ---
+    // JMH-style: warm up, then run in a timed window and report ops/s plus bytes allocated per op
+    // (the same numbers JMH's -prof gc gives). 10^7 records needs roughly -Xmx8g.
+
+    private static final long WARMUP_MS = 1000, MEASURE_MS = 2000;
+    private static final int PICKS = 4096;
+    static volatile long sink;
+
+    interface BenchOp { long run(int i); }
+
+    static void bench(String sizes) {
+        System.out.printf("%-28s %10s %14s %12s %10s%n", "benchmark", "records", "ops/s", "ns/op", "B/op");
+        for (String size : sizes.split(",")) {
+            int n = Integer.parseInt(size.trim());
+            DataStore.reset();
+            BenchData d = new BenchData(n, 42);
+            LocalDate today = AppClock.today();
+
+            measure("userLookup.indexed", n, i -> DataStore.findUser(d.userIds[i]) != null ? 1 : 0);
+            measure("userLookup.scan (old)", n, i -> {
+                String id = d.userIds[i];
+                return DataStore.users.stream().filter(u -> u.getId().equals(id)).findFirst().isPresent() ? 1 : 0;
+            });
+            measure("login.cached", n, i -> BorrowService.login(d.userIds[i], "pw") != null ? 1 : 0);
+            measure("borrowCheck.indexed", n, i -> {
+                Student s = d.students[i];
+                Item item = d.itemPick[i];
+                return DataStore.findActiveRecord(s, item) != null || DataStore.findPendingRequest(s, item) != null ? 1 : 0;
+            });
+            measure("borrowCheck.scan (old)", n, i -> {
+                Student s = d.students[i];
+                Item item = d.itemPick[i];
+                boolean a = DataStore.records.stream().anyMatch(r -> r.getStudent().equals(s) && r.getItem().equals(item) && r.getReturnDate() == null);
+                boolean b = DataStore.requests.stream().anyMatch(r -> r.getStudent().equals(s) && r.getItem().equals(item) && r.getStatus() == RequestStatus.PENDING);
+                return a || b ? 1 : 0;
+            });
+            measure("adminResolve.byId", n, i -> DataStore.findRequest(d.pendingPick[i].getId()) != null ? 1 : 0);
+            measure("adminResolve.byName", n, i -> {
+                BorrowRequest p = d.pendingPick[i];
+                User s = DataStore.findUser(p.getStudent().getId());
+                Item item = DataStore.findItemByName(p.getItem().getBranch(), p.getItem().getName());
+                return DataStore.findPendingRequest(s, item) != null ? 1 : 0;
+            });
+            measure("adminResolve.scan (old)", n, i -> {
+                String sId = d.pendingPick[i].getStudent().getId();
+                String iName = d.pendingPick[i].getItem().getName();
+                return DataStore.requests.stream().filter(r -> r.getStudent().getId().equals(sId) && r.getItem().getName().equals(iName) && r.getStatus() == RequestStatus.PENDING).findFirst().isPresent() ? 1 : 0;
+            });
+            measure("refreshAdmin.openFetch", n, i -> DataStore.activeRecords().size());
+            measure("refreshAdmin.scan (old)", n, i -> {
+                long fines = 0;
+                for (BorrowRecord r : DataStore.records) if (r.getReturnDate() == null) fines += oldFine(r.getDueDate(), today);
+                return fines;
+            });
+            measure("overdue.summary.cached", n, i -> DataStore.overdueSummary(today).fines);
+            measure("overdue.summary.recompute", n, i -> DataStore.overdueSummary(today.plusDays(i & 1)).fines);
+            measure("overdue.list", n, i -> DataStore.overdueRecords(today).size());
+            measure("fine.old", n, i -> oldFine(d.duePick[i], today));
+            measure("fine.policy", n, i -> FinePolicy.current().fine(d.itemPick[i], d.duePick[i], today));
+        }
+    }
+
+    static void measure(String name, int size, BenchOp op) {
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long tid = Thread.currentThread().getId();
+        runFor(op, WARMUP_MS);
+        long bytes0 = mx.getThreadAllocatedBytes(tid);
+        long t0 = System.nanoTime();
+        long ops = runFor(op, MEASURE_MS);
+        long elapsed = System.nanoTime() - t0;
+        long bytes = mx.getThreadAllocatedBytes(tid) - bytes0;
+        System.out.printf("%-28s %,10d %,14.0f %,12.1f %,10.1f%n", name, size, ops * 1e9 / elapsed, (double) elapsed / ops, (double) bytes / ops);
+    }
+
+    private static long runFor(BenchOp op, long millis) {
+        long deadline = System.nanoTime() + millis * 1_000_000;
+        long ops = 0, acc = 0;
+        do {
+            for (int i = 0; i < 64; i++) acc += op.run((int) (ops++ & (PICKS - 1)));
+        } while (System.nanoTime() < deadline);
+        sink = acc;
+        return ops;
+    }
+
+    /**
+     * Synthetic campus: n records over n/10 students and n/1000 items, 10% of records still open,
+     * n/10 requests of which 20% pending. Seeded straight into DataStore (persistence is off).
+     */
+    static class BenchData {
+        final String[] userIds = new String[PICKS];
+        final Student[] students = new Student[PICKS];
+        final Item[] itemPick = new Item[PICKS];
+        final BorrowRequest[] pendingPick = new BorrowRequest[PICKS];
+        final LocalDate[] duePick = new LocalDate[PICKS];
+
+        BenchData(int n, long seed) {
+            Random rnd = new Random(seed);
+            int studentCount = Math.max(10, n / 10), itemCount = Math.max(50, n / 1000);
+            Student[] allStudents = new Student[studentCount];
+            String hash = PasswordHasher.hash("pw"); // one hash shared by every student keeps seeding cheap
+            Item[] allItems = new Item[itemCount];
+            for (int i = 0; i < itemCount; i++) {
+                allItems[i] = new Item("B" + i, "Bench Item " + i, "CAT" + (i % 20), 1_000_000);
+                DataStore.addItem(allItems[i]);
+            }
+            for (int i = 0; i < studentCount; i++) {
+                allStudents[i] = Student.restore("S" + i, "Student " + i, "s" + i + "@bench.test", "-", hash, CardType.STUDENT_CARD, 2003);
+                DataStore.addUser(allStudents[i]);
+            }
+            LocalDate today = AppClock.today();
+            for (int i = 0; i < n; i++) {
+                LocalDate borrow = today.minusDays(rnd.nextInt(3 * 365));
+                LocalDate due = borrow.plusDays(7);
+                boolean open = rnd.nextInt(10) == 0;
+                LocalDate ret = open ? null : borrow.plusDays(rnd.nextInt(14));
+                DataStore.addRecord(new BorrowRecord(allStudents[rnd.nextInt(studentCount)], allItems[rnd.nextInt(itemCount)], borrow, due, ret, false));
+            }
+            List<BorrowRequest> pending = new ArrayList<>();
+            for (int i = 0; i < Math.max(10, n / 10); i++) {
+                RequestStatus st = rnd.nextInt(5) == 0 ? RequestStatus.PENDING : RequestStatus.APPROVED;
+                BorrowRequest r = new BorrowRequest(allStudents[rnd.nextInt(studentCount)], allItems[rnd.nextInt(itemCount)],
+                        RequestType.NEW_BORROW, st, today.minusDays(rnd.nextInt(30)), 7);
+                DataStore.addRequest(r);
+                if (st == RequestStatus.PENDING) pending.add(r);
+            }
+            for (int i = 0; i < PICKS; i++) {
+                students[i] = allStudents[rnd.nextInt(studentCount)];
+                userIds[i] = students[i].getId();
+                itemPick[i] = allItems[rnd.nextInt(itemCount)];
+                pendingPick[i] = pending.get(rnd.nextInt(pending.size()));
+                duePick[i] = today.plusDays(rnd.nextInt(60) - 30);
+            }
+        }
+    }
+
+    // --- Login throughput ---
+
+    static void loginLoad(int threads, int users) throws Exception {
+        System.out.println("Login: " + users + " users, " + threads + " threads, PBKDF2 iterations=" + PasswordHasher.ITERATIONS);
+        String hash = PasswordHasher.hash("pw");
+        for (int i = 0; i < users; i++)
+            DataStore.addUser(Student.restore("A" + i, "Auth Student " + i, "a" + i + "@auth.test", "-", hash, CardType.STUDENT_CARD, 2003));
+
+        // Cold: every login pays for one PBKDF2 derivation.
+        AtomicInteger next = new AtomicInteger();
+        loginPhase("cold (pbkdf2)", threads, () -> {
+            int i = next.getAndIncrement();
+            if (i >= users) return false;
+            if (BorrowService.login("A" + i, "pw") == null) check(false, "cold login A" + i);
+            return true;
+        }, Long.MAX_VALUE);
+
+        // Warm: the same credentials again are answered from the verified-credential cache.
+        loginPhase("warm (cached)", threads, () -> BorrowService.login("A" + ThreadLocalRandom.current().nextInt(users), "pw") != null, 2000);
+
+        // Token resume: what every authenticated HTTP call does.
+        String[] tokens = new String[users];
+        for (int i = 0; i < users; i++) tokens[i] = AuthService.startSession(DataStore.findUser("A" + i));
+        loginPhase("token resume", threads, () -> AuthService.resume(tokens[ThreadLocalRandom.current().nextInt(users)]) != null, 2000);
+
+        // Brute force against one id: only the first few guesses reach PBKDF2.
+        long checksBefore = AuthService.hashChecks.get();
+        int limited = 0;
+        long t0 = System.nanoTime();
+        for (int i = 0; i < 1000; i++) {
+            try {
+                if (BorrowService.login("A0", "guess" + i) != null) check(false, "wrong password rejected");
+            } catch (RateLimitedException e) {
+                limited++;
+            }
+        }
+        long checks = AuthService.hashChecks.get() - checksBefore;
+        System.out.printf("  %-16s 1,000 guesses in %.2f s: %d hashed, %d rate-limited%n", "brute force", (System.nanoTime() - t0) / 1e9, checks, limited);
+        check(checks <= 5, "lockout after 5 failures");
+        System.out.println("  " + AuthService.stats());
+    }
+
+    interface LoginStep { boolean run(); }
+
+    private static void loginPhase(String name, int threads, LoginStep step, long millis) throws InterruptedException {
+        long deadline = millis == Long.MAX_VALUE ? Long.MAX_VALUE : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        List<long[]> latencies = Collections.synchronizedList(new ArrayList<>());
+        long t0 = System.nanoTime();
+        runThreads(threads, () -> {
+            LatencyLog log = new LatencyLog();
+            while (System.nanoTime() < deadline) {
+                long s = System.nanoTime();
+                if (!step.run()) break;
+                log.add(System.nanoTime() - s);
+            }
+            latencies.add(log.toArray());
+        });
+        double secs = (System.nanoTime() - t0) / 1e9;
+        long[] all = LatencyLog.merge(latencies);
+        System.out.printf("  %-16s %,12.0f ops/s  p50=%8.3f ms  p99=%8.3f ms%n", name, all.length / secs,
+                LatencyLog.percentile(all, 50) / 1e6, LatencyLog.percentile(all, 99) / 1e6);
+    }
+
+    // --- Batch approval ---
+
+    static void batch(int pending, int rounds) throws Exception {
+        // Mail workers wait at a gate while a round is timed, so the numbers are the approval
+        // engine's own cost rather than SMTP-less message building competing for the CPU.
+        CountDownLatch[] gate = { new CountDownLatch(1) };
+        EmailService.setTransportFactory(() -> new MailTransport() {
+            @Override public void send(MimeMessage message) {
+                try { gate[0].await(); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+            }
+            @Override public void close() { }
+        });
+        String hash = PasswordHasher.hash("pw");
+        String[] paths = { "row-by-row (old)", "approveAll", "autoApprove" };
+        long[][] nanos = new long[paths.length][rounds];
+        int warmup = 5;
+        for (int round = -warmup; round < rounds; round++) {
+            for (int p = 0; p < paths.length; p++) {
+                List<BorrowRequest> reqs = seedPending(pending, hash);
+                System.gc();
+                Thread.sleep(50); // let the previous round's mail workers go idle
+                int path = p;
+                long[] t = new long[1];
+                int[] approved = new int[1];
+                quietly(() -> {
+                    long t0 = System.nanoTime();
+                    if (path == 0) {
+                        // What handleAdminAction did per selected row: resolve by display strings, approve, notify.
+                        for (BorrowRequest r : reqs) {
+                            User student = DataStore.findUser(r.getStudent().getId());
+                            Item item = DataStore.findItemByName(r.getItem().getBranch(), r.getItem().getName());
+                            BorrowRequest req = DataStore.findPendingRequest(student, item);
+                            BorrowService.approve(req);
+                            approved[0]++;
+                        }
+                    } else if (path == 1) {
+                        approved[0] = BorrowService.approveAll(reqs).done.size();
+                    } else {
+                        approved[0] = BorrowService.autoApprove(ApprovalRule.defaults(3), AppClock.today()).done.size();
+                    }
+                    t[0] = System.nanoTime() - t0;
+                    gate[0].countDown(); // let the queue drain before the next round
+                });
+                gate[0] = new CountDownLatch(1);
+                if (round >= 0) nanos[p][round] = t[0];
+                int expected = path == 2 ? pending - pending / 20 : pending; // every 20th is a 7-day extension
+                if (approved[0] != expected) check(false, paths[p] + " approved " + approved[0] + " of " + expected);
+            }
+        }
+        System.out.println("Batch approval: " + pending + " pending requests (70% borrow, 15% renew, 15% extend), median of " + rounds + " after " + warmup + " warm-up rounds");
+        double base = 0;
+        for (int p = 0; p < paths.length; p++) {
+            Arrays.sort(nanos[p]);
+            double ms = nanos[p][rounds / 2] / 1e6;
+            if (p == 0) base = ms;
+            System.out.printf("  %-18s %8.2f ms  %8.1f us/request  %5.1fx%n", paths[p], ms, ms * 1e3 / pending, base / ms);
+        }
+    }
+
+    /** Fresh store with `pending` requests on distinct (student, item) pairs; renew/extend ones get an active loan. */
+    private static List<BorrowRequest> seedPending(int pending, String hash) {
+        DataStore.reset();
+        int itemCount = 50;
+        List<Item> items = new ArrayList<>();
+        for (int i = 0; i < itemCount; i++) {
+            Item item = new Item("BA" + i, "Batch Item " + i, "CAT" + (i % 5), pending);
+            DataStore.addItem(item);
+            items.add(item);
+        }
+        List<BorrowRequest> out = new ArrayList<>();
+        for (int i = 0; i < pending; i++) {
+            Student s = Student.restore("BS" + i, "Batch Student " + i, "bs" + i + "@batch.test", "-", hash, CardType.STUDENT_CARD, 2003);
+            DataStore.addUser(s);
+            Item item = items.get(i % itemCount);
+            int kind = i % 20; // 0..13 borrow, 14..16 renew, 17..19 extend
+            BorrowRequest r;
+            if (kind < 14) {
+                r = new BorrowRequest(s, item, RequestType.NEW_BORROW, 7);
+            } else {
+                DataStore.reserveUnit(item);
+                DataStore.addRecord(new BorrowRecord(s, item, AppClock.today()));
+                r = kind < 17 ? new BorrowRequest(s, item, RequestType.RENEW, 7)
+                              : new BorrowRequest(s, item, RequestType.EXTEND, kind == 19 ? 7 : 2);
+            }
+            DataStore.addRequest(r);
+            out.add(r);
+        }
+        return out;
+    }
+
+    // --- Export / import ---
+
+    static void exchange(int records) throws Exception {
+        Path dir = Files.createTempDirectory("shareu-export");
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long tid = Thread.currentThread().getId();
+
+        // 1. Awkward text survives export -> import: commas, quotes, line breaks, Thai.
+        DataStore.reset();
+        String[][] odd = { { "Q1", "Lens \"Pro\", 50mm", "AV" }, { "Q2", "Two\nlines\r\nhere", "IT" }, { "Q3", "กล้อง Canon", "ภาพ" }, { "Q4", ",", "" } };
+        for (String[] o : odd) DataStore.addItem(new Item(o[0], o[1], o[2], 3));
+        Path small = dir.resolve("odd.csv");
+        DataExporter.export(DataExporter.Table.ITEMS, DataExporter.Format.CSV, small);
+        DataStore.reset();
+        CsvImporter.Result back = CsvImporter.importItems(small);
+        boolean same = back.imported == odd.length;
+        for (String[] o : odd) {
+            Item i = DataStore.findItem(o[0]);
+            same &= i != null && i.getName().equals(o[1]) && i.getCategory().equals(o[2]) && i.getTotalQty() == 3;
+        }
+        check(same, "round trip of quoted/multi-line/Thai fields (" + back.imported + " items)");
+
+        // 2. Export every table of a large history in both formats.
+        DataStore.reset();
+        long s0 = System.nanoTime();
+        new BenchData(records, 42);
+        System.out.printf("Export: seeded %,d records in %d ms%n", records, (System.nanoTime() - s0) / 1_000_000);
+        System.out.printf("  %-9s %-5s %12s %10s %9s %14s %8s%n", "table", "fmt", "rows", "MB", "ms", "rows/s", "B/row");
+        Path recordsCsv = dir.resolve("records.csv");
+        for (int round = 0; round < 2; round++) { // the first round only warms up the JIT
+            for (DataExporter.Table t : DataExporter.Table.values()) {
+                for (DataExporter.Format f : DataExporter.Format.values()) {
+                    Path file = dir.resolve(t.name().toLowerCase(Locale.ROOT) + "." + f.name().toLowerCase(Locale.ROOT));
+                    long b0 = mx.getThreadAllocatedBytes(tid);
+                    DataExporter.Stats st = DataExporter.export(t, f, file);
+                    long allocated = mx.getThreadAllocatedBytes(tid) - b0;
+                    if (round == 0) continue;
+                    System.out.printf("  %-9s %-5s %,12d %10.1f %,9d %,14.0f %,8.0f%n", t, f, st.rows, st.bytes / 1e6, st.nanos / 1_000_000,
+                            st.rowsPerSec(), (double) allocated / Math.max(1, st.rows));
+                    if (!file.equals(recordsCsv)) Files.delete(file);
+                }
+            }
+        }
+
+        // The fines in the file must add up to what the store says.
+        LocalDate today = AppClock.today();
+        long expected = 0;
+        for (BorrowRecord r : DataStore.records)
+            expected += FinePolicy.current().fine(r, today);
+        long fromFile = 0, rows = 0;
+        try (Reader in = Files.newBufferedReader(recordsCsv)) {
+            CsvImporter.CsvReader csv = new CsvImporter.CsvReader(in);
+            List<String> fields = new ArrayList<>();
+            csv.next(fields);
+            int fineCol = fields.indexOf("fine");
+            while (csv.next(fields)) {
+                fromFile += Long.parseLong(fields.get(fineCol));
+                rows++;
+            }
+        }
+        check(rows == DataStore.records.size() && fromFile == expected, "records.csv: " + rows + " rows, fines total " + fromFile + " THB");
+        Files.delete(recordsCsv);
+
+        // 3. Bulk import into an empty store.
+        DataStore.reset();
+        int itemRows = Math.max(1000, records / 4), studentRows = Math.max(1000, records / 10);
+        Path itemsCsv = dir.resolve("items-in.csv"), studentsCsv = dir.resolve("students-in.csv");
+        String hash = PasswordHasher.hash("pw");
+        try (Writer w = Files.newBufferedWriter(itemsCsv)) {
+            w.write("itemId,name,category,totalQty\n");
+            for (int i = 0; i < itemRows; i++) w.write("IMP" + i + "," + PRODUCTS[i % PRODUCTS.length] + " " + i + ",CAT" + (i % 40) + "," + (1 + i % 5) + "\n");
+            w.write("IMP0,Duplicate,CAT0,1\nIMP-BAD,Broken,CAT0,many\n");
+        }
+        try (Writer w = Files.newBufferedWriter(studentsCsv)) {
+            w.write("id,name,email,phone,cardType,birthYear,passwordHash\n");
+            for (int i = 0; i < studentRows; i++) w.write("IS" + i + ",Imported Student " + i + ",is" + i + "@import.test,08" + i + ",STUDENT_CARD," + (2000 + i % 6) + "," + hash + "\n");
+        }
+        CsvImporter.Result ri = CsvImporter.importItems(itemsCsv);
+        CsvImporter.Result rs = CsvImporter.importStudents(studentsCsv);
+        System.out.println("Import:");
+        System.out.println("  items     " + ri);
+        System.out.println("  students  " + rs);
+        check(ri.imported == itemRows && ri.skipped == 2 && rs.imported == studentRows && DataStore.users.size() == studentRows,
+                "imported " + ri.imported + " items (" + ri.errors + ") and " + rs.imported + " students");
+        Files.delete(itemsCsv);
+        Files.delete(studentsCsv);
+        Files.delete(small);
+        Files.delete(dir);
+    }
+
+    // --- Usage analytics ---
+
+    static void analytics(int records) {
+        DataStore.reset();
+        new BenchData(records, 42);
+        LocalDate today = AppClock.today();
+        List<BorrowRecord> all = new ArrayList<>(DataStore.records);
+        List<Item> items = DataStore.itemsSnapshot();
+        System.out.printf("Usage analytics: %,d records, %,d items%n", records, items.size());
+
+        // 1. Every report must agree with a from-scratch scan of the records.
+        LocalDate[] froms = { today.minusDays(29), today.minusDays(364), null };
+        for (LocalDate from : froms) {
+            UsageAnalytics.Report r = DataStore.usageReport(from, today);
+            Map<Item, long[]> scan = scanUsage(all, r.from, today); // loans, peak, unit-days
+            boolean ok = true;
+            for (int i = 0; i < items.size(); i++) {
+                UsageAnalytics.Usage u = r.items.get(i);
+                long[] e = scan.getOrDefault(items.get(i), new long[3]);
+                double util = u.capacity == 0 ? 0 : (double) e[2] / ((long) u.capacity * r.started.length);
+                if (u.windowLoans != e[0] || u.peak != e[1] || Math.abs(u.utilisation - util) > 1e-9) {
+                    ok = false;
+                    check(false, items.get(i).getName() + ": counters " + u.windowLoans + "/" + u.peak + " vs scan " + e[0] + "/" + e[1]);
+                }
+            }
+            long fines = 0;
+            for (BorrowRecord rec : all)
+                if (rec.getReturnDate() != null && !rec.getReturnDate().isBefore(r.from) && !rec.getReturnDate().isAfter(today)) fines += FinePolicy.current().fine(rec, today);
+            check(ok && UsageAnalytics.Report.sum(r.fines) == fines, "report " + r.from + ".." + today + " matches a full scan (" + r.started.length + " days)");
+        }
+
+        // 2. Report build time vs rebuilding the same numbers by scanning the history.
+        System.out.printf("  %-22s %12s %12s %8s%n", "window", "counters", "scan (old)", "speedup");
+        String[] names = { "30 days", "365 days", "all history" };
+        for (int w = 0; w < froms.length; w++) {
+            LocalDate from = froms[w];
+            LocalDate start = DataStore.usageReport(from, today).from;
+            double counters = timeMillis(i -> DataStore.usageReport(from, today).items.size());
+            double scan = timeMillis(i -> scanUsage(all, start, today).size());
+            System.out.printf("  %-22s %9.2f ms %9.2f ms %7.0fx%n", names[w], counters, scan, scan / counters);
+        }
+
+        // 3. What keeping the counters costs each loan.
+        UsageAnalytics u = new UsageAnalytics();
+        long t0 = System.nanoTime();
+        for (int round = 0; round < 3; round++) {
+            if (round == 2) t0 = System.nanoTime();
+            u.clear();
+            for (BorrowRecord rec : all) {
+                u.loanStarted(rec);
+                if (rec.getReturnDate() != null) u.loanReturned(rec);
+            }
+        }
+        System.out.printf("  upkeep: %.0f ns per loan (start + return)%n", (System.nanoTime() - t0) / (double) all.size());
+    }
+
+    // --- Metrics ---
+
+    static void metrics(int threads, int loans) throws Exception {
+        // 1. Histogram quantiles against the exact ones of a skewed (log-normal, median ~1 ms) sample.
+        Random rnd = new Random(42);
+        long[] values = new long[1_000_000];
+        Metrics.Timer t = new Metrics.Timer("bench.accuracy");
+        for (int i = 0; i < values.length; i++) t.record(values[i] = (long) Math.exp(Math.log(1e6) + 1.5 * rnd.nextGaussian()));
+        Arrays.sort(values);
+        Metrics.Snapshot snap = t.snapshot();
+        double worst = 0;
+        for (double q : new double[] { 0.5, 0.9, 0.99, 0.999, 1.0 }) {
+            double exact = values[(int) Math.ceil(q * values.length) - 1] / 1e6;
+            worst = Math.max(worst, Math.abs(snap.quantileMillis(q) - exact) / exact);
+        }
+        check(snap.count == values.length && worst <= 1.0 / 32, String.format("quantiles p50..max within %.2f%% of exact (bound 3.13%%)", worst * 100));
+
+        // 2. What one stop() costs on top of the nanoTime call it needs anyway.
+        System.out.printf("%-28s %10s %14s %12s %10s%n", "benchmark", "threads", "ops/s", "ns/op", "B/op");
+        Metrics.Timer hot = new Metrics.Timer("bench.overhead");
+        Metrics.Counter hits = new Metrics.Counter();
+        measure("nanoTime (baseline)", 1, i -> System.nanoTime());
+        measure("counter.increment", 1, i -> { hits.increment(); return i; });
+        measure("timer.stop", 1, i -> { hot.stop(System.nanoTime()); return i; });
+        int perThread = 2_000_000;
+        hot.reset();
+        long t0 = System.nanoTime();
+        runThreads(threads, () -> { for (int i = 0; i < perThread; i++) hot.stop(System.nanoTime()); });
+        long elapsed = System.nanoTime() - t0;
+        System.out.printf("%-28s %,10d %,14.0f %,12.1f %10s%n", "timer.stop (shared)", threads,
+                (double) threads * perThread * 1e9 / elapsed, (double) elapsed * threads / ((long) threads * perThread), "-");
+        check(hot.snapshot().count == (long) threads * perThread, "shared timer counted all " + (long) threads * perThread + " samples");
+
+        // 3. A short borrow/approve/return workload, then the table GET /api/metrics serves.
+        EmailService.setTransportFactory(PerfHarness::discardingTransport);
+        String hash = PasswordHasher.hash("pw");
+        Metrics.reset();
+        quietly(() -> {
+            for (int round = 0; round < 5; round++) {
+                List<BorrowRequest> reqs = seedPending(loans, hash);
+                for (int i = 0; i < 200; i++) BorrowService.login(reqs.get(i).getStudent().getId(), "pw");
+                for (int i = 0; i < reqs.size(); i += 2) BorrowService.approve(reqs.get(i));
+                for (BorrowRecord rec : BorrowService.approveAll(reqs).records) BorrowService.processReturn(rec, AppClock.today());
+            }
+        });
+        System.out.println();
+        System.out.print(Metrics.dump());
+    }
+
+    /** The old way: per item loans started in the window, peak loans out, and unit-days in use. */
+    private static Map<Item, long[]> scanUsage(List<BorrowRecord> records, LocalDate from, LocalDate to) {
+        long first = from.toEpochDay(), last = to.toEpochDay();
+        int days = (int) (last - first + 1);
+        Map<Item, long[]> deltas = new HashMap<>(); // per item: open change per window day, [0] also takes loans out before it
+        Map<Item, long[]> out = new HashMap<>();
+        for (BorrowRecord r : records) {
+            long b = r.getBorrowDate().toEpochDay(), e = r.getReturnDate() == null ? Long.MAX_VALUE : r.getReturnDate().toEpochDay() + 1;
+            long[] d = deltas.computeIfAbsent(r.getItem(), k -> new long[days + 1]);
+            long[] o = out.computeIfAbsent(r.getItem(), k -> new long[3]);
+            if (b >= first && b <= last) o[0]++;
+            if (e <= first || b > last) continue;
+            d[(int) (Math.max(b, first) - first)]++;
+            if (e <= last) d[(int) (e - first)]--;
+        }
+        for (Map.Entry<Item, long[]> en : deltas.entrySet()) {
+            long open = 0;
+            long[] o = out.get(en.getKey());
+            for (int i = 0; i < days; i++) {
+                open += en.getValue()[i];
+                o[1] = Math.max(o[1], open);
+                o[2] += open;
+            }
+        }
+        return out;
+    }
+
+    /** Median of a few runs after warming up. */
+    private static double timeMillis(BenchOp op) {
+        for (int i = 0; i < 3; i++) sink += op.run(i);
+        long[] t = new long[7];
+        for (int i = 0; i < t.length; i++) {
+            long t0 = System.nanoTime();
+            sink += op.run(i);
+            t[i] = System.nanoTime() - t0;
+        }
+        Arrays.sort(t);
+        return t[t.length / 2] / 1e6;
+    }
+
+    // --- Branch partitioning ---
+
+    static void branches(int threads, int seconds) throws Exception {
+        EmailService.setTransportFactory(PerfHarness::discardingTransport);
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        if (mx.isThreadContentionMonitoringSupported()) mx.setThreadContentionMonitoringEnabled(true);
+        String hash = PasswordHasher.hash("pw");
+
+        // 1. Request/approve/return cycles, thread k on branch k % branches: the more branches,
+        //    the fewer threads share a branch lock.
+        System.out.printf("%-10s %8s %14s %14s %14s%n", "branches", "threads", "cycles/s", "blocked/op", "blocked ms");
+        for (int run = 0; run < 5; run++) {
+            int n = run == 0 ? 1 : 1 << (run - 1); // run 0 only warms up the JIT
+            DataStore.reset();
+            List<List<Item>> stock = new ArrayList<>();
+            for (int b = 0; b < n; b++) {
+                List<Item> items = new ArrayList<>();
+                for (int j = 0; j < 4; j++) {
+                    Item item = new Item("BR" + b + "-" + j, "Branch Item " + j, "CAT" + j, 1000, "B" + b);
+                    DataStore.addItem(item);
+                    items.add(item);
+                }
+                stock.add(items);
+            }
+            List<Runnable> bodies = new ArrayList<>();
+            AtomicLong cycles = new AtomicLong(), blocked = new AtomicLong(), blockedMs = new AtomicLong();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+            for (int k = 0; k < threads; k++) {
+                Student s = Student.restore("BRS" + k, "Branch Student " + k, "brs" + k + "@branch.test", "-", hash, CardType.STUDENT_CARD, 2003);
+                DataStore.addUser(s);
+                List<Item> items = stock.get(k % n);
+                bodies.add(() -> {
+                    long c = 0;
+                    while (System.nanoTime() < deadline) {
+                        BorrowRequest r = BorrowService.requestBorrow(s, items.get((int) (c % items.size())));
+                        BorrowService.processReturn(BorrowService.approve(r), AppClock.today());
+                        c++;
+                    }
+                    ThreadInfo info = mx.getThreadInfo(Thread.currentThread().getId());
+                    cycles.addAndGet(c);
+                    blocked.addAndGet(info.getBlockedCount());
+                    blockedMs.addAndGet(Math.max(0, info.getBlockedTime()));
+                });
+            }
+            long t0 = System.nanoTime();
+            quietly(() -> runThreads(bodies));
+            double secs = (System.nanoTime() - t0) / 1e9;
+            if (run == 0) continue;
+            System.out.printf("%-10d %8d %,14.0f %14.3f %,14d%n", n, threads, cycles.get() / secs,
+                    (double) blocked.get() / Math.max(1, cycles.get()), blockedMs.get());
+            boolean whole = true;
+            for (List<Item> items : stock) for (Item i : items) whole &= i.getCurrentQty() == i.getTotalQty();
+            check(whole && DataStore.activeRecords().isEmpty(), n + " branch(es): every unit back, no open loans after " + cycles.get() + " cycles");
+            List<DataStore.Availability> where = DataStore.availability("Branch Item 0");
+            check(where.size() == n && where.stream().allMatch(a -> a.free == 1000), "availability lists Branch Item 0 at all " + n + " branch(es), fully free");
+        }
+
+        // 2. Transfers racing each other and ordinary loans: units move, none appear or vanish.
+        DataStore.reset();
+        int branchCount = 4, perBranch = 500;
+        List<Item> copies = new ArrayList<>();
+        for (int b = 0; b < branchCount; b++) {
+            Item item = new Item("TR" + b, "Transfer Item", "TEST", perBranch, "B" + b);
+            DataStore.addItem(item);
+            copies.add(item);
+        }
+        AtomicInteger moved = new AtomicInteger(), refused = new AtomicInteger();
+        List<Runnable> bodies = new ArrayList<>();
+        for (int k = 0; k < threads; k++) {
+            Student s = Student.restore("TRS" + k, "Transfer Student " + k, "trs" + k + "@branch.test", "-", hash, CardType.STUDENT_CARD, 2003);
+            DataStore.addUser(s);
+            boolean mover = k % 2 == 0;
+            bodies.add(() -> {
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                for (int i = 0; i < 2000; i++) {
+                    Item from = copies.get(rnd.nextInt(branchCount));
+                    if (mover) {
+                        String to = "B" + ((from.getBranch().charAt(1) - '0' + 1 + rnd.nextInt(branchCount - 1)) % branchCount);
+                        TransferRequest t = BorrowService.requestTransfer(from, to, 1 + rnd.nextInt(Math.min(20, from.getTotalQty())));
+                        try {
+                            BorrowService.approveTransfer(t);
+                            moved.incrementAndGet();
+                        } catch (BorrowException e) {
+                            BorrowService.rejectTransfer(t); // not enough free units right now
+                            refused.incrementAndGet();
+                        }
+                    } else {
+                        try {
+                            BorrowRequest r = BorrowService.requestBorrow(s, from);
+                            if (r.getStatus() == RequestStatus.PENDING) BorrowService.processReturn(BorrowService.approve(r), AppClock.today());
+                            else BorrowService.reject(r);
+                        } catch (BorrowException e) { refused.incrementAndGet(); }
+                    }
+                }
+            });
+        }
+        quietly(() -> runThreads(bodies));
+        int total = 0;
+        boolean settled = true;
+        for (DataStore.Availability a : DataStore.availability("Transfer Item")) {
+            total += a.total;
+            settled &= a.free == a.total;
+        }
+        check(total == branchCount * perBranch && settled && DataStore.pendingTransfers().isEmpty(),
+                String.format("transfers: %,d moved, %,d refused; %d units across %d branches, all free", moved.get(), refused.get(), total, branchCount));
+    }
+
+    // --- Fine policy ---
+
+    /** FineCalculator.calculate as it was before FinePolicy: 100 THB per calendar day after the due date. */
+    static int oldFine(LocalDate due, LocalDate returned) {
+        return returned.isAfter(due) ? (int) (ChronoUnit.DAYS.between(due, returned) * 100) : 0;
+    }
+
+    static void fines(int loans) throws Exception {
+        Random rnd = new Random(7);
+        LocalDate today = AppClock.today();
+        Item misc = new Item("FM", "Fine Misc", "MISC", 1), laptop = new Item("FL", "Fine Laptop", "IT", 1), mic = new Item("FA", "Fine Mic", "AUDIO", 1);
+        Item[] kinds = { misc, laptop, mic };
+
+        // 1. With no configuration nothing changes: the default policy is the old calculator.
+        FinePolicy defaults = FinePolicy.defaults();
+        int pairs = 1_000_000, mismatches = 0;
+        for (int i = 0; i < pairs; i++) {
+            LocalDate due = today.plusDays(rnd.nextInt(4000) - 2000), asOf = due.plusDays(rnd.nextInt(1200) - 200);
+            if (defaults.fine(kinds[i % 3], due, asOf) != oldFine(due, asOf)) mismatches++;
+        }
+        check(mismatches == 0, String.format("default policy equals the old calculate on %,d random (due, return) pairs", pairs));
+
+        // 2. Category rates, grace, caps and holidays against a day-by-day count.
+        Set<LocalDate> holidays = new HashSet<>();
+        for (int i = 0; i < 400; i++) holidays.add(today.plusDays(rnd.nextInt(1500) - 1000));
+        Map<String, FinePolicy.Rule> byCategory = new HashMap<>();
+        byCategory.put("IT", new FinePolicy.Rule(300, 2, 5000));
+        byCategory.put("AUDIO", new FinePolicy.Rule(50, 0, 0));
+        FinePolicy.Rule base = new FinePolicy.Rule(100, 1, 0);
+        FinePolicy policy = new FinePolicy(base, byCategory, holidays);
+        mismatches = 0;
+        for (int i = 0; i < 200_000; i++) {
+            Item item = kinds[rnd.nextInt(3)];
+            LocalDate due = today.plusDays(rnd.nextInt(1600) - 1100), asOf = due.plusDays(rnd.nextInt(150) - 20);
+            long open = 0;
+            for (LocalDate d = due.plusDays(1); !d.isAfter(asOf); d = d.plusDays(1)) if (!holidays.contains(d)) open++;
+            FinePolicy.Rule rule = byCategory.getOrDefault(item.getCategory(), base);
+            long expected = open <= rule.graceDays ? 0 : (open - rule.graceDays) * rule.ratePerDay;
+            if (rule.cap > 0) expected = Math.min(expected, rule.cap);
+            if (policy.fine(item, due, asOf) != expected) mismatches++;
+        }
+        check(mismatches == 0, "per-category rate/grace/cap with 400 holidays matches a day-by-day count on 200,000 loans");
+
+        // 3. Pricing every open loan: one record at a time vs the batch (forked when large).
+        int studentCount = Math.max(10, loans / 10);
+        Student[] students = new Student[studentCount];
+        for (int i = 0; i < studentCount; i++) students[i] = Student.restore("FS" + i, "Fine Student " + i, "fs" + i + "@fine.test", "-", "-", CardType.STUDENT_CARD, 2003);
+        List<BorrowRecord> open = new ArrayList<>();
+        for (int i = 0; i < loans; i++)
+            open.add(new BorrowRecord(students[i % studentCount], kinds[rnd.nextInt(3)], today.plusDays(rnd.nextInt(60) - 90)));
+        double single = timeMillis(k -> {
+            long sum = 0;
+            for (BorrowRecord r : open) sum += policy.fine(r, today);
+            return sum;
+        });
+        double batch = timeMillis(k -> policy.total(open, today));
+        long one = 0;
+        for (BorrowRecord r : open) one += policy.fine(r, today);
+        System.out.printf("  %,d open loans: one by one %.1f ms, batch %.1f ms (%d CPU(s), fork-join parallelism %d)%n",
+                loans, single, batch, Runtime.getRuntime().availableProcessors(), ForkJoinPool.getCommonPoolParallelism());
+        check(one == policy.total(open, today), String.format("batch total %,d THB equals the one-by-one sum", one));
+
+        // 4. The admin overdue summary follows the installed policy.
+        FinePolicy saved = FinePolicy.current();
+        try {
+            DataStore.reset();
+            for (Item item : kinds) DataStore.addItem(item);
+            int sample = Math.min(loans, 100_000);
+            for (int i = 0; i < sample; i++) DataStore.addRecord(open.get(i));
+            long withDefaults = 0, withPolicy = 0;
+            for (BorrowRecord r : open.subList(0, sample)) {
+                withDefaults += defaults.fine(r, today);
+                withPolicy += policy.fine(r, today);
+            }
+            FinePolicy.install(defaults);
+            long a = DataStore.overdueSummary(today).fines;
+            FinePolicy.install(policy);
+            long b = DataStore.overdueSummary(today).fines;
+            check(a == withDefaults && b == withPolicy, String.format("overdue summary re-priced on install: %,d THB by default, %,d THB under the policy", a, b));
+        } finally {
+            FinePolicy.install(saved);
+        }
+
+        // 5. Policy files: a good one loads; a typo is refused, never swapped for the default rate.
+        Path file = Files.createTempFile("fines", ".properties");
+        try {
+            Files.write(file, Arrays.asList("rate=20", "category.IT.rate=50", "category.IT.cap=500", "holidays=2026-12-31"), StandardCharsets.UTF_8);
+            FinePolicy loaded = FinePolicy.load(file.toString());
+            Item it = new Item("FIT", "Fine IT", "IT", 1);
+            check(loaded.ruleFor(it).ratePerDay == 50 && loaded.ruleFor(it).cap == 500 && loaded.ruleFor(null).ratePerDay == 20, "policy file loads: " + loaded);
+            String[][] bad = { { "category.IT=50" }, { "grace=2" }, { "rate=ten" }, { "cap=-1" }, { "holidays=2026-13-01" } };
+            int refusedFiles = 0;
+            for (String[] lines : bad) {
+                Files.write(file, Arrays.asList(lines), StandardCharsets.UTF_8);
+                try {
+                    FinePolicy.load(file.toString());
+                } catch (IllegalArgumentException e) {
+                    refusedFiles++;
+                }
+            }
+            check(refusedFiles == bad.length, refusedFiles + "/" + bad.length + " malformed policy files refused (bare category key, unknown key, bad number, negative, bad date)");
+        } finally {
+            Files.deleteIfExists(file);
+        }
+        check(new FinePolicy.Rule(Integer.MAX_VALUE, 0, 0).fine(1000) == Integer.MAX_VALUE, "a fine too large for an int saturates instead of wrapping");
+    }
+
+    // --- Future bookings ---
+
+    static void bookings(int attempts) throws Exception {
+        EmailService.setTransportFactory(PerfHarness::discardingTransport);
+        Random rnd = new Random(11);
+        LocalDate today = AppClock.today();
+        int span = BorrowService.BOOKING_HORIZON_DAYS + BorrowService.MAX_BOOKING_DAYS + 2;
+        DataStore.reset();
+        Item[] items = new Item[40];
+        Student[] students = new Student[500];
+        for (int i = 0; i < items.length; i++) DataStore.addItem(items[i] = new Item("BK" + i, "Booking Item " + i, "CAT" + i % 5, 1 + i % 4));
+        for (int i = 0; i < students.length; i++) DataStore.addUser(students[i] = Student.restore("BS" + i, "Booker " + i, "bs" + i + "@bench.test", "-", "-", CardType.STUDENT_CARD, 2003));
+
+        // Units out per item and day (0 = today), counted the slow way next to the calendars.
+        int[][] out = new int[items.length][span];
+        for (int i = 0; i < items.length; i++) {
+            for (int k = rnd.nextInt(items[i].getTotalQty() + 1); k > 0; k--) {
+                LocalDate due = today.plusDays(1 + rnd.nextInt(10));
+                DataStore.reserveUnit(items[i]);
+                DataStore.addRecord(new BorrowRecord(students[rnd.nextInt(students.length)], items[i], due));
+                for (int d = 0; d < due.toEpochDay() - today.toEpochDay(); d++) out[i][d]++;
+            }
+        }
+
+        // 1. Random bookings through the service: accepted exactly when every day has a unit left.
+        List<BorrowRequest> approved = new ArrayList<>();
+        int[] wrong = new int[2], counts = new int[3]; // wrong: decisions, next-free answers; counts: booked, refused, cancelled
+        quietly(() -> {
+            for (int n = 0; n < attempts; n++) {
+                int i = rnd.nextInt(items.length), from = 1 + rnd.nextInt(BorrowService.BOOKING_HORIZON_DAYS), len = 1 + rnd.nextInt(BorrowService.MAX_BOOKING_DAYS);
+                int peak = 0;
+                for (int d = from; d < from + len; d++) peak = Math.max(peak, out[i][d]);
+                BorrowRequest req = null;
+                try {
+                    req = BorrowService.requestBooking(students[rnd.nextInt(students.length)], items[i], today.plusDays(from), len);
+                    BorrowService.approve(req);
+                } catch (BorrowException e) {
+                    if (req != null) throw e; // approval right after a successful request must not fail
+                }
+                if ((req != null) != (peak < items[i].getTotalQty())) wrong[0]++;
+                if (req != null) {
+                    approved.add(req);
+                    counts[0]++;
+                    for (int d = from; d < from + len; d++) out[i][d]++;
+                } else {
+                    counts[1]++;
+                }
+                if (!approved.isEmpty() && rnd.nextInt(10) == 0) { // a student calls one off
+                    BorrowRequest gone = approved.remove(rnd.nextInt(approved.size()));
+                    BorrowService.reject(gone);
+                    int g = Arrays.asList(items).indexOf(gone.getItem());
+                    for (long d = gone.getStartDate().toEpochDay(); d < gone.getEndDate().toEpochDay(); d++) out[g][(int) (d - today.toEpochDay())]--;
+                    counts[2]++;
+                }
+                if (n % 20 == 0) {
+                    int s = from;
+                    for (boolean free = false; !free; ) {
+                        free = true;
+                        for (int d = s; d < s + len && free; d++) if (d < span && out[i][d] >= items[i].getTotalQty()) { free = false; s = d + 1; }
+                    }
+                    if (!today.plusDays(s).equals(DataStore.nextFreeWindow(items[i], today.plusDays(from), len))) wrong[1]++;
+                }
+            }
+        });
+        check(wrong[0] == 0, String.format("%,d attempts: %,d booked, %,d refused, %,d cancelled; every decision matches a day-by-day count", attempts, counts[0], counts[1], counts[2]));
+        check(wrong[1] == 0, "next free window matches a day-by-day search on every sampled attempt");
+        check(DataStore.bookings().size() == approved.size(), DataStore.bookings().size() + " open bookings listed for admins");
+
+        // 2. Loans vs bookings on a one-unit item.
+        Item cam = new Item("BKC", "Booking Camera", "AV", 1);
+        DataStore.addItem(cam);
+        Student a = students[0], b = students[1], c = students[2];
+        BorrowRecord[] loan = new BorrowRecord[1];
+        BorrowRequest[] booking = new BorrowRequest[1];
+        String[] refusals = new String[3];
+        boolean[] shortOk = new boolean[1];
+        quietly(() -> {
+            loan[0] = BorrowService.approve(BorrowService.requestBorrow(a, cam)); // due today + 7
+            booking[0] = BorrowService.requestBooking(b, cam, loan[0].getDueDate().plusDays(2), 3);
+            BorrowService.approve(booking[0]);
+            BorrowService.approve(BorrowService.requestExtend(a, cam, 2));     // back the day the booking starts: fine
+            shortOk[0] = loan[0].getDueDate().equals(booking[0].getStartDate());
+            refusals[0] = refusal(() -> BorrowService.approve(BorrowService.requestExtend(a, cam, 1)));
+            refusals[1] = refusal(() -> BorrowService.approve(BorrowService.requestRenew(a, cam)));
+            refusals[2] = refusal(() -> BorrowService.requestBooking(c, cam, booking[0].getStartDate().plusDays(1), 1));
+        });
+        check(shortOk[0] && refusals[0] != null && refusals[1] != null,
+                "extension up to the booking allowed, one more day and a renewal refused: " + refusals[0]);
+        check(refusals[2] != null && refusals[2].contains(booking[0].getEndDate().toString()), "overlapping booking refused with the next window: " + refusals[2]);
+
+        Item lens = new Item("BKL", "Booking Lens", "AV", 1);
+        DataStore.addItem(lens);
+        String[] borrowRefused = new String[1];
+        quietly(() -> {
+            BorrowService.approve(BorrowService.requestBooking(b, lens, today.plusDays(3), 2));
+            borrowRefused[0] = refusal(() -> BorrowService.approve(BorrowService.requestBorrow(c, lens)));
+        });
+        check(borrowRefused[0] != null && lens.getCurrentQty() == 1, "a 7-day loan over a booked day is refused and leaves the unit in stock");
+
+        // An offer made before a booking for this week was approved: the loan is refused and the offered unit goes back.
+        Item mic = new Item("BKM", "Booking Mic", "AV", 1);
+        DataStore.addItem(mic);
+        BorrowRequest[] waiter = new BorrowRequest[1];
+        String[] offerRefused = new String[2];
+        quietly(() -> {
+            BorrowRecord first = BorrowService.approve(BorrowService.requestBorrow(a, mic));
+            waiter[0] = BorrowService.requestBorrow(b, mic);
+            BorrowService.processReturn(first, today); // offered to the waiter
+            BorrowService.approve(BorrowService.requestBooking(c, mic, today.plusDays(2), 2));
+            offerRefused[0] = refusal(() -> BorrowService.approve(waiter[0]));
+            offerRefused[1] = refusal(() -> BorrowService.requestExtend(a, lens, BorrowService.MAX_EXTEND_DAYS + 1));
+        });
+        check(offerRefused[0] != null && WaitlistService.offerFor(waiter[0]) == null && mic.getCurrentQty() == 1,
+                "an offered loan refused over a booking hands its unit back to stock");
+        check(offerRefused[1] != null, "an extension longer than " + BorrowService.MAX_EXTEND_DAYS + " days is refused: " + offerRefused[1]);
+
+        int before = DataStore.unitsBooked(cam, booking[0].getStartDate(), booking[0].getEndDate());
+        String early = refusal(() -> BorrowService.collectBooking(booking[0], booking[0].getStartDate().minusDays(1)));
+        quietly(() -> BorrowService.processReturn(loan[0], booking[0].getStartDate()));
+        BorrowRecord collected = BorrowService.collectBooking(booking[0], booking[0].getStartDate());
+        check(early != null && collected.getDueDate().equals(booking[0].getEndDate()) && !DataStore.bookings().contains(booking[0])
+                && DataStore.unitsBooked(cam, booking[0].getStartDate(), booking[0].getEndDate()) == before,
+                "collected on its first day: a loan due at the window's end takes the booking's place");
+
+        // 3. Query cost on one busy item: the calendar vs counting its bookings per day.
+        Item busy = new Item("BKB", "Booking Busy", "AV", 1_000);
+        DataStore.addItem(busy);
+        List<long[]> windows = new ArrayList<>();
+        quietly(() -> {
+            for (int n = 0; n < 5_000; n++) {
+                int from = 1 + rnd.nextInt(BorrowService.BOOKING_HORIZON_DAYS), len = 1 + rnd.nextInt(BorrowService.MAX_BOOKING_DAYS);
+                BorrowService.approve(BorrowService.requestBooking(students[n % students.length], busy, today.plusDays(from), len));
+                windows.add(new long[] { today.toEpochDay() + from, today.toEpochDay() + from + len });
+            }
+        });
+        int queries = 20_000;
+        long[][] asked = new long[queries][];
+        for (int q = 0; q < queries; q++) {
+            long from = today.toEpochDay() + 1 + rnd.nextInt(BorrowService.BOOKING_HORIZON_DAYS);
+            asked[q] = new long[] { from, from + 1 + rnd.nextInt(BorrowService.MAX_BOOKING_DAYS) };
+        }
+        long[] calendarPeaks = new long[1], scanPeaks = new long[1];
+        double calendar = timeMillis(k -> {
+            long sum = 0;
+            for (long[] w : asked) sum += DataStore.unitsBooked(busy, LocalDate.ofEpochDay(w[0]), LocalDate.ofEpochDay(w[1]));
+            return calendarPeaks[0] = sum;
+        });
+        double scan = timeMillis(k -> {
+            long sum = 0;
+            int[] perDay = new int[BorrowService.MAX_BOOKING_DAYS];
+            for (long[] w : asked) {
+                Arrays.fill(perDay, 0);
+                for (long[] iv : windows)
+                    for (long d = Math.max(iv[0], w[0]); d < Math.min(iv[1], w[1]); d++) perDay[(int) (d - w[0])]++;
+                int peak = 0;
+                for (int v : perDay) peak = Math.max(peak, v);
+                sum += peak;
+            }
+            return scanPeaks[0] = sum;
+        });
+        System.out.printf("  %,d bookings on one item, %,d window checks: calendar %.0f ns/check, per-day scan of its bookings %.0f ns/check (%.0fx)%n",
+                windows.size(), queries, calendar * 1e6 / queries, scan * 1e6 / queries, scan / calendar);
+        check(calendarPeaks[0] == scanPeaks[0], "calendar and scan agree on every window");
+
+        // 4. A schedule everyone keeps: loans come back on their due date, waiters take what the
+        // calendar leaves, and then every approved booking can be collected on its first day.
+        Item kit = new Item("BKK", "Booking Kit", "AV", 3);
+        DataStore.addItem(kit);
+        List<BorrowRecord> lent = new ArrayList<>();
+        List<BorrowRequest> due = new ArrayList<>();
+        List<String> failed = new ArrayList<>();
+        int[] kept = new int[2]; // bookings collected, loans to waiters and walk-ins
+        try {
+            quietly(() -> {
+                for (int day = 0; day < 60; day++) {
+                    LocalDate d = today.plusDays(day);
+                    AppClock.set(Clock.fixed(d.atTime(9, 0).atZone(ZoneId.systemDefault()).toInstant(), ZoneId.systemDefault()));
+                    for (BorrowRecord r : new ArrayList<>(lent)) {
+                        if (!r.getDueDate().equals(d)) continue;
+                        lent.remove(r);
+                        BorrowService.processReturn(r, d);
+                    }
+                    for (BorrowRequest r : new ArrayList<>(due)) {
+                        if (!r.getStartDate().equals(d)) continue;
+                        due.remove(r);
+                        String why = refusal(() -> lent.add(BorrowService.collectBooking(r, d)));
+                        if (why == null) kept[0]++;
+                        else failed.add(why);
+                    }
+                    for (int k = 0; k < 2; k++) refusal(() -> BorrowService.requestBorrow(students[100 + rnd.nextInt(200)], kit)); // a repeat asker is refused
+                    List<BorrowRequest> pending = DataStore.pendingRequests(kit.getBranch());
+                    pending.removeIf(r -> r.getItem() != kit);
+                    BorrowService.BatchResult res = BorrowService.approveAll(pending);
+                    lent.addAll(res.records);
+                    kept[1] += res.records.size();
+                    BorrowService.rejectAll(res.skipped.keySet()); // would run into a booking: the student tries again later
+                    if (rnd.nextInt(3) == 0) {
+                        Student booker = students[300 + due.size() + kept[0]]; // one booking each, so none is already borrowing
+                        try {
+                            BorrowRequest bk = BorrowService.requestBooking(booker, kit, d.plusDays(1 + rnd.nextInt(20)), 1 + rnd.nextInt(5));
+                            BorrowService.approve(bk);
+                            due.add(bk);
+                        } catch (BorrowException fullyBooked) {
+                            // every unit is taken on some day of that window
+                        }
+                    }
+                }
+            });
+        } finally {
+            AppClock.reset();
+        }
+        check(failed.isEmpty() && kept[0] > 0, String.format("60 days, %,d bookings and %,d loans to waiters and walk-ins: every booking collected on its first day%s",
+                kept[0], kept[1], failed.isEmpty() ? "" : " (refused: " + failed + ")"));
+
+        // A unit booked for later this week stays put, and a late loan keeps its unit off the calendar until it is back.
+        Item tripod = new Item("BKT", "Booking Tripod", "AV", 1);
+        DataStore.addItem(tripod);
+        String[] moved = new String[1];
+        quietly(() -> {
+            BorrowService.approve(BorrowService.requestBooking(students[0], tripod, today.plusDays(3), 2));
+            moved[0] = refusal(() -> BorrowService.approveTransfer(BorrowService.requestTransfer(tripod, "BKNORTH", 1)));
+        });
+        check(moved[0] != null && tripod.getTotalQty() == 1, "a transfer that would take a booked unit is refused: " + moved[0]);
+
+        Item flash = new Item("BKF", "Booking Flash", "AV", 1);
+        DataStore.addItem(flash);
+        BorrowRecord[] lateLoan = new BorrowRecord[1];
+        String[] whileLate = new String[1];
+        BorrowRequest[] afterReturn = new BorrowRequest[1];
+        LocalDate lateDay = today.plusDays(BorrowService.LOAN_DAYS + 2);
+        try {
+            quietly(() -> {
+                lateLoan[0] = BorrowService.approve(BorrowService.requestBorrow(students[1], flash));
+                AppClock.set(Clock.fixed(lateDay.atTime(9, 0).atZone(ZoneId.systemDefault()).toInstant(), ZoneId.systemDefault()));
+                whileLate[0] = refusal(() -> BorrowService.requestBooking(students[2], flash, lateDay.plusDays(5), 2));
+                BorrowService.processReturn(lateLoan[0], lateDay);
+                afterReturn[0] = BorrowService.requestBooking(students[2], flash, lateDay.plusDays(5), 2);
+            });
+        } finally {
+            AppClock.reset();
+        }
+        check(whileLate[0] != null && afterReturn[0] != null, "a loan two days late blocks bookings until it comes back: " + whileLate[0]);
+    }
+
+    /** The BorrowException message op failed with, or null if it succeeded. */
+    private static String refusal(ThrowingRunnable op) throws Exception {
+        try {
+            op.run();
+            return null;
+        } catch (BorrowException e) {
+            return e.getMessage();
+        }
+    }
+
+    // --- Event bus ---
+
+    static void events(int loans, int threads) throws Exception {
+        EmailService.setTransportFactory(PerfHarness::discardingTransport);
+        Set<EventBus.Type> all = EnumSet.allOf(EventBus.Type.class);
+
+        // 1. What a write pays to publish.
+        Item probe = new Item("EVP", "Event Probe", "TEST", 1);
+        int n = 1_000_000;
+        BenchOp publish = k -> {
+            for (int i = 0; i < n; i++) EventBus.publish(EventBus.Type.STOCK_CHANGED, probe, null, null);
+            return n;
+        };
+        double idle = timeMillis(publish);
+        EventBus.Subscription counting = EventBus.subscribe(all, 1, b -> sink += b.events.size());
+        double busy = timeMillis(publish);
+        counting.close();
+        System.out.printf("  publish: %.1f ns/event with no subscribers, %.1f ns/event into one coalescing mailbox%n", idle * 1e6 / n, busy * 1e6 / n);
+
+        // 2. A burst from several threads: the admin tables follow it in a few batches on the EDT.
+        DataStore.reset();
+        Item[] items = new Item[50];
+        for (int i = 0; i < items.length; i++) DataStore.addItem(items[i] = new Item("EV" + i, "Event Item " + i, "CAT" + i % 5, loans));
+        Student[] students = new Student[loans];
+        for (int i = 0; i < loans; i++) DataStore.addUser(students[i] = Student.restore("ES" + i, "Event Student " + i, "es" + i + "@bench.test", "-", "-", CardType.STUDENT_CARD, 2003));
+        PendingRequestTableModel pending = new PendingRequestTableModel();
+        ActiveRecordTableModel active = new ActiveRecordTableModel();
+        AtomicLong delivered = new AtomicLong(), applyNanos = new AtomicLong();
+        AtomicInteger batches = new AtomicInteger(), biggest = new AtomicInteger(), outOfOrder = new AtomicInteger();
+        long[] lastId = new long[1];
+        long published0 = Metrics.counter("events.published").get();
+        EventBus.Subscription ui = EventBus.subscribeOnEdt(all, b -> {
+            long t0 = System.nanoTime();
+            pending.apply(b);
+            active.apply(b);
+            applyNanos.addAndGet(System.nanoTime() - t0);
+            for (EventBus.Event e : b.events) {
+                if (e.type != EventBus.Type.REQUEST_CREATED) continue;
+                if (e.request.getId() <= lastId[0]) outOfOrder.incrementAndGet();
+                lastId[0] = e.request.getId();
+            }
+            batches.incrementAndGet();
+            biggest.accumulateAndGet(b.events.size(), Math::max);
+            delivered.addAndGet(b.events.size());
+        });
+        AtomicInteger next = new AtomicInteger();
+        long t0 = System.nanoTime();
+        quietly(() -> runThreads(threads, () -> {
+            for (int c; (c = next.getAndIncrement()) < loans; ) {
+                BorrowRequest r = BorrowService.requestBorrow(students[c], items[c % items.length]);
+                if (c % 5 == 4) continue; // left pending
+                if (c % 5 == 3) { BorrowService.reject(r); continue; }
+                BorrowRecord rec = BorrowService.approve(r);
+                if (c % 2 == 0) BorrowService.processReturn(rec, AppClock.today());
+            }
+        }));
+        double burstMs = (System.nanoTime() - t0) / 1e6;
+        long published = Metrics.counter("events.published").get() - published0;
+        for (int i = 0; i < 100 && delivered.get() < published; i++) Thread.sleep(50);
+        boolean same = false;
+        for (int i = 0; i < 100 && !same; i++) {
+            Thread.sleep(50);
+            boolean[] eq = new boolean[1];
+            SwingUtilities.invokeAndWait(() -> eq[0] = sameRows(pending, DataStore.pendingRequests()) && sameRows(active, DataStore.activeRecords()));
+            same = eq[0];
+        }
+        ui.close();
+        long f0 = System.nanoTime();
+        int fetched = DataStore.pendingRequests().size() + DataStore.activeRecords().size();
+        double fetchMs = (System.nanoTime() - f0) / 1e6;
+        System.out.printf("  %,d loans on %d threads in %.0f ms: %,d events reached the view in %,d batches (avg %.0f, max %,d)%n",
+                loans, threads, burstMs, delivered.get(), batches.get(), (double) delivered.get() / Math.max(1, batches.get()), biggest.get());
+        System.out.printf("  EDT time applying them: %.1f ms; a full reload per event would fetch %,d rows each time (%.2f ms x %,d = %.0f ms)%n",
+                applyNanos.get() / 1e6, fetched, fetchMs, published, fetchMs * published);
+        check(delivered.get() == published && outOfOrder.get() == 0, "every event delivered once, requests in creation order");
+        check(batches.get() < published / 10, String.format("bursts coalesced: %,d events in %,d UI updates", published, batches.get()));
+        check(same, String.format("pushed views equal a fresh fetch: %,d pending, %,d open loans", pending.getRowCount(), active.getRowCount()));
+
+        // 3. A subscriber that stops draining gets one overflow notice, not unbounded memory.
+        CountDownLatch stuck = new CountDownLatch(1);
+        List<EventBus.Batch> seen = Collections.synchronizedList(new ArrayList<>());
+        EventBus.Subscription slow = EventBus.subscribe(all, 0, r -> {
+            try { stuck.await(); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+            r.run();
+        }, seen::add);
+        for (int i = 0; i < EventBus.MAX_PENDING + 500; i++) EventBus.publish(EventBus.Type.STOCK_CHANGED, probe, null, null);
+        stuck.countDown();
+        for (int i = 0; i < 100 && seen.isEmpty(); i++) Thread.sleep(20);
+        for (int i = 0; i < 5; i++) EventBus.publish(EventBus.Type.STOCK_CHANGED, probe, null, null);
+        int[] after = new int[2]; // events, overflowed batches; with no delay the 5 may arrive in more than one batch
+        for (int i = 0; i < 100 && after[0] < 5; i++) {
+            Thread.sleep(20);
+            after[0] = after[1] = 0;
+            synchronized (seen) {
+                for (EventBus.Batch b : seen.subList(1, seen.size())) {
+                    after[0] += b.events.size();
+                    if (b.overflowed) after[1]++;
+                }
+            }
+        }
+        slow.close();
+        check(seen.get(0).overflowed && seen.get(0).events.isEmpty() && after[0] == 5 && after[1] == 0,
+                "a stalled subscriber gets one overflowed batch (reload), then deltas again");
+    }
+
+    private static <T> boolean sameRows(ListTableModel<T> model, List<T> fresh) {
+        Set<T> rows = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int i = 0; i < model.getRowCount(); i++) rows.add(model.getRow(i));
+        return rows.size() == model.getRowCount() && rows.size() == fresh.size() && rows.containsAll(fresh);
+    }
+
+    // --- Semester workload simulation ---
+
+    /**
+     * Runs the same generated semester `runs` times and checks each run makes exactly the same
+     * decisions as the first. With -Dshareu.sim.log=FILE the last run's numbers are appended to
+     * FILE and compared with the previous entry for the same spec, so a capacity regression shows up
+     * as a slower line for the same workload.
+     */
+    static void simulate(int students, int days, long seed, int runs) throws Exception {
+        EmailService.setTransportFactory(PerfHarness::discardingTransport);
+        String spec = "students=" + students + " days=" + days + " seed=" + seed + " runs=" + runs; // the logged numbers are the last run's
+        System.out.println("Semester simulation: " + spec + ", term starts " + Simulation.TERM_START);
+        Simulation first = null, last = null;
+        try {
+            for (int run = 1; run <= runs; run++) {
+                Simulation sim = new Simulation(students, days, seed);
+                quietly(sim::run);
+                System.out.printf("  run %d: %s%n", run, sim.summary());
+                if (first == null) first = sim;
+                else check(sim.fingerprint == first.fingerprint, "run " + run + " replays run 1: same answers to the same calls");
+                last = sim;
+            }
+        } finally {
+            AppClock.reset();
+        }
+        last.printWeeks();
+        last.printOps();
+        check(last.consistent(), "stock, loans and the open-loan index agree at the end of term");
+
+        String logFile = System.getProperty("shareu.sim.log");
+        if (logFile == null) return;
+        Path log = Paths.get(logFile);
+        String line = spec + "\t" + last.logLine();
+        String previous = null;
+        if (Files.exists(log))
+            for (String l : Files.readAllLines(log, StandardCharsets.UTF_8)) if (l.startsWith(spec + "\t")) previous = l;
+        Files.write(log, Collections.singletonList(line), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        if (previous == null) {
+            System.out.println("  first run of this spec in " + log + "; later runs are compared with it");
+            return;
+        }
+        System.out.println("  vs the previous run in " + log + ":");
+        Map<String, String> before = Simulation.parseLogLine(previous.substring(spec.length() + 1)), now = Simulation.parseLogLine(line.substring(spec.length() + 1));
+        for (Map.Entry<String, String> e : now.entrySet()) {
+            String was = before.get(e.getKey());
+            if (was == null || e.getKey().equals("fingerprint")) continue;
+            double a = Double.parseDouble(was), b = Double.parseDouble(e.getValue());
+            System.out.printf("    %-18s %12.1f -> %12.1f  (%+.0f%%)%n", e.getKey(), a, b, a == 0 ? 0 : (b - a) * 100 / a);
+        }
+        check(now.get("fingerprint").equals(before.get("fingerprint")), "same decisions as the logged run (fingerprint " + now.get("fingerprint") + ")");
+    }
+
+    /**
+     * One semester of generated traffic against BorrowService and DataStore, with the mail
+     * transport stubbed and AppClock stepped one day at a time: registrations bunched into the
+     * first week, borrowing that peaks at the start of term, midterms and finals and drops at
+     * weekends, renewals and extensions around due dates, early/on-time/late returns, bookings,
+     * and an admin who works through the pending list twice a weekday (auto-approval covers
+     * weekends). Every choice comes from one seeded Random and the day loop is single-threaded,
+     * so the same spec makes the same calls in the same order and gets the same answers;
+     * fingerprint hashes those answers.
+     */
+    static final class Simulation {
+        static final LocalDate TERM_START = LocalDate.of(2026, 8, 10); // a Monday
+        private static final String PASSWORD = "sim-pass";
+
+        enum Op { REGISTER, LOGIN, BORROW, BOOK, RENEW, EXTEND, APPROVE, APPROVE_BATCH, AUTO_APPROVE, REJECT, COLLECT, RETURN, SWEEP }
+
+        private final int days;
+        private final Random rnd;
+        private final Student[] roster;
+        private final int[] joinDay;
+        private final Item[] items;
+        private final List<Student> enrolled = new ArrayList<>();
+        // Open loans and how many days past due each comes back (negative: early), in loan order:
+        // an identity-hashed map would iterate differently every run.
+        private final Map<BorrowRecord, Integer> late = new LinkedHashMap<>();
+        private final List<BorrowRequest> booked = new ArrayList<>(); // approved, not collected yet
+        private final List<BorrowRequest> waitlisted = new ArrayList<>();
+        private final LatencyLog[] latency = new LatencyLog[Op.values().length];
+        private final int[] refused = new int[Op.values().length];
+        private final List<String> weeks = new ArrayList<>();
+        long fingerprint = 1;
+        private long ops, busyNanos, wallNanos, heapStart, heapEnd, weekOps, weekNanos;
+        private int maxMailQueue, weekMailQueue;
+        private long mailDropped;
+
+        Simulation(int students, int days, long seed) {
+            this.days = days;
+            this.rnd = new Random(seed);
+            roster = new Student[students];
+            joinDay = new int[students];
+            for (int s = 0; s < students; s++) {
+                double u = rnd.nextDouble(); // 70% in week one, 20% in weeks two and three, the rest any time
+                joinDay[s] = u < 0.7 ? rnd.nextInt(Math.min(days, 5)) : u < 0.9 ? Math.min(days - 1, 7 + rnd.nextInt(14)) : rnd.nextInt(days);
+            }
+            items = new Item[Math.max(10, students / 10)];
+            for (int i = 0; i < items.length; i++)
+                items[i] = new Item("SIM" + i, "Sim Item " + i, "CAT" + i % 8, 1 + rnd.nextInt(i < items.length / 10 ? 8 : 3));
+            for (int i = 0; i < latency.length; i++) latency[i] = new LatencyLog();
+        }
+
+        void run() throws Exception {
+            DataStore.reset();
+            for (Item item : items) DataStore.addItem(item);
+            long dropped0 = Metrics.counter("mail.dropped").get();
+            heapStart = usedHeap();
+            for (int day = 0; day < days; day++) {
+                LocalDate today = TERM_START.plusDays(day);
+                AppClock.set(Clock.fixed(today.atTime(9, 0).atZone(ZoneId.systemDefault()).toInstant(), ZoneId.systemDefault()));
+                boolean weekday = today.getDayOfWeek().getValue() <= 5;
+                long t0 = System.nanoTime();
+                for (int s = 0; s < roster.length; s++) if (joinDay[s] == day) register(s);
+                collectBookings(today);
+                if (weekday) adminPass(today);
+                students(day, today, weekday);
+                returns(today);
+                if (weekday) adminPass(today);
+                else timed(Op.AUTO_APPROVE, () -> BorrowService.autoApprove(ApprovalRule.defaults(3), today).records.forEach(this::track));
+                timed(Op.SWEEP, () -> OverdueReminderJob.sweep(today));
+                wallNanos += System.nanoTime() - t0;
+                weekNanos += System.nanoTime() - t0;
+                weekMailQueue = Math.max(weekMailQueue, EmailService.queueDepth());
+                for (int i = 0; i < 300 && EmailService.queueDepth() > 0; i++) Thread.sleep(10); // a day is long enough to send it all
+                if (day % 7 == 6 || day == days - 1) endOfWeek(day / 7 + 1, today);
+            }
+            heapEnd = usedHeap();
+            mailDropped = Metrics.counter("mail.dropped").get() - dropped0;
+        }
+
+        private void register(int s) throws Exception {
+            String id = "SIM" + (660000 + s);
+            timed(Op.REGISTER, () -> roster[s] = BorrowService.register(id, "Sim Student " + s, id.toLowerCase() + "@sim.test", "-", PASSWORD, CardType.STUDENT_CARD, 2003 + s % 5));
+            if (roster[s] != null) enrolled.add(roster[s]);
+        }
 
-        btnSave.addActionListener(e -> {
+        // How busy a day is: the first fortnight and exam weeks are the peaks, weekends are quiet.
+        private double demand(int day, boolean weekday) {
+            int week = day / 7, lastWeek = (days - 1) / 7;
+            double term = week == 0 ? 3.0 : week == 1 ? 2.0 : week == 7 || week == 8 ? 1.6 : week >= lastWeek - 1 ? 1.8 : 1.0;
+            return 0.03 * term * (weekday ? 1.0 : 0.3);
+        }
+
+        // Popular items get most of the traffic: index skewed towards 0.
+        private Item pickItem() {
+            return items[(int) (items.length * Math.pow(rnd.nextDouble(), 2.5))];
+        }
+
+        private void students(int day, LocalDate today, boolean weekday) throws Exception {
+            double p = demand(day, weekday);
+            for (Student s : enrolled) {
+                if (rnd.nextDouble() >= p) continue;
+                timed(Op.LOGIN, () -> BorrowService.login(s.getId(), PASSWORD));
+                Item item = pickItem();
+                if (rnd.nextInt(20) == 0) {
+                    LocalDate start = today.plusDays(1 + rnd.nextInt(21));
+                    int len = 1 + rnd.nextInt(5);
+                    timed(Op.BOOK, () -> BorrowService.requestBooking(s, item, start, len));
+                } else {
+                    timed(Op.BORROW, () -> {
+                        BorrowRequest r = BorrowService.requestBorrow(s, item);
+                        if (r.getStatus() == RequestStatus.WAITLISTED) waitlisted.add(r);
+                    });
+                }
+            }
+            // After two weeks on a waitlist, most students give up and leave it.
+            for (Iterator<BorrowRequest> it = waitlisted.iterator(); it.hasNext(); ) {
+                BorrowRequest r = it.next();
+                if (r.getStatus() != RequestStatus.WAITLISTED) it.remove();
+                else if (r.getRequestDate().plusDays(14).isBefore(today) && rnd.nextInt(4) != 0) {
+                    it.remove();
+                    timed(Op.REJECT, () -> BorrowService.reject(r));
+                }
+            }
+            // Due tomorrow: some ask for more time.
+            for (BorrowRecord r : new ArrayList<>(late.keySet())) {
+                if (!r.getDueDate().equals(today.plusDays(1)) || DataStore.findPendingRequest(r.getStudent(), r.getItem()) != null) continue;
+                int roll = rnd.nextInt(100);
+                if (roll < 15) timed(Op.RENEW, () -> BorrowService.requestRenew(r.getStudent(), r.getItem()));
+                else if (roll < 23) timed(Op.EXTEND, () -> BorrowService.requestExtend(r.getStudent(), r.getItem(), 1 + rnd.nextInt(5)));
+            }
+        }
+
+        private void returns(LocalDate today) throws Exception {
+            for (BorrowRecord r : new ArrayList<>(late.keySet())) {
+                if (today.isBefore(r.getDueDate().plusDays(late.get(r)))) continue;
+                late.remove(r);
+                timed(Op.RETURN, () -> fingerprint = fingerprint * 31 + BorrowService.processReturn(r, today));
+            }
+        }
+
+        // Booked units are handed over on the first day of their window, weekends included.
+        private void collectBookings(LocalDate today) throws Exception {
+            for (Iterator<BorrowRequest> it = booked.iterator(); it.hasNext(); ) {
+                BorrowRequest b = it.next();
+                if (today.isBefore(b.getStartDate())) continue;
+                it.remove();
+                if (rnd.nextInt(10) == 0) timed(Op.REJECT, () -> BorrowService.reject(b)); // no-show
+                else timed(Op.COLLECT, () -> track(BorrowService.collectBooking(b, today)));
+            }
+        }
+
+        // The admin clears the pending list: a few rejections, the rest one by one or with Approve Selected.
+        private void adminPass(LocalDate today) throws Exception {
+            List<BorrowRequest> batch = new ArrayList<>();
+            boolean oneByOne = rnd.nextInt(3) == 0;
+            for (BorrowRequest r : DataStore.pendingRequests()) {
+                if (rnd.nextInt(20) == 0) timed(Op.REJECT, () -> BorrowService.reject(r));
+                else if (oneByOne) timed(Op.APPROVE, () -> approved(r, BorrowService.approve(r)));
+                else batch.add(r);
+            }
+            if (!batch.isEmpty()) timed(Op.APPROVE_BATCH, () -> {
+                BorrowService.BatchResult res = BorrowService.approveAll(batch);
+                for (BorrowRequest r : res.done) if (r.getType() == RequestType.BOOKING) booked.add(r);
+                res.records.forEach(this::track);
+                fingerprint = fingerprint * 31 + res.skipped.size();
+            });
+        }
+
+        private void approved(BorrowRequest r, BorrowRecord rec) {
+            if (r.getType() == RequestType.BOOKING) booked.add(r);
+            track(rec);
+        }
+
+        // Most loans come back on time or early; a tail comes back days or weeks late.
+        private void track(BorrowRecord rec) {
+            if (rec == null || late.containsKey(rec)) return;
+            int roll = rnd.nextInt(100);
+            late.put(rec, roll < 75 ? -rnd.nextInt(4) : roll < 92 ? 1 + rnd.nextInt(3) : roll < 98 ? 4 + rnd.nextInt(11) : 15 + rnd.nextInt(26));
+            fingerprint = fingerprint * 31 + rec.getId();
+        }
+
+        private void timed(Op op, ThrowingRunnable call) throws Exception {
+            long t0 = System.nanoTime();
+            boolean ok = true;
             try {
-                CardType type = (CardType) cbType.getSelectedItem();
-                String id = tfId.getText();
-                String name = tfName.getText();
-                String email = tfEmail.getText();
-                String pass = new String(pfPass.getPassword());
-                int bYear = Integer.parseInt(tfBirthYear.getText());
-
-                if (id.isEmpty() || name.isEmpty() || pass.isEmpty()) {
-                     JOptionPane.showMessageDialog(this, "Please fill all fields.");
-                     return;
-                }
-
-                Student s = new Student(id, name, email, tfPhone.getText(), pass, type, bYear);
-                DataStore.users.add(s);
-                
-                // [EMAIL WITH ATTACHMENT]
-                String attachmentPath = "borrow_term_req.pdf"; 
-                
-                EmailService.sendWithAttachment(email, 
-                    "Welcome to ShareU", 
-                    "Registration successful!\n\nAttached is the User Manual / Rules for borrowing items.",
-                    attachmentPath
-                );
-                
-                JOptionPane.showMessageDialog(this, "Registration Successful! Confirmation email sent.");
-                cardLayout.show(mainPanel, "LOGIN");
-
-            } catch (Exception ex) {
-                JOptionPane.showMessageDialog(this, "Error: Check inputs.");
+                call.run();
+            } catch (BorrowException e) {
+                ok = false;
             }
-        });
-        btnBack.addActionListener(e -> cardLayout.show(mainPanel, "LOGIN"));
-        return panel;
-    }
+            long t = System.nanoTime() - t0;
+            latency[op.ordinal()].add(t);
+            busyNanos += t;
+            ops++;
+            weekOps++;
+            if (!ok) refused[op.ordinal()]++;
+            fingerprint = fingerprint * 31 + op.ordinal() * 2 + (ok ? 1 : 0);
+        }
 
-    private DefaultTableModel stItemModel, stStatusModel;
-    private JPanel createStudentPanel() {
-        JTabbedPane tabs = new JTabbedPane();
-        JPanel browsePanel = new JPanel(new BorderLayout());
-        stItemModel = new DefaultTableModel(new String[]{"ID", "Name", "Category", "Stock (Avail/Total)"}, 0);
-        JTable itemTable = new JTable(stItemModel);
-        JButton btnBorrow = new JButton("Borrow Item");
+        private void endOfWeek(int week, LocalDate today) throws InterruptedException {
+            int waiting = 0;
+            for (Item item : items) waiting += DataStore.waitlistSize(item);
+            maxMailQueue = Math.max(maxMailQueue, weekMailQueue);
+            weeks.add(String.format("  %4d %,9d %,10.0f %8d %8d %8d %8d %8d %8.1f", week, weekOps, weekOps / (weekNanos / 1e9),
+                    DataStore.pendingRequests().size(), waiting, late.size(), DataStore.overdueSummary(today).loans, weekMailQueue, usedHeap() / 1e6));
+            weekMailQueue = 0;
+            weekOps = weekNanos = 0;
+        }
 
-        btnBorrow.addActionListener(e -> {
-            int row = itemTable.getSelectedRow();
-            if (row != -1) {
-                Item item = DataStore.items.get(row);
-                boolean alreadyBorrowed = DataStore.records.stream().anyMatch(r -> r.getStudent().equals(currentUser) && r.getItem().equals(item) && r.getReturnDate() == null);
-                boolean pendingRequest = DataStore.requests.stream().anyMatch(r -> r.getStudent().equals(currentUser) && r.getItem().equals(item) && r.getStatus() == RequestStatus.PENDING);
-                if (alreadyBorrowed) { JOptionPane.showMessageDialog(this, "You are already borrowing this item!", "Error", JOptionPane.ERROR_MESSAGE); return; }
-                if (pendingRequest) { JOptionPane.showMessageDialog(this, "You have a pending request for this item!", "Error", JOptionPane.ERROR_MESSAGE); return; }
-                if (item.getCurrentQty() > 0) {
-                    DataStore.requests.add(new BorrowRequest((Student) currentUser, item, RequestType.NEW_BORROW, 7));
-                    JOptionPane.showMessageDialog(this, "Borrow Request Sent!");
-                    refreshStudentData();
-                } else { JOptionPane.showMessageDialog(this, "Item Out of Stock!", "Error", JOptionPane.ERROR_MESSAGE); }
+        boolean consistent() {
+            for (Item item : items) {
+                int out = 0;
+                for (BorrowRecord r : DataStore.activeRecords()) if (r.getItem() == item) out++;
+                if (item.getCurrentQty() + out + heldUnits(item) != item.getTotalQty()) return false;
+            }
+            return DataStore.activeRecords().size() == late.size();
+        }
+
+        // Units set aside for waitlist offers and started bookings: neither in stock nor out on loan.
+        private static int heldUnits(Item item) {
+            int n = 0;
+            for (BorrowRequest r : DataStore.pendingRequests()) if (r.getItem() == item && WaitlistService.offerFor(r) != null) n++;
+            for (BorrowRequest r : DataStore.bookings()) if (r.getItem() == item && WaitlistService.bookingHoldFor(r) != null) n++;
+            return n;
+        }
+
+        String summary() {
+            return String.format("%,d calls in %.2f s of simulated traffic (%,.0f calls/s, %.0f%% inside the service), heap %+.1f MB, fingerprint %016x",
+                    ops, wallNanos / 1e9, ops / (wallNanos / 1e9), busyNanos * 100.0 / wallNanos, (heapEnd - heapStart) / 1e6, fingerprint);
+        }
+
+        void printWeeks() {
+            System.out.printf("  %4s %9s %10s %8s %8s %8s %8s %8s %8s%n", "week", "calls", "calls/s", "pending", "waiting", "on loan", "overdue", "mail q", "heap MB");
+            weeks.forEach(System.out::println);
+            System.out.printf("  mail queue peaked at %d (capacity 1000), %,d dropped%n", maxMailQueue, mailDropped);
+        }
+
+        void printOps() {
+            System.out.printf("  %-14s %9s %8s %10s %10s %10s %10s%n", "call", "count", "refused", "p50 us", "p99 us", "p99.9 us", "max us");
+            for (Op op : Op.values()) {
+                long[] t = sorted(op);
+                if (t.length == 0) continue;
+                System.out.printf("  %-14s %,9d %,8d %10.1f %10.1f %10.1f %10.1f%n", op, t.length, refused[op.ordinal()],
+                        LatencyLog.percentile(t, 50) / 1e3, LatencyLog.percentile(t, 99) / 1e3, LatencyLog.percentile(t, 99.9) / 1e3, t[t.length - 1] / 1e3);
             }
+        }
+
+        private long[] sorted(Op op) {
+            long[] t = latency[op.ordinal()].toArray();
+            Arrays.sort(t);
+            return t;
+        }
+
+        /** key=value pairs, tab-separated: throughput, heap growth, and p99 per call in microseconds. */
+        String logLine() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("fingerprint=").append(Long.toHexString(fingerprint));
+            sb.append("\tcallsPerSec=").append(Math.round(ops / (wallNanos / 1e9)));
+            sb.append("\theapGrowthMB=").append(String.format("%.1f", (heapEnd - heapStart) / 1e6));
+            for (Op op : Op.values()) {
+                long[] t = sorted(op);
+                if (t.length > 0) sb.append('\t').append(op.name().toLowerCase()).append("P99us=").append(String.format("%.1f", LatencyLog.percentile(t, 99) / 1e3));
+            }
+            return sb.toString();
+        }
+
+        static Map<String, String> parseLogLine(String line) {
+            Map<String, String> out = new LinkedHashMap<>();
+            for (String kv : line.split("\t")) {
+                int eq = kv.indexOf('=');
+                if (eq > 0) out.put(kv.substring(0, eq), kv.substring(eq + 1));
+            }
+            return out;
+        }
+    }
+
+    // --- Columnar loan history ---
+
+    static void history(int n) throws Exception {
+        Random rnd = new Random(42);
+        int studentCount = Math.max(10, n / 10), itemCount = Math.max(50, n / 1000);
+        Student[] students = new Student[studentCount];
+        Item[] items = new Item[itemCount];
+        for (int i = 0; i < studentCount; i++) students[i] = Student.restore("S" + i, "Student " + i, "s" + i + "@bench.test", "-", "-", CardType.STUDENT_CARD, 2003);
+        for (int i = 0; i < itemCount; i++) items[i] = new Item("B" + i, "Bench Item " + i, "CAT" + (i % 20), 1_000_000);
+        int[] student = new int[n], item = new int[n], borrow = new int[n], returned = new int[n];
+        long today = AppClock.today().toEpochDay();
+        for (int i = 0; i < n; i++) {
+            student[i] = rnd.nextInt(studentCount);
+            item[i] = rnd.nextInt(itemCount);
+            borrow[i] = (int) (today - rnd.nextInt(5 * 365));
+            returned[i] = rnd.nextInt(100) == 0 ? -1 : borrow[i] + rnd.nextInt(14); // 1% still out
+        }
+        // Every record gets its own LocalDates, as after a journal replay or snapshot load.
+        IntFunction<BorrowRecord> make = i -> new BorrowRecord(students[student[i]], items[item[i]], LocalDate.ofEpochDay(borrow[i]),
+                LocalDate.ofEpochDay(borrow[i] + 7), returned[i] < 0 ? null : LocalDate.ofEpochDay(returned[i]), i % 7 == 0);
+
+        long base = usedHeap();
+        List<BorrowRecord> objects = new ArrayList<>();
+        for (int i = 0; i < n; i++) objects.add(make.apply(i));
+        long objectBytes = usedHeap() - base;
+        double objectScan = timeMillis(k -> {
+            long fines = 0;
+            for (BorrowRecord r : objects) if (r.getReturnDate() != null) fines += oldFine(r.getDueDate(), r.getReturnDate());
+            return fines;
         });
-        browsePanel.add(new JScrollPane(itemTable), BorderLayout.CENTER);
-        browsePanel.add(btnBorrow, BorderLayout.SOUTH);
-        
-        JPanel statusPanel = new JPanel(new BorderLayout());
-        // [UPDATED] Added Date Columns for Student
-        stStatusModel = new DefaultTableModel(new String[]{"Item", "Status", "Type", "Borrow Date", "Due/Return Date"}, 0);
-        JTable statusTable = new JTable(stStatusModel);
-        JButton btnAction = new JButton("Request Extension / Renew");
-        btnAction.addActionListener(e -> {
-            int row = statusTable.getSelectedRow();
-            if (row != -1) {
-                String status = stStatusModel.getValueAt(row, 1).toString();
-                if (status.startsWith("BORROWED")) {
-                    String itemName = stStatusModel.getValueAt(row, 0).toString();
-                    BorrowRecord rec = DataStore.records.stream().filter(r -> r.getItem().getName().equals(itemName) && r.getStudent().equals(currentUser) && r.getReturnDate() == null).findFirst().orElse(null);
-                    if (rec != null) {
-                        String[] options = {"Renew (Start New Cycle)", "Extend Due Date (Delay Return)"};
-                        int choice = JOptionPane.showOptionDialog(this, "Choose request type:", "Request Option", JOptionPane.DEFAULT_OPTION, JOptionPane.QUESTION_MESSAGE, null, options, options[0]);
-                        if (choice == 0) {
-                            DataStore.requests.add(new BorrowRequest((Student) currentUser, rec.getItem(), RequestType.RENEW, 7));
-                            JOptionPane.showMessageDialog(this, "Renew Request Sent!");
-                        } else if (choice == 1) {
-                            String[] dayOptions = {"1 Day", "3 Days"};
-                            int dayChoice = JOptionPane.showOptionDialog(this, "Select extension duration:", "Extend Due Date", JOptionPane.DEFAULT_OPTION, JOptionPane.QUESTION_MESSAGE, null, dayOptions, dayOptions[0]);
-                            int daysToAdd = (dayChoice == 0) ? 1 : 3; 
-                            DataStore.requests.add(new BorrowRequest((Student) currentUser, rec.getItem(), RequestType.EXTEND, daysToAdd));
-                            JOptionPane.showMessageDialog(this, "Extension Request Sent (" + daysToAdd + " days)!");
-                        }
-                        refreshStudentData();
-                    }
-                } else { JOptionPane.showMessageDialog(this, "Can only request on currently BORROWED items."); }
-            } else { JOptionPane.showMessageDialog(this, "Please select an item."); }
+
+        List<BorrowRecord> kept = new ArrayList<>(); // the open loans, which the hot set shares with their owners
+        for (BorrowRecord r : objects) if (r.getReturnDate() == null) kept.add(r);
+        RecordHistory history = new RecordHistory();
+        base = usedHeap();
+        for (int i = 0; i < n; i++) history.append(returned[i] < 0 ? kept.get(history.openCount()) : make.apply(i));
+        long columnarBytes = usedHeap() - base;
+        double columnarScan = timeMillis(k -> {
+            long fines = 0;
+            for (int i = 0; i < n; i++) {
+                BorrowRecord r = history.get(i);
+                if (r.getReturnDate() != null) fines += oldFine(r.getDueDate(), r.getReturnDate());
+            }
+            return fines;
         });
-        statusPanel.add(new JScrollPane(statusTable), BorderLayout.CENTER);
-        statusPanel.add(btnAction, BorderLayout.SOUTH);
-        tabs.addTab("Borrow Items", browsePanel);
-        tabs.addTab("My Status", statusPanel);
-        tabs.addChangeListener(e -> refreshStudentData());
-        JPanel container = new JPanel(new BorderLayout());
-        JButton logout = new JButton("Logout");
-        logout.addActionListener(e -> cardLayout.show(mainPanel, "LOGIN"));
-        container.add(logout, BorderLayout.NORTH);
-        container.add(tabs, BorderLayout.CENTER);
-        return container;
+
+        boolean same = history.size() == n;
+        for (int i = 0; i < n && same; i += Math.max(1, n / 10_000)) {
+            BorrowRecord a = objects.get(i), b = history.get(i);
+            same = a.getStudent() == b.getStudent() && a.getItem() == b.getItem() && a.getBorrowDate().equals(b.getBorrowDate())
+                    && a.getDueDate().equals(b.getDueDate()) && Objects.equals(a.getReturnDate(), b.getReturnDate()) && a.isExtended() == b.isExtended();
+        }
+        System.out.printf("Loan history: %,d records, %,d open%n", n, history.openCount());
+        System.out.printf("  %-22s %10s %12s %14s%n", "", "heap MB", "bytes/record", "page all (ms)");
+        System.out.printf("  %-22s %10.1f %12.1f %14.1f%n", "BorrowRecord objects", objectBytes / 1e6, (double) objectBytes / n, objectScan);
+        System.out.printf("  %-22s %10.1f %12.1f %14.1f%n", "columnar history", columnarBytes / 1e6, (double) columnarBytes / n, columnarScan);
+        System.out.printf("  (columns by their own count: %.1f MB)%n", history.columnBytes() / 1e6);
+        check(same, "every sampled record reads back with the same student, item, dates and extension flag");
+        check(columnarBytes * 3 < objectBytes, String.format("history takes %.1fx less heap", (double) objectBytes / columnarBytes));
+        sink += objects.size() + kept.size();
     }
 
-    private DefaultTableModel adReqModel, adRecModel;
-    private JPanel createAdminPanel() {
-        JTabbedPane tabs = new JTabbedPane();
-        JPanel approvePanel = new JPanel(new BorderLayout());
-        String[] reqCols = {"Student ID", "Name", "Item", "Type", "Details", "Status"};
-        adReqModel = new DefaultTableModel(reqCols, 0);
-        JTable reqTable = new JTable(adReqModel);
-        JPanel btnPanel = new JPanel();
-        JButton btnApprove = new JButton("Approve");
-        JButton btnReject = new JButton("Reject");
-        btnApprove.setBackground(new Color(144, 238, 144));
-        btnReject.setBackground(new Color(255, 99, 71));
-        btnApprove.addActionListener(e -> handleAdminAction(reqTable, true));
-        btnReject.addActionListener(e -> handleAdminAction(reqTable, false));
-        btnPanel.add(btnApprove); btnPanel.add(btnReject);
-        approvePanel.add(new JScrollPane(reqTable), BorderLayout.CENTER);
-        approvePanel.add(btnPanel, BorderLayout.SOUTH);
-        
-        JPanel returnPanel = new JPanel(new BorderLayout());
-        // [UPDATED] Added Borrow Date Column for Admin
-        adRecModel = new DefaultTableModel(new String[]{"Student", "Item", "Borrow Date", "Due Date", "Status", "Current Fine"}, 0);
-        JTable recTable = new JTable(adRecModel);
-        JPanel returnBtnPanel = new JPanel();
-        JButton btnReturn = new JButton("Process Return");
-        JButton btnRemind = new JButton("Send Reminder Email 📧");
-        btnRemind.setBackground(new Color(255, 255, 224));
-        btnRemind.addActionListener(e -> {
-            int row = recTable.getSelectedRow();
-            if (row != -1) {
-                String sName = adRecModel.getValueAt(row, 0).toString();
-                String iName = adRecModel.getValueAt(row, 1).toString();
-                BorrowRecord rec = DataStore.records.stream().filter(r -> r.getStudent().getName().equals(sName) && r.getItem().getName().equals(iName) && r.getReturnDate() == null).findFirst().orElse(null);
-                if (rec != null) {
-                    long daysLeft = ChronoUnit.DAYS.between(LocalDate.now(), rec.getDueDate());
-                    String subject = "Reminder: Return " + rec.getItem().getName();
-                    String body = "Hello " + rec.getStudent().getName() + ",\n\nYou have " + daysLeft + " days left to return '" + rec.getItem().getName() + "'.\nBorrow Date: " + rec.getBorrowDate();
-                    if (daysLeft < 0) body = "WARNING: Your item '" + rec.getItem().getName() + "' is OVERDUE.";
-                    EmailService.send(rec.getStudent().getEmail(), subject, body);
-                    JOptionPane.showMessageDialog(this, "Reminder email sent.");
+    private static long usedHeap() throws InterruptedException {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    // --- Waitlist ---
+
+    static void waitlist(int waiters, int threads) throws Exception {
+        EmailService.setTransportFactory(PerfHarness::discardingTransport);
+        String hash = PasswordHasher.hash("pw");
+        System.out.println("Waitlist: offer TTL " + WaitlistService.OFFER_TTL);
+
+        // 1. One unit, a deep queue: each return + approve cycle should cost the same at any depth.
+        int[] depths = { 1000, 1000, waiters }; // the first pass only warms up the JIT
+        for (int pass = 0; pass < depths.length; pass++) {
+            int depth = depths[pass];
+            DataStore.reset();
+            Item item = new Item("W", "Waitlisted Item", "CAT", 1);
+            DataStore.addItem(item);
+            List<Student> students = new ArrayList<>();
+            for (int i = 0; i <= depth; i++) {
+                Student s = Student.restore("Q" + i, "Queued " + i, "q" + i + "@wait.test", "-", hash, CardType.STUDENT_CARD, 2003);
+                DataStore.addUser(s);
+                students.add(s);
+            }
+            BorrowRecord[] current = new BorrowRecord[1];
+            List<BorrowRequest> queued = new ArrayList<>();
+            long[] servedInOrder = new long[1];
+            double[] enqueueUs = new double[1], cycleUs = new double[1];
+            quietly(() -> {
+                current[0] = BorrowService.approve(BorrowService.requestBorrow(students.get(0), item));
+                long t0 = System.nanoTime();
+                for (int i = 1; i <= depth; i++) queued.add(BorrowService.requestBorrow(students.get(i), item));
+                enqueueUs[0] = (System.nanoTime() - t0) / 1e3 / depth;
+                int cycles = Math.min(depth, 20_000);
+                t0 = System.nanoTime();
+                for (int i = 0; i < cycles; i++) {
+                    BorrowService.processReturn(current[0], AppClock.today());
+                    BorrowRequest head = queued.get(i);
+                    if (WaitlistService.offerFor(head) != null) servedInOrder[0]++;
+                    current[0] = BorrowService.approve(head);
+                }
+                cycleUs[0] = (System.nanoTime() - t0) / 1e3 / cycles;
+                servedInOrder[0] -= cycles; // 0 when every cycle offered to the head
+            });
+            if (pass == 0) continue;
+            System.out.printf("  depth %,8d: join %.2f us, return+offer+approve %.2f us per cycle (incl. queueing 2 emails)%n", depth, enqueueUs[0], cycleUs[0]);
+            check(servedInOrder[0] == 0, "returned unit offered to the head of the queue every time");
+        }
+
+        // 2. Concurrent returns across shared items: units must go to waiters in FIFO order, once each.
+        DataStore.reset();
+        int itemCount = 50, units = 20, perItem = 40;
+        List<Item> items = new ArrayList<>();
+        Map<Item, List<BorrowRequest>> order = new HashMap<>();
+        ConcurrentLinkedQueue<BorrowRecord> loans = new ConcurrentLinkedQueue<>();
+        quietly(() -> {
+            int sid = 0;
+            for (int i = 0; i < itemCount; i++) {
+                Item item = new Item("WI" + i, "Shared Item " + i, "CAT", units);
+                DataStore.addItem(item);
+                items.add(item);
+                for (int u = 0; u < units + perItem; u++) {
+                    Student s = Student.restore("C" + sid, "Concurrent " + sid, "c" + sid + "@wait.test", "-", hash, CardType.STUDENT_CARD, 2003);
+                    sid++;
+                    DataStore.addUser(s);
+                    BorrowRequest r = BorrowService.requestBorrow(s, item);
+                    if (u < units) loans.add(BorrowService.approve(r));
+                    else order.computeIfAbsent(item, k -> new ArrayList<>()).add(r);
                 }
             }
         });
-        btnReturn.addActionListener(e -> {
-            int row = recTable.getSelectedRow();
-            if (row != -1) {
-                String sName = adRecModel.getValueAt(row, 0).toString();
-                String iName = adRecModel.getValueAt(row, 1).toString();
-                BorrowRecord rec = DataStore.records.stream().filter(r -> r.getStudent().getName().equals(sName) && r.getItem().getName().equals(iName) && r.getReturnDate() == null).findFirst().orElse(null);
-                if (rec != null) {
-                    LocalDate returnDate = LocalDate.now();
-                    int fine = FineCalculator.calculate(rec.getDueDate(), returnDate);
-                    if (fine > 0) {
-                        int confirm = JOptionPane.showConfirmDialog(this, "⚠️ ITEM OVERDUE! Fine: " + fine + " THB. Confirm?", "Warning", JOptionPane.YES_NO_OPTION);
-                        if (confirm != JOptionPane.YES_OPTION) return;
-                    }
-                    rec.markReturn(returnDate);
-                    rec.getItem().increaseQty();
-                    JOptionPane.showMessageDialog(this, "Item Returned.");
-                    EmailService.send(rec.getStudent().getEmail(), "Item Returned", "Fine: " + fine + " THB.");
-                    refreshAdminData();
-                }
+        long t0 = System.nanoTime();
+        quietly(() -> runThreads(threads, () -> {
+            BorrowRecord rec;
+            while ((rec = loans.poll()) != null) BorrowService.processReturn(rec, AppClock.today());
+        }));
+        double secs = (System.nanoTime() - t0) / 1e9;
+        boolean fifo = true;
+        int offered = 0;
+        for (Item item : items) {
+            List<BorrowRequest> q = order.get(item);
+            int expected = Math.min(units, q.size());
+            for (int i = 0; i < q.size(); i++) {
+                boolean has = WaitlistService.offerFor(q.get(i)) != null;
+                if (has) offered++;
+                fifo &= has == (i < expected);
+            }
+            fifo &= item.getCurrentQty() == 0 && item.getQtyIgnoringHolds() == units;
+        }
+        System.out.printf("  %d concurrent returns on %d threads in %.0f ms%n", itemCount * units, threads, secs * 1e3);
+        check(fifo && offered == itemCount * units, "every returned unit offered once, to the earliest waiters (" + offered + " offers)");
+
+        // 3. Offers nobody collects expire and move down the queue.
+        Item first = items.get(0);
+        List<BorrowRequest> q = order.get(first);
+        // Poll rather than sleep a fixed time: the offers date from phase 2, and quietly() waits for
+        // the mail queue, so a fixed sleep could straddle a second expiry round.
+        boolean[] passed = new boolean[1];
+        quietly(() -> {
+            long deadline = System.nanoTime() + WaitlistService.OFFER_TTL.toNanos() * 10;
+            while (!passed[0] && System.nanoTime() < deadline) {
+                passed[0] = q.get(0).getStatus() == RequestStatus.EXPIRED && WaitlistService.offerFor(q.get(units)) != null;
+                Thread.sleep(5);
             }
         });
-        returnBtnPanel.add(btnReturn); returnBtnPanel.add(btnRemind);
-        returnPanel.add(new JScrollPane(recTable), BorderLayout.CENTER);
-        returnPanel.add(returnBtnPanel, BorderLayout.SOUTH);
-        tabs.addChangeListener(e -> refreshAdminData());
-        tabs.addTab("Pending Requests", approvePanel);
-        tabs.addTab("Active Returns", returnPanel);
-        JPanel container = new JPanel(new BorderLayout());
-        JButton logout = new JButton("Logout");
-        logout.addActionListener(e -> cardLayout.show(mainPanel, "LOGIN"));
-        container.add(logout, BorderLayout.NORTH);
-        container.add(tabs, BorderLayout.CENTER);
-        return container;
+        check(passed[0], "expired offer passed to the next waiter");
     }
 
-    private void handleAdminAction(JTable table, boolean isApprove) {
-        int row = table.getSelectedRow();
-        if (row != -1) {
-            String sId = adReqModel.getValueAt(row, 0).toString();
-            String iName = adReqModel.getValueAt(row, 2).toString();
-            BorrowRequest req = DataStore.requests.stream().filter(r -> r.getStudent().getId().equals(sId) && r.getItem().getName().equals(iName) && r.getStatus() == RequestStatus.PENDING).findFirst().orElse(null);
-            if (req != null) {
-                if (isApprove) {
-                    if (req.getType() == RequestType.NEW_BORROW) {
-                        if (req.getItem().getCurrentQty() > 0) {
-                            req.getItem().decreaseQty(); req.setStatus(RequestStatus.APPROVED);
-                            DataStore.records.add(new BorrowRecord(req.getStudent(), req.getItem()));
-                            EmailService.send(req.getStudent().getEmail(), "Borrow Approved", "Your request for " + req.getItem().getName() + " is approved.");
-                            JOptionPane.showMessageDialog(this, "Approved.");
-                        } else { JOptionPane.showMessageDialog(this, "Out of Stock!"); return; }
-                    } else {
-                        req.setStatus(RequestStatus.APPROVED);
-                        BorrowRecord rec = DataStore.records.stream().filter(r -> r.getStudent().equals(req.getStudent()) && r.getItem().equals(req.getItem()) && r.getReturnDate() == null).findFirst().orElse(null);
-                        if (rec != null) rec.extendDueDate(req.getType() == RequestType.RENEW ? 7 : req.getDaysRequested());
-                        EmailService.send(req.getStudent().getEmail(), "Request Approved", "Your request is approved.");
-                        JOptionPane.showMessageDialog(this, "Approved.");
-                    }
-                } else {
-                    req.setStatus(RequestStatus.REJECTED);
-                    EmailService.send(req.getStudent().getEmail(), "Request Rejected", "Your request was rejected.");
-                    JOptionPane.showMessageDialog(this, "Rejected.");
+    interface ThrowingRunnable { void run() throws Exception; }
+
+    /** Swallows whatever is written to it (OutputStream.nullOutputStream() is Java 11+). */
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override public void write(int b) { }
+        @Override public void write(byte[] b, int off, int len) { }
+    };
+
+    /** Runs body with stdout/stderr silenced (the services log every email) and lets the mail queue drain. */
+    private static void quietly(ThrowingRunnable body) throws Exception {
+        PrintStream out = System.out, err = System.err;
+        System.setOut(new PrintStream(DISCARD));
+        System.setErr(new PrintStream(DISCARD));
+        try {
+            body.run();
+            for (int i = 0; i < 300 && EmailService.queueDepth() > 0; i++) Thread.sleep(100);
+        } finally {
+            System.setOut(out);
+            System.setErr(err);
+        }
+    }
+
+    // --- Catalog search ---
+
+    private static final String[] BRANDS = { "Sony", "Canon", "Apple", "Dell", "Shure", "Epson", "Logitech", "Nikon", "Lenovo", "Rode", "Yamaha", "Asus" };
+    private static final String[] PRODUCTS = { "Projector", "Camera", "MacBook", "Laptop", "Microphone", "Tripod", "Tablet", "Speaker", "Monitor", "Webcam", "Keyboard", "Lens" };
+
+    static void catalog(int n) {
+        Random rnd = new Random(7);
+        for (int i = 0; i < n; i++) {
+            String name = BRANDS[rnd.nextInt(BRANDS.length)] + " " + PRODUCTS[rnd.nextInt(PRODUCTS.length)] + " " + (char) ('A' + rnd.nextInt(26)) + rnd.nextInt(1000);
+            DataStore.addItem(new Item("C" + i, name, "CAT" + rnd.nextInt(40), 1 + rnd.nextInt(3)));
+        }
+        // Drain a third of the catalog so availability facets have something to count.
+        List<Item> all = DataStore.itemsSnapshot();
+        for (int i = 0; i < n; i += 3) while (DataStore.reserveUnit(all.get(i))) { }
+
+        String[][] queries = { { "can", null }, { "canon cam", null }, { "sony proj a1", null }, { "l", null },
+                { "lens", "CAT3" }, { "", null }, { "", "CAT7" }, { "zzz", null } };
+        System.out.println("Catalog: " + n + " items");
+        for (String[] q : queries) {
+            for (boolean availableOnly : new boolean[] { false, true }) {
+                CatalogIndex.Result r = DataStore.searchItems(q[0], q[1], availableOnly, 50);
+                checkAgainstScan(all, q[0], q[1], availableOnly, r);
+                long[] lat = new long[2000];
+                for (int i = -500; i < lat.length; i++) { // negative i = warm-up
+                    long t0 = System.nanoTime();
+                    sink += DataStore.searchItems(q[0], q[1], availableOnly, 50).total;
+                    if (i >= 0) lat[i] = System.nanoTime() - t0;
+                }
+                Arrays.sort(lat);
+                System.out.printf("  %-16s %-5s %-6s total=%6d facets=%2d  p50=%7.1f us  p99=%7.1f us%n", "\"" + q[0] + "\"",
+                        q[1] == null ? "-" : q[1], availableOnly ? "avail" : "all", r.total, r.facets.size(),
+                        LatencyLog.percentile(lat, 50) / 1e3, LatencyLog.percentile(lat, 99) / 1e3);
+            }
+        }
+
+        // Facets follow stock changes without a rebuild.
+        Item first = all.get(0);
+        int before = DataStore.searchItems("", first.getCategory(), true, 0).total;
+        DataStore.releaseUnit(first);
+        int after = DataStore.searchItems("", first.getCategory(), true, 0).total;
+        check(after == before + 1, "facet counts update on restock (" + before + " -> " + after + ")");
+    }
+
+    private static void checkAgainstScan(List<Item> all, String query, String category, boolean availableOnly, CatalogIndex.Result r) {
+        List<String> terms = CatalogIndex.tokenize(query);
+        Map<String, int[]> facets = new TreeMap<>();
+        int total = 0;
+        for (Item i : all) {
+            List<String> words = CatalogIndex.tokenize(i.getName() + " " + i.getCategory());
+            if (!terms.stream().allMatch(t -> words.stream().anyMatch(w -> w.startsWith(t)))) continue;
+            boolean avail = i.getCurrentQty() > 0;
+            int[] c = facets.computeIfAbsent(i.getCategory(), k -> new int[2]);
+            c[0]++;
+            if (avail) c[1]++;
+            if ((category == null || category.equals(i.getCategory())) && (avail || !availableOnly)) total++;
+        }
+        boolean ok = total == r.total && facets.size() == r.facets.size();
+        for (Map.Entry<String, int[]> f : facets.entrySet()) {
+            CatalogIndex.Facet got = r.facets.get(f.getKey());
+            ok &= got != null && got.items == f.getValue()[0] && got.available == f.getValue()[1];
+        }
+        if (!ok) check(false, "search \"" + query + "\" matches a full scan (scan total " + total + ", index " + r.total + ")");
+    }
+
+    // --- Registration mail attachments ---
+
+    static void attachments(int messages) throws Exception {
+        String path = BorrowService.WELCOME_ATTACHMENT;
+        check(new File(path).exists(), path + " present in working directory");
+        EmailService.OutboundMail mail = new EmailService.OutboundMail("new@member.test", "Welcome", "Hello", path);
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(DISCARD)); // buildMessage logs every attachment
+        try {
+            // Same bytes on the wire as the old per-message FileDataSource path.
+            ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+            MimeBodyPart cached = (MimeBodyPart) ((Multipart) EmailService.buildMessage(mail).getContent()).getBodyPart(1);
+            try (InputStream in = cached.getInputStream()) {
+                byte[] chunk = new byte[4096];
+                for (int n; (n = in.read(chunk)) > 0; ) decoded.write(chunk, 0, n);
+            }
+            check(Arrays.equals(decoded.toByteArray(), Files.readAllBytes(Paths.get(path))), "cached attachment decodes to the file");
+
+            for (int round = 0; round < 2; round++) { // first round is warm-up
+                long cachedNs = timeMessages(messages, () -> EmailService.buildMessage(mail));
+                long legacyNs = timeMessages(messages, () -> legacyMessage(mail));
+                if (round == 1) {
+                    out.printf("  cached      %,8.0f msgs/s  (%.1f us/msg)%n", messages / (cachedNs / 1e9), cachedNs / 1e3 / messages);
+                    out.printf("  file (old)  %,8.0f msgs/s  (%.1f us/msg)%n", messages / (legacyNs / 1e9), legacyNs / 1e3 / messages);
                 }
-                refreshAdminData();
             }
+        } finally {
+            System.setOut(out);
         }
+        System.out.println("  " + AttachmentCache.stats());
     }
 
-    private void refreshStudentData() {
-        if (stItemModel == null || currentUser == null) return;
-        stItemModel.setRowCount(0);
-        for (Item i : DataStore.items) stItemModel.addRow(new Object[]{i.getItemId(), i.getName(), i.getCategory(), i.getCurrentQty() + " / " + i.getTotalQty()});
-        stStatusModel.setRowCount(0);
-        
-        // [UPDATED] Populate new columns for Student
-        for (BorrowRequest req : DataStore.requests) 
-            if (req.getStudent().equals(currentUser) && req.getStatus() != RequestStatus.COMPLETED) 
-                stStatusModel.addRow(new Object[]{req.getItem().getName(), "REQ: " + req.getStatus(), req.getType(), req.getRequestDate(), "-"});
-        
-        for (BorrowRecord rec : DataStore.records) 
-            if (rec.getStudent().equals(currentUser)) 
-                stStatusModel.addRow(new Object[]{
-                    rec.getItem().getName(), 
-                    rec.getReturnDate() == null ? "BORROWED" : "RETURNED", 
-                    rec.getReturnDate() == null ? "Active" : "History",
-                    rec.getBorrowDate(), // Added Borrow Date
-                    rec.getReturnDate() == null ? rec.getDueDate() : rec.getReturnDate() // Show DueDate or Actual Return Date
-                });
+    interface MessageBuilder { MimeMessage build() throws Exception; }
+
+    private static long timeMessages(int messages, MessageBuilder builder) throws Exception {
+        long t0 = System.nanoTime();
+        for (int i = 0; i < messages; i++) builder.build().writeTo(DISCARD);
+        return System.nanoTime() - t0;
     }
 
-    private void refreshAdminData() {
-        if (adReqModel == null) return;
-        adReqModel.setRowCount(0);
-        for (BorrowRequest r : DataStore.requests) 
-            if (r.getStatus() == RequestStatus.PENDING) 
-                adReqModel.addRow(new Object[]{r.getStudent().getId(), r.getStudent().getName(), r.getItem().getName(), r.getType(), "-", r.getStatus()});
-        
-        adRecModel.setRowCount(0);
-        LocalDate today = LocalDate.now();
-        for (BorrowRecord r : DataStore.records) if (r.getReturnDate() == null) {
-            String status = today.isAfter(r.getDueDate()) ? "OVERDUE" : "BORROWED";
-            int fine = FineCalculator.calculate(r.getDueDate(), today);
-            // [UPDATED] Populate new columns for Admin (Borrow Date)
-            adRecModel.addRow(new Object[]{
-                r.getStudent().getName(), 
-                r.getItem().getName(), 
-                r.getBorrowDate(), // Added
-                r.getDueDate(), 
-                status, 
-                fine + " THB"
+    /** The pre-cache construction: a FileDataSource per message, re-read and re-encoded on send. */
+    private static MimeMessage legacyMessage(EmailService.OutboundMail mail) throws MessagingException {
+        MimeMessage message = EmailService.newMessage();
+        message.setRecipients(Message.RecipientType.TO, InternetAddress.parse(mail.recipient));
+        message.setSubject(mail.subject);
+        Multipart multipart = new MimeMultipart();
+        BodyPart text = new MimeBodyPart();
+        text.setText(mail.body);
+        multipart.addBodyPart(text);
+        File file = new File(mail.attachmentPath);
+        if (file.exists()) {
+            BodyPart attachment = new MimeBodyPart();
+            attachment.setDataHandler(new DataHandler(new FileDataSource(file)));
+            attachment.setFileName(file.getName());
+            multipart.addBodyPart(attachment);
+        }
+        message.setContent(multipart);
+        message.saveChanges();
+        return message;
+    }
+
+    // --- HTTP API load ---
+
+    static void httpLoad(int clients, int seconds) throws Exception {
+        EmailService.setTransportFactory(PerfHarness::discardingTransport);
+        for (int i = 0; i < 200; i++) DataStore.addItem(new Item("L" + i, "Load Item " + i, "CAT" + (i % 10), 50));
+        String hash = PasswordHasher.hash("pw");
+        for (int i = 0; i < clients; i++)
+            DataStore.addUser(Student.restore("L" + i, "Load Student " + i, "l" + i + "@load.test", "-", hash, CardType.STUDENT_CARD, 2003));
+
+        HttpApiServer api = HttpApiServer.start(0);
+        String base = "http://localhost:" + api.port() + "/api";
+        System.out.println("HTTP load: " + clients + " student clients + 1 admin for " + seconds + " s");
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        List<long[]> latencies = Collections.synchronizedList(new ArrayList<>());
+        AtomicLong errors = new AtomicLong(), conflicts = new AtomicLong();
+        List<Runnable> bodies = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            int id = c;
+            bodies.add(() -> {
+                Random rnd = new Random(id);
+                LatencyLog log = new LatencyLog();
+                String token = login(base, "L" + id, "pw");
+                while (System.nanoTime() < deadline) {
+                    int dice = rnd.nextInt(10);
+                    int status;
+                    long t0 = System.nanoTime();
+                    if (dice < 6) status = call("GET", base + "/items", token, null);
+                    else if (dice < 8) status = call("GET", base + "/me", token, null);
+                    else status = call("POST", base + "/requests", token, "{\"itemId\":\"L" + rnd.nextInt(200) + "\"}");
+                    log.add(System.nanoTime() - t0);
+                    if (status == 409) conflicts.incrementAndGet();
+                    else if (status != 200) errors.incrementAndGet();
+                }
+                latencies.add(log.toArray());
             });
         }
+        bodies.add(() -> {
+            LatencyLog log = new LatencyLog();
+            String token = login(base, "admin", "admin");
+            Pattern pending = Pattern.compile("\\{\"studentId\":(\"[^\"]*\"),\"itemId\":(\"[^\"]*\")");
+            while (System.nanoTime() < deadline) {
+                long t0 = System.nanoTime();
+                String list = fetch(base + "/requests/pending", token);
+                log.add(System.nanoTime() - t0);
+                Matcher m = pending.matcher(list);
+                for (int n = 0; n < 20 && m.find() && System.nanoTime() < deadline; n++) {
+                    String body = "{\"studentId\":" + m.group(1) + ",\"itemId\":" + m.group(2) + "}";
+                    t0 = System.nanoTime();
+                    int approve = call("POST", base + "/requests/approve", token, body);
+                    int ret = call("POST", base + "/records/return", token, body);
+                    log.add((System.nanoTime() - t0) / 2);
+                    log.add((System.nanoTime() - t0) / 2);
+                    if (approve == 409) conflicts.incrementAndGet(); else if (approve != 200) errors.incrementAndGet();
+                    if (ret != 200 && ret != 404) errors.incrementAndGet();
+                }
+            }
+            latencies.add(log.toArray());
+        });
+
+        long t0 = System.nanoTime();
+        runThreads(bodies);
+        double secs = (System.nanoTime() - t0) / 1e9;
+        api.stop();
+
+        long[] all = LatencyLog.merge(latencies);
+        System.out.printf("  %,d requests in %.1f s = %,.0f req/s (%d business-rule 409s, %d errors)%n",
+                all.length, secs, all.length / secs, conflicts.get(), errors.get());
+        System.out.printf("  latency p50=%.2f ms  p99=%.2f ms  max=%.2f ms%n",
+                LatencyLog.percentile(all, 50) / 1e6, LatencyLog.percentile(all, 99) / 1e6, all.length == 0 ? 0 : all[all.length - 1] / 1e6);
+        check(errors.get() == 0, "no unexpected HTTP errors");
+        for (Item i : DataStore.itemsSnapshot())
+            if (i.getCurrentQty() < 0 || i.getCurrentQty() > i.getTotalQty()) check(false, "stock out of range for " + i.getItemId());
+    }
+
+    private static String login(String base, String id, String password) {
+        String res = fetchPost(base + "/login", "{\"id\":\"" + id + "\",\"password\":\"" + password + "\"}");
+        Matcher m = Pattern.compile("\"token\":\"([^\"]+)\"").matcher(res);
+        if (!m.find()) throw new IllegalStateException("Login failed for " + id + ": " + res);
+        return m.group(1);
+    }
+
+    private static int call(String method, String url, String token, String body) {
+        return http(method, url, token, body, null);
+    }
+
+    private static String fetch(String url, String token) {
+        StringBuilder out = new StringBuilder();
+        http("GET", url, token, null, out);
+        return out.toString();
+    }
+
+    private static String fetchPost(String url, String body) {
+        StringBuilder out = new StringBuilder();
+        http("POST", url, null, body, out);
+        return out.toString();
+    }
+
+    private static int http(String method, String url, String token, String body, StringBuilder out) {
+        try {
+            HttpURLConnection c = (HttpURLConnection) new URL(url).openConnection();
+            c.setRequestMethod(method);
+            if (token != null) c.setRequestProperty("Authorization", "Bearer " + token);
+            if (body != null) {
+                c.setDoOutput(true);
+                c.setRequestProperty("Content-Type", "application/json");
+                try (OutputStream o = c.getOutputStream()) { o.write(body.getBytes(StandardCharsets.UTF_8)); }
+            }
+            int status = c.getResponseCode();
+            // Drain fully so the keep-alive connection goes back to the pool.
+            try (InputStream in = status < 400 ? c.getInputStream() : c.getErrorStream()) {
+                byte[] buf = new byte[8192];
+                for (int n; in != null && (n = in.read(buf)) > 0; )
+                    if (out != null) out.append(new String(buf, 0, n, StandardCharsets.UTF_8));
+            }
+            return status;
+        } catch (IOException e) {
+            return -1;
+        }
     }
 
-    public static void main(String[] args) {
-        SwingUtilities.invokeLater(() -> new SmartBorrowSystem().setVisible(true));
+    private static MailTransport discardingTransport() {
+        return new MailTransport() {
+            @Override public void send(MimeMessage message) { }
+            @Override public void close() { }
+        };
+    }
+
+    /** Growable long[] of nanosecond samples. */
+    static class LatencyLog {
+        private long[] data = new long[1024];
+        private int size;
+
+        void add(long nanos) {
+            if (size == data.length) data = Arrays.copyOf(data, size * 2);
+            data[size++] = nanos;
+        }
+
+        long[] toArray() { return Arrays.copyOf(data, size); }
+
+        static long[] merge(List<long[]> parts) {
+            int n = 0;
+            for (long[] p : parts) n += p.length;
+            long[] all = new long[n];
+            int i = 0;
+            for (long[] p : parts) {
+                System.arraycopy(p, 0, all, i, p.length);
+                i += p.length;
+            }
+            Arrays.sort(all);
+            return all;
+        }
+
+        /** Expects a sorted array. */
+        static long percentile(long[] sorted, double p) {
+            if (sorted.length == 0) return 0;
+            int idx = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(idx, sorted.length - 1))];
+        }
+    }
+
+    private static void runThreads(int threads, Runnable body) throws InterruptedException {
+        List<Runnable> bodies = new ArrayList<>();
+        for (int i = 0; i < threads; i++) bodies.add(body);
+        runThreads(bodies);
+    }
+
+    private static void runThreads(List<Runnable> bodies) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> ts = new ArrayList<>();
+        for (Runnable body : bodies) {
+            Thread t = new Thread(() -> {
+                try { start.await(); } catch (InterruptedException e) { return; }
+                body.run();
+            });
+            t.start();
+            ts.add(t);
+        }
+        start.countDown();
+        for (Thread t : ts) t.join();
     }
-}
\ No newline at end of file
+}